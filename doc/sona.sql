@@ -111,7 +111,8 @@ CREATE TABLE `t_room_group_member` (
   `create_time` datetime NOT NULL DEFAULT CURRENT_TIMESTAMP COMMENT '创建时间',
   `update_time` datetime NOT NULL DEFAULT CURRENT_TIMESTAMP ON UPDATE CURRENT_TIMESTAMP COMMENT '更新时间',
   PRIMARY KEY (`id`),
-  KEY `idx_room_id` (`room_id`),
+  UNIQUE KEY `uk_room_id_uid` (`room_id`,`uid`),
+  KEY `idx_room_id_status` (`room_id`,`status`),
   KEY `idx_uid_product_code_status` (`uid`,`product_code`,`status`)
 ) ENGINE=InnoDB DEFAULT CHARSET=utf8 COMMENT='群组成员表';
 
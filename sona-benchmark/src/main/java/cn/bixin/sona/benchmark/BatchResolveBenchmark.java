@@ -0,0 +1,59 @@
+package cn.bixin.sona.benchmark;
+
+import cn.bixin.sona.gateway.common.AccessMessage;
+import cn.bixin.sona.gateway.common.BatchResolve;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 批量下发时合并消息
+ *
+ * @author qinwei
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BatchResolveBenchmark {
+
+    @Param({"8", "32"})
+    private int batchSize;
+
+    @Param({"200"})
+    private int bodySize;
+
+    private List<AccessMessage> messages;
+
+    @Setup
+    public void setup() {
+        messages = new ArrayList<>(batchSize);
+        for (int i = 0; i < batchSize; i++) {
+            AccessMessage message = new AccessMessage();
+            message.setReq(true);
+            message.setCmd(5);
+            message.setBody(Fixtures.jsonBody(bodySize).getBytes(StandardCharsets.UTF_8));
+            messages.add(message);
+        }
+    }
+
+    @Benchmark
+    public AccessMessage merge() {
+        return BatchResolve.merge(messages);
+    }
+}
@@ -0,0 +1,63 @@
+package cn.bixin.sona.benchmark;
+
+import cn.bixin.sona.session.channel.ChannelIdInfo;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * channelId 解析，parseChannelId 创建完整对象，timestamp/serverId 按下标直接读取
+ *
+ * @author qinwei
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ChannelIdParseBenchmark {
+
+    private static final int KEYS = 256;
+
+    private String[] channelIds;
+
+    private int index;
+
+    @Setup
+    public void setup() {
+        channelIds = new String[KEYS];
+        for (int i = 0; i < KEYS; i++) {
+            channelIds[i] = Fixtures.channelId(i);
+        }
+    }
+
+    private String next() {
+        index = (index + 1) & (KEYS - 1);
+        return channelIds[index];
+    }
+
+    @Benchmark
+    public ChannelIdInfo parseChannelId() {
+        return ChannelIdInfo.parseChannelId(next());
+    }
+
+    @Benchmark
+    public long timestamp() {
+        return ChannelIdInfo.timestamp(next());
+    }
+
+    @Benchmark
+    public String serverId() {
+        return ChannelIdInfo.serverId(next());
+    }
+}
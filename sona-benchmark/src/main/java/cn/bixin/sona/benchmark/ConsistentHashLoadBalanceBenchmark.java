@@ -0,0 +1,62 @@
+package cn.bixin.sona.benchmark;
+
+import cn.bixin.sona.gateway.loadbalance.ConsistentHashLoadBalance;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * OrderedChannelExecutor 按 channelId 选择串行执行器
+ *
+ * @author qinwei
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ConsistentHashLoadBalanceBenchmark {
+
+    private static final int KEYS = 1024;
+
+    @Param({"64"})
+    private int nodes;
+
+    private ConsistentHashLoadBalance<String> loadBalance;
+
+    private String[] keys;
+
+    private int index;
+
+    @Setup
+    public void setup() {
+        List<String> list = new ArrayList<>(nodes);
+        for (int i = 0; i < nodes; i++) {
+            list.add("node-" + i);
+        }
+        loadBalance = new ConsistentHashLoadBalance<>(list);
+        keys = new String[KEYS];
+        for (int i = 0; i < KEYS; i++) {
+            keys[i] = Fixtures.channelId(i);
+        }
+    }
+
+    @Benchmark
+    public String selectNode() {
+        index = (index + 1) & (KEYS - 1);
+        return loadBalance.selectNode(keys[index]);
+    }
+}
@@ -0,0 +1,45 @@
+package cn.bixin.sona.benchmark;
+
+import cn.bixin.sona.gateway.concurrent.counter.CounterService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 房间计数，hotRoom 模拟多个线程同时给同一个热门房间计数
+ *
+ * @author qinwei
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(4)
+@Fork(1)
+public class CounterServiceBenchmark {
+
+    private static final String[] ROOMS = {"room-1", "room-2", "room-3", "room-4", "room-5", "room-6", "room-7", "room-8"};
+
+    private int index;
+
+    @Benchmark
+    public void hotRoom() {
+        CounterService.increment(ROOMS[0]);
+    }
+
+    @Benchmark
+    public void spreadRooms() {
+        index = (index + 1) & (ROOMS.length - 1);
+        CounterService.increment(ROOMS[index]);
+    }
+}
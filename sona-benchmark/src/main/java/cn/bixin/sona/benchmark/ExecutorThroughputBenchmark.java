@@ -0,0 +1,155 @@
+package cn.bixin.sona.benchmark;
+
+import cn.bixin.sona.gateway.channel.NettyChannel;
+import cn.bixin.sona.gateway.channel.handler.ChannelHandler;
+import cn.bixin.sona.gateway.channel.support.ChannelAttrs;
+import cn.bixin.sona.gateway.channel.support.ChannelEventState;
+import cn.bixin.sona.gateway.channel.support.ChannelEventTask;
+import cn.bixin.sona.gateway.concurrent.FastThreadPool;
+import cn.bixin.sona.gateway.concurrent.OrderedChannelExecutor;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 网关事件线程池的吞吐：每次提交 {@link #BATCH} 个任务并等待全部执行完成
+ * <p>
+ * OrderedChannelExecutor 的任务分散在 {@link #CHANNELS} 个连接上，保证同一连接内的顺序；FastThreadPool 分别测试单个提交和批量提交
+ *
+ * @author qinwei
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ExecutorThroughputBenchmark {
+
+    private static final int BATCH = 1024;
+
+    private static final int CHANNELS = 256;
+
+    private static final long TIMEOUT_SECONDS = 10;
+
+    private OrderedChannelExecutor orderedExecutor;
+
+    private FastThreadPool fastThreadPool;
+
+    private NettyChannel[] channels;
+
+    private EmbeddedChannel[] embeddedChannels;
+
+    private final CountingHandler handler = new CountingHandler();
+
+    private final Object message = new Object();
+
+    private Runnable[] tasks;
+
+    private volatile CountDownLatch latch;
+
+    @Setup
+    public void setup() {
+        //串行执行器有 64 个，线程数大于 64 时分发不会被丢弃
+        orderedExecutor = new OrderedChannelExecutor(128, "bench-ordered");
+        fastThreadPool = new FastThreadPool("bench-fast", 4);
+        embeddedChannels = new EmbeddedChannel[CHANNELS];
+        channels = new NettyChannel[CHANNELS];
+        for (int i = 0; i < CHANNELS; i++) {
+            embeddedChannels[i] = new EmbeddedChannel();
+            ChannelAttrs.init(embeddedChannels[i], new InetSocketAddress("192.168." + (i >> 8) + "." + (i & 0xff), 40000 + i));
+            channels[i] = NettyChannel.getOrAddChannel(embeddedChannels[i]);
+        }
+        tasks = new Runnable[BATCH];
+        Arrays.fill(tasks, (Runnable) () -> latch.countDown());
+    }
+
+    @TearDown
+    public void tearDown() {
+        orderedExecutor.shutdownNow();
+        fastThreadPool.stop();
+        for (int i = 0; i < CHANNELS; i++) {
+            NettyChannel.removeChannel(embeddedChannels[i]);
+            embeddedChannels[i].close();
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void orderedChannelExecutor() throws InterruptedException {
+        CountDownLatch current = newLatch();
+        for (int i = 0; i < BATCH; i++) {
+            orderedExecutor.execute(ChannelEventTask.newInstance(handler, channels[i & (CHANNELS - 1)], ChannelEventState.SENT, message));
+        }
+        await(current);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void fastThreadPoolSubmit() throws InterruptedException {
+        CountDownLatch current = newLatch();
+        for (int i = 0; i < BATCH; i++) {
+            fastThreadPool.submit(tasks[i]);
+        }
+        await(current);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void fastThreadPoolBatchSubmit() throws InterruptedException {
+        CountDownLatch current = newLatch();
+        fastThreadPool.submit(tasks, 0, BATCH);
+        await(current);
+    }
+
+    private CountDownLatch newLatch() {
+        CountDownLatch current = new CountDownLatch(BATCH);
+        latch = current;
+        return current;
+    }
+
+    private static void await(CountDownLatch current) throws InterruptedException {
+        if (!current.await(TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+            throw new IllegalStateException("tasks not finished, remaining " + current.getCount());
+        }
+    }
+
+    private final class CountingHandler implements ChannelHandler {
+
+        @Override
+        public void connect(NettyChannel channel) {
+        }
+
+        @Override
+        public void disconnect(NettyChannel channel) {
+        }
+
+        @Override
+        public void send(NettyChannel channel, Object message) {
+            latch.countDown();
+        }
+
+        @Override
+        public void receive(NettyChannel channel, Object message) {
+        }
+
+        @Override
+        public void caught(NettyChannel channel, Throwable exception) {
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package cn.bixin.sona.benchmark;
+
+/**
+ * 基准测试使用的数据
+ *
+ * @author qinwei
+ */
+final class Fixtures {
+
+    private Fixtures() {
+    }
+
+    /**
+     * 生成指定长度的类似房间消息的 json，内容有重复，压缩率接近线上
+     */
+    static String jsonBody(int size) {
+        StringBuilder sb = new StringBuilder(size + 64);
+        sb.append("{\"roomId\":\"1234567\",\"msgType\":\"TEXT\",\"messages\":[");
+        int i = 0;
+        while (sb.length() < size - 2) {
+            sb.append("{\"uid\":").append(100000 + i).append(",\"content\":\"hello sona ").append(i).append("\"},");
+            i++;
+        }
+        sb.append("{}]}");
+        return sb.substring(0, Math.max(size, 0));
+    }
+
+    /**
+     * 旧格式的 channelId：serverIp|remoteIp|port|timestamp|seq
+     */
+    static String channelId(int i) {
+        return "10.0." + (i >> 8 & 0xff) + "." + (i & 0xff) + "|192.168." + (i >> 8 & 0xff) + "." + (i & 0xff) + "|" + (30000 + i % 30000)
+                + "|" + (1700000000000L + i) + "|" + Integer.toHexString(i);
+    }
+}
@@ -0,0 +1,119 @@
+package cn.bixin.sona.benchmark;
+
+import cn.bixin.sona.api.im.enums.PriorityEnum;
+import cn.bixin.sona.api.im.request.RoomMessageRequest;
+import cn.bixin.sona.common.dto.Response;
+import cn.bixin.sona.server.im.handler.ChatRoomHandler;
+import cn.bixin.sona.server.im.handler.HandlerChain;
+import cn.bixin.sona.server.im.utils.MessageLog;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.context.support.StaticApplicationContext;
+
+import java.lang.reflect.Field;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 房间消息处理链本身的开销，处理器和消息日志都是本地桩，不访问 redis、kafka 和 dubbo
+ *
+ * @author qinwei
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HandlerChainBenchmark {
+
+    private static final Response<Boolean> SUCCESS = Response.success(true);
+
+    private StaticApplicationContext context;
+
+    private HandlerChain handlerChain;
+
+    private RoomMessageRequest request;
+
+    @Setup
+    public void setup() throws Exception {
+        context = new StaticApplicationContext();
+        context.getBeanFactory().registerSingleton("checkHandler", new StubHandler(1, true));
+        context.getBeanFactory().registerSingleton("unsupportedHandler", new StubHandler(2, false));
+        context.getBeanFactory().registerSingleton("sendHandler", new StubHandler(3, true));
+        context.refresh();
+
+        handlerChain = new HandlerChain();
+        handlerChain.setApplicationContext(context);
+        Field field = HandlerChain.class.getDeclaredField("messageLog");
+        field.setAccessible(true);
+        field.set(handlerChain, new NoopMessageLog());
+
+        request = new RoomMessageRequest();
+        request.setRoomId(1234567L);
+        request.setUid(10001L);
+        request.setMsgType("TEXT");
+        request.setPriority(PriorityEnum.MEDIUM);
+        request.setProductCode("CHATROOM");
+        request.setMessageId("1001");
+        request.setSendTime(System.currentTimeMillis());
+        request.setContent(Fixtures.jsonBody(200));
+    }
+
+    @TearDown
+    public void tearDown() {
+        context.close();
+    }
+
+    @Benchmark
+    public Response<Boolean> handle() {
+        return handlerChain.handle(request);
+    }
+
+    private static final class StubHandler implements ChatRoomHandler {
+
+        private final int order;
+
+        private final boolean support;
+
+        private StubHandler(int order, boolean support) {
+            this.order = order;
+            this.support = support;
+        }
+
+        @Override
+        public Response<Boolean> handle(RoomMessageRequest request) {
+            return SUCCESS;
+        }
+
+        @Override
+        public boolean support(RoomMessageRequest request) {
+            return support;
+        }
+
+        @Override
+        public int order() {
+            return order;
+        }
+    }
+
+    private static final class NoopMessageLog extends MessageLog {
+
+        @Override
+        public void saveMessageLog(RoomMessageRequest request, String content, List<Long> toUid) {
+        }
+
+        @Override
+        public void saveFailureLog(RoomMessageRequest request, String reason) {
+        }
+    }
+}
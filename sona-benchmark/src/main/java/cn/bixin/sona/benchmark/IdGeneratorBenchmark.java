@@ -0,0 +1,43 @@
+package cn.bixin.sona.benchmark;
+
+import cn.bixin.sona.common.util.IdGenerator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 消息 id 生成，多个线程共用一个 IdGenerator（和 spring 单例一致）
+ *
+ * @author qinwei
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class IdGeneratorBenchmark {
+
+    private final IdGenerator idGenerator = new IdGenerator();
+
+    @Benchmark
+    @Threads(1)
+    public long id() {
+        return idGenerator.id();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public long idContended() {
+        return idGenerator.id();
+    }
+}
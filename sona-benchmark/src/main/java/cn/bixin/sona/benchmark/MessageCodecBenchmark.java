@@ -0,0 +1,85 @@
+package cn.bixin.sona.benchmark;
+
+import cn.bixin.sona.gateway.common.AccessMessage;
+import cn.bixin.sona.gateway.common.MessageCodec;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 长连消息编解码，bodySize 不小于 2048 时会压缩
+ *
+ * @author qinwei
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MessageCodecBenchmark {
+
+    @Param({"256", "4096"})
+    private int bodySize;
+
+    private byte[] body;
+
+    private ByteBuf encodeBuf;
+
+    private ByteBuf decodeBuf;
+
+    @Setup
+    public void setup() throws Exception {
+        body = Fixtures.jsonBody(bodySize).getBytes(StandardCharsets.UTF_8);
+        encodeBuf = PooledByteBufAllocator.DEFAULT.heapBuffer(bodySize * 2);
+        decodeBuf = PooledByteBufAllocator.DEFAULT.heapBuffer(bodySize * 2);
+        MessageCodec.encode(decodeBuf, newMessage());
+    }
+
+    @TearDown
+    public void tearDown() {
+        encodeBuf.release();
+        decodeBuf.release();
+    }
+
+    /**
+     * 编码会修改消息（压缩后替换 body、增加 header），每次使用新的消息
+     */
+    private AccessMessage newMessage() {
+        AccessMessage message = new AccessMessage();
+        message.setReq(true);
+        message.setTwoWay(true);
+        message.setVersion(1);
+        message.setId(1024);
+        message.setCmd(5);
+        message.setBody(body);
+        return message;
+    }
+
+    @Benchmark
+    public int encode() throws Exception {
+        encodeBuf.clear();
+        MessageCodec.encode(encodeBuf, newMessage());
+        return encodeBuf.writerIndex();
+    }
+
+    @Benchmark
+    public AccessMessage decode() {
+        decodeBuf.readerIndex(0);
+        return MessageCodec.decode(decodeBuf);
+    }
+}
@@ -0,0 +1,56 @@
+package cn.bixin.sona.benchmark;
+
+import cn.bixin.sona.gateway.cat.MonitorUtils;
+import cn.bixin.sona.gateway.common.AccessMessage;
+import cn.bixin.sona.gateway.util.AccessMessageUtils;
+import cn.bixin.sona.gateway.util.ExecuteFunction;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 单条消息在网关内的 cat 埋点开销：消息大小、transaction、发送失败事件，sampleRate 为负数表示关闭埋点
+ *
+ * @author qinwei
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MonitorUtilsBenchmark {
+
+    private static final ExecuteFunction NOOP = () -> {
+    };
+
+    @Param({"-1", "0", "0.01"})
+    private double sampleRate;
+
+    private AccessMessage message;
+
+    @Setup
+    public void setup() {
+        MonitorUtils.updateConfig(sampleRate >= 0, sampleRate);
+        message = AccessMessageUtils.createRequest(10, new byte[64]);
+    }
+
+    @Benchmark
+    public String perMessage() {
+        String name = MonitorUtils.cmdName(message);
+        AccessMessageUtils.logInboundMsgSize(message, name);
+        MonitorUtils.newSampledTransaction(MonitorUtils.CAT_IN_TRANS_TYPE, name, NOOP);
+        MonitorUtils.logCatEventWithMessage(MonitorUtils.SEND_MESSAGE_PROBLEM, "ChannelNotWritable", message, false);
+        return name;
+    }
+}
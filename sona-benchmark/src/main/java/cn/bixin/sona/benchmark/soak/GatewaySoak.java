@@ -0,0 +1,85 @@
+package cn.bixin.sona.benchmark.soak;
+
+import com.google.common.util.concurrent.RateLimiter;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.util.concurrent.DefaultThreadFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 网关长稳压测，单机运行，不依赖 zookeeper、RocketMQ、kafka、apollo 等外部服务
+ * <p>
+ * 在同一个进程内启动网关（见 {@link InProcessGateway}），按配置建立 tcp 和 websocket 连接，完成握手、进房，之后持续心跳、发送房间消息，
+ * 同时模拟业务服务注入房间广播；周期性输出送达延迟分位数、丢失条数和 GC 情况，结束时输出全程统计
+ * <p>
+ * 运行方式（参数见 {@link SoakOptions}，apollo 配置可以用同名的系统属性覆盖）：
+ * <pre>
+ * mvn -Pbenchmark -pl sona-benchmark -am package -DskipTests
+ * java -Xms1g -Xmx1g -Dsoak.clients=5000 -Dsoak.durationSeconds=1800 -cp sona-benchmark/target/benchmarks.jar cn.bixin.sona.benchmark.soak.GatewaySoak
+ * </pre>
+ * 连接数较多时需要调大 ulimit -n
+ *
+ * @author qinwei
+ */
+public class GatewaySoak {
+
+    public static void main(String[] args) throws Exception {
+        //默认关闭 cat 埋点，避免本机没有 cat 服务时的额外开销
+        System.setProperty("cat.monitor.enable", System.getProperty("cat.monitor.enable", "false"));
+        SoakOptions options = new SoakOptions();
+        System.out.println("[soak] " + options);
+
+        SoakStats stats = new SoakStats();
+        InProcessGateway gateway = new InProcessGateway(stats);
+        gateway.start();
+
+        EventLoopGroup group = new NioEventLoopGroup(options.clientThreads, new DefaultThreadFactory("soak-client", true));
+        CountDownLatch joinedLatch = new CountDownLatch(options.clients);
+        List<SoakClient> clients = new ArrayList<>(options.clients);
+        RateLimiter rateLimiter = RateLimiter.create(Math.max(options.rampRate, 1));
+        long rampStart = System.currentTimeMillis();
+        for (int i = 0; i < options.clients; i++) {
+            rateLimiter.acquire();
+            SoakClient client = new SoakClient(i, options, stats, joinedLatch::countDown);
+            clients.add(client);
+            client.connect(group);
+        }
+        if (!joinedLatch.await(30, TimeUnit.SECONDS)) {
+            System.out.println("[soak] not all clients joined in time, continue with the joined ones");
+        }
+        System.out.printf("[soak] ramp up finished in %d ms%n", System.currentTimeMillis() - rampStart);
+        stats.report(System.out, "ramp", false);
+
+        ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(2, new DefaultThreadFactory("soak-scheduler", true));
+        clients.forEach(SoakClient::startSending);
+        if (options.broadcastPerSecond > 0) {
+            long periodMicros = Math.max(1_000_000L / options.broadcastPerSecond, 1);
+            int[] next = new int[1];
+            scheduler.scheduleAtFixedRate(() -> gateway.broadcast(options.room(next[0]++), SoakClient.payload(SoakClient.TYPE_BROADCAST, options.payloadBytes)),
+                    0, periodMicros, TimeUnit.MICROSECONDS);
+        }
+        scheduler.scheduleAtFixedRate(() -> stats.report(System.out, "interval", false), options.reportSeconds, options.reportSeconds, TimeUnit.SECONDS);
+
+        TimeUnit.SECONDS.sleep(options.durationSeconds);
+
+        clients.forEach(SoakClient::stopSending);
+        scheduler.shutdownNow();
+        scheduler.awaitTermination(5, TimeUnit.SECONDS);
+        //等待在途的消息送达，包括高频房间 50ms 合并发送的部分
+        TimeUnit.SECONDS.sleep(options.drainSeconds);
+        stats.report(System.out, "total", true);
+
+        //按线上停机流程关闭网关：下发 close 消息后断开剩余的连接
+        clients.forEach(SoakClient::stopping);
+        gateway.stop();
+        group.shutdownGracefully().syncUninterruptibly();
+        System.out.printf("[soak] shutdown, closeMsg=%d, lost=%d%n", stats.closeMsg.sum(), stats.lost());
+        System.exit(0);
+    }
+}
@@ -0,0 +1,199 @@
+package cn.bixin.sona.benchmark.soak;
+
+import cn.bixin.sona.common.spring.SpringApplicationContext;
+import cn.bixin.sona.gateway.channel.NettyChannel;
+import cn.bixin.sona.gateway.channel.RoomChannelManager;
+import cn.bixin.sona.gateway.common.CommandEnum;
+import cn.bixin.sona.gateway.config.ApolloConfiguration;
+import cn.bixin.sona.gateway.handler.ChatRoomHandler;
+import cn.bixin.sona.gateway.handler.ClientPushHandler;
+import cn.bixin.sona.gateway.handler.LoginAuthHandler;
+import cn.bixin.sona.gateway.handler.MercuryRouter;
+import cn.bixin.sona.gateway.interceptor.ChatRoomInterceptor;
+import cn.bixin.sona.gateway.interceptor.HandlerInterceptorChain;
+import cn.bixin.sona.gateway.interceptor.LoginAuthInterceptor;
+import cn.bixin.sona.gateway.listener.ChatRoomMessageListener;
+import cn.bixin.sona.gateway.mq.KafkaSender;
+import cn.bixin.sona.gateway.netty.NettyServer;
+import cn.bixin.sona.gateway.service.SocketNotifyService;
+import cn.bixin.sona.gateway.util.Constants;
+import com.alibaba.fastjson.JSONObject;
+import com.ctrip.framework.apollo.Config;
+import io.netty.channel.ChannelFuture;
+import org.apache.rocketmq.common.message.MessageExt;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 在当前进程中启动网关：真实的 netty 服务、handler 链、拦截器和房间广播，外部依赖全部替换为本地桩
+ * <p>
+ * 1. apollo 配置：读取同名的系统属性，没有时使用代码中的默认值
+ * <p>
+ * 2. kafka 事件日志直接丢弃，登录、进出房间的 MQ 上报只计数
+ * <p>
+ * 3. 房间消息：客户端发送的消息不经过 RocketMQ 和 sona-core，直接按 TOPIC_CHATROOM_MESSAGE_SEND 的格式交给 ChatRoomMessageListener 广播回房间
+ *
+ * @author qinwei
+ */
+class InProcessGateway {
+
+    private final SoakStats stats;
+
+    private final ChatRoomMessageListener listener = new ChatRoomMessageListener();
+
+    private final AtomicLong msgId = new AtomicLong();
+
+    private AnnotationConfigApplicationContext context;
+
+    InProcessGateway(SoakStats stats) {
+        this.stats = stats;
+    }
+
+    void start() {
+        ApolloConfiguration apolloConfiguration = new ApolloConfiguration();
+        apolloConfiguration.setConfig(systemPropertyConfig());
+        apolloConfiguration.setCloseMsgThrottling(Integer.getInteger("close.msg.throttling", 5000));
+        apolloConfiguration.setCloseMsgMaxWaitSeconds(Integer.getInteger("close.msg.max.wait.seconds", 5));
+        apolloConfiguration.setHandshakeWaitSeconds(Integer.getInteger("handshake.wait.seconds", 5));
+        apolloConfiguration.setChannelIdleSeconds(Integer.getInteger("channel.idle.seconds", 280));
+        apolloConfiguration.setProbeIdleSeconds(Integer.getInteger("probe.idle.seconds", 130));
+        apolloConfiguration.setProbeWaitSeconds(Integer.getInteger("probe.wait.seconds", 4));
+        apolloConfiguration.setLongLastingCloseHours(-1);
+        //房间消息只走异步上报，不调用 dubbo
+        apolloConfiguration.setRoomMessageAsync(true);
+        apolloConfiguration.init();
+
+        context = new AnnotationConfigApplicationContext();
+        //直接注册的单例不做依赖注入，桩不需要 RocketMQ、kafka 的客户端
+        context.getBeanFactory().registerSingleton("apolloConfiguration", apolloConfiguration);
+        context.getBeanFactory().registerSingleton("socketNotifyService", new LoopbackNotifyService());
+        context.getBeanFactory().registerSingleton("kafkaSender", new DiscardKafkaSender());
+        context.register(SpringApplicationContext.class, MercuryRouter.class, HandlerInterceptorChain.class,
+                LoginAuthInterceptor.class, ChatRoomInterceptor.class,
+                LoginAuthHandler.class, ChatRoomHandler.class, ClientPushHandler.class, NettyServer.class);
+        context.refresh();
+        ChannelFuture future = context.getBean(NettyServer.class).start();
+        if (future == null || !future.isSuccess()) {
+            throw new IllegalStateException("netty server start fail, port " + NettyServer.PORT + " or " + NettyServer.PORT_WS + " in use?");
+        }
+    }
+
+    /**
+     * 关闭 spring 容器，按线上的停机流程给客户端下发 close 消息并断开连接
+     */
+    void stop() {
+        if (context != null) {
+            context.close();
+        }
+    }
+
+    /**
+     * 模拟业务服务通过 RocketMQ 下发的房间消息
+     */
+    void broadcast(String room, String data) {
+        JSONObject json = new JSONObject();
+        json.put(Constants.MQ_REPORT_KEY_ROOM, room);
+        json.put(Constants.MQ_SEND_KEY_CMD, CommandEnum.CHATROOM_SEND.getCommand());
+        json.put(Constants.MQ_REPORT_KEY_DATA, data);
+        dispatch(room, json);
+    }
+
+    private void dispatch(String room, JSONObject json) {
+        RoomChannelManager.RoomInfo roomInfo = RoomChannelManager.MANAGER_FOR_CHATROOM.getRoomInfo(room);
+        Set<NettyChannel> channels = roomInfo == null ? null : roomInfo.getChannels();
+        stats.expectDelivery(channels == null ? 0 : channels.size());
+
+        MessageExt messageExt = new MessageExt();
+        messageExt.setTopic("TOPIC_CHATROOM_MESSAGE_SEND");
+        messageExt.setMsgId(String.valueOf(msgId.incrementAndGet()));
+        messageExt.setBody(json.toJSONString().getBytes(StandardCharsets.UTF_8));
+        listener.onMessage(messageExt);
+    }
+
+    /**
+     * 代替 apollo 的 Config：getXxxProperty(key, defaultValue) 优先读取同名的系统属性
+     */
+    private static Config systemPropertyConfig() {
+        return (Config) Proxy.newProxyInstance(Config.class.getClassLoader(), new Class<?>[]{Config.class}, (proxy, method, args) -> {
+            Class<?> type = method.getReturnType();
+            if (method.getDeclaringClass() == Object.class) {
+                switch (method.getName()) {
+                    case "equals":
+                        return proxy == args[0];
+                    case "hashCode":
+                        return System.identityHashCode(proxy);
+                    default:
+                        return "SystemPropertyConfig";
+                }
+            }
+            if (args == null || args.length != 2 || !(args[0] instanceof String)) {
+                //监听器、属性名列表等，桩里都不需要
+                return type == boolean.class ? Boolean.FALSE : null;
+            }
+            String value = System.getProperty((String) args[0]);
+            if (value == null) {
+                return args[1];
+            }
+            if (type == int.class || type == Integer.class) {
+                return Integer.valueOf(value);
+            } else if (type == long.class || type == Long.class) {
+                return Long.valueOf(value);
+            } else if (type == double.class || type == Double.class) {
+                return Double.valueOf(value);
+            } else if (type == boolean.class || type == Boolean.class) {
+                return Boolean.valueOf(value);
+            } else if (type == String.class) {
+                return value;
+            }
+            return args[1];
+        });
+    }
+
+    /**
+     * 上报到 MQ 的事件只计数；客户端发送的房间消息直接广播回房间
+     */
+    private final class LoopbackNotifyService extends SocketNotifyService {
+
+        @Override
+        public Boolean processConnect(NettyChannel channel) {
+            stats.notified();
+            return Boolean.TRUE;
+        }
+
+        @Override
+        public Boolean processDisConnect(NettyChannel channel) {
+            stats.notified();
+            return Boolean.TRUE;
+        }
+
+        @Override
+        public boolean notifyChatRoomSession(NettyChannel channel, int cmd, String room, String uid) {
+            stats.notified();
+            return true;
+        }
+
+        @Override
+        public void notifyChatRoomMessage(NettyChannel channel, String uid, String room, String body) {
+            JSONObject json = new JSONObject();
+            json.put(Constants.MQ_REPORT_KEY_ROOM, room);
+            json.put(Constants.MQ_SEND_KEY_CMD, CommandEnum.CHATROOM_SEND.getCommand());
+            json.put(Constants.MQ_REPORT_KEY_DATA, body);
+            dispatch(room, json);
+        }
+
+        @Override
+        public void reportServerStats() {
+        }
+    }
+
+    private static final class DiscardKafkaSender extends KafkaSender {
+
+        @Override
+        public void send(String topic, String key, Object object) {
+        }
+    }
+}
@@ -0,0 +1,459 @@
+package cn.bixin.sona.benchmark.soak;
+
+import cn.bixin.sona.gateway.common.AccessMessage;
+import cn.bixin.sona.gateway.common.BatchResolve;
+import cn.bixin.sona.gateway.common.ChannelTypeEnum;
+import cn.bixin.sona.gateway.common.CommandEnum;
+import cn.bixin.sona.gateway.common.Header;
+import cn.bixin.sona.gateway.common.HeaderEnum;
+import cn.bixin.sona.gateway.common.MessageCodec;
+import cn.bixin.sona.gateway.msg.AccessResponse;
+import cn.bixin.sona.gateway.msg.HandShakeBody;
+import cn.bixin.sona.gateway.netty.NettyServer;
+import cn.bixin.sona.gateway.util.AccessMessageUtils;
+import cn.bixin.sona.gateway.util.Constants;
+import com.alibaba.fastjson.JSON;
+import com.alibaba.fastjson.JSONObject;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.ByteToMessageDecoder;
+import io.netty.handler.codec.MessageToByteEncoder;
+import io.netty.handler.codec.MessageToMessageDecoder;
+import io.netty.handler.codec.MessageToMessageEncoder;
+import io.netty.handler.codec.http.EmptyHttpHeaders;
+import io.netty.handler.codec.http.HttpClientCodec;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketClientHandshakerFactory;
+import io.netty.handler.codec.http.websocketx.WebSocketClientProtocolHandler;
+import io.netty.handler.codec.http.websocketx.WebSocketVersion;
+import io.netty.util.collection.IntObjectHashMap;
+import io.netty.util.concurrent.ScheduledFuture;
+
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 模拟一个房间连接：建连 -> 握手登录 -> 进房 -> 定时心跳、发送房间消息，同时统计收到的房间消息
+ * <p>
+ * 同一个连接的所有操作都在它的 event loop 中执行，内部状态不需要同步
+ *
+ * @author qinwei
+ */
+class SoakClient extends SimpleChannelInboundHandler<AccessMessage> {
+
+    private static final String HOST = "127.0.0.1";
+
+    private static final URI WS_URI = URI.create("ws://" + HOST + ":" + NettyServer.PORT_WS + "/ws");
+
+    /**
+     * 心跳请求在 pending 中使用的 cmd，和业务 cmd 不冲突
+     */
+    private static final int CMD_HEARTBEAT = Integer.MIN_VALUE;
+
+    /**
+     * 消息体格式：类型:发送时的 System.nanoTime():填充，类型 b 为注入的广播，c 为客户端发送的房间消息
+     */
+    static final char TYPE_BROADCAST = 'b';
+
+    static final char TYPE_CHAT = 'c';
+
+    private static final ChannelHandler TCP_ENCODER = new TcpEncoder();
+
+    private static final ChannelHandler WS_ENCODER = new WebSocketEncoder();
+
+    private static final ChannelHandler WS_DECODER = new WebSocketDecoder();
+
+    private final int index;
+
+    private final boolean webSocket;
+
+    private final String uid;
+
+    private final String room;
+
+    private final SoakOptions options;
+
+    private final SoakStats stats;
+
+    private final Runnable onJoined;
+
+    /**
+     * 等待响应的请求：id -> {cmd, 发送时间}
+     */
+    private final IntObjectHashMap<long[]> pending = new IntObjectHashMap<>();
+
+    private int sequence;
+
+    private Channel channel;
+
+    private ScheduledFuture<?> heartbeatTask;
+
+    private ScheduledFuture<?> chatTask;
+
+    private volatile boolean sending;
+
+    private volatile boolean stopping;
+
+    private boolean closeReceived;
+
+    SoakClient(int index, SoakOptions options, SoakStats stats, Runnable onJoined) {
+        this.index = index;
+        this.webSocket = options.isWebSocket(index);
+        this.uid = String.valueOf(100000 + index);
+        this.room = options.room(index);
+        this.options = options;
+        this.stats = stats;
+        this.onJoined = onJoined;
+    }
+
+    void connect(EventLoopGroup group) {
+        Bootstrap bootstrap = new Bootstrap()
+                .group(group)
+                .channel(NioSocketChannel.class)
+                .option(ChannelOption.TCP_NODELAY, true)
+                .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, 10000)
+                .handler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel ch) {
+                        ChannelPipeline pipeline = ch.pipeline();
+                        if (webSocket) {
+                            pipeline.addLast(new HttpClientCodec());
+                            pipeline.addLast(new HttpObjectAggregator(65536));
+                            pipeline.addLast(new WebSocketClientProtocolHandler(WebSocketClientHandshakerFactory.newHandshaker(
+                                    WS_URI, WebSocketVersion.V13, null, false, EmptyHttpHeaders.INSTANCE, 65536)));
+                            pipeline.addLast(WS_ENCODER);
+                            pipeline.addLast(WS_DECODER);
+                        } else {
+                            pipeline.addLast(TCP_ENCODER);
+                            pipeline.addLast(new TcpDecoder());
+                        }
+                        pipeline.addLast(SoakClient.this);
+                    }
+                });
+        bootstrap.connect(HOST, webSocket ? NettyServer.PORT_WS : NettyServer.PORT).addListener(f -> {
+            if (!f.isSuccess()) {
+                stats.connectFail.increment();
+            }
+        });
+    }
+
+    void startSending() {
+        sending = true;
+    }
+
+    void stopSending() {
+        sending = false;
+    }
+
+    /**
+     * 之后的断开不再计为异常断开
+     */
+    void stopping() {
+        stopping = true;
+    }
+
+    void close() {
+        stopping = true;
+        if (channel != null) {
+            channel.close();
+        }
+    }
+
+    static String payload(char type, int size) {
+        StringBuilder sb = new StringBuilder(Math.max(size, 32));
+        sb.append(type).append(':').append(System.nanoTime()).append(':');
+        while (sb.length() < size) {
+            sb.append('x');
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public void channelActive(ChannelHandlerContext ctx) throws Exception {
+        channel = ctx.channel();
+        stats.connected.increment();
+        if (!webSocket) {
+            login(false);
+        }
+        super.channelActive(ctx);
+    }
+
+    @Override
+    public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
+        if (evt == WebSocketClientProtocolHandler.ClientHandshakeStateEvent.HANDSHAKE_COMPLETE) {
+            login(false);
+        }
+        super.userEventTriggered(ctx, evt);
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        stats.connected.decrement();
+        cancelTasks();
+        if (!stopping && !closeReceived) {
+            stats.unexpectedClose.increment();
+        }
+        super.channelInactive(ctx);
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+        stats.errors.increment();
+        ctx.close();
+    }
+
+    @Override
+    protected void channelRead0(ChannelHandlerContext ctx, AccessMessage msg) {
+        if (msg.isHeartbeat()) {
+            if (msg.isReq()) {
+                //服务端的探测消息
+                stats.probes.increment();
+                channel.writeAndFlush(AccessMessageUtils.createHeartResponse(msg.getId()));
+            } else {
+                long[] request = pending.remove(msg.getId());
+                if (request != null) {
+                    stats.heartbeatRtt.recordSince(request[1]);
+                }
+            }
+            return;
+        }
+        if (msg.isReq()) {
+            if (CommandEnum.CLOSE_CHANNEL.getCommand() == msg.getCmd()) {
+                stats.closeMsg.increment();
+                closeReceived = true;
+                ctx.close();
+            } else if (CommandEnum.CHATROOM_SEND.getCommand() == msg.getCmd()) {
+                for (AccessMessage message : BatchResolve.resolve(msg)) {
+                    onRoomMessage(message.getBody());
+                }
+            }
+            return;
+        }
+        long[] request = pending.remove(msg.getId());
+        if (request != null) {
+            onResponse((int) request[0], request[1], JSON.parseObject(msg.getBody(), AccessResponse.class));
+        }
+    }
+
+    private void onRoomMessage(byte[] body) {
+        stats.delivered.increment();
+        int end = 2;
+        while (end < body.length && body[end] != ':') {
+            end++;
+        }
+        long sendNanos = Long.parseLong(new String(body, 2, end - 2, StandardCharsets.US_ASCII));
+        if (body[0] == TYPE_BROADCAST) {
+            stats.broadcastLatency.recordSince(sendNanos);
+        } else {
+            stats.chatLatency.recordSince(sendNanos);
+        }
+    }
+
+    private void onResponse(int cmd, long startNanos, AccessResponse response) {
+        if (cmd == CommandEnum.LOGIN_AUTH.getCommand()) {
+            if (response.getC() == 0) {
+                stats.loginOk.increment();
+                stats.loginLatency.recordSince(startNanos);
+                join();
+            } else if (response.getC() == AccessResponse.CODE_SERVER_BUSY && response.getR() != null) {
+                //按服务端建议的时间重试，重试时标记为重连
+                stats.loginBusy.increment();
+                channel.eventLoop().schedule(() -> login(true), response.getR(), TimeUnit.MILLISECONDS);
+            } else {
+                stats.loginFail.increment();
+                close();
+            }
+        } else if (cmd == CommandEnum.CHATROOM_JOIN.getCommand()) {
+            if (response.getC() == 0) {
+                stats.joined.increment();
+                startTasks();
+                onJoined.run();
+            } else {
+                stats.joinFail.increment();
+                close();
+            }
+        } else if (cmd == CommandEnum.CHATROOM_SEND.getCommand() && response.getC() != 0) {
+            stats.sendFail.increment();
+        }
+    }
+
+    private void login(boolean retry) {
+        HandShakeBody body = new HandShakeBody();
+        body.setD("soak-device-" + index);
+        body.setP(2);
+        body.setSv("soak");
+        body.setM(webSocket ? "ws" : "tcp");
+        body.setU(uid);
+        body.setT(ChannelTypeEnum.CHATROOM.getType());
+        body.setR(retry ? 1 : 0);
+        request(CommandEnum.LOGIN_AUTH.getCommand(), null, JSON.toJSONBytes(body));
+    }
+
+    private void join() {
+        JSONObject header = new JSONObject();
+        header.put(Constants.CHATROOM_MSG_KEY_ROOM, room);
+        header.put(Constants.CHATROOM_MSG_KEY_UID, uid);
+        header.put(Constants.CHATROOM_MSG_KEY_IDENTITY, "1");
+        request(CommandEnum.CHATROOM_JOIN.getCommand(), header.toJSONString(), null);
+    }
+
+    private void sendChat() {
+        if (!sending) {
+            return;
+        }
+        JSONObject header = new JSONObject();
+        header.put(Constants.CHATROOM_MSG_KEY_ROOM, room);
+        stats.sent.increment();
+        request(CommandEnum.CHATROOM_SEND.getCommand(), header.toJSONString(), payload(TYPE_CHAT, options.payloadBytes).getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void heartbeat() {
+        int id = ++sequence;
+        pending.put(id, new long[]{CMD_HEARTBEAT, System.nanoTime()});
+        stats.heartbeats.increment();
+        channel.writeAndFlush(AccessMessageUtils.createHeartRequest(id));
+    }
+
+    private void request(int cmd, String chatroomHeader, byte[] body) {
+        int id = ++sequence;
+        AccessMessage message = AccessMessageUtils.createRequest(cmd, id, true, body);
+        if (chatroomHeader != null) {
+            message.addHeader(new Header(HeaderEnum.CHATROOM, chatroomHeader));
+        }
+        pending.put(id, new long[]{cmd, System.nanoTime()});
+        channel.writeAndFlush(message);
+    }
+
+    /**
+     * 随机的初始延迟，避免所有连接同时心跳、同时发送
+     */
+    private void startTasks() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long heartbeatMillis = options.heartbeatSeconds * 1000L;
+        if (heartbeatMillis > 0) {
+            heartbeatTask = channel.eventLoop().scheduleAtFixedRate(this::heartbeat, random.nextLong(heartbeatMillis), heartbeatMillis, TimeUnit.MILLISECONDS);
+        }
+        if (options.chatIntervalMillis > 0) {
+            chatTask = channel.eventLoop().scheduleAtFixedRate(this::sendChat, random.nextLong(options.chatIntervalMillis), options.chatIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void cancelTasks() {
+        if (heartbeatTask != null) {
+            heartbeatTask.cancel(false);
+        }
+        if (chatTask != null) {
+            chatTask.cancel(false);
+        }
+    }
+
+    @ChannelHandler.Sharable
+    private static final class TcpEncoder extends MessageToByteEncoder<AccessMessage> {
+
+        @Override
+        protected void encode(ChannelHandlerContext ctx, AccessMessage msg, ByteBuf out) throws Exception {
+            MessageCodec.encode(out, msg);
+        }
+    }
+
+    /**
+     * 服务端的 tcp 编码没有外层的长度字段，这里先按协议头计算出完整消息的长度，数据不完整时等待下一次读取
+     */
+    private static final class TcpDecoder extends ByteToMessageDecoder {
+
+        @Override
+        protected void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) {
+            int length = frameLength(in);
+            if (length > 0 && in.readableBytes() >= length) {
+                out.add(MessageCodec.decode(in));
+            }
+        }
+
+        private static int frameLength(ByteBuf in) {
+            int base = in.readerIndex();
+            int pos = base + 4;
+            int idLength = varintLength(in, pos);
+            if (idLength < 0) {
+                return -1;
+            }
+            pos += idLength;
+            if (in.getBoolean(base + 2)) {
+                return pos - base;
+            }
+            //cmd
+            pos++;
+            int lengthSize = varintLength(in, pos);
+            if (lengthSize < 0) {
+                return -1;
+            }
+            int bodyLength = varintValue(in, pos);
+            pos += lengthSize;
+            //header 数量
+            pos++;
+            return pos - base + bodyLength;
+        }
+
+        private static int varintLength(ByteBuf in, int index) {
+            for (int i = 0; i < 5; i++) {
+                if (index + i >= in.writerIndex()) {
+                    return -1;
+                }
+                if (in.getByte(index + i) >= 0) {
+                    return i + 1;
+                }
+            }
+            return 5;
+        }
+
+        private static int varintValue(ByteBuf in, int index) {
+            int result = 0;
+            for (int i = 0; i < 5; i++) {
+                byte b = in.getByte(index + i);
+                result |= (b & 0x7f) << (7 * i);
+                if (b >= 0) {
+                    break;
+                }
+            }
+            return result;
+        }
+    }
+
+    @ChannelHandler.Sharable
+    private static final class WebSocketEncoder extends MessageToMessageEncoder<AccessMessage> {
+
+        @Override
+        protected void encode(ChannelHandlerContext ctx, AccessMessage msg, List<Object> out) throws Exception {
+            ByteBuf buf = ctx.alloc().buffer();
+            try {
+                MessageCodec.encode(buf, msg);
+            } catch (Exception e) {
+                buf.release();
+                throw e;
+            }
+            out.add(new BinaryWebSocketFrame(buf));
+        }
+    }
+
+    @ChannelHandler.Sharable
+    private static final class WebSocketDecoder extends MessageToMessageDecoder<BinaryWebSocketFrame> {
+
+        @Override
+        protected void decode(ChannelHandlerContext ctx, BinaryWebSocketFrame msg, List<Object> out) {
+            out.add(MessageCodec.decode(msg.content()));
+        }
+    }
+}
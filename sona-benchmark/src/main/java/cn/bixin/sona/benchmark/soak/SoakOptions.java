@@ -0,0 +1,86 @@
+package cn.bixin.sona.benchmark.soak;
+
+/**
+ * 压测参数，通过 -Dsoak.xxx 系统属性设置
+ *
+ * @author qinwei
+ */
+class SoakOptions {
+
+    private static final String PREFIX = "soak.";
+
+    /**
+     * 连接数
+     */
+    final int clients = Integer.getInteger(PREFIX + "clients", 1000);
+
+    /**
+     * websocket 连接的百分比，其余为 tcp 连接
+     */
+    final int wsPercent = Integer.getInteger(PREFIX + "wsPercent", 20);
+
+    /**
+     * 房间数，连接按序号平均分配到各个房间
+     */
+    final int rooms = Integer.getInteger(PREFIX + "rooms", 10);
+
+    /**
+     * 每秒建立的连接数
+     */
+    final int rampRate = Integer.getInteger(PREFIX + "rampRate", 500);
+
+    /**
+     * 全部进房之后的压测时长
+     */
+    final int durationSeconds = Integer.getInteger(PREFIX + "durationSeconds", 60);
+
+    /**
+     * 心跳间隔
+     */
+    final int heartbeatSeconds = Integer.getInteger(PREFIX + "heartbeatSeconds", 30);
+
+    /**
+     * 每个连接发送房间消息的间隔，0 表示不发送
+     */
+    final int chatIntervalMillis = Integer.getInteger(PREFIX + "chatIntervalMillis", 10000);
+
+    /**
+     * 每秒注入的房间广播条数（所有房间轮流），0 表示不注入
+     */
+    final int broadcastPerSecond = Integer.getInteger(PREFIX + "broadcastPerSecond", 20);
+
+    /**
+     * 消息体大小
+     */
+    final int payloadBytes = Integer.getInteger(PREFIX + "payloadBytes", 256);
+
+    /**
+     * 周期报告的间隔
+     */
+    final int reportSeconds = Integer.getInteger(PREFIX + "reportSeconds", 10);
+
+    /**
+     * 停止发送后等待在途消息送达的时间
+     */
+    final int drainSeconds = Integer.getInteger(PREFIX + "drainSeconds", 5);
+
+    /**
+     * 客户端 io 线程数
+     */
+    final int clientThreads = Integer.getInteger(PREFIX + "clientThreads", Math.max(2, Runtime.getRuntime().availableProcessors() / 2));
+
+    String room(int index) {
+        return "soak-room-" + index % rooms;
+    }
+
+    boolean isWebSocket(int index) {
+        return index % 100 < wsPercent;
+    }
+
+    @Override
+    public String toString() {
+        return "clients=" + clients + ", wsPercent=" + wsPercent + ", rooms=" + rooms + ", rampRate=" + rampRate
+                + ", durationSeconds=" + durationSeconds + ", heartbeatSeconds=" + heartbeatSeconds + ", chatIntervalMillis=" + chatIntervalMillis
+                + ", broadcastPerSecond=" + broadcastPerSecond + ", payloadBytes=" + payloadBytes + ", clientThreads=" + clientThreads;
+    }
+}
@@ -0,0 +1,177 @@
+package cn.bixin.sona.benchmark.soak;
+
+import cn.bixin.sona.common.dubbo.LatencyHistogram;
+import com.sun.management.GarbageCollectionNotificationInfo;
+
+import javax.management.NotificationEmitter;
+import javax.management.openmbean.CompositeData;
+import java.io.PrintStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 压测过程中的统计，客户端线程和网关线程并发写入，报告线程周期性读取
+ * <p>
+ * 耗时使用 {@link LatencyHistogram}，每个指标同时记录本周期和全程两份；消息丢失按「广播时房间内的连接数」与「客户端实际收到的条数」之差计算
+ *
+ * @author qinwei
+ */
+class SoakStats {
+
+    final LongAdder connected = new LongAdder();
+
+    final LongAdder connectFail = new LongAdder();
+
+    final LongAdder loginOk = new LongAdder();
+
+    final LongAdder loginBusy = new LongAdder();
+
+    final LongAdder loginFail = new LongAdder();
+
+    final LongAdder joined = new LongAdder();
+
+    final LongAdder joinFail = new LongAdder();
+
+    final LongAdder sent = new LongAdder();
+
+    final LongAdder sendFail = new LongAdder();
+
+    final LongAdder delivered = new LongAdder();
+
+    final LongAdder heartbeats = new LongAdder();
+
+    final LongAdder probes = new LongAdder();
+
+    final LongAdder closeMsg = new LongAdder();
+
+    final LongAdder unexpectedClose = new LongAdder();
+
+    final LongAdder errors = new LongAdder();
+
+    private final LongAdder expected = new LongAdder();
+
+    private final LongAdder notified = new LongAdder();
+
+    final Latency broadcastLatency = new Latency();
+
+    final Latency chatLatency = new Latency();
+
+    final Latency heartbeatRtt = new Latency();
+
+    final Latency loginLatency = new Latency();
+
+    private final Latency gcPause = new Latency();
+
+    private final Map<String, long[]> lastGc = new HashMap<>();
+
+    private final long startMillis = System.currentTimeMillis();
+
+    SoakStats() {
+        for (GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans()) {
+            lastGc.put(bean.getName(), new long[]{bean.getCollectionCount(), bean.getCollectionTime()});
+            if (bean instanceof NotificationEmitter) {
+                ((NotificationEmitter) bean).addNotificationListener((notification, handback) -> {
+                    if (GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION.equals(notification.getType())) {
+                        GarbageCollectionNotificationInfo info = GarbageCollectionNotificationInfo.from((CompositeData) notification.getUserData());
+                        gcPause.record(info.getGcInfo().getDuration() * 1000);
+                    }
+                }, null, null);
+            }
+        }
+    }
+
+    void expectDelivery(int count) {
+        expected.add(count);
+    }
+
+    void notified() {
+        notified.increment();
+    }
+
+    long lost() {
+        return expected.sum() - delivered.sum();
+    }
+
+    /**
+     * @param total true 输出全程统计，false 输出本周期统计并清零
+     */
+    void report(PrintStream out, String title, boolean total) {
+        long seconds = (System.currentTimeMillis() - startMillis) / 1000;
+        out.printf("[soak %s %02d:%02d] connected=%d connectFail=%d login ok=%d busy=%d fail=%d joined=%d joinFail=%d closeMsg=%d unexpectedClose=%d errors=%d mqNotify=%d%n",
+                title, seconds / 60, seconds % 60, connected.sum(), connectFail.sum(), loginOk.sum(), loginBusy.sum(), loginFail.sum(),
+                joined.sum(), joinFail.sum(), closeMsg.sum(), unexpectedClose.sum(), errors.sum(), notified.sum());
+        long expectedCount = expected.sum();
+        long deliveredCount = delivered.sum();
+        out.printf("    delivery expected=%d delivered=%d lost=%d (%.4f%%) chatSent=%d chatFail=%d heartbeats=%d probes=%d%n",
+                expectedCount, deliveredCount, expectedCount - deliveredCount,
+                expectedCount == 0 ? 0D : (expectedCount - deliveredCount) * 100D / expectedCount, sent.sum(), sendFail.sum(), heartbeats.sum(), probes.sum());
+        printLatency(out, "broadcast", broadcastLatency.snapshot(total));
+        printLatency(out, "chat", chatLatency.snapshot(total));
+        printLatency(out, "heartbeat", heartbeatRtt.snapshot(total));
+        printLatency(out, "login", loginLatency.snapshot(total));
+        printGc(out, total);
+    }
+
+    private static void printLatency(PrintStream out, String name, LatencyHistogram.Snapshot snapshot) {
+        if (snapshot.getCount() == 0) {
+            return;
+        }
+        out.printf("    %-9s n=%d p50=%.2fms p90=%.2fms p99=%.2fms p999=%.2fms max=%.2fms%n", name, snapshot.getCount(),
+                millis(snapshot.percentile(50)), millis(snapshot.percentile(90)), millis(snapshot.percentile(99)),
+                millis(snapshot.percentile(99.9)), millis(snapshot.getMax()));
+    }
+
+    private void printGc(PrintStream out, boolean total) {
+        StringBuilder sb = new StringBuilder("    gc");
+        for (GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans()) {
+            long count = bean.getCollectionCount();
+            long time = bean.getCollectionTime();
+            long[] last = lastGc.get(bean.getName());
+            if (!total && last != null) {
+                sb.append(" [").append(bean.getName()).append(" count=").append(count - last[0]).append(" time=").append(time - last[1]).append("ms]");
+                last[0] = count;
+                last[1] = time;
+            } else {
+                sb.append(" [").append(bean.getName()).append(" count=").append(count).append(" time=").append(time).append("ms]");
+            }
+        }
+        LatencyHistogram.Snapshot pause = gcPause.snapshot(total);
+        if (pause.getCount() > 0) {
+            sb.append(String.format(" duration p99=%.0fms max=%.0fms", millis(pause.percentile(99)), millis(pause.getMax())));
+        }
+        MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+        sb.append(" heap=").append(heap.getUsed() >> 20).append('/').append(heap.getMax() >> 20).append("MB");
+        out.println(sb);
+    }
+
+    private static double millis(long micros) {
+        return micros / 1000D;
+    }
+
+    static final class Latency {
+
+        private final LatencyHistogram interval = new LatencyHistogram();
+
+        private final LatencyHistogram total = new LatencyHistogram();
+
+        void record(long micros) {
+            interval.record(micros);
+            total.record(micros);
+        }
+
+        void recordSince(long startNanos) {
+            record((System.nanoTime() - startNanos) / 1000);
+        }
+
+        /**
+         * 全程统计只在结束时取一次
+         */
+        LatencyHistogram.Snapshot snapshot(boolean all) {
+            return all ? total.snapshotAndReset() : interval.snapshotAndReset();
+        }
+    }
+}
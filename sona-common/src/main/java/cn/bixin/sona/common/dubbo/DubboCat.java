@@ -9,6 +9,20 @@ public class DubboCat {
 
     private static boolean isEnable = true;
 
+    /**
+     * 成功调用的默认采样率，服务可以通过 dubbo 参数 {@link #SAMPLE_RATE_KEY} 单独配置
+     */
+    private static volatile double sampleRate = 1.0;
+
+    /**
+     * 慢调用的默认阈值，慢调用和异常调用总是记录，服务可以通过 dubbo 参数 {@link #SLOW_MILLIS_KEY} 单独配置
+     */
+    private static volatile long slowMillis = 200;
+
+    public static final String SAMPLE_RATE_KEY = "cat.sample.rate";
+
+    public static final String SLOW_MILLIS_KEY = "cat.slow.millis";
+
     /**
      * 禁用dubbo cat
      */
@@ -32,4 +46,25 @@ public class DubboCat {
         return Cat.getManager().isCatEnabled() && isEnable;
     }
 
+    public static double getSampleRate() {
+        return sampleRate;
+    }
+
+    /**
+     * 设置成功调用的默认采样率
+     *
+     * @param rate 0 ~ 1
+     */
+    public static void setSampleRate(double rate) {
+        sampleRate = Math.max(0, Math.min(1, rate));
+    }
+
+    public static long getSlowMillis() {
+        return slowMillis;
+    }
+
+    public static void setSlowMillis(long millis) {
+        slowMillis = millis;
+    }
+
 }
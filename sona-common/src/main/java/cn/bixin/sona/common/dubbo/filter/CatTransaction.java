@@ -1,6 +1,7 @@
 package cn.bixin.sona.common.dubbo.filter;
 
 import cn.bixin.sona.common.dubbo.DubboCat;
+import cn.bixin.sona.common.dubbo.LatencyHistogram;
 import cn.bixin.sona.common.dubbo.constants.CatConstants;
 import com.alibaba.dubbo.common.Constants;
 import com.dianping.cat.Cat;
@@ -11,14 +12,25 @@ import com.dianping.cat.message.internal.AbstractMessage;
 import org.apache.commons.lang.StringUtils;
 import org.apache.dubbo.common.URL;
 import org.apache.dubbo.common.extension.Activate;
+import org.apache.dubbo.common.utils.NamedThreadFactory;
 import org.apache.dubbo.remoting.RemotingException;
 import org.apache.dubbo.remoting.TimeoutException;
 import org.apache.dubbo.rpc.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 
 /**
+ * 调用较多的服务可以通过 dubbo 参数 cat.sample.rate 只采样部分成功调用，异常和慢调用（cat.slow.millis）总是记录；
+ * 所有调用的耗时都会计入直方图，每分钟输出分位数
+ *
  * @author qinwei
  */
 @Activate(group = {Constants.PROVIDER, Constants.CONSUMER}, order = -9000)
@@ -30,51 +42,110 @@ public class CatTransaction implements Filter {
 
     private final static String DUBBO_REMOTING_ERROR = "DUBBO_REMOTING_ERROR";
 
+    private static final Logger log = LoggerFactory.getLogger(CatTransaction.class);
+
+    private static final Logger latencyLog = LoggerFactory.getLogger("DubboLatency");
 
     private static final ThreadLocal<Cat.Context> CAT_CONTEXT = new ThreadLocal<Cat.Context>();
 
+    /**
+     * 接口 -> 方法名 -> 调用统计，transaction 名称提前生成，避免每次调用拼接字符串
+     */
+    private static final Map<Class<?>, ServiceStat> PROVIDER_STATS = new ConcurrentHashMap<>();
+
+    private static final Map<Class<?>, ServiceStat> CONSUMER_STATS = new ConcurrentHashMap<>();
+
+    static {
+        ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("dubbo-latency-report", true));
+        reporter.scheduleAtFixedRate(CatTransaction::reportLatency, 1, 1, TimeUnit.MINUTES);
+    }
+
     @Override
     public Result invoke(Invoker<?> invoker, Invocation invocation) throws RpcException {
         if (!DubboCat.isEnable()) {
             return invoker.invoke(invocation);
         }
         URL url = invoker.getUrl();
-        String sideKey = url.getParameter(Constants.SIDE_KEY);
-        String loggerName = invoker.getInterface().getSimpleName() + "." + invocation.getMethodName();
-        String type = CatConstants.CROSS_CONSUMER;
-        if (Constants.PROVIDER_SIDE.equals(sideKey)) {
-            type = CatConstants.CROSS_SERVER;
+        boolean provider = Constants.PROVIDER_SIDE.equals(url.getParameter(Constants.SIDE_KEY));
+        MethodStat stat = (provider ? PROVIDER_STATS : CONSUMER_STATS)
+                .computeIfAbsent(invoker.getInterface(), k -> new ServiceStat(k, provider))
+                .get(invocation.getMethodName());
+        if (sampled(url, provider)) {
+            return invokeWithTransaction(invoker, invocation, url, provider, stat);
         }
-        Transaction transaction = Cat.newTransaction(type, loggerName);
+
+        //未采样的调用只记录耗时，异常和慢调用事后补记
+        long start = System.nanoTime();
+        Result result = null;
+        Throwable error = null;
+        try {
+            result = invoker.invoke(invocation);
+            if (result.hasException()) {
+                error = result.getException();
+            }
+            return result;
+        } catch (RuntimeException e) {
+            error = e;
+            throw e;
+        } finally {
+            long micros = (System.nanoTime() - start) / 1000;
+            stat.histogram.record(micros);
+            if (error != null || micros >= url.getParameter(DubboCat.SLOW_MILLIS_KEY, DubboCat.getSlowMillis()) * 1000) {
+                logCompletedTransaction(stat, micros / 1000, error);
+            }
+        }
+    }
+
+    /**
+     * 事后补记的 transaction 需要带上失败状态，newCompletedTransactionWithDuration 总是记为成功
+     */
+    private void logCompletedTransaction(MethodStat stat, long millis, Throwable error) {
+        Transaction transaction = Cat.newTransaction(stat.type, stat.loggerName);
+        transaction.setDurationInMillis(millis);
+        if (error != null) {
+            Event event = Cat.newEvent(errorEventType(error), stat.loggerName);
+            event.setStatus(error);
+            completeEvent(event);
+            transaction.addChild(event);
+            transaction.setStatus(error.getClass().getSimpleName());
+        } else {
+            transaction.setStatus(Message.SUCCESS);
+        }
+        transaction.complete();
+    }
+
+    /**
+     * 上游带了 cat 上下文的服务端调用、当前线程已经在记录 transaction 时的客户端调用总是记录，保证采样到的调用链完整；
+     * 其余按服务配置的采样率采样
+     */
+    private boolean sampled(URL url, boolean provider) {
+        if (provider ? RpcContext.getContext().getAttachment(Cat.Context.ROOT) != null : Cat.getManager().getPeekTransaction() != null) {
+            return true;
+        }
+        double rate = url.getParameter(DubboCat.SAMPLE_RATE_KEY, DubboCat.getSampleRate());
+        return rate >= 1 || (rate > 0 && ThreadLocalRandom.current().nextDouble() < rate);
+    }
+
+    private Result invokeWithTransaction(Invoker<?> invoker, Invocation invocation, URL url, boolean provider, MethodStat stat) {
+        String loggerName = stat.loggerName;
+        Transaction transaction = Cat.newTransaction(stat.type, loggerName);
+        long start = System.nanoTime();
         Result result = null;
         try {
             Cat.Context context = getContext();
-            if (Constants.CONSUMER_SIDE.equals(sideKey)) {
-                createConsumerCross(url, transaction);
-                Cat.logRemoteCallClient(context);
-            } else {
+            if (provider) {
                 createProviderCross(url, transaction);
                 Cat.logRemoteCallServer(context);
+            } else {
+                createConsumerCross(url, transaction, stat);
+                Cat.logRemoteCallClient(context);
             }
             setAttachment(context);
             result = invoker.invoke(invocation);
 
             if (result.hasException()) {
                 //给调用接口出现异常进行打点
-                Throwable throwable = result.getException();
-                Event event = null;
-                if (RpcException.class == throwable.getClass()) {
-                    Throwable caseBy = throwable.getCause();
-                    if (caseBy != null && caseBy.getClass() == TimeoutException.class) {
-                        event = Cat.newEvent(DUBBO_TIMEOUT_ERROR, loggerName);
-                    } else {
-                        event = Cat.newEvent(DUBBO_REMOTING_ERROR, loggerName);
-                    }
-                } else if (RemotingException.class.isAssignableFrom(throwable.getClass())) {
-                    event = Cat.newEvent(DUBBO_REMOTING_ERROR, loggerName);
-                } else {
-                    event = Cat.newEvent(DUBBO_BIZ_ERROR, loggerName);
-                }
+                Event event = Cat.newEvent(errorEventType(result.getException()), loggerName);
                 event.setStatus(result.getException());
                 completeEvent(event);
                 transaction.addChild(event);
@@ -85,17 +156,7 @@ public class CatTransaction implements Filter {
             return result;
         } catch (RuntimeException e) {
             Cat.logError(e);
-            Event event = null;
-            if (RpcException.class == e.getClass()) {
-                Throwable caseBy = e.getCause();
-                if (caseBy != null && caseBy.getClass() == TimeoutException.class) {
-                    event = Cat.newEvent(DUBBO_TIMEOUT_ERROR, loggerName);
-                } else {
-                    event = Cat.newEvent(DUBBO_REMOTING_ERROR, loggerName);
-                }
-            } else {
-                event = Cat.newEvent(DUBBO_BIZ_ERROR, loggerName);
-            }
+            Event event = Cat.newEvent(errorEventType(e), loggerName);
             event.setStatus(e);
             completeEvent(event);
             transaction.addChild(event);
@@ -106,11 +167,94 @@ public class CatTransaction implements Filter {
                 return result;
             }
         } finally {
+            stat.histogram.record((System.nanoTime() - start) / 1000);
             transaction.complete();
             CAT_CONTEXT.remove();
         }
     }
 
+    private static String errorEventType(Throwable throwable) {
+        if (RpcException.class == throwable.getClass()) {
+            Throwable caseBy = throwable.getCause();
+            if (caseBy != null && caseBy.getClass() == TimeoutException.class) {
+                return DUBBO_TIMEOUT_ERROR;
+            }
+            return DUBBO_REMOTING_ERROR;
+        }
+        if (RemotingException.class.isAssignableFrom(throwable.getClass())) {
+            return DUBBO_REMOTING_ERROR;
+        }
+        return DUBBO_BIZ_ERROR;
+    }
+
+    private static void reportLatency() {
+        try {
+            reportLatency(PROVIDER_STATS);
+            reportLatency(CONSUMER_STATS);
+        } catch (Exception e) {
+            log.error("CatTransaction.reportLatency error", e);
+        }
+    }
+
+    private static void reportLatency(Map<Class<?>, ServiceStat> stats) {
+        for (ServiceStat serviceStat : stats.values()) {
+            for (MethodStat stat : serviceStat.methods.values()) {
+                LatencyHistogram.Snapshot snapshot = stat.histogram.snapshotAndReset();
+                if (snapshot.getCount() == 0) {
+                    continue;
+                }
+                latencyLog.info("{} {} count={} p50={}us p99={}us p999={}us max={}us", stat.type, stat.loggerName, snapshot.getCount(),
+                        snapshot.percentile(50), snapshot.percentile(99), snapshot.percentile(99.9), snapshot.getMax());
+            }
+        }
+    }
+
+    /**
+     * 一个接口在某一端（provider/consumer）的统计
+     */
+    private static class ServiceStat {
+
+        private final Class<?> service;
+
+        private final String type;
+
+        /**
+         * url 上没有服务端应用名时使用接口的包名
+         */
+        private final String defaultProviderAppName;
+
+        private final Map<String, MethodStat> methods = new ConcurrentHashMap<>();
+
+        ServiceStat(Class<?> service, boolean provider) {
+            this.service = service;
+            this.type = provider ? CatConstants.CROSS_SERVER : CatConstants.CROSS_CONSUMER;
+            String interfaceName = service.getName();
+            this.defaultProviderAppName = interfaceName.substring(0, Math.max(interfaceName.lastIndexOf('.'), 0));
+        }
+
+        MethodStat get(String methodName) {
+            MethodStat stat = methods.get(methodName);
+            return stat != null ? stat : methods.computeIfAbsent(methodName, k -> new MethodStat(this, service.getSimpleName() + "." + k));
+        }
+    }
+
+    private static class MethodStat {
+
+        private final ServiceStat service;
+
+        private final String type;
+
+        private final String loggerName;
+
+        private final LatencyHistogram histogram = new LatencyHistogram();
+
+        MethodStat(ServiceStat service, String loggerName) {
+            this.service = service;
+            this.type = service.type;
+            this.loggerName = loggerName;
+        }
+    }
+
     static class DubboCatContext implements Cat.Context {
 
         private Map<String, String> properties = new HashMap<String, String>();
@@ -126,11 +270,10 @@ public class CatTransaction implements Filter {
         }
     }
 
-    private String getProviderAppName(URL url) {
+    private String getProviderAppName(URL url, MethodStat stat) {
         String appName = url.getParameter(CatConstants.PROVIDER_APPLICATION_NAME);
         if (StringUtils.isEmpty(appName)) {
-            String interfaceName = url.getParameter(Constants.INTERFACE_KEY);
-            appName = interfaceName.substring(0, interfaceName.lastIndexOf('.'));
+            appName = stat.service.defaultProviderAppName;
         }
         return appName;
     }
@@ -163,10 +306,10 @@ public class CatTransaction implements Filter {
         return context;
     }
 
-    private void createConsumerCross(URL url, Transaction transaction) {
-        Event crossAppEvent = Cat.newEvent(CatConstants.CONSUMER_CALL_APP, getProviderAppName(url));
+    private void createConsumerCross(URL url, Transaction transaction, MethodStat stat) {
+        Event crossAppEvent = Cat.newEvent(CatConstants.CONSUMER_CALL_APP, getProviderAppName(url, stat));
         Event crossServerEvent = Cat.newEvent(CatConstants.CONSUMER_CALL_SERVER, url.getHost());
-        Event crossPortEvent = Cat.newEvent(CatConstants.CONSUMER_CALL_PORT, url.getPort() + "");
+        Event crossPortEvent = Cat.newEvent(CatConstants.CONSUMER_CALL_PORT, String.valueOf(url.getPort()));
         crossAppEvent.setStatus(Event.SUCCESS);
         crossServerEvent.setStatus(Event.SUCCESS);
         crossPortEvent.setStatus(Event.SUCCESS);
@@ -1,6 +1,5 @@
 package cn.bixin.sona.common.dubbo.filter;
 
-import cn.bixin.sona.common.annotation.CommonExecutor;
 import cn.bixin.sona.common.dto.Code;
 import cn.bixin.sona.common.dto.Response;
 import cn.bixin.sona.common.exception.YppRunTimeException;
@@ -13,7 +12,6 @@ import org.slf4j.LoggerFactory;
 import org.springframework.core.Ordered;
 
 import javax.validation.ConstraintViolationException;
-import java.lang.reflect.Method;
 import java.util.concurrent.CancellationException;
 import java.util.concurrent.CompletionException;
 
@@ -35,41 +33,36 @@ public class CommonExecutorFilter implements Filter {
         String methodName = invocation.getMethodName();
         Object[] arguments = invocation.getArguments();
 
-        Method method;
-        try {
-            method = service.getMethod(methodName, invocation.getParameterTypes());
-        } catch (NoSuchMethodException e) {
+        MethodMetadata method = MethodMetadataCache.get(service, methodName, invocation.getParameterTypes());
+        if (method == null) {
             log.warn("call={}.{} reflect method error. ", service.getSimpleName(), methodName);
             return invoker.invoke(invocation);
         }
 
         Result result = invoker.invoke(invocation);
 
-        if (method.isAnnotationPresent(CommonExecutor.class)) {
-            CommonExecutor commonExecutor = method.getAnnotation(CommonExecutor.class);
-            if (commonExecutor.printParam()) {
-                log.info("call={}.{},params={}", service.getSimpleName(), methodName, JSON.toJSONString(arguments));
-            }
-            if (commonExecutor.printResponse()) {
-                log.info("call={}.{} hasException={},result={}", service.getSimpleName(), methodName, result.hasException(), JSON.toJSONString(result.getValue()));
-            }
+        if (method.isPrintParam()) {
+            log.info("call={}.{},params={}", method.getServiceName(), methodName, JSON.toJSONString(arguments));
+        }
+        if (method.isPrintResponse()) {
+            log.info("call={}.{} hasException={},result={}", method.getServiceName(), methodName, result.hasException(), JSON.toJSONString(result.getValue()));
         }
 
         if (!result.hasException()) {
             return result;
         }
 
-        resetErrorResultValue(result, service.getSimpleName(), method);
+        resetErrorResultValue(result, method.getServiceName(), method);
         return result;
     }
 
-    private void resetErrorResultValue(Result result, String serviceName, Method method) {
+    private void resetErrorResultValue(Result result, String serviceName, MethodMetadata method) {
         Throwable exception = result.getException();
         if (exception instanceof YppRunTimeException) {
             resetYppRuntimeExceptionResult(result, (YppRunTimeException) exception, serviceName, method);
         } else if (exception instanceof ConstraintViolationException) {
             Object response = null;
-            if (Response.class.isAssignableFrom(method.getReturnType())) {
+            if (method.isResponseReturnType()) {
                 response = Response.fail(Code.ERROR_PARAM);
             }
             result.setValue(response);
@@ -86,22 +79,22 @@ public class CommonExecutorFilter implements Filter {
         result.setException(null);
     }
 
-    private void resetYppRuntimeExceptionResult(Result result, YppRunTimeException ex, String serviceName, Method method) {
-        log.warn("YppRunTimeException. service={},method={},code={},message={}", serviceName, method.getName(), ex.getCode().getCode(), ex.getCode().getMessage());
+    private void resetYppRuntimeExceptionResult(Result result, YppRunTimeException ex, String serviceName, MethodMetadata method) {
+        log.warn("YppRunTimeException. service={},method={},code={},message={}", serviceName, method.getMethod().getName(), ex.getCode().getCode(), ex.getCode().getMessage());
         Object response = null;
-        if (Response.class.isAssignableFrom(method.getReturnType())) {
+        if (method.isResponseReturnType()) {
             response = Response.fail(ex.getCode(), ex.getExt());
         }
         result.setValue(response);
     }
 
-    private void resetSystemErrorCodeResult(Result result, Throwable exception, String serviceName, Method method) {
+    private void resetSystemErrorCodeResult(Result result, Throwable exception, String serviceName, MethodMetadata method) {
         Object response = null;
-        if (Response.class.isAssignableFrom(method.getReturnType())) {
+        if (method.isResponseReturnType()) {
             response = Response.fail(Code.business("9000", "服务异常"));
         }
         result.setValue(response);
-        log.error("call={}.{} error.", serviceName, method.getName(), exception);
+        log.error("call={}.{} error.", serviceName, method.getMethod().getName(), exception);
     }
 
 }
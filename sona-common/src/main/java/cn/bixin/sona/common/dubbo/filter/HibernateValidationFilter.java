@@ -5,20 +5,18 @@ import cn.bixin.sona.common.dto.Response;
 import org.apache.dubbo.common.constants.CommonConstants;
 import org.apache.dubbo.common.extension.Activate;
 import org.apache.dubbo.common.utils.ArrayUtils;
-import org.apache.dubbo.config.spring.extension.SpringExtensionFactory;
 import org.apache.dubbo.rpc.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.context.ApplicationContext;
 import org.springframework.core.Ordered;
 import org.springframework.util.CollectionUtils;
 
 import javax.validation.ConstraintViolation;
-import javax.validation.Validation;
 import javax.validation.Validator;
 import javax.validation.executable.ExecutableValidator;
-import java.lang.reflect.Method;
-import java.util.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
 import java.util.stream.Collectors;
 
 /**
@@ -29,7 +27,7 @@ public class HibernateValidationFilter implements Filter {
 
     private static final Logger log = LoggerFactory.getLogger(HibernateValidationFilter.class);
 
-    private final Validator validator = Validation.buildDefaultValidatorFactory().getValidator();
+    private final Validator validator = MethodMetadataCache.getValidator();
 
     @Override
     public Result invoke(Invoker<?> invoker, Invocation invocation) throws RpcException {
@@ -38,27 +36,18 @@ public class HibernateValidationFilter implements Filter {
         }
 
         Class<?> service = invoker.getInterface();
-        Method method;
-        try {
-            method = service.getMethod(invocation.getMethodName(), invocation.getParameterTypes());
-        } catch (NoSuchMethodException e) {
+        MethodMetadata method = MethodMetadataCache.get(service, invocation.getMethodName(), invocation.getParameterTypes());
+        if (method == null) {
             log.warn("call={}.{} reflect method error. ", service.getSimpleName(), invocation.getMethodName());
             return invoker.invoke(invocation);
         }
-
-        Set<ApplicationContext> contexts = SpringExtensionFactory.getContexts();
-        if (CollectionUtils.isEmpty(contexts)) {
-            return invoker.invoke(invocation);
-        }
-        Map<String, ?> beansMap = contexts.iterator().next().getBeansOfType(service);
-        if (beansMap.isEmpty()) {
+        if (method.getServiceInstance() == null) {
             return invoker.invoke(invocation);
         }
-        Object serviceInstance = beansMap.values().stream().findAny().orElse(null);
 
-        if (invalid(serviceInstance, method, invocation.getArguments())) {
+        if (invalid(method, invocation.getArguments())) {
             Response<Object> response = null;
-            if (Response.class.isAssignableFrom(method.getReturnType())) {
+            if (method.isResponseReturnType()) {
                 response = Response.fail(Code.ERROR_PARAM);
             }
             Result result = AsyncRpcResult.newDefaultAsyncResult(response, null, invocation);
@@ -68,35 +57,44 @@ public class HibernateValidationFilter implements Filter {
         return invoker.invoke(invocation);
     }
 
-    private boolean invalid(Object validateParamService, Method method, Object[] args) {
-        return !methodArgsValidate(validateParamService, method, args)
+    private boolean invalid(MethodMetadata method, Object[] args) {
+        return !methodArgsValidate(method, args)
                 || !methodArgsFieldValidate(method, args);
     }
 
-    private boolean methodArgsFieldValidate(Method method, Object[] args) {
+    private boolean methodArgsFieldValidate(MethodMetadata method, Object[] args) {
         if (ArrayUtils.isEmpty(args)) {
             return true;
         }
-        List<ConstraintViolation<Object>> error = Arrays.stream(args)
-                .filter(Objects::nonNull)
-                .map(validator::validate)
-                .flatMap(Collection::stream)
-                .collect(Collectors.toList());
+        List<ConstraintViolation<Object>> error = null;
+        for (int i = 0; i < args.length; i++) {
+            //参数类型上没有约束时跳过
+            if (args[i] == null || !method.isArgConstrained(i, args[i], validator)) {
+                continue;
+            }
+            Set<ConstraintViolation<Object>> violations = validator.validate(args[i]);
+            if (!violations.isEmpty()) {
+                if (error == null) {
+                    error = new ArrayList<>();
+                }
+                error.addAll(violations);
+            }
+        }
         if (CollectionUtils.isEmpty(error)) {
             return true;
         }
 
         List<String> errorMessage = error.stream().map(i -> i.getPropertyPath() + " " + i.getMessage()).collect(Collectors.toList());
-        log.warn("methodArgsFieldValidate failed. method={}, message={}", method.getName(), errorMessage);
+        log.warn("methodArgsFieldValidate failed. method={}, message={}", method.getMethod().getName(), errorMessage);
         return false;
     }
 
-    private boolean methodArgsValidate(Object validateParamService, Method method, Object[] args) {
-        if (ArrayUtils.isEmpty(args)) {
+    private boolean methodArgsValidate(MethodMetadata method, Object[] args) {
+        if (ArrayUtils.isEmpty(args) || !method.isParameterConstrained()) {
             return true;
         }
         ExecutableValidator executableValidator = validator.forExecutables();
-        Set<ConstraintViolation<Object>> constraintViolationSet = executableValidator.validateParameters(validateParamService, method, args);
+        Set<ConstraintViolation<Object>> constraintViolationSet = executableValidator.validateParameters(method.getServiceInstance(), method.getMethod(), args);
         if (CollectionUtils.isEmpty(constraintViolationSet)) {
             return true;
         }
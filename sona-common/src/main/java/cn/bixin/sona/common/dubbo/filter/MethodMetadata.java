@@ -0,0 +1,125 @@
+package cn.bixin.sona.common.dubbo.filter;
+
+import cn.bixin.sona.common.annotation.CommonExecutor;
+import cn.bixin.sona.common.dto.Response;
+import org.springframework.util.ClassUtils;
+
+import javax.validation.Validator;
+import javax.validation.metadata.MethodDescriptor;
+import java.lang.reflect.Method;
+
+/**
+ * 服务方法在调用时需要的信息，导出服务时预先计算好（见 {@link MethodMetadataCache}），调用时不再反射
+ *
+ * @author qinwei
+ */
+public final class MethodMetadata {
+
+    private final Method method;
+
+    private final Class<?>[] parameterTypes;
+
+    private final String serviceName;
+
+    private final boolean responseReturnType;
+
+    private final boolean printParam;
+
+    private final boolean printResponse;
+
+    /**
+     * 服务实现，找不到时为 null
+     */
+    private final Object serviceInstance;
+
+    /**
+     * 方法参数上是否有约束
+     */
+    private final boolean parameterConstrained;
+
+    /**
+     * 每个参数的声明类型上是否有约束
+     */
+    private final boolean[] argConstrained;
+
+    MethodMetadata(Class<?> service, Method method, Object serviceInstance, Validator validator) {
+        this.method = method;
+        this.parameterTypes = method.getParameterTypes();
+        this.serviceName = service.getSimpleName();
+        this.responseReturnType = Response.class.isAssignableFrom(method.getReturnType());
+        CommonExecutor commonExecutor = method.getAnnotation(CommonExecutor.class);
+        this.printParam = commonExecutor != null && commonExecutor.printParam();
+        this.printResponse = commonExecutor != null && commonExecutor.printResponse();
+        this.serviceInstance = serviceInstance;
+        this.parameterConstrained = serviceInstance != null
+                && (hasConstrainedParameters(validator, service, method) || hasConstrainedParameters(validator, ClassUtils.getUserClass(serviceInstance), method));
+        this.argConstrained = new boolean[parameterTypes.length];
+        for (int i = 0; i < parameterTypes.length; i++) {
+            argConstrained[i] = isBeanConstrained(validator, parameterTypes[i]);
+        }
+    }
+
+    private static boolean hasConstrainedParameters(Validator validator, Class<?> clazz, Method method) {
+        try {
+            MethodDescriptor descriptor = validator.getConstraintsForClass(clazz).getConstraintsForMethod(method.getName(), method.getParameterTypes());
+            return descriptor != null && descriptor.hasConstrainedParameters();
+        } catch (Exception e) {
+            //无法判断时按有约束处理
+            return true;
+        }
+    }
+
+    static boolean isBeanConstrained(Validator validator, Class<?> clazz) {
+        if (clazz.isPrimitive() || clazz.isArray() || clazz.getName().startsWith("java.")) {
+            return false;
+        }
+        try {
+            return validator.getConstraintsForClass(clazz).isBeanConstrained();
+        } catch (Exception e) {
+            return true;
+        }
+    }
+
+    public Method getMethod() {
+        return method;
+    }
+
+    public Class<?>[] getParameterTypes() {
+        return parameterTypes;
+    }
+
+    public String getServiceName() {
+        return serviceName;
+    }
+
+    public boolean isResponseReturnType() {
+        return responseReturnType;
+    }
+
+    public boolean isPrintParam() {
+        return printParam;
+    }
+
+    public boolean isPrintResponse() {
+        return printResponse;
+    }
+
+    public Object getServiceInstance() {
+        return serviceInstance;
+    }
+
+    public boolean isParameterConstrained() {
+        return parameterConstrained;
+    }
+
+    /**
+     * @param index 参数下标
+     * @param arg   实际参数，类型和声明类型不同时按实际类型判断
+     */
+    public boolean isArgConstrained(int index, Object arg, Validator validator) {
+        if (index < argConstrained.length && arg.getClass() == parameterTypes[index]) {
+            return argConstrained[index];
+        }
+        return isBeanConstrained(validator, arg.getClass());
+    }
+}
@@ -0,0 +1,98 @@
+package cn.bixin.sona.common.dubbo.filter;
+
+import org.apache.dubbo.config.spring.extension.SpringExtensionFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.ApplicationContext;
+
+import javax.validation.Validation;
+import javax.validation.Validator;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 服务接口 -> 方法名 -> 方法信息
+ * <p>
+ * 导出服务时由 {@link MethodMetadataExporterListener} 预先计算好，之后只读；每次导出新服务时整体替换为新的不可变 map，
+ * 过滤器每次调用只需要查 map，不再通过反射查找方法、注解和服务实现
+ *
+ * @author qinwei
+ */
+public final class MethodMetadataCache {
+
+    private static final Logger log = LoggerFactory.getLogger(MethodMetadataCache.class);
+
+    private static final Validator VALIDATOR = Validation.buildDefaultValidatorFactory().getValidator();
+
+    private static final Class<?>[] EMPTY_TYPES = new Class<?>[0];
+
+    private static volatile Map<Class<?>, Map<String, MethodMetadata[]>> services = Collections.emptyMap();
+
+    private MethodMetadataCache() {
+    }
+
+    public static Validator getValidator() {
+        return VALIDATOR;
+    }
+
+    /**
+     * @return 方法信息，接口上不存在该方法时返回 null
+     */
+    public static MethodMetadata get(Class<?> service, String methodName, Class<?>[] parameterTypes) {
+        Map<String, MethodMetadata[]> methods = services.get(service);
+        if (methods == null) {
+            //没有经过导出监听的服务（例如监听未生效），第一次调用时补充
+            register(service);
+            methods = services.get(service);
+        }
+        MethodMetadata[] candidates = methods.get(methodName);
+        if (candidates == null) {
+            return null;
+        }
+        Class<?>[] types = parameterTypes == null ? EMPTY_TYPES : parameterTypes;
+        for (MethodMetadata candidate : candidates) {
+            if (Arrays.equals(candidate.getParameterTypes(), types)) {
+                return candidate;
+            }
+        }
+        return null;
+    }
+
+    public static synchronized void register(Class<?> service) {
+        if (services.containsKey(service)) {
+            return;
+        }
+        Object serviceInstance = findServiceInstance(service);
+        Map<String, List<MethodMetadata>> methods = new HashMap<>();
+        for (Method method : service.getMethods()) {
+            methods.computeIfAbsent(method.getName(), k -> new ArrayList<>()).add(new MethodMetadata(service, method, serviceInstance, VALIDATOR));
+        }
+        Map<String, MethodMetadata[]> frozen = new HashMap<>(methods.size() * 2);
+        methods.forEach((name, list) -> frozen.put(name, list.toArray(new MethodMetadata[0])));
+
+        Map<Class<?>, Map<String, MethodMetadata[]>> copy = new HashMap<>(services);
+        copy.put(service, Collections.unmodifiableMap(frozen));
+        services = Collections.unmodifiableMap(copy);
+        log.info("MethodMetadataCache.register, service={}, methods={}, instance={}", service.getName(), frozen.size(), serviceInstance != null);
+    }
+
+    private static Object findServiceInstance(Class<?> service) {
+        try {
+            Set<ApplicationContext> contexts = SpringExtensionFactory.getContexts();
+            if (contexts == null || contexts.isEmpty()) {
+                return null;
+            }
+            Map<String, ?> beansMap = contexts.iterator().next().getBeansOfType(service);
+            return beansMap.values().stream().findAny().orElse(null);
+        } catch (Exception e) {
+            log.warn("MethodMetadataCache.findServiceInstance fail, service={}", service.getName(), e);
+            return null;
+        }
+    }
+}
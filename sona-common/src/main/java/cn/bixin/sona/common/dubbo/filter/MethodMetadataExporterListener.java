@@ -0,0 +1,22 @@
+package cn.bixin.sona.common.dubbo.filter;
+
+import org.apache.dubbo.common.extension.Activate;
+import org.apache.dubbo.rpc.Exporter;
+import org.apache.dubbo.rpc.listener.ExporterListenerAdapter;
+
+/**
+ * 服务导出时预先计算方法信息，供 {@link CommonExecutorFilter}、{@link HibernateValidationFilter} 使用
+ *
+ * @author qinwei
+ */
+@Activate
+public class MethodMetadataExporterListener extends ExporterListenerAdapter {
+
+    @Override
+    public void exported(Exporter<?> exporter) {
+        Class<?> service = exporter.getInvoker().getInterface();
+        if (service != null && service.isInterface()) {
+            MethodMetadataCache.register(service);
+        }
+    }
+}
@@ -2,24 +2,50 @@ package cn.bixin.sona.common.hbase;
 
 import cn.bixin.sona.common.dto.Code;
 import cn.bixin.sona.common.exception.YppRunTimeException;
+import com.dianping.cat.Cat;
 import org.apache.hadoop.hbase.TableName;
+import org.apache.hadoop.hbase.client.BufferedMutator;
+import org.apache.hadoop.hbase.client.BufferedMutatorParams;
 import org.apache.hadoop.hbase.client.Connection;
 import org.apache.hadoop.hbase.client.Delete;
 import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.Mutation;
 import org.apache.hadoop.hbase.client.Put;
 import org.apache.hadoop.hbase.client.Result;
 import org.apache.hadoop.hbase.client.ResultScanner;
+import org.apache.hadoop.hbase.client.RetriesExhaustedWithDetailsException;
+import org.apache.hadoop.hbase.client.Row;
 import org.apache.hadoop.hbase.client.Scan;
 import org.apache.hadoop.hbase.client.Table;
 import org.apache.hadoop.hbase.util.Bytes;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import java.io.Closeable;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
-public class HBaseRepository {
+/**
+ * HBase 读写
+ * <p>
+ * 1. Table 句柄按表缓存复用（Table 不是线程安全的，同一时间只借给一个线程），不再每次操作都创建、关闭
+ * <p>
+ * 2. 每个表共享一个 BufferedMutator，写入先进入缓冲区，按缓冲区大小、定时两种策略批量提交，写入失败时回调 {@link MutationFailureListener}
+ * <p>
+ * 3. 批量 get 按 {@link Options#getMultiGetBatchSize()} 拆分，避免单次请求过大
+ */
+public class HBaseRepository implements Closeable {
+
+    private static final Logger log = LoggerFactory.getLogger(HBaseRepository.class);
 
     public static final String HBASE_READ_EXCEPTION_CODE = "8999";
     public static final String HBASE_DELETE_EXCEPTION_CODE = "8998";
@@ -27,21 +53,53 @@ public class HBaseRepository {
     public static final String HBASE_PUT_EXCEPTION_CODE = "8996";
     public static final String HBASE_SCAN_EXCEPTION_CODE = "8995";
     public static final String HBASE_EXECUTE_EXCEPTION_CODE = "8994";
+    public static final String HBASE_MUTATE_EXCEPTION_CODE = "8993";
+
+    private static final String CAT_TYPE = "HBase";
 
     private Connection connection;
 
-    private HBaseRepository(Connection connection) {
+    private final Options options;
+
+    private final Map<String, TableName> tableNames = new ConcurrentHashMap<>();
+
+    private final Map<String, BlockingQueue<Table>> tablePools = new ConcurrentHashMap<>();
+
+    private final Map<String, BufferedMutator> mutators = new ConcurrentHashMap<>();
+
+    private volatile MutationFailureListener mutationFailureListener;
+
+    private final LongAdder mutations = new LongAdder();
+
+    private final LongAdder failedMutations = new LongAdder();
+
+    private final LongAdder flushes = new LongAdder();
+
+    private HBaseRepository(Connection connection, Options options) {
         this.connection = connection;
+        this.options = options;
     }
 
     public static HBaseRepository getInstance(Connection connection){
-        return new HBaseRepository(connection);
+        return new HBaseRepository(connection, new Options());
+    }
+
+    public static HBaseRepository getInstance(Connection connection, Options options){
+        return new HBaseRepository(connection, options);
     }
 
     public Connection getConnection(){
         return connection;
     }
 
+    /**
+     * 设置 BufferedMutator 写入失败（重试耗尽）时的回调
+     * @param listener
+     */
+    public void setMutationFailureListener(MutationFailureListener listener) {
+        this.mutationFailureListener = listener;
+    }
+
     /**
      * 查询单个结果 get
      * @param tbName
@@ -49,11 +107,7 @@ public class HBaseRepository {
      * @return
      */
     public Result get(String tbName, byte[] rowKey) throws YppRunTimeException {
-        try (Table table = connection.getTable(TableName.valueOf(tbName))) {
-            return table.get(new Get(rowKey));
-        } catch (IOException e) {
-            throw new YppRunTimeException(Code.business(HBASE_READ_EXCEPTION_CODE, e.getMessage()));
-        }
+        return withTable(tbName, HBASE_READ_EXCEPTION_CODE, table -> table.get(new Get(rowKey)));
     }
 
     /**
@@ -64,19 +118,36 @@ public class HBaseRepository {
      * @return
      */
     public Result[] gets(String tbName, Collection<byte[]> gets) throws YppRunTimeException {
-        try (Table table = connection.getTable(TableName.valueOf(tbName))) {
-            return table.get(gets.stream().map(Get::new).collect(Collectors.toList()));
-        } catch (IOException e) {
-            throw new YppRunTimeException(Code.business(HBASE_READ_EXCEPTION_CODE, e.getMessage()));
-        }
+        return multiGet(tbName, gets.stream().map(Get::new).collect(Collectors.toList()));
+    }
+
+    /**
+     * 批量查询，按 multiGetBatchSize 拆分成多次请求，结果与 gets 一一对应
+     *
+     * @param tbName
+     * @param gets
+     * @return
+     */
+    public Result[] multiGet(String tbName, List<Get> gets) throws YppRunTimeException {
+        int batchSize = options.getMultiGetBatchSize();
+        return withTable(tbName, HBASE_READ_EXCEPTION_CODE, table -> {
+            if (gets.size() <= batchSize) {
+                return table.get(gets);
+            }
+            Result[] results = new Result[gets.size()];
+            for (int from = 0; from < gets.size(); from += batchSize) {
+                Result[] part = table.get(gets.subList(from, Math.min(from + batchSize, gets.size())));
+                System.arraycopy(part, 0, results, from, part.length);
+            }
+            return results;
+        });
     }
 
     public void delete(String tbName, byte[] rowKey) throws YppRunTimeException {
-        try (Table table = connection.getTable(TableName.valueOf(tbName))) {
+        withTable(tbName, HBASE_DELETE_EXCEPTION_CODE, table -> {
             table.delete(new Delete(rowKey));
-        } catch (IOException e) {
-            throw new YppRunTimeException(Code.business(HBASE_DELETE_EXCEPTION_CODE, e.getMessage()));
-        }
+            return null;
+        });
     }
 
     /**
@@ -87,11 +158,10 @@ public class HBaseRepository {
      * @return
      */
     public void deletes(String tbName, Collection<byte[]> rowKeys) throws YppRunTimeException {
-        try (Table table = connection.getTable(TableName.valueOf(tbName))) {
+        withTable(tbName, HBASE_DELETE_EXCEPTION_CODE, table -> {
             table.delete(rowKeys.stream().map(Delete::new).collect(Collectors.toList()));
-        } catch (IOException e) {
-            throw new YppRunTimeException(Code.business(HBASE_DELETE_EXCEPTION_CODE, e.getMessage()));
-        }
+            return null;
+        });
     }
 
     /**
@@ -104,11 +174,7 @@ public class HBaseRepository {
      * @return
      */
     public Long increment(String tbName, byte[] columnFamily, byte[] rowKey, String field, long amount) throws YppRunTimeException {
-        try (Table table = connection.getTable(TableName.valueOf(tbName))) {
-            return table.incrementColumnValue(rowKey, columnFamily, Bytes.toBytes(field), amount);
-        } catch (IOException e) {
-            throw new YppRunTimeException(Code.business(HBASE_INCREMENT_EXCEPTION_CODE, e.getMessage()));
-        }
+        return withTable(tbName, HBASE_INCREMENT_EXCEPTION_CODE, table -> table.incrementColumnValue(rowKey, columnFamily, Bytes.toBytes(field), amount));
     }
 
     /**
@@ -119,14 +185,14 @@ public class HBaseRepository {
      * @param consumer
      */
     public void scan(String tbName, Scan scan, Consumer<Result> consumer) throws YppRunTimeException {
-        try (Table table = connection.getTable(TableName.valueOf(tbName));
-             ResultScanner resultScanner = table.getScanner(scan)) {
-            for (Result result : resultScanner) {
-                consumer.accept(result);
+        withTable(tbName, HBASE_SCAN_EXCEPTION_CODE, table -> {
+            try (ResultScanner resultScanner = table.getScanner(scan)) {
+                for (Result result : resultScanner) {
+                    consumer.accept(result);
+                }
             }
-        } catch (IOException e) {
-            throw new YppRunTimeException(Code.business(HBASE_SCAN_EXCEPTION_CODE, e.getMessage()));
-        }
+            return null;
+        });
     }
 
     /**
@@ -135,11 +201,10 @@ public class HBaseRepository {
      * @param consumer
      */
     public void execute(String tbName, Consumer<Table> consumer) throws YppRunTimeException {
-        try (Table table = connection.getTable(TableName.valueOf(tbName))) {
+        withTable(tbName, HBASE_EXECUTE_EXCEPTION_CODE, table -> {
             consumer.accept(table);
-        } catch (IOException e) {
-            throw new YppRunTimeException(Code.business(HBASE_EXECUTE_EXCEPTION_CODE, e.getMessage()));
-        }
+            return null;
+        });
     }
 
     /**
@@ -149,11 +214,10 @@ public class HBaseRepository {
      * @return
      */
     public void put(String tbName, Put put) throws YppRunTimeException{
-        try (Table table = connection.getTable(TableName.valueOf(tbName))) {
+        withTable(tbName, HBASE_PUT_EXCEPTION_CODE, table -> {
             table.put(put);
-        } catch (IOException e) {
-            throw new YppRunTimeException(Code.business(HBASE_PUT_EXCEPTION_CODE, e.getMessage()));
-        }
+            return null;
+        });
     }
 
     /**
@@ -163,10 +227,230 @@ public class HBaseRepository {
      * @return
      */
     public void put(String tbName, List<Put> puts) throws YppRunTimeException{
-        try (Table table = connection.getTable(TableName.valueOf(tbName))) {
+        withTable(tbName, HBASE_PUT_EXCEPTION_CODE, table -> {
             table.put(puts);
+            return null;
+        });
+    }
+
+    /**
+     * 异步批量写入，写入共享的 BufferedMutator 缓冲区，缓冲区满或者定时提交；
+     * 提交失败（重试耗尽）的数据回调 {@link MutationFailureListener}
+     * @param tbName
+     * @param mutations
+     */
+    public void mutate(String tbName, List<? extends Mutation> mutations) throws YppRunTimeException {
+        try {
+            getMutator(tbName).mutate(mutations);
+            this.mutations.add(mutations.size());
         } catch (IOException e) {
-            throw new YppRunTimeException(Code.business(HBASE_PUT_EXCEPTION_CODE, e.getMessage()));
+            throw new YppRunTimeException(Code.business(HBASE_MUTATE_EXCEPTION_CODE, e.getMessage()));
+        }
+    }
+
+    /**
+     * 立即提交 BufferedMutator 缓冲区中的数据，返回时之前写入的数据已经提交完成（失败的数据已经回调）
+     * @param tbName
+     */
+    public void flush(String tbName) throws YppRunTimeException {
+        try {
+            getMutator(tbName).flush();
+            flushes.increment();
+        } catch (IOException e) {
+            throw new YppRunTimeException(Code.business(HBASE_MUTATE_EXCEPTION_CODE, e.getMessage()));
+        }
+    }
+
+    public long getMutationCount() {
+        return mutations.sum();
+    }
+
+    public long getFailedMutationCount() {
+        return failedMutations.sum();
+    }
+
+    public long getFlushCount() {
+        return flushes.sum();
+    }
+
+    /**
+     * 提交所有缓冲区中的数据，关闭缓存的 Table 句柄
+     */
+    @Override
+    public void close() {
+        mutators.forEach((tbName, mutator) -> {
+            try {
+                mutator.close();
+            } catch (IOException e) {
+                log.error("HBaseRepository.close mutator fail, table:{}", tbName, e);
+            }
+        });
+        mutators.clear();
+        tablePools.forEach((tbName, pool) -> {
+            Table table;
+            while ((table = pool.poll()) != null) {
+                closeQuietly(tbName, table);
+            }
+        });
+    }
+
+    private BufferedMutator getMutator(String tbName) throws IOException {
+        BufferedMutator mutator = mutators.get(tbName);
+        if (mutator != null) {
+            return mutator;
+        }
+        synchronized (mutators) {
+            mutator = mutators.get(tbName);
+            if (mutator == null) {
+                BufferedMutatorParams params = new BufferedMutatorParams(tableName(tbName))
+                        .writeBufferSize(options.getWriteBufferSize())
+                        .setWriteBufferPeriodicFlushTimeoutMs(options.getWriteFlushMillis())
+                        .listener((e, m) -> onMutationFailure(tbName, e));
+                mutator = connection.getBufferedMutator(params);
+                mutators.put(tbName, mutator);
+            }
+            return mutator;
+        }
+    }
+
+    private void onMutationFailure(String tbName, RetriesExhaustedWithDetailsException e) {
+        int count = e.getNumExceptions();
+        failedMutations.add(count);
+        Cat.logEvent(CAT_TYPE, "MutateFail", "1", tbName + ":" + count);
+        log.error("HBaseRepository.mutate fail, table:{}, count:{}, desc:{}", tbName, count, e.getMessage());
+        MutationFailureListener listener = mutationFailureListener;
+        if (listener == null) {
+            return;
+        }
+        List<Row> rows = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            rows.add(e.getRow(i));
+        }
+        try {
+            listener.onFailure(tbName, rows, e);
+        } catch (Exception ex) {
+            log.error("HBaseRepository.onMutationFailure callback fail, table:{}", tbName, ex);
+        }
+    }
+
+    private <R> R withTable(String tbName, String errorCode, TableFunction<R> function) throws YppRunTimeException {
+        Table table = borrowTable(tbName, errorCode);
+        try {
+            return function.apply(table);
+        } catch (IOException e) {
+            throw new YppRunTimeException(Code.business(errorCode, e.getMessage()));
+        } finally {
+            returnTable(tbName, table);
+        }
+    }
+
+    private Table borrowTable(String tbName, String errorCode) throws YppRunTimeException {
+        BlockingQueue<Table> pool = tablePools.get(tbName);
+        Table table = pool == null ? null : pool.poll();
+        if (table != null) {
+            return table;
+        }
+        try {
+            return connection.getTable(tableName(tbName));
+        } catch (IOException e) {
+            throw new YppRunTimeException(Code.business(errorCode, e.getMessage()));
+        }
+    }
+
+    private void returnTable(String tbName, Table table) {
+        BlockingQueue<Table> pool = tablePools.computeIfAbsent(tbName, k -> new ArrayBlockingQueue<>(options.getTablePoolSize()));
+        if (!pool.offer(table)) {
+            closeQuietly(tbName, table);
+        }
+    }
+
+    private TableName tableName(String tbName) {
+        return tableNames.computeIfAbsent(tbName, TableName::valueOf);
+    }
+
+    private static void closeQuietly(String tbName, Table table) {
+        try {
+            table.close();
+        } catch (IOException e) {
+            log.warn("HBaseRepository.close table fail, table:{}", tbName, e);
+        }
+    }
+
+    @FunctionalInterface
+    private interface TableFunction<R> {
+        R apply(Table table) throws IOException;
+    }
+
+    /**
+     * BufferedMutator 提交失败（重试耗尽）的回调
+     */
+    @FunctionalInterface
+    public interface MutationFailureListener {
+
+        /**
+         * @param tbName 表名
+         * @param rows   提交失败的数据
+         * @param cause  失败原因
+         */
+        void onFailure(String tbName, List<Row> rows, Throwable cause);
+    }
+
+    public static class Options {
+
+        /**
+         * BufferedMutator 缓冲区大小，超过后立即提交
+         */
+        private long writeBufferSize = 2 * 1024 * 1024;
+
+        /**
+         * BufferedMutator 定时提交的间隔
+         */
+        private long writeFlushMillis = 1000;
+
+        /**
+         * 每个表缓存的 Table 句柄数量
+         */
+        private int tablePoolSize = 16;
+
+        /**
+         * 批量 get 单次请求的最大数量
+         */
+        private int multiGetBatchSize = 100;
+
+        public long getWriteBufferSize() {
+            return writeBufferSize;
+        }
+
+        public Options setWriteBufferSize(long writeBufferSize) {
+            this.writeBufferSize = writeBufferSize;
+            return this;
+        }
+
+        public long getWriteFlushMillis() {
+            return writeFlushMillis;
+        }
+
+        public Options setWriteFlushMillis(long writeFlushMillis) {
+            this.writeFlushMillis = writeFlushMillis;
+            return this;
+        }
+
+        public int getTablePoolSize() {
+            return tablePoolSize;
+        }
+
+        public Options setTablePoolSize(int tablePoolSize) {
+            this.tablePoolSize = tablePoolSize;
+            return this;
+        }
+
+        public int getMultiGetBatchSize() {
+            return multiGetBatchSize;
+        }
+
+        public Options setMultiGetBatchSize(int multiGetBatchSize) {
+            this.multiGetBatchSize = multiGetBatchSize;
+            return this;
         }
     }
-}
\ No newline at end of file
+}
@@ -24,7 +24,7 @@ public class TraceRecordInterceptor {
         ConsumerRecord consumerRecord = Arrays.stream(pjp.getArgs())
                 .filter(ConsumerRecord.class::isInstance)
                 .findFirst()
-                .map(ConsumerRecord.class::cast).orElseGet(null);
+                .map(ConsumerRecord.class::cast).orElse(null);
         if (consumerRecord == null) {
             return pjp.proceed();
         }
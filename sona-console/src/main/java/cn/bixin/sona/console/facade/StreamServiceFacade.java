@@ -6,10 +6,14 @@ import lombok.extern.slf4j.Slf4j;
 import org.apache.dubbo.config.annotation.DubboReference;
 import org.springframework.stereotype.Service;
 
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
 @Slf4j
 @Service
 public class StreamServiceFacade {
-    @DubboReference
+    @DubboReference(timeout = 30000)
     private HotSwitchRemoteService hotSwitchRemoteService;
 
     public Boolean switchAudioSupplierRoom(long roomId, int mixed){
@@ -19,4 +23,20 @@ public class StreamServiceFacade {
         }
         return response.getResult();
     }
+
+    /**
+     * @return 每个房间是否切换成功，调用失败时返回空 map
+     */
+    public Map<Long, Boolean> switchAudioSupplierRooms(List<Long> roomIds, int mixed) {
+        try {
+            Response<Map<Long, Boolean>> response = hotSwitchRemoteService.switchAudioSupplierRooms(roomIds, mixed);
+            if (!response.isSuccess() || response.getResult() == null) {
+                return Collections.emptyMap();
+            }
+            return response.getResult();
+        } catch (Exception e) {
+            log.error("switchAudioSupplierRooms error, roomIds:{}, mixed:{}", roomIds, mixed, e);
+            return Collections.emptyMap();
+        }
+    }
 }
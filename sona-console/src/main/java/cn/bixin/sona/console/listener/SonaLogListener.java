@@ -26,7 +26,7 @@ public class SonaLogListener {
      */
     @KafkaListener(topics = "TOPIC-ROOM-IM-MESSAGE-LOG", groupId = "TOPIC-ROOM-IM-MESSAGE-LOG_group")
     public void listenRoomImMsgLog(ConsumerRecord<String, String> record) {
-        log.info("TOPIC-ROOM-IM-MESSAGE-LOG:{}", record.value());
+        log.debug("TOPIC-ROOM-IM-MESSAGE-LOG:{}", record.value());
         logHandler.handleRoomImMsgLog(JSON.parseObject(record.value(), RoomImMsgLog.class));
     }
 
@@ -12,16 +12,23 @@ import cn.bixin.sona.console.facade.StreamServiceFacade;
 import cn.bixin.sona.console.service.*;
 import cn.bixin.sona.console.utils.CollectionUtil;
 import cn.bixin.sona.enums.RoomMixedEnum;
-import com.google.common.util.concurrent.RateLimiter;
+import com.google.common.collect.Lists;
+import lombok.extern.slf4j.Slf4j;
 import org.apache.dubbo.common.utils.CollectionUtils;
+import org.apache.dubbo.common.utils.NamedThreadFactory;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.stream.Collectors;
 
+@Slf4j
 @Service
 public class MediaRoomInfoManager {
     @Resource
@@ -39,6 +46,14 @@ public class MediaRoomInfoManager {
     @Resource
     private StreamServiceFacade streamServiceFacade;
 
+    @Value("${sona.switch.batch.size:200}")
+    private int switchBatchSize;
+
+    /**
+     * 热切串行执行，并发度由 sona-core 控制
+     */
+    private final ExecutorService hotSwitchExecutor = Executors.newSingleThreadExecutor(new NamedThreadFactory("hot-switch", true));
+
     public List<MediaRoomInfoDTO> queryMediaRoomInfo(MediaRoomRequest request) {
         List<Long> roomIds = CollectionUtil.spiltToLong(request.getRoomIds(), ',');
         if (CollectionUtils.isEmpty(roomIds)) {
@@ -59,30 +74,59 @@ public class MediaRoomInfoManager {
         return mediaRoomInfoDTOS;
     }
 
-    @SuppressWarnings("UnstableApiUsage")
+    /**
+     * 热切按批提交给 sona-core，每一批完成后更新这一批的明细状态，切换记录中可以看到进度
+     */
     public String hotSwitchSelf(HotSwitchRequest request) {
-        List<Long> roomIds = CollectionUtil.spiltToLong(request.getRoomIds(), ',');
+        List<Long> roomIds = CollectionUtil.spiltToLong(request.getRoomIds(), ',').stream().distinct().collect(Collectors.toList());
         RoomMixedEnum roomMixedEnum = RoomMixedEnum.getRoomMixedEnum(request.getSwitchType());
         //数据库添加批次切换记录
         long batchId = idGenerator.id();
         saveBatchOperation(roomMixedEnum.getSupplier(), roomMixedEnum.getPullMode() , batchId);
-        RateLimiter rateLimiter = RateLimiter.create(10);
-        roomIds.forEach(roomId -> {
-            rateLimiter.acquire();
-            Boolean flag = streamServiceFacade.switchAudioSupplierRoom(roomId, roomMixedEnum.getCode());
-            SwitchDetail switchDetail = new SwitchDetail();
-            switchDetail.setBatchId(batchId);
-            switchDetail.setRoomId(roomId);
-            switchDetail.setStreamSupplier(roomMixedEnum.getSupplier());
-            switchDetail.setPullMode(roomMixedEnum.getPullMode());
-            switchDetail.setStatus(flag ? 1 : 2);
-            switchDetail.setOperator("admin");
-            switchDetailService.insertSelective(switchDetail);
-
-        });
+        //先写入所有房间的明细（进行中），再异步按批切换
+        List<List<Long>> batches = Lists.partition(roomIds, switchBatchSize);
+        batches.forEach(batch -> switchDetailService.batchInsert(batch.stream()
+                .map(roomId -> createSwitchDetail(batchId, roomId, roomMixedEnum)).collect(Collectors.toList())));
+        hotSwitchExecutor.execute(() -> doHotSwitch(batchId, batches, roomMixedEnum));
         return batchId + "";
     }
 
+    private void doHotSwitch(long batchId, List<List<Long>> batches, RoomMixedEnum roomMixedEnum) {
+        boolean allSuccess = true;
+        for (List<Long> batch : batches) {
+            Map<Long, Boolean> results = streamServiceFacade.switchAudioSupplierRooms(batch, roomMixedEnum.getCode());
+            Map<Boolean, List<Long>> partition = batch.stream().collect(Collectors.partitioningBy(roomId -> Boolean.TRUE.equals(results.get(roomId))));
+            try {
+                switchDetailService.updateStatus(batchId, partition.get(true), 1);
+                switchDetailService.updateStatus(batchId, partition.get(false), 2);
+            } catch (Exception e) {
+                log.error("update switch detail error, batchId:{}, roomIds:{}", batchId, batch, e);
+            }
+            allSuccess &= partition.get(false).isEmpty();
+            log.info("hotSwitch batch done, batchId:{}, size:{}, failed:{}", batchId, batch.size(), partition.get(false).size());
+        }
+        SwitchBatch switchBatch = new SwitchBatch();
+        switchBatch.setId(batchId);
+        switchBatch.setStatus(allSuccess ? 1 : 2);
+        switchBatchService.updateByPrimaryKeySelective(switchBatch);
+    }
+
+    private SwitchDetail createSwitchDetail(long batchId, Long roomId, RoomMixedEnum roomMixedEnum) {
+        SwitchDetail switchDetail = new SwitchDetail();
+        switchDetail.setBatchId(batchId);
+        switchDetail.setRoomId(roomId);
+        switchDetail.setStreamSupplier(roomMixedEnum.getSupplier());
+        switchDetail.setPullMode(roomMixedEnum.getPullMode());
+        switchDetail.setStatus(0);
+        switchDetail.setOperator("admin");
+        return switchDetail;
+    }
+
+    @PreDestroy
+    public void destroy() {
+        hotSwitchExecutor.shutdown();
+    }
+
     private void saveBatchOperation(String supplier, String pullMode, long batchId) {
         SwitchBatch switchBatch = new SwitchBatch();
         switchBatch.setId(batchId);
@@ -22,5 +22,9 @@ public interface SwitchDetailMapper {
 
     List<SwitchDetail> selectAllByBatchIdIn(@Param("batchIdCollection")Collection<Long> batchIdCollection);
 
+    int batchInsert(@Param("list") List<SwitchDetail> list);
+
+    int updateStatusByBatchIdAndRoomIds(@Param("batchId") Long batchId, @Param("roomIdCollection") Collection<Long> roomIdCollection, @Param("status") Integer status);
+
 
 }
\ No newline at end of file
@@ -2,6 +2,7 @@ package cn.bixin.sona.console.service;
 
 import cn.bixin.sona.console.domain.db.SwitchDetail;
 
+import java.util.Collection;
 import java.util.List;
 
 public interface SwitchDetailService {
@@ -20,5 +21,9 @@ public interface SwitchDetailService {
     int updateByPrimaryKey(SwitchDetail record);
 
     List<SwitchDetail> queryDetailsByIds(List<Long> batchIds);
+
+    int batchInsert(List<SwitchDetail> records);
+
+    int updateStatus(Long batchId, Collection<Long> roomIds, Integer status);
 }
 
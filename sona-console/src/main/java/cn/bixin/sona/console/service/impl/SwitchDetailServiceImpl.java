@@ -6,6 +6,7 @@ import cn.bixin.sona.console.mapper.SwitchDetailMapper;
 import cn.bixin.sona.console.domain.db.SwitchDetail;
 import cn.bixin.sona.console.service.SwitchDetailService;
 
+import java.util.Collection;
 import java.util.List;
 
 @Service
@@ -49,4 +50,20 @@ public class SwitchDetailServiceImpl implements SwitchDetailService{
         return switchDetailMapper.selectAllByBatchIdIn(batchIds);
     }
 
+    @Override
+    public int batchInsert(List<SwitchDetail> records) {
+        if (records.isEmpty()) {
+            return 0;
+        }
+        return switchDetailMapper.batchInsert(records);
+    }
+
+    @Override
+    public int updateStatus(Long batchId, Collection<Long> roomIds, Integer status) {
+        if (roomIds.isEmpty()) {
+            return 0;
+        }
+        return switchDetailMapper.updateStatusByBatchIdAndRoomIds(batchId, roomIds, status);
+    }
+
 }
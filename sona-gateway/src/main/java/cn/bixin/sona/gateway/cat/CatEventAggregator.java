@@ -0,0 +1,133 @@
+package cn.bixin.sona.gateway.cat;
+
+import com.dianping.cat.Cat;
+import io.netty.util.internal.PlatformDependent;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.dubbo.common.utils.NamedThreadFactory;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * @author qinwei
+ * <p>
+ * cat 埋点本地聚合
+ * <p>
+ * 热点路径上只对 LongAdder 做累加（LongAdder 本身按线程分段，不存在竞争），由后台线程每秒汇总后统一上报 cat，
+ * 避免每条消息都拼接名称、创建 tags 以及调用 cat 客户端。
+ * 注意：只适合名称取值有限的埋点（例如按 cmd 维度），不要传入 channelId、ip、房间号之类无上限的名称。
+ */
+@Slf4j
+public final class CatEventAggregator {
+
+    public static final CatEventAggregator INSTANCE = new CatEventAggregator();
+
+    private static final long FLUSH_INTERVAL_MILLIS = 1000;
+
+    private static final String TAG_CMD = "cmd";
+
+    //key：type，value：（key：name，value：计数）
+    private final ConcurrentMap<String, ConcurrentMap<String, EventCounter>> events = PlatformDependent.newConcurrentHashMap();
+
+    //key：metric name，value：（key：cmd，value：累加值）
+    private final ConcurrentMap<String, ConcurrentMap<String, MetricCounter>> metrics = PlatformDependent.newConcurrentHashMap();
+
+    private CatEventAggregator() {
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("mercury-catFlush", true));
+        scheduler.scheduleWithFixedDelay(this::flush, FLUSH_INTERVAL_MILLIS, FLUSH_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 累加一次事件，最终以 Cat.logBatchEvent 的形式上报
+     */
+    public void count(String type, String name, boolean success) {
+        EventCounter counter = getEventCounter(type, name);
+        counter.total.increment();
+        if (!success) {
+            counter.failure.increment();
+        }
+    }
+
+    /**
+     * 按 cmd 维度累加 metric，最终以 Cat.logMetricForCount(name, quantity, {cmd}) 的形式上报
+     */
+    public void sum(String name, String cmd, int quantity) {
+        getMetricCounter(name, cmd).quantity.add(quantity);
+    }
+
+    private EventCounter getEventCounter(String type, String name) {
+        ConcurrentMap<String, EventCounter> counters = events.get(type);
+        if (counters == null) {
+            counters = events.computeIfAbsent(type, k -> PlatformDependent.newConcurrentHashMap());
+        }
+        //先 get 再 computeIfAbsent，jdk8 的 computeIfAbsent 即使 key 存在也会加锁
+        EventCounter counter = counters.get(name);
+        if (counter == null) {
+            counter = counters.computeIfAbsent(name, k -> new EventCounter());
+        }
+        return counter;
+    }
+
+    private MetricCounter getMetricCounter(String name, String cmd) {
+        ConcurrentMap<String, MetricCounter> counters = metrics.get(name);
+        if (counters == null) {
+            counters = metrics.computeIfAbsent(name, k -> PlatformDependent.newConcurrentHashMap());
+        }
+        MetricCounter counter = counters.get(cmd);
+        if (counter == null) {
+            counter = counters.computeIfAbsent(cmd, MetricCounter::new);
+        }
+        return counter;
+    }
+
+    void flush() {
+        try {
+            for (Map.Entry<String, ConcurrentMap<String, EventCounter>> typeEntry : events.entrySet()) {
+                for (Map.Entry<String, EventCounter> entry : typeEntry.getValue().entrySet()) {
+                    long total = entry.getValue().total.sumThenReset();
+                    long failure = entry.getValue().failure.sumThenReset();
+                    if (total > 0) {
+                        Cat.logBatchEvent(typeEntry.getKey(), entry.getKey(), toInt(total), toInt(failure));
+                    }
+                }
+            }
+            for (Map.Entry<String, ConcurrentMap<String, MetricCounter>> nameEntry : metrics.entrySet()) {
+                for (MetricCounter counter : nameEntry.getValue().values()) {
+                    long quantity = counter.quantity.sumThenReset();
+                    if (quantity > 0) {
+                        Cat.logMetricForCount(nameEntry.getKey(), toInt(quantity), counter.tags);
+                    }
+                }
+            }
+        } catch (Throwable e) {
+            log.error("CatEventAggregator flush error", e);
+        }
+    }
+
+    private static int toInt(long value) {
+        return value > Integer.MAX_VALUE ? Integer.MAX_VALUE : (int) value;
+    }
+
+    private static final class EventCounter {
+
+        private final LongAdder total = new LongAdder();
+
+        private final LongAdder failure = new LongAdder();
+    }
+
+    private static final class MetricCounter {
+
+        private final LongAdder quantity = new LongAdder();
+
+        private final Map<String, String> tags;
+
+        private MetricCounter(String cmd) {
+            this.tags = Collections.singletonMap(TAG_CMD, cmd);
+        }
+    }
+}
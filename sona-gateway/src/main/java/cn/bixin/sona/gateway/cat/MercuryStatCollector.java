@@ -1,7 +1,10 @@
 package cn.bixin.sona.gateway.cat;
 
+import cn.bixin.sona.common.spring.SpringApplicationContext;
 import cn.bixin.sona.gateway.channel.NettyChannel;
 import cn.bixin.sona.gateway.channel.RoomChannelManager;
+import cn.bixin.sona.gateway.channel.support.AdmissionController;
+import cn.bixin.sona.gateway.mq.OrderedBatchSender;
 import com.dianping.cat.Cat;
 import com.dianping.cat.status.AbstractCollector;
 import io.netty.util.internal.PlatformDependent;
@@ -39,6 +42,13 @@ public class MercuryStatCollector extends AbstractCollector {
 
         map.put("netty.used.direct.mem", String.valueOf(PlatformDependent.usedDirectMemory()));
 
+        for (Map.Entry<String, Object> entry : AdmissionController.INSTANCE.stat().entrySet()) {
+            map.put("admission." + entry.getKey(), String.valueOf(entry.getValue()));
+        }
+        for (Map.Entry<String, Object> entry : SpringApplicationContext.getBean(OrderedBatchSender.class).stat().entrySet()) {
+            map.put("mq.batch." + entry.getKey(), String.valueOf(entry.getValue()));
+        }
+
         collectRoomChannelManagerStat(RoomChannelManager.MANAGER_FOR_CHATROOM);
 
         return map;
@@ -7,18 +7,24 @@ import cn.bixin.sona.gateway.util.ExecuteFunction;
 import cn.bixin.sona.gateway.util.NetUtil;
 import com.dianping.cat.Cat;
 import com.dianping.cat.message.Transaction;
+import com.dianping.cat.message.internal.NullMessage;
 import com.google.common.base.Joiner;
+import io.netty.util.internal.PlatformDependent;
+import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang3.StringUtils;
 
 import java.net.SocketAddress;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.function.BiConsumer;
 
 /**
  * @author qinwei
  */
+@Slf4j
 public final class MonitorUtils {
 
     public static final String IDLE_STATE_EVENT = "Mercury.IdleStateEvent";
@@ -37,6 +43,7 @@ public final class MonitorUtils {
     public static final String MQ_LISTENER_PROBLEM = "Mercury.MqListenerProblem";
     public static final String IM_MSG_LISTENER_PROBLEM = "Mercury.IMMsgListenerProblem";
     public static final String SEND_MESSAGE_PROBLEM = "Mercury.SendMessageProblem";
+    public static final String MQ_SEND_PROBLEM = "Mercury.MqSendProblem";
     public static final String RECEIVE_MESSAGE_PROBLEM = "Mercury.ReceiveMessageProblem";
 
     public static final String LOGIN = "Mercury.Login";
@@ -44,6 +51,8 @@ public final class MonitorUtils {
 
     public static final String MERCURY_ACCESS_DENY = "Mercury.AccessDeny";
 
+    public static final String MERCURY_ADMISSION_REJECT = "Mercury.AdmissionReject";
+
     public static final String CAT_IN_TRANS_TYPE = "ChIn";
 
     public static final String CAT_OUT_TRANS_TYPE = "ChOut";
@@ -51,38 +60,173 @@ public final class MonitorUtils {
     public static final String CAT_METRIC_IN_SIZE = "Msg.In.Size";
     public static final String CAT_METRIC_OUT_SIZE = "Msg.Out.Size";
 
+    public static final String HEARTBEAT_NAME = "HB";
+
+    private static final Joiner NAME_JOINER = Joiner.on(':');
+
+    private static final int SAMPLE_BASE = 10000;
+
+    private static final int CMD_NAME_CACHE_SIZE = 256;
+
+    //cmd 对应的埋点名称，提前创建好，避免每条消息都 String.valueOf
+    private static final String[] CMD_NAMES = new String[CMD_NAME_CACHE_SIZE];
+
+    //key：事件名称前缀，value：按 cmd 下标缓存的 "前缀:cmd"
+    private static final ConcurrentMap<String, String[]> CMD_EVENT_NAMES = PlatformDependent.newConcurrentHashMap();
+
+    /**
+     * cat 埋点总开关，关闭后所有埋点直接返回，不产生任何对象
+     */
+    private static volatile boolean enable = true;
+
+    /**
+     * transaction 采样阈值，取值 [0, SAMPLE_BASE]，SAMPLE_BASE 表示全量
+     */
+    private static volatile int sampleThreshold = SAMPLE_BASE;
+
+    static {
+        for (int i = 0; i < CMD_NAME_CACHE_SIZE; i++) {
+            CMD_NAMES[i] = String.valueOf(i);
+        }
+    }
+
     private MonitorUtils() {
     }
 
+    /**
+     * @param enable     是否开启 cat 埋点
+     * @param sampleRate transaction 采样率，取值 [0, 1]
+     */
+    public static void updateConfig(boolean enable, double sampleRate) {
+        double rate = Math.max(0D, Math.min(1D, sampleRate));
+        MonitorUtils.sampleThreshold = (int) Math.round(rate * SAMPLE_BASE);
+        MonitorUtils.enable = enable;
+    }
+
+    public static boolean isEnable() {
+        return enable;
+    }
+
+    /**
+     * 本次调用是否需要创建 cat transaction
+     */
+    public static boolean sampleTransaction() {
+        if (!enable) {
+            return false;
+        }
+        int threshold = sampleThreshold;
+        return threshold >= SAMPLE_BASE || (threshold > 0 && ThreadLocalRandom.current().nextInt(SAMPLE_BASE) < threshold);
+    }
+
+    public static String cmdName(int cmd) {
+        return cmd >= 0 && cmd < CMD_NAME_CACHE_SIZE ? CMD_NAMES[cmd] : String.valueOf(cmd);
+    }
+
+    public static String cmdName(Object message) {
+        if (!(message instanceof AccessMessage)) {
+            return message.getClass().getSimpleName();
+        }
+        AccessMessage msg = (AccessMessage) message;
+        return msg.isHeartbeat() ? HEARTBEAT_NAME : cmdName(msg.getCmd());
+    }
+
     public static void logEvent(String type, String name) {
-        Cat.logEvent(type, name);
+        if (enable) {
+            Cat.logEvent(type, name);
+        }
     }
 
     public static void logBatchEvent(String type, String name, int count, int error) {
-        Cat.logBatchEvent(type, name, count, error);
+        if (enable) {
+            Cat.logBatchEvent(type, name, count, error);
+        }
+    }
+
+    public static void logMetricForCount(String name, int quantity) {
+        if (enable) {
+            Cat.logMetricForCount(name, quantity);
+        }
     }
 
     public static void logMetricForCount(String name, int quantity, Map<String, String> tags) {
-        Cat.logMetricForCount(name, quantity, tags);
+        if (enable) {
+            Cat.logMetricForCount(name, quantity, tags);
+        }
     }
 
     public static void logMetricForDuration(String name, long durationInMillis) {
-        Cat.logMetricForDuration(name, durationInMillis);
+        if (enable) {
+            Cat.logMetricForDuration(name, durationInMillis);
+        }
+    }
+
+    /**
+     * 按 cmd 维度累加消息大小，本地聚合后定时上报
+     */
+    public static void logMsgSize(String type, String cmd, int size) {
+        if (enable) {
+            CatEventAggregator.INSTANCE.sum(type, cmd, size);
+        }
+    }
+
+    /**
+     * 累加 transaction 的调用次数和失败次数，本地聚合后以 batch event 的形式定时上报，
+     * 这样即使 transaction 被采样丢弃，调用量和失败量依然是准确的
+     */
+    public static void countTransaction(String type, String name, boolean success) {
+        if (enable) {
+            CatEventAggregator.INSTANCE.count(type, name, success);
+        }
     }
 
-    public static void newTransaction(String type, String name, ExecuteFunction execution) {
-        newTransaction(type, name, execution, null);
+    public static boolean newTransaction(String type, String name, ExecuteFunction execution) {
+        return newTransaction(type, name, execution, null);
     }
 
     public static void newCompletedTransactionWithDuration(String type, String name, long duration) {
-        Cat.newCompletedTransactionWithDuration(type, name, duration);
+        if (enable) {
+            Cat.newCompletedTransactionWithDuration(type, name, duration);
+        }
+    }
+
+    /**
+     * 按采样率创建 transaction，name 的取值必须是有限的（例如 cmd）。
+     * 未采样的调用不创建 transaction，只在本地累加调用次数
+     */
+    public static void newSampledTransaction(String type, String name, ExecuteFunction execution) {
+        boolean success = sampleTransaction() ? newTransaction(type, name, execution) : executeQuietly(execution);
+        countTransaction(type, name, success);
+    }
+
+    public static boolean executeQuietly(ExecuteFunction execution) {
+        try {
+            execution.execute();
+            return true;
+        } catch (Exception e) {
+            log.debug("execute error", e);
+            return false;
+        }
     }
 
-    public static void newTransaction(String type, String name, ExecuteFunction execution, BiConsumer<Transaction, String> finallyExecution) {
+    /**
+     * @return 执行是否成功
+     */
+    public static boolean newTransaction(String type, String name, ExecuteFunction execution, BiConsumer<Transaction, String> finallyExecution) {
+        if (!enable) {
+            try {
+                return executeQuietly(execution);
+            } finally {
+                if (finallyExecution != null) {
+                    finallyExecution.accept(NullMessage.TRANSACTION, name);
+                }
+            }
+        }
         Transaction t = Cat.newTransaction(type, name);
+        boolean success = false;
         try {
             execution.execute();
             t.setSuccessStatus();
+            success = true;
         } catch (Exception e) {
             t.setStatus(e);
         } finally {
@@ -91,17 +235,37 @@ public final class MonitorUtils {
             }
             t.complete();
         }
+        return success;
     }
 
     public static void logCatEventWithMessage(String type, String name, Object msg, boolean isSuccess) {
+        if (!enable) {
+            return;
+        }
         String fullName;
         if (msg instanceof AccessMessage) {
-            AccessMessage message = (AccessMessage) msg;
-            fullName = Joiner.on(":").join(name, message.getCmd());
+            fullName = cmdEventName(name, ((AccessMessage) msg).getCmd());
         } else {
-            fullName = Joiner.on(":").join(name, msg.getClass().getName());
+            fullName = name + ":" + msg.getClass().getName();
         }
-        logBatchEvent(type, fullName, 1, isSuccess ? 0 : 1);
+        CatEventAggregator.INSTANCE.count(type, fullName, isSuccess);
+    }
+
+    private static String cmdEventName(String name, int cmd) {
+        if (cmd < 0 || cmd >= CMD_NAME_CACHE_SIZE) {
+            return name + ":" + cmd;
+        }
+        String[] names = CMD_EVENT_NAMES.get(name);
+        if (names == null) {
+            names = CMD_EVENT_NAMES.computeIfAbsent(name, k -> new String[CMD_NAME_CACHE_SIZE]);
+        }
+        String fullName = names[cmd];
+        if (fullName == null) {
+            //并发下可能重复创建，结果一致，无需加锁
+            fullName = name + ":" + CMD_NAMES[cmd];
+            names[cmd] = fullName;
+        }
+        return fullName;
     }
 
     public static void logCatEventWithChannelAttrs(String type, String name, NettyChannel channel, boolean isSuccess) {
@@ -109,6 +273,9 @@ public final class MonitorUtils {
     }
 
     public static void logCatEventWithChannelAttrs(String type, String name, NettyChannel channel, boolean isSuccess, boolean withRemoteAddr) {
+        if (!enable) {
+            return;
+        }
         List<String> nameParts = new ArrayList<>();
         if (StringUtils.isNotBlank(name)) {
             nameParts.add(name);
@@ -133,7 +300,7 @@ public final class MonitorUtils {
     }
 
     private static void logCatEventWithComplexName(String type, Iterable<String> nameParts, boolean isSuccess) {
-        String fullName = Joiner.on(":").join(nameParts);
+        String fullName = NAME_JOINER.join(nameParts);
         logBatchEvent(type, fullName, 1, isSuccess ? 0 : 1);
     }
 
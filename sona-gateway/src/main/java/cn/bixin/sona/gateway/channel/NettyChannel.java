@@ -229,14 +229,21 @@ public class NettyChannel extends AbstractChannel {
     public void send(Object message, boolean sent, boolean closeWhenComplete) throws RemoteException {
         super.send(message, sent, closeWhenComplete);
 
-        String name;
-        if (!(message instanceof AccessMessage)) {
-            name = message.getClass().getSimpleName();
+        String name = MonitorUtils.cmdName(message);
+        boolean success;
+        if (MonitorUtils.sampleTransaction()) {
+            success = MonitorUtils.newTransaction(MonitorUtils.CAT_OUT_TRANS_TYPE, name, () -> doSend(message, sent, closeWhenComplete));
         } else {
-            AccessMessage msg = (AccessMessage) message;
-            name = msg.isHeartbeat() ? "HB" : String.valueOf(msg.getCmd());
+            //未采样时直接发送，不创建 lambda 和 transaction，只在本地计数；和采样路径一样吞掉所有异常，不向调用方抛出
+            success = true;
+            try {
+                doSend(message, sent, closeWhenComplete);
+            } catch (Exception e) {
+                success = false;
+                log.debug("send message error, channelId={}", getChannelId(), e);
+            }
         }
-        MonitorUtils.newTransaction(MonitorUtils.CAT_OUT_TRANS_TYPE, name, () -> doSend(message, sent, closeWhenComplete));
+        MonitorUtils.countTransaction(MonitorUtils.CAT_OUT_TRANS_TYPE, name, success);
     }
 
     private void doSend(Object message, boolean sent, boolean closeWhenComplete) throws RemoteException {
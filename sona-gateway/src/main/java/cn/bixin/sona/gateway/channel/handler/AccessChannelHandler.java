@@ -3,13 +3,14 @@ package cn.bixin.sona.gateway.channel.handler;
 import cn.bixin.sona.gateway.cat.MonitorUtils;
 import cn.bixin.sona.gateway.channel.NettyChannel;
 import cn.bixin.sona.gateway.channel.support.AccessFilter;
+import cn.bixin.sona.gateway.channel.support.AdmissionController;
 import cn.bixin.sona.gateway.exception.RemoteException;
 import lombok.extern.slf4j.Slf4j;
 
 /**
  * @author qinwei
  * <p>
- * Access 权限校验
+ * Access 权限校验，建连限流
  */
 @Slf4j
 public class AccessChannelHandler extends AbstractChannelHandler {
@@ -27,6 +28,12 @@ public class AccessChannelHandler extends AbstractChannelHandler {
             channel.close();
             return;
         }
+        //建连速率超出阈值的连接直接断开，客户端会按自身的退避策略重连
+        if (!AdmissionController.INSTANCE.tryAccept()) {
+            MonitorUtils.logEvent(MonitorUtils.MERCURY_ADMISSION_REJECT, "Accept");
+            channel.close();
+            return;
+        }
         handler.connect(channel);
     }
 }
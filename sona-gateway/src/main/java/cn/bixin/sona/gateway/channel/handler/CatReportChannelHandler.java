@@ -40,8 +40,7 @@ public class CatReportChannelHandler extends AbstractChannelHandler {
             return;
         }
         AccessMessage msg = (AccessMessage) message;
-        String name = msg.isHeartbeat() ? "HB" : String.valueOf(msg.getCmd());
-        AccessMessageUtils.logInboundMsgSize(msg, name);
+        AccessMessageUtils.logInboundMsgSize(msg, MonitorUtils.cmdName(msg));
         handler.receive(channel, message);
     }
 }
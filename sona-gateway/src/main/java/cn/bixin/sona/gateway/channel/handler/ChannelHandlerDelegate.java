@@ -12,7 +12,6 @@ import cn.bixin.sona.gateway.exception.RemoteException;
 import cn.bixin.sona.gateway.service.SocketNotifyService;
 import cn.bixin.sona.gateway.util.EventRecordLog;
 import lombok.extern.slf4j.Slf4j;
-import org.apache.rocketmq.client.producer.SendResult;
 import org.springframework.util.CollectionUtils;
 
 import java.net.InetSocketAddress;
@@ -52,10 +51,10 @@ public class ChannelHandlerDelegate implements ChannelHandler {
             }
         }
         if (channel.isAuth()) {
-            SendResult result = SpringApplicationContext.getBean(SocketNotifyService.class).processDisConnect(channel);
+            Boolean queued = SpringApplicationContext.getBean(SocketNotifyService.class).processDisConnect(channel);
             StringBuilder msg = new StringBuilder().append(duration).append("s.");
-            if (result != null) {
-                msg.append(result.getSendStatus()).append('=').append(result.getMsgId());
+            if (queued != null) {
+                msg.append(queued ? "QUEUED" : "SPILLED");
             }
             EventRecordLog.logEvent(channel, "TTL", msg.toString());
         } else {
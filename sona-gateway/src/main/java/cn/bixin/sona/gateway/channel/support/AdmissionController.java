@@ -0,0 +1,209 @@
+package cn.bixin.sona.gateway.channel.support;
+
+import cn.bixin.sona.gateway.cat.MonitorUtils;
+import cn.bixin.sona.gateway.concurrent.counter.SystemClock;
+import cn.bixin.sona.gateway.concurrent.counter.TimeSlidingWindow;
+import cn.bixin.sona.gateway.concurrent.counter.TokenBucket;
+import com.alibaba.fastjson.JSON;
+import lombok.Getter;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 连接准入控制
+ * <p>
+ * 某台网关重启时，它上面的数万连接会在短时间内涌到其他网关，每次登录都要解析 json、发送 MQ、写 session redis。
+ * 这里在建连和登录两个阶段分别用令牌桶做平滑：
+ * <ul>
+ *     <li>建连：超出速率的连接直接关闭，不进入后续流程</li>
+ *     <li>登录：超出速率的握手返回失败，并告诉客户端多久以后重试（带随机抖动，避免再次集中重连）；
+ *     断线重连的客户端可以使用预留的容量，优先于首次连接的客户端</li>
+ * </ul>
+ * 默认关闭，需要在 Apollo 上按各集群的实际容量调好速率后再开启
+ *
+ * @author qinwei
+ */
+@Slf4j
+public class AdmissionController {
+
+    public static final AdmissionController INSTANCE = new AdmissionController();
+
+    /**
+     * 最近一次拒绝后 X 毫秒内，认为网关处于过载状态
+     */
+    private static final long OVERLOAD_HOLD_MILLIS = 10_000L;
+
+    /**
+     * 拒绝日志、metric 的汇总周期，避免重连风暴时每次拒绝都打一条日志
+     */
+    private static final long REJECT_REPORT_INTERVAL_MILLIS = 1000L;
+
+    private volatile AdmissionConfig config = new AdmissionConfig();
+
+    private volatile TokenBucket acceptBucket;
+
+    private volatile TokenBucket loginBucket;
+
+    /**
+     * 距离上次输出拒绝日志以来被拒绝的建连、登录次数，输出后清零
+     */
+    private final LongAdder acceptRejected = new LongAdder();
+
+    private final LongAdder loginRejected = new LongAdder();
+
+    private final LongAdder loginAdmitted = new LongAdder();
+
+    /**
+     * 最近 1s 登录被拒绝的次数，用来估算积压量，决定重试时间的打散范围
+     */
+    private final TimeSlidingWindow recentLoginRejected = new TimeSlidingWindow(Integer.MAX_VALUE);
+
+    private volatile long lastRejectTime;
+
+    private final AtomicLong lastRejectReportTime = new AtomicLong();
+
+    private AdmissionController() {
+        rebuildBuckets(config);
+    }
+
+    public void updateConfig(String str) {
+        AdmissionConfig newConfig;
+        try {
+            newConfig = JSON.parseObject(str, AdmissionConfig.class);
+        } catch (Exception e) {
+            log.error("AdmissionController updateConfig() error!", e);
+            return;
+        }
+        if (newConfig == null || newConfig.getAcceptRate() <= 0 || newConfig.getAcceptBurst() <= 0
+                || newConfig.getLoginRate() <= 0 || newConfig.getLoginBurst() <= 0
+                || newConfig.getReserveRatio() < 0 || newConfig.getReserveRatio() >= 1) {
+            log.error("AdmissionController updateConfig() error, invalid config: {}", str);
+            return;
+        }
+        rebuildBuckets(newConfig);
+        config = newConfig;
+        log.info("AdmissionController updateConfig() success, newConfig={}", str);
+    }
+
+    private void rebuildBuckets(AdmissionConfig config) {
+        acceptBucket = new TokenBucket(config.getAcceptRate(), config.getAcceptBurst(), 0);
+        loginBucket = new TokenBucket(config.getLoginRate(), config.getLoginBurst(), config.getReserveRatio());
+    }
+
+    /**
+     * 建连准入
+     *
+     * @return 是否允许建连
+     */
+    public boolean tryAccept() {
+        if (!config.isEnable()) {
+            return true;
+        }
+        if (acceptBucket.tryAcquire(true) == 0) {
+            return true;
+        }
+        acceptRejected.increment();
+        onReject();
+        return false;
+    }
+
+    /**
+     * 登录准入
+     *
+     * @param reconnect 是否是断线重连的客户端，重连客户端可以使用预留容量
+     * @return 0 表示允许登录，否则返回建议客户端重试的间隔（毫秒）
+     */
+    public long tryLogin(boolean reconnect) {
+        if (!config.isEnable()) {
+            return 0;
+        }
+        long waitMillis = loginBucket.tryAcquire(reconnect);
+        if (waitMillis == 0) {
+            loginAdmitted.increment();
+            return 0;
+        }
+        loginRejected.increment();
+        recentLoginRejected.increment();
+        onReject();
+        return retryAfterMillis(waitMillis);
+    }
+
+    /**
+     * 每个周期内只有第一次拒绝会输出日志和 metric，内容是距离上次输出以来的拒绝次数
+     */
+    private void onReject() {
+        long now = SystemClock.currentTimeMillis();
+        lastRejectTime = now;
+        long last = lastRejectReportTime.get();
+        if (now - last < REJECT_REPORT_INTERVAL_MILLIS || !lastRejectReportTime.compareAndSet(last, now)) {
+            return;
+        }
+        int acceptDelta = (int) acceptRejected.sumThenReset();
+        int loginDelta = (int) loginRejected.sumThenReset();
+        log.warn("AdmissionController rejecting, acceptRejected={}, loginRejected={}", acceptDelta, loginDelta);
+        MonitorUtils.logMetricForCount("mercury.admission.acceptRejected", acceptDelta);
+        MonitorUtils.logMetricForCount("mercury.admission.loginRejected", loginDelta);
+    }
+
+    /**
+     * 按照当前积压量估算排空需要的时间，在 [基础等待时间, 基础等待时间 + 排空时间] 之间随机，把重试打散
+     */
+    private long retryAfterMillis(long waitMillis) {
+        AdmissionConfig current = config;
+        long base = Math.max(waitMillis, current.getMinRetryAfterMillis());
+        long drainMillis = recentLoginRejected.sum() * 1000L / current.getLoginRate();
+        long retryAfter = base + ThreadLocalRandom.current().nextLong(drainMillis + 1);
+        return Math.min(retryAfter, current.getMaxRetryAfterMillis());
+    }
+
+    /**
+     * 是否处于过载状态（最近触发过建连/登录限流），用于 cat 监控
+     */
+    public boolean isOverloaded() {
+        return SystemClock.currentTimeMillis() - lastRejectTime < OVERLOAD_HOLD_MILLIS;
+    }
+
+    public Map<String, Object> stat() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("overloaded", isOverloaded());
+        map.put("loginAdmitted", loginAdmitted.sum());
+        map.put("loginPermits", loginBucket.availablePermits());
+        return map;
+    }
+
+    @Getter
+    @Setter
+    public static class AdmissionConfig {
+
+        private boolean enable = false;
+
+        /**
+         * 每秒允许建立的连接数
+         */
+        private int acceptRate = 3000;
+
+        private int acceptBurst = 6000;
+
+        /**
+         * 每秒允许的登录数
+         */
+        private int loginRate = 1500;
+
+        private int loginBurst = 3000;
+
+        /**
+         * 登录突发容量中，预留给断线重连客户端的比例
+         */
+        private double reserveRatio = 0.3;
+
+        private long minRetryAfterMillis = 1000L;
+
+        private long maxRetryAfterMillis = 30_000L;
+    }
+}
@@ -4,6 +4,7 @@ import cn.bixin.sona.gateway.cat.MonitorUtils;
 import cn.bixin.sona.gateway.channel.NettyChannel;
 import cn.bixin.sona.gateway.channel.handler.ChannelHandler;
 import cn.bixin.sona.gateway.common.AccessMessage;
+import cn.bixin.sona.gateway.util.ExecuteFunction;
 import io.netty.util.Recycler;
 import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
@@ -34,6 +35,11 @@ public class ChannelEventTask implements Runnable {
 
     private Object message;
 
+    /**
+     * 对象是池化复用的，这里提前创建好，避免每条消息都创建一个 lambda
+     */
+    private final ExecuteFunction receiveFunction = () -> handler.receive(channel, message);
+
     private ChannelEventTask(Recycler.Handle<ChannelEventTask> handle) {
         this.handle = handle;
     }
@@ -78,7 +84,7 @@ public class ChannelEventTask implements Runnable {
             //绝大数请求都是 receive ，减少判断次数
             if (state == ChannelEventState.RECEIVE) {
                 AccessMessage msg = (AccessMessage) message;
-                MonitorUtils.newTransaction(MonitorUtils.CAT_IN_TRANS_TYPE, String.valueOf(msg.getCmd()), () -> handler.receive(channel, message));
+                MonitorUtils.newSampledTransaction(MonitorUtils.CAT_IN_TRANS_TYPE, MonitorUtils.cmdName(msg.getCmd()), receiveFunction);
             } else {
                 switch (state) {
                     case SENT:
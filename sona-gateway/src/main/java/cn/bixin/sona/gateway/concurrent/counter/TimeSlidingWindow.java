@@ -25,8 +25,11 @@ public class TimeSlidingWindow extends SlidingWindow<LongAdder> {
     }
 
     public boolean exceedThreshold() {
-        long total = values().stream().mapToLong(LongAdder::sum).sum();
-        return total >= threshold;
+        return sum() >= threshold;
+    }
+
+    public long sum() {
+        return values().stream().mapToLong(LongAdder::sum).sum();
     }
 
     @Override
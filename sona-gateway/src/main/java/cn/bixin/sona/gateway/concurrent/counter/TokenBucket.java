@@ -0,0 +1,75 @@
+package cn.bixin.sona.gateway.concurrent.counter;
+
+import org.springframework.util.Assert;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @author qinwei
+ * <p>
+ * thread safe，无锁令牌桶，使用 GCRA（Generic Cell Rate Algorithm）实现：只维护一个"理论到达时间"，CAS 更新，
+ * 效果等价于按 rate 匀速生成令牌、最多累积 burst 个令牌的令牌桶。
+ * <p>
+ * 和 guava RateLimiter 不同，这里拿不到令牌时不会阻塞，而是直接返回还需要等待的时间，方便告诉客户端多久以后再来。
+ * <p>
+ * 支持为高优先级请求预留一部分突发容量：低优先级请求只能使用 (1 - reserveRatio) 的突发容量，剩余部分只给高优先级请求使用
+ */
+public class TokenBucket {
+
+    private final long emissionIntervalNanos;
+
+    private final long burstToleranceNanos;
+
+    private final long lowPriorityToleranceNanos;
+
+    /**
+     * 理论到达时间（nanoTime）
+     */
+    private final AtomicLong tat;
+
+    /**
+     * @param permitsPerSecond 每秒生成的令牌数
+     * @param burst            最多累积的令牌数
+     * @param reserveRatio     为高优先级请求预留的突发容量比例，取值 [0, 1)
+     */
+    public TokenBucket(int permitsPerSecond, int burst, double reserveRatio) {
+        Assert.isTrue(permitsPerSecond > 0, "permitsPerSecond must be positive");
+        Assert.isTrue(burst > 0, "burst must be positive");
+        Assert.isTrue(reserveRatio >= 0 && reserveRatio < 1, "reserveRatio must be in [0, 1)");
+        this.emissionIntervalNanos = TimeUnit.SECONDS.toNanos(1) / permitsPerSecond;
+        this.burstToleranceNanos = emissionIntervalNanos * burst;
+        this.lowPriorityToleranceNanos = Math.max(emissionIntervalNanos, (long) (burstToleranceNanos * (1 - reserveRatio)));
+        this.tat = new AtomicLong(System.nanoTime());
+    }
+
+    /**
+     * 尝试获取一个令牌
+     *
+     * @param highPriority 是否可以使用预留容量
+     * @return 0 表示获取成功，否则返回还需要等待的时间（毫秒，至少为 1）
+     */
+    public long tryAcquire(boolean highPriority) {
+        long tolerance = highPriority ? burstToleranceNanos : lowPriorityToleranceNanos;
+        while (true) {
+            long now = System.nanoTime();
+            long current = tat.get();
+            long newTat = Math.max(current, now) + emissionIntervalNanos;
+            long waitNanos = newTat - now - tolerance;
+            if (waitNanos > 0) {
+                return Math.max(1, TimeUnit.NANOSECONDS.toMillis(waitNanos));
+            }
+            if (tat.compareAndSet(current, newTat)) {
+                return 0;
+            }
+        }
+    }
+
+    /**
+     * 当前可用令牌数（估算值）
+     */
+    public long availablePermits() {
+        long backlog = Math.max(0, tat.get() - System.nanoTime());
+        return Math.max(0, (burstToleranceNanos - backlog) / emissionIntervalNanos);
+    }
+}
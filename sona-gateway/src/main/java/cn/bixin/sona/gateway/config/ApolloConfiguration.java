@@ -1,6 +1,8 @@
 package cn.bixin.sona.gateway.config;
 
+import cn.bixin.sona.gateway.cat.MonitorUtils;
 import cn.bixin.sona.gateway.channel.support.AccessFilter;
+import cn.bixin.sona.gateway.channel.support.AdmissionController;
 import com.ctrip.framework.apollo.Config;
 import com.ctrip.framework.apollo.model.ConfigChangeEvent;
 import com.ctrip.framework.apollo.spring.annotation.ApolloConfig;
@@ -70,9 +72,28 @@ public class ApolloConfiguration {
 
     private static final String KEY_IP_RULES = "access.filter.rules";
 
+    /**
+     * 建连、登录限流配置，json 格式
+     *
+     * @see AdmissionController.AdmissionConfig
+     */
+    private static final String KEY_ADMISSION_CONFIG = "admission.control.config";
+
+    /**
+     * cat 埋点总开关
+     */
+    private static final String KEY_CAT_ENABLE = "cat.monitor.enable";
+
+    /**
+     * 消息收发 transaction 的采样率，取值 [0, 1]，调用量和失败量不受采样影响
+     */
+    private static final String KEY_CAT_SAMPLE_RATE = "cat.transaction.sample.rate";
+
     @PostConstruct
     public void init() {
         AccessFilter.INSTANCE.updateRules(config.getProperty(KEY_IP_RULES, "[]"));
+        AdmissionController.INSTANCE.updateConfig(config.getProperty(KEY_ADMISSION_CONFIG, "{}"));
+        updateMonitorConfig();
     }
 
     @ApolloConfigChangeListener
@@ -80,6 +101,16 @@ public class ApolloConfiguration {
         if (changeEvent.isChanged(KEY_IP_RULES)) {
             AccessFilter.INSTANCE.updateRules(config.getProperty(KEY_IP_RULES, "[]"));
         }
+        if (changeEvent.isChanged(KEY_ADMISSION_CONFIG)) {
+            AdmissionController.INSTANCE.updateConfig(config.getProperty(KEY_ADMISSION_CONFIG, "{}"));
+        }
+        if (changeEvent.isChanged(KEY_CAT_ENABLE) || changeEvent.isChanged(KEY_CAT_SAMPLE_RATE)) {
+            updateMonitorConfig();
+        }
+    }
+
+    private void updateMonitorConfig() {
+        MonitorUtils.updateConfig(config.getBooleanProperty(KEY_CAT_ENABLE, true), config.getDoubleProperty(KEY_CAT_SAMPLE_RATE, 1D));
     }
 
 }
@@ -2,6 +2,7 @@ package cn.bixin.sona.gateway.handler;
 
 import cn.bixin.sona.gateway.cat.MonitorUtils;
 import cn.bixin.sona.gateway.channel.NettyChannel;
+import cn.bixin.sona.gateway.channel.support.AdmissionController;
 import cn.bixin.sona.gateway.channel.support.ChannelAttrs;
 import cn.bixin.sona.gateway.common.AccessMessage;
 import cn.bixin.sona.gateway.exception.RemoteException;
@@ -45,6 +46,16 @@ public class LoginAuthHandler extends AbstractHandler {
             return null;
         }
 
+        // 登录限流，重复握手不占用令牌
+        if (!channel.isAuth()) {
+            long retryAfterMillis = AdmissionController.INSTANCE.tryLogin(handShake.getR() == 1);
+            if (retryAfterMillis > 0) {
+                channel.send(AccessMessageUtils.createResponse(message.getId(), message.getCmd(), JSON.toJSONBytes(AccessResponse.serverBusy(retryAfterMillis))), false, true);
+                MonitorUtils.logEvent(MonitorUtils.MERCURY_ADMISSION_REJECT, handShake.getR() == 1 ? "Relogin" : "Login");
+                return null;
+            }
+        }
+
         // 设置通道属性
         ChannelAttrs attrs = channel.getAttrs();
         attrs.setClientProtoVer(message.getVersion());
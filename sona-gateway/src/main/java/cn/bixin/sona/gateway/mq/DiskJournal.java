@@ -0,0 +1,363 @@
+package cn.bixin.sona.gateway.mq;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * @author qinwei
+ * <p>
+ * broker 不可用时的本地磁盘日志，按顺序追加，恢复后按顺序重放。
+ * <p>
+ * 只要日志里还有未重放的数据（spilling 状态），新的消息也必须写进日志，不能直接发 broker，否则同一个 key 的消息会乱序。
+ * 日志按段滚动：写入总是追加到 active 文件，重放前先把 active 滚动成一个只读段，重放成功一段删除一段。
+ * 比日志里已有数据更早的消息（发送中途失败的批次）写成一个序号更小的段，重放时排在最前面。
+ * <p>
+ * 日志总大小超过 maxBytes 后拒绝写入新数据，避免 broker 长时间不可用时写满网关的磁盘，由调用方记录丢弃。
+ */
+@Slf4j
+public class DiskJournal {
+
+    private static final String ACTIVE_FILE = "active.journal";
+
+    private static final String SEGMENT_PREFIX = "segment-";
+
+    private static final String SEGMENT_SUFFIX = ".journal";
+
+    private static final char SEPARATOR = '\t';
+
+    private final Path dir;
+
+    private final long maxBytes;
+
+    /**
+     * 日志文件的总大小，按字符数粗略估算，content 基本都是 ascii 的 json
+     */
+    private final AtomicLong bytes = new AtomicLong();
+
+    private BufferedWriter writer;
+
+    private volatile boolean spilling;
+
+    private volatile long pendingCount;
+
+    private volatile long oldestBornTime;
+
+    public DiskJournal(String dir, long maxBytes) {
+        this.dir = Paths.get(dir);
+        this.maxBytes = maxBytes;
+        try {
+            Files.createDirectories(this.dir);
+        } catch (IOException e) {
+            throw new IllegalStateException("create journal dir error : " + dir, e);
+        }
+        //上次进程退出时没有重放完的数据，启动后继续重放
+        spilling = Files.exists(activeFile()) || !listSegments().isEmpty();
+        if (spilling) {
+            pendingCount = -1;
+            bytes.set(fileSize(activeFile()) + listSegments().stream().mapToLong(DiskJournal::fileSize).sum());
+            log.warn("DiskJournal found unfinished journal, dir={}, bytes={}", dir, bytes.get());
+        }
+    }
+
+    public boolean isSpilling() {
+        return spilling;
+    }
+
+    /**
+     * 未重放的消息数，-1 表示未知（进程重启前遗留的数据）
+     */
+    public long pendingCount() {
+        return pendingCount;
+    }
+
+    public long oldestBornTime() {
+        return oldestBornTime;
+    }
+
+    public long bytes() {
+        return bytes.get();
+    }
+
+    /**
+     * @return false：日志已经超过 maxBytes，没有写入
+     */
+    public synchronized boolean append(Collection<OrderedBatchSender.Event> events) throws IOException {
+        if (events.isEmpty()) {
+            return true;
+        }
+        if (isFull()) {
+            return false;
+        }
+        if (writer == null) {
+            writer = new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(activeFile(), StandardOpenOption.CREATE, StandardOpenOption.APPEND), StandardCharsets.UTF_8));
+        }
+        for (OrderedBatchSender.Event event : events) {
+            bytes.addAndGet(write(writer, event));
+        }
+        writer.flush();
+        if (!spilling) {
+            spilling = true;
+            pendingCount = 0;
+            oldestBornTime = events.iterator().next().getBornTime();
+        }
+        if (pendingCount >= 0) {
+            pendingCount += events.size();
+        }
+        return true;
+    }
+
+    private boolean isFull() {
+        return bytes.get() >= maxBytes;
+    }
+
+    /**
+     * 写到日志最前面：只用于发送中途失败后没发出去的部分，调用方保证这些消息比日志里同一个 key 的消息都早，并且没有重放在进行。
+     * 已经在 spilling 时产生的新批次必须用 {@link #append}，否则多个批次会按写入的相反顺序重放
+     *
+     * @return false：日志已经超过 maxBytes，没有写入
+     */
+    public synchronized boolean prepend(List<OrderedBatchSender.Event> events) throws IOException {
+        if (events.isEmpty()) {
+            return true;
+        }
+        if (isFull()) {
+            return false;
+        }
+        writeFirst(events);
+        return true;
+    }
+
+    /**
+     * 重放中途失败时，没发出去的部分本来就在日志里，不受 maxBytes 限制
+     */
+    private synchronized void writeFirst(List<OrderedBatchSender.Event> events) throws IOException {
+        List<Path> segments = listSegments();
+        if (segments.isEmpty()) {
+            if (writer == null && !Files.exists(activeFile())) {
+                append(events);
+                return;
+            }
+            rollActive();
+            segments = listSegments();
+        }
+        long seq = segmentSeq(segments.get(0)) - 1;
+        Path tmp = dir.resolve(SEGMENT_PREFIX + seq + ".tmp");
+        try (BufferedWriter out = new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(tmp), StandardCharsets.UTF_8))) {
+            for (OrderedBatchSender.Event event : events) {
+                bytes.addAndGet(write(out, event));
+            }
+        }
+        //写完整之后再改名，重放不会读到写了一半的段
+        Files.move(tmp, dir.resolve(SEGMENT_PREFIX + seq + SEGMENT_SUFFIX), StandardCopyOption.ATOMIC_MOVE);
+        long bornTime = events.get(0).getBornTime();
+        if (!spilling) {
+            spilling = true;
+            pendingCount = 0;
+        }
+        oldestBornTime = oldestBornTime > 0 ? Math.min(oldestBornTime, bornTime) : bornTime;
+        if (pendingCount >= 0) {
+            pendingCount += events.size();
+        }
+    }
+
+    /**
+     * @return 写入的字符数
+     */
+    private static int write(BufferedWriter out, OrderedBatchSender.Event event) throws IOException {
+        String bornTime = String.valueOf(event.getBornTime());
+        out.write(event.getTopic());
+        out.write(SEPARATOR);
+        out.write(event.getKey());
+        out.write(SEPARATOR);
+        out.write(bornTime);
+        out.write(SEPARATOR);
+        out.write(event.getContent());
+        out.newLine();
+        return event.getTopic().length() + event.getKey().length() + bornTime.length() + event.getContent().length() + 4;
+    }
+
+    /**
+     * 按顺序重放所有日志
+     *
+     * @param sender 发送一批消息，返回没有发出去的消息；不为空时停止重放，保留这些消息和剩余数据等待下次重放
+     * @return 是否全部重放完成
+     */
+    public boolean replay(Function<List<OrderedBatchSender.Event>, List<OrderedBatchSender.Event>> sender, int batchSize) {
+        while (true) {
+            rollActive();
+            List<Path> segments = listSegments();
+            for (Path segment : segments) {
+                if (!replaySegment(segment, sender, batchSize)) {
+                    return false;
+                }
+            }
+            synchronized (this) {
+                //重放期间没有新数据写入，退出 spilling 状态
+                if (writer == null && listSegments().isEmpty()) {
+                    spilling = false;
+                    pendingCount = 0;
+                    oldestBornTime = 0;
+                    bytes.set(0);
+                    log.info("DiskJournal replay finished");
+                    return true;
+                }
+            }
+        }
+    }
+
+    private synchronized void rollActive() {
+        try {
+            if (writer != null) {
+                writer.close();
+                writer = null;
+            }
+            Path active = activeFile();
+            if (Files.exists(active)) {
+                //段序号要跨进程重启保持递增
+                List<Path> segments = listSegments();
+                long lastSeq = segments.isEmpty() ? 0 : segmentSeq(segments.get(segments.size() - 1));
+                long seq = Math.max(System.currentTimeMillis(), lastSeq + 1);
+                Files.move(active, dir.resolve(SEGMENT_PREFIX + seq + SEGMENT_SUFFIX));
+            }
+        } catch (IOException e) {
+            log.error("DiskJournal rollActive error", e);
+        }
+    }
+
+    private boolean replaySegment(Path segment, Function<List<OrderedBatchSender.Event>, List<OrderedBatchSender.Event>> sender, int batchSize) {
+        File progress = dir.resolve(segment.getFileName() + ".offset").toFile();
+        long skip = readOffset(progress);
+        long lineNo = 0;
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(Files.newInputStream(segment), StandardCharsets.UTF_8))) {
+            List<OrderedBatchSender.Event> batch = new ArrayList<>(batchSize);
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lineNo++;
+                if (lineNo <= skip) {
+                    continue;
+                }
+                OrderedBatchSender.Event event = parse(line);
+                if (event != null) {
+                    batch.add(event);
+                }
+                if (batch.size() >= batchSize) {
+                    if (!sendBatch(sender, batch, progress, lineNo)) {
+                        return false;
+                    }
+                }
+            }
+            if (!batch.isEmpty() && !sendBatch(sender, batch, progress, lineNo)) {
+                return false;
+            }
+        } catch (IOException e) {
+            log.error("DiskJournal replay error, segment={}", segment, e);
+            return false;
+        }
+        try {
+            long size = fileSize(segment);
+            if (Files.deleteIfExists(segment)) {
+                bytes.addAndGet(-size);
+            }
+            Files.deleteIfExists(progress.toPath());
+        } catch (IOException e) {
+            log.error("DiskJournal delete segment error, segment={}", segment, e);
+            return false;
+        }
+        return true;
+    }
+
+    private boolean sendBatch(Function<List<OrderedBatchSender.Event>, List<OrderedBatchSender.Event>> sender, List<OrderedBatchSender.Event> batch, File progress, long lineNo) throws IOException {
+        List<OrderedBatchSender.Event> unsent = sender.apply(batch);
+        if (unsent.size() >= batch.size()) {
+            return false;
+        }
+        if (!unsent.isEmpty()) {
+            //部分发送成功：没发出去的部分单独写成一个更早的段，整批从当前段跳过，已经成功的部分不会重复发送
+            writeFirst(unsent);
+        }
+        //记录重放进度，进程中途退出时不会重复发送整段数据
+        Files.write(progress.toPath(), String.valueOf(lineNo).getBytes(StandardCharsets.UTF_8));
+        if (pendingCount > 0) {
+            pendingCount = Math.max(0, pendingCount - batch.size());
+        }
+        oldestBornTime = unsent.isEmpty() ? batch.get(batch.size() - 1).getBornTime() : unsent.get(0).getBornTime();
+        batch.clear();
+        return unsent.isEmpty();
+    }
+
+    private static long readOffset(File progress) {
+        if (!progress.exists()) {
+            return 0;
+        }
+        try {
+            return Long.parseLong(new String(Files.readAllBytes(progress.toPath()), StandardCharsets.UTF_8).trim());
+        } catch (Exception e) {
+            log.error("DiskJournal read offset error, file={}", progress, e);
+            return 0;
+        }
+    }
+
+    private static OrderedBatchSender.Event parse(String line) {
+        int i1 = line.indexOf(SEPARATOR);
+        int i2 = i1 < 0 ? -1 : line.indexOf(SEPARATOR, i1 + 1);
+        int i3 = i2 < 0 ? -1 : line.indexOf(SEPARATOR, i2 + 1);
+        if (i3 < 0) {
+            log.error("DiskJournal skip broken line : {}", line);
+            return null;
+        }
+        try {
+            return new OrderedBatchSender.Event(line.substring(0, i1), line.substring(i1 + 1, i2), line.substring(i3 + 1), Long.parseLong(line.substring(i2 + 1, i3)));
+        } catch (NumberFormatException e) {
+            log.error("DiskJournal skip broken line : {}", line);
+            return null;
+        }
+    }
+
+    private static long fileSize(Path file) {
+        try {
+            return Files.exists(file) ? Files.size(file) : 0;
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    private Path activeFile() {
+        return dir.resolve(ACTIVE_FILE);
+    }
+
+    private List<Path> listSegments() {
+        try (Stream<Path> stream = Files.list(dir)) {
+            return stream.filter(p -> {
+                String name = p.getFileName().toString();
+                return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+            }).sorted((a, b) -> Long.compare(segmentSeq(a), segmentSeq(b))).collect(Collectors.toList());
+        } catch (IOException e) {
+            log.error("DiskJournal list segments error", e);
+            return new ArrayList<>();
+        }
+    }
+
+    private static long segmentSeq(Path segment) {
+        String name = segment.getFileName().toString();
+        return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+    }
+}
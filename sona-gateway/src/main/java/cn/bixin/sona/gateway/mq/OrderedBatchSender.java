@@ -0,0 +1,477 @@
+package cn.bixin.sona.gateway.mq;
+
+import cn.bixin.sona.gateway.cat.MonitorUtils;
+import cn.bixin.sona.gateway.concurrent.counter.SystemClock;
+import com.dianping.cat.Cat;
+import com.dianping.cat.message.Transaction;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.dubbo.common.utils.NamedThreadFactory;
+import org.apache.rocketmq.client.producer.DefaultMQProducer;
+import org.apache.rocketmq.client.producer.SendResult;
+import org.apache.rocketmq.client.producer.SendStatus;
+import org.apache.rocketmq.common.message.Message;
+import org.apache.rocketmq.common.message.MessageQueue;
+import org.apache.rocketmq.spring.core.RocketMQTemplate;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * @author qinwei
+ * <p>
+ * 有界、按 key 保序的异步批量发送器，用于连接、房间会话这类事件的上报。
+ * <p>
+ * 1. 调用方只把事件放进内存队列就返回，不再在 OrderedChannelExecutor 的线程上同步等待 broker，broker 变慢不会拖住网关的事件处理
+ * <p>
+ * 2. 同一个 key 的事件固定进入同一条 lane，每条 lane 由一个发送线程串行处理，发送时按 key 哈希选择 MessageQueue，
+ * 同一个 MessageQueue 的事件合并成一个 RocketMQ batch 发送，保证同一个 key 的顺序，同时把数千次同步往返合并成少量批量请求
+ * <p>
+ * 3. 队列满时不阻塞调用方，先把这条 lane 里还没发出的事件写入本地磁盘日志，再写入新事件；broker 不可用时同样写入磁盘日志，恢复后按顺序重放。
+ * lane 线程在 lane 锁内取批次，取的时候已经在 spilling 就直接追加到日志末尾；没有 spilling 时取出的批次比之后写进日志的同一条 lane 的事件都早，
+ * 只有这样的批次发送中途失败时，才把没发出去的部分插到日志最前面；重放和 lane 发送互斥，保证同一个 key 的顺序
+ * <p>
+ * 4. lag：当前积压中最早的事件已经等待了多久，包括内存队列和磁盘日志
+ */
+@Slf4j
+@Service
+public class OrderedBatchSender {
+
+    private static final String CAT_TYPE = "RocketMQBatch";
+
+    private static final String CAT_METRIC_LAG = "Mercury.MqEventLag";
+
+    private static final int MAX_BATCH_BYTES = 1024 * 1024;
+
+    private static final int MAX_SEND_RETRY = 2;
+
+    @Value("${mq.batch.lanes:8}")
+    private int laneCount;
+
+    @Value("${mq.batch.lane.capacity:8192}")
+    private int laneCapacity;
+
+    @Value("${mq.batch.size:64}")
+    private int batchSize;
+
+    @Value("${mq.batch.journal.dir:./journal}")
+    private String journalDir;
+
+    /**
+     * 磁盘日志的大小上限，超过后新事件直接丢弃
+     */
+    @Value("${mq.batch.journal.max.bytes:1073741824}")
+    private long journalMaxBytes;
+
+    @Resource
+    private RocketMQTemplate rocketMQTemplate;
+
+    private Lane[] lanes;
+
+    private DiskJournal journal;
+
+    private ScheduledExecutorService replayExecutor;
+
+    private volatile boolean running;
+
+    /**
+     * lane 线程从取出批次到发送或写日志结束持有读锁，重放持有写锁：重放期间 lane 手里不会有比日志更早的事件在途
+     */
+    private final ReadWriteLock replayLock = new ReentrantReadWriteLock();
+
+    private final LongAdder spilled = new LongAdder();
+
+    private final LongAdder failed = new LongAdder();
+
+    @PostConstruct
+    public void init() {
+        journal = new DiskJournal(journalDir, journalMaxBytes);
+        running = true;
+        ThreadFactory threadFactory = new NamedThreadFactory("mq-batch-sender", true);
+        lanes = new Lane[laneCount];
+        for (int i = 0; i < laneCount; i++) {
+            lanes[i] = new Lane(laneCapacity);
+            threadFactory.newThread(lanes[i]).start();
+        }
+        replayExecutor = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("mq-journal-replay", true));
+        replayExecutor.scheduleWithFixedDelay(this::replay, 3, 3, TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    public void destroy() {
+        running = false;
+        replayExecutor.shutdown();
+        //停机时把内存里还没发出去的事件写入磁盘，下次启动后重放
+        for (Lane lane : lanes) {
+            synchronized (lane) {
+                List<Event> remaining = new ArrayList<>();
+                lane.queue.drainTo(remaining);
+                spill(remaining);
+            }
+        }
+    }
+
+    /**
+     * 异步发送，立即返回
+     *
+     * @param topic   topic
+     * @param key     保序的 key，同一个 key 的事件按调用顺序到达同一个 MessageQueue
+     * @param content 消息内容
+     * @return true：已放入内存队列；false：队列已满或 broker 不可用，已写入磁盘日志等待重放
+     */
+    public boolean send(String topic, String key, String content) {
+        Event event = new Event(topic, key == null ? "" : key, content, SystemClock.currentTimeMillis());
+        Lane lane = lanes[laneIndex(event.key)];
+        synchronized (lane) {
+            //磁盘日志里还有未重放的数据时，新事件也必须写日志，否则同一个 key 会乱序
+            boolean spilling = journal.isSpilling();
+            if (!spilling && lane.queue.offer(event)) {
+                lane.notify();
+                return true;
+            }
+            if (!spilling) {
+                //背压：不阻塞调用方线程，直接落盘
+                MonitorUtils.logEvent(MonitorUtils.MQ_SEND_PROBLEM, "LaneFull");
+            }
+            //lane 里还没发出的事件更早，先写日志，之后同一个 key 的事件都在日志里按顺序排在后面
+            List<Event> events = new ArrayList<>(lane.queue.size() + 1);
+            lane.queue.drainTo(events);
+            events.add(event);
+            spill(events);
+            return false;
+        }
+    }
+
+    private int laneIndex(String key) {
+        return (key.hashCode() & Integer.MAX_VALUE) % lanes.length;
+    }
+
+    /**
+     * 调用时持有 replayLock 的读锁，批次是在没有 spilling 时取出的，没发出去的事件插到日志最前面
+     */
+    private void sendLaneBatch(List<Event> batch) {
+        Map<MessageQueue, List<Event>> groups = groupByQueue(batch);
+        if (groups == null) {
+            spillFirst(batch);
+            return;
+        }
+        spillFirst(sendGroups(groups, true));
+    }
+
+    /**
+     * 依次发送每个 MessageQueue 的事件，某个 MessageQueue 失败后停止发送
+     *
+     * @return 没有发出去的事件：失败的 MessageQueue 中未成功的部分，以及之后所有 MessageQueue 的事件
+     */
+    private List<Event> sendGroups(Map<MessageQueue, List<Event>> groups, boolean retry) {
+        List<Event> unsent = Collections.emptyList();
+        for (Map.Entry<MessageQueue, List<Event>> entry : groups.entrySet()) {
+            List<Event> events = entry.getValue();
+            if (!unsent.isEmpty()) {
+                unsent.addAll(events);
+                continue;
+            }
+            int sent = retry ? sendWithRetry(entry.getKey(), events) : sendToQueue(entry.getKey(), events, 0);
+            if (sent < events.size()) {
+                unsent = new ArrayList<>(events.subList(sent, events.size()));
+            }
+        }
+        return unsent;
+    }
+
+    /**
+     * 按 key 哈希选择 MessageQueue，同一个 MessageQueue 的事件保持原有顺序
+     */
+    private Map<MessageQueue, List<Event>> groupByQueue(List<Event> batch) {
+        Map<MessageQueue, List<Event>> groups = new LinkedHashMap<>();
+        Map<String, List<MessageQueue>> topicQueues = new LinkedHashMap<>(2);
+        try {
+            for (Event event : batch) {
+                List<MessageQueue> queues = topicQueues.get(event.topic);
+                if (queues == null) {
+                    queues = producer().fetchPublishMessageQueues(event.topic);
+                    topicQueues.put(event.topic, queues);
+                }
+                MessageQueue mq = queues.get((event.key.hashCode() & Integer.MAX_VALUE) % queues.size());
+                groups.computeIfAbsent(mq, k -> new ArrayList<>()).add(event);
+            }
+        } catch (Exception e) {
+            log.error("fetch publish message queues failure", e);
+            return null;
+        }
+        return groups;
+    }
+
+    /**
+     * 失败后从没发出去的位置继续重试，已经成功的子批次不会重复发送
+     *
+     * @return 已发送成功的事件数
+     */
+    private int sendWithRetry(MessageQueue mq, List<Event> events) {
+        int from = 0;
+        for (int i = 0; i <= MAX_SEND_RETRY; i++) {
+            from = sendToQueue(mq, events, from);
+            if (from >= events.size() || !running) {
+                return from;
+            }
+            try {
+                Thread.sleep(100L << i);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return from;
+            }
+        }
+        return from;
+    }
+
+    /**
+     * 从 from 开始按不超过 MAX_BATCH_BYTES 拆成多个子批次依次发送，某个子批次失败后停止
+     *
+     * @return 已发送到的位置，等于 events.size() 表示全部成功
+     */
+    private int sendToQueue(MessageQueue mq, List<Event> events, int from) {
+        while (from < events.size()) {
+            //单个 batch 不能超过 broker 的消息大小限制
+            int to = from;
+            int bytes = 0;
+            List<Message> messages = new ArrayList<>(Math.min(events.size() - from, batchSize));
+            while (to < events.size() && (to == from || bytes + events.get(to).size() <= MAX_BATCH_BYTES)) {
+                Event event = events.get(to);
+                bytes += event.size();
+                messages.add(new Message(event.topic, null, event.key, event.content.getBytes(StandardCharsets.UTF_8)));
+                to++;
+            }
+            Transaction t = Cat.newTransaction(CAT_TYPE, mq.getTopic());
+            try {
+                SendResult result = producer().send(messages, mq);
+                if (result.getSendStatus() != SendStatus.SEND_OK) {
+                    log.warn("send rocketmq batch status : {}, mq : {}", result.getSendStatus(), mq);
+                }
+                t.setSuccessStatus();
+            } catch (Exception e) {
+                log.error("send rocketmq batch failure, mq : {}, size : {}", mq, messages.size(), e);
+                t.setStatus(e);
+                failed.increment();
+                return from;
+            } finally {
+                t.complete();
+            }
+            MonitorUtils.logMetricForDuration(CAT_METRIC_LAG, SystemClock.currentTimeMillis() - events.get(from).bornTime);
+            from = to;
+        }
+        return from;
+    }
+
+    /**
+     * 重放时 broker 已经恢复，按日志顺序发送
+     *
+     * @return 没有发出去的事件，由日志保留等待下次重放
+     */
+    private List<Event> sendReplayBatch(List<Event> batch) {
+        Map<MessageQueue, List<Event>> groups = groupByQueue(batch);
+        if (groups == null) {
+            return batch;
+        }
+        return sendGroups(groups, false);
+    }
+
+    private void replay() {
+        if (!journal.isSpilling()) {
+            return;
+        }
+        replayLock.writeLock().lock();
+        try {
+            journal.replay(this::sendReplayBatch, batchSize);
+        } catch (Throwable e) {
+            log.error("replay journal failure", e);
+        } finally {
+            replayLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * 没有 spilling 时取出的批次发送中途失败，没发出去的部分比日志里同一条 lane 的事件都早，写到日志最前面。
+     * 取批次时已经在 spilling 的不能走这里，否则连续两个批次会在日志里倒序
+     */
+    private void spillFirst(List<Event> events) {
+        if (events.isEmpty()) {
+            return;
+        }
+        try {
+            if (journal.prepend(events)) {
+                spilled.add(events.size());
+            } else {
+                drop(events, "JournalFull", null);
+            }
+        } catch (Exception e) {
+            drop(events, "Drop", e);
+        }
+    }
+
+    private void spill(List<Event> events) {
+        if (events.isEmpty()) {
+            return;
+        }
+        try {
+            if (journal.append(events)) {
+                spilled.add(events.size());
+            } else {
+                drop(events, "JournalFull", null);
+            }
+        } catch (Exception e) {
+            //磁盘也写不进去，只能丢弃
+            drop(events, "Drop", e);
+        }
+    }
+
+    private void drop(List<Event> events, String reason, Exception e) {
+        log.error("write journal failure, reason : {}, drop {} events", reason, events.size(), e);
+        failed.add(events.size());
+        MonitorUtils.logEvent(MonitorUtils.MQ_SEND_PROBLEM, reason);
+    }
+
+    private DefaultMQProducer producer() {
+        return rocketMQTemplate.getProducer();
+    }
+
+    /**
+     * 积压中最早的事件已经等待的时长（毫秒）
+     */
+    public long lagMillis() {
+        long now = SystemClock.currentTimeMillis();
+        long oldest = now;
+        if (journal.isSpilling() && journal.oldestBornTime() > 0) {
+            oldest = Math.min(oldest, journal.oldestBornTime());
+        }
+        for (Lane lane : lanes) {
+            Event head = lane.queue.peek();
+            if (head != null) {
+                oldest = Math.min(oldest, head.bornTime);
+            }
+            if (lane.inflightBornTime > 0) {
+                oldest = Math.min(oldest, lane.inflightBornTime);
+            }
+        }
+        return now - oldest;
+    }
+
+    public Map<String, Object> stat() {
+        int pending = 0;
+        for (Lane lane : lanes) {
+            pending += lane.queue.size();
+        }
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("lag", lagMillis());
+        map.put("pending", pending);
+        map.put("spilling", journal.isSpilling());
+        map.put("journalPending", journal.pendingCount());
+        map.put("journalBytes", journal.bytes());
+        map.put("spilled", spilled.sum());
+        map.put("failed", failed.sum());
+        return map;
+    }
+
+    private class Lane implements Runnable {
+
+        private final BlockingQueue<Event> queue;
+
+        /**
+         * 正在发送的批次中最早事件的产生时间，0 表示空闲
+         */
+        private volatile long inflightBornTime;
+
+        private Lane(int capacity) {
+            this.queue = new ArrayBlockingQueue<>(capacity);
+        }
+
+        @Override
+        public void run() {
+            List<Event> batch = new ArrayList<>(batchSize);
+            while (running) {
+                replayLock.readLock().lock();
+                try {
+                    if (!take(batch)) {
+                        continue;
+                    }
+                    inflightBornTime = batch.get(0).bornTime;
+                    sendLaneBatch(batch);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                } catch (Throwable e) {
+                    log.error("mq batch sender error", e);
+                    spillFirst(batch);
+                } finally {
+                    inflightBornTime = 0;
+                    batch.clear();
+                    replayLock.readLock().unlock();
+                }
+            }
+        }
+
+        /**
+         * 在 lane 锁内取批次，和 send() 写日志互斥：spilling 期间取出的批次直接追加到日志末尾，
+         * 此前 send() 写进日志的同一条 lane 的事件都比它早
+         *
+         * @return 是否取到需要发送的批次
+         */
+        private synchronized boolean take(List<Event> batch) throws InterruptedException {
+            if (queue.isEmpty()) {
+                wait(1000);
+            }
+            if (queue.drainTo(batch, batchSize) == 0) {
+                return false;
+            }
+            if (journal.isSpilling()) {
+                spill(batch);
+                return false;
+            }
+            return true;
+        }
+    }
+
+    @Getter
+    public static class Event {
+
+        private final String topic;
+
+        private final String key;
+
+        private final String content;
+
+        /**
+         * 事件产生时间，用于计算端到端延迟
+         */
+        private final long bornTime;
+
+        public Event(String topic, String key, String content, long bornTime) {
+            this.topic = topic;
+            this.key = key;
+            this.content = content;
+            this.bornTime = bornTime;
+        }
+
+        private int size() {
+            //粗略估算，content 基本都是 ascii 的 json
+            return topic.length() + key.length() + content.length() + 64;
+        }
+    }
+}
@@ -30,6 +30,8 @@ public class AccessResponse {
 
     public static final AccessResponse ACCESS_FAIL = new AccessResponse(404, "Access fail,error param");
 
+    public static final int CODE_SERVER_BUSY = 429;
+
     /**
      * 状态码 0：成功 其他：失败
      */
@@ -40,6 +42,11 @@ public class AccessResponse {
      */
     private String d;
 
+    /**
+     * 建议客户端多久以后重试（毫秒），只在服务端繁忙拒绝时返回
+     */
+    private Long r;
+
     public AccessResponse() {
 
     }
@@ -49,4 +56,10 @@ public class AccessResponse {
         this.d = d;
     }
 
+    public static AccessResponse serverBusy(long retryAfterMillis) {
+        AccessResponse response = new AccessResponse(CODE_SERVER_BUSY, "Server busy");
+        response.setR(retryAfterMillis);
+        return response;
+    }
+
 }
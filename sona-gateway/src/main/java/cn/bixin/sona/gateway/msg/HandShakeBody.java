@@ -49,6 +49,11 @@ public class HandShakeBody {
      */
     private int b;
 
+    /**
+     * 是否断线重连 0: 首次连接, 1: 重连（例如收到 server 下发的 close 消息或网络中断后重连），重连的客户端在限流时优先放行
+     */
+    private int r;
+
     public HandShakeBody() {
     }
 }
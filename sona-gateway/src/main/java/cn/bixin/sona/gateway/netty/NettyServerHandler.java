@@ -87,6 +87,10 @@ public class NettyServerHandler extends ChannelDuplexHandler {
     @Override
     public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
         super.write(ctx, msg, promise);
+        if (ChannelAttrs.getAttrsIfExists(ctx.channel()) == null) {
+            // websocket 握手响应在 HandshakeComplete 之前写出，此时通道还未初始化
+            return;
+        }
         NettyChannel channel = NettyChannel.getOrAddChannel(ctx.channel());
         handler.send(channel, msg);
     }
@@ -4,12 +4,12 @@ import cn.bixin.sona.gateway.SonaGatewayApplication;
 import cn.bixin.sona.gateway.channel.NettyChannel;
 import cn.bixin.sona.gateway.channel.support.ChannelAttrs;
 import cn.bixin.sona.gateway.common.ChannelTypeEnum;
+import cn.bixin.sona.gateway.mq.OrderedBatchSender;
 import cn.bixin.sona.gateway.mq.RocketSender;
 import cn.bixin.sona.gateway.util.Constants;
 import cn.bixin.sona.gateway.util.NetUtil;
 import com.alibaba.fastjson.JSONObject;
 import org.apache.commons.lang3.ObjectUtils;
-import org.apache.rocketmq.client.producer.SendResult;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 import org.springframework.util.StringUtils;
@@ -31,14 +31,17 @@ public class SocketNotifyService {
     @Resource
     private RocketSender rocketSender;
 
+    @Resource
+    private OrderedBatchSender orderedBatchSender;
+
     /**
      * 处理连接事件，只处理房间连接
-     * 将login事件发送到MQ进行后续处理
+     * 将login事件发送到MQ进行后续处理，异步批量发送，不阻塞当前线程
      *
      * @param channel 连接
-     * @return 发送结果
+     * @return 是否已放入发送队列，false 表示已写入本地日志等待重放，null 表示无需上报
      */
-    public SendResult processConnect(NettyChannel channel) {
+    public Boolean processConnect(NettyChannel channel) {
         ChannelAttrs attrs = channel.getAttrs();
         if (ChannelTypeEnum.CHATROOM.getType() != attrs.getChannelType()) {
             return null;
@@ -56,10 +59,10 @@ public class SocketNotifyService {
         jsonParam.put(Constants.MQ_REPORT_KEY_UID, attrs.getUid());
         // 设置会话状态为在线
         jsonParam.put(Constants.MQ_REPORT_KEY_SESSION, Constants.SESSION_ONLINE);
-        return rocketSender.syncSend(TOPIC_SOCKET_ROOM_SESSION, null, attrs.getChannelId(), jsonParam.toJSONString());
+        return orderedBatchSender.send(TOPIC_SOCKET_ROOM_SESSION, orderKey(attrs, attrs.getUid()), jsonParam.toJSONString());
     }
 
-    public SendResult processDisConnect(NettyChannel channel) {
+    public Boolean processDisConnect(NettyChannel channel) {
         ChannelAttrs attrs = channel.getAttrs();
         if (ChannelTypeEnum.CHATROOM.getType() != attrs.getChannelType()) {
             return null;
@@ -71,20 +74,27 @@ public class SocketNotifyService {
         jsonParam.put(Constants.MQ_REPORT_KEY_TIMESTAMP_SHORT, System.currentTimeMillis());
         jsonParam.put(Constants.MQ_REPORT_KEY_SESSION, Constants.SESSION_OFFLINE);
         jsonParam.put(Constants.MQ_REPORT_KEY_UID, uid);
-        String hashKey = StringUtils.hasText(uid) ? uid : attrs.getChannelId();
-        return rocketSender.syncSend(TOPIC_SOCKET_ROOM_SESSION, null, hashKey, jsonParam.toJSONString());
+        return orderedBatchSender.send(TOPIC_SOCKET_ROOM_SESSION, orderKey(attrs, uid), jsonParam.toJSONString());
     }
 
-    public SendResult notifyChatRoomSession(NettyChannel channel, int cmd, String room, String uid) {
+    public boolean notifyChatRoomSession(NettyChannel channel, int cmd, String room, String uid) {
         ChannelAttrs attrs = channel.getAttrs();
         JSONObject jsonParam = new JSONObject();
         jsonParam.put(Constants.MQ_REPORT_KEY_TYPE, Constants.MQ_REPORT_VAL_TYPE_ROOM);
         jsonParam.put(Constants.MQ_REPORT_KEY_CHANNEL_ID, attrs.getChannelId());
         jsonParam.put(Constants.MQ_REPORT_KEY_TIMESTAMP_SHORT, System.currentTimeMillis());
         jsonParam.put(Constants.MQ_REPORT_KEY_ROOM, room);
-        jsonParam.put(Constants.MQ_REPORT_KEY_UID, ObjectUtils.defaultIfNull(uid, attrs.getUid()));
+        String reportUid = ObjectUtils.defaultIfNull(uid, attrs.getUid());
+        jsonParam.put(Constants.MQ_REPORT_KEY_UID, reportUid);
         jsonParam.put(Constants.MQ_REPORT_KEY_CMD, cmd);
-        return rocketSender.syncSend(TOPIC_SOCKET_ROOM_SESSION, null, uid, jsonParam.toJSONString());
+        return orderedBatchSender.send(TOPIC_SOCKET_ROOM_SESSION, orderKey(attrs, reportUid), jsonParam.toJSONString());
+    }
+
+    /**
+     * 同一连接的连接、断开、进出房间事件使用同一个 key，保证落在同一个发送队列，按产生的顺序到达 MQ
+     */
+    private static String orderKey(ChannelAttrs attrs, String uid) {
+        return StringUtils.hasText(uid) ? uid : attrs.getChannelId();
     }
 
     public void notifyChatRoomMessage(NettyChannel channel, String uid, String room, String body) {
@@ -107,6 +117,7 @@ public class SocketNotifyService {
         jsonParam.put(Constants.MQ_REPORT_KEY_TIMESTAMP_SHORT, System.currentTimeMillis());
         jsonParam.put(Constants.MQ_REPORT_KEY_AUTH_CONN, NettyChannel.authChannelCount());
         jsonParam.put(Constants.MQ_REPORT_KEY_UNAUTH_CONN, NettyChannel.unAuthChannelCount());
+        jsonParam.put(Constants.MQ_REPORT_KEY_MQ_LAG, orderedBatchSender.lagMillis());
         rocketSender.syncSend(TOPIC_SERVER_STATS, null, serverId, jsonParam.toJSONString());
     }
 
@@ -8,7 +8,6 @@ import cn.bixin.sona.gateway.common.Varint;
 import org.springframework.util.CollectionUtils;
 
 import java.nio.charset.StandardCharsets;
-import java.util.Collections;
 import java.util.List;
 
 /**
@@ -78,11 +77,13 @@ public final class AccessMessageUtils {
     }
 
     public static void logOutboundMsgSize(AccessMessage message) {
-        logMsgSize(message, message.isHeartbeat() ? "HB" : String.valueOf(message.getCmd()), MonitorUtils.CAT_METRIC_OUT_SIZE);
+        logMsgSize(message, MonitorUtils.cmdName(message), MonitorUtils.CAT_METRIC_OUT_SIZE);
     }
 
     public static void logMsgSize(AccessMessage message, String cmd, String type) {
-        MonitorUtils.logMetricForCount(type, calcMsgSize(message), Collections.singletonMap("cmd", cmd));
+        if (MonitorUtils.isEnable()) {
+            MonitorUtils.logMsgSize(type, cmd, calcMsgSize(message));
+        }
     }
 
     public static int calcMsgSize(AccessMessage message) {
@@ -23,6 +23,8 @@ public class Constants {
     public static final String MQ_REPORT_KEY_TIMESTAMP_SHORT = "tm";
     public static final String MQ_REPORT_KEY_AUTH_CONN = "authConn";
     public static final String MQ_REPORT_KEY_UNAUTH_CONN = "unAuthConn";
+    //会话事件上报的积压时长（毫秒）
+    public static final String MQ_REPORT_KEY_MQ_LAG = "mqLag";
 
     public static final String MQ_REPORT_KEY_UID = "uid";
     //房间号
@@ -0,0 +1,103 @@
+package cn.bixin.sona.gateway.mq;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * @author qinwei
+ */
+public class DiskJournalTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    public void testPrependBeforeAppended() throws Exception {
+        DiskJournal journal = new DiskJournal(dir.toString(), Long.MAX_VALUE);
+        assertTrue(journal.append(events("e3", "e4")));
+        assertTrue(journal.prepend(events("e1", "e2")));
+        assertTrue(journal.append(events("e5")));
+
+        List<String> replayed = new ArrayList<>();
+        assertTrue(journal.replay(batch -> {
+            replayed.addAll(contents(batch));
+            return Collections.emptyList();
+        }, 2));
+        assertEquals(Arrays.asList("e1", "e2", "e3", "e4", "e5"), replayed);
+        assertFalse(journal.isSpilling());
+    }
+
+    /**
+     * 重放部分成功时，没发出去的部分下次重放排在最前面，已经成功的不会重复发送
+     */
+    @Test
+    public void testPartialReplay() throws Exception {
+        DiskJournal journal = new DiskJournal(dir.toString(), Long.MAX_VALUE);
+        journal.append(events("e1", "e2", "e3", "e4"));
+
+        List<String> replayed = new ArrayList<>();
+        assertFalse(journal.replay(batch -> {
+            replayed.addAll(contents(batch.subList(0, 1)));
+            return new ArrayList<>(batch.subList(1, batch.size()));
+        }, 2));
+        assertTrue(journal.replay(batch -> {
+            replayed.addAll(contents(batch));
+            return Collections.emptyList();
+        }, 2));
+        assertEquals(Arrays.asList("e1", "e2", "e3", "e4"), replayed);
+    }
+
+    @Test
+    public void testMaxBytes() throws Exception {
+        DiskJournal journal = new DiskJournal(dir.toString(), 100);
+        assertTrue(journal.append(events("e1", "e2")));
+        assertTrue(journal.bytes() > 0);
+        assertTrue(journal.append(events("e3", "e4")));
+        //超过上限后拒绝写入
+        assertFalse(journal.append(events("e5")));
+        assertFalse(journal.prepend(events("e0")));
+
+        List<String> replayed = new ArrayList<>();
+        assertTrue(journal.replay(batch -> {
+            replayed.addAll(contents(batch));
+            return Collections.emptyList();
+        }, 10));
+        assertEquals(Arrays.asList("e1", "e2", "e3", "e4"), replayed);
+        assertEquals(0, journal.bytes());
+        assertTrue(journal.append(events("e6")));
+    }
+
+    /**
+     * 进程重启后按遗留文件的大小计算
+     */
+    @Test
+    public void testMaxBytesAfterRestart() throws Exception {
+        new DiskJournal(dir.toString(), 100).append(events("e1", "e2", "e3", "e4"));
+        DiskJournal journal = new DiskJournal(dir.toString(), 100);
+        assertTrue(journal.isSpilling());
+        assertFalse(journal.append(events("e5")));
+    }
+
+    private static List<OrderedBatchSender.Event> events(String... contents) {
+        List<OrderedBatchSender.Event> events = new ArrayList<>(contents.length);
+        for (String content : contents) {
+            events.add(new OrderedBatchSender.Event("TOPIC_TEST", "room-1", content, 1700000000000L));
+        }
+        return events;
+    }
+
+    private static List<String> contents(List<OrderedBatchSender.Event> events) {
+        return events.stream().map(OrderedBatchSender.Event::getContent).collect(Collectors.toList());
+    }
+}
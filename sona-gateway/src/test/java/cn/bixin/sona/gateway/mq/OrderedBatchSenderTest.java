@@ -0,0 +1,121 @@
+package cn.bixin.sona.gateway.mq;
+
+import org.apache.rocketmq.client.exception.MQClientException;
+import org.apache.rocketmq.client.producer.DefaultMQProducer;
+import org.apache.rocketmq.client.producer.SendResult;
+import org.apache.rocketmq.client.producer.SendStatus;
+import org.apache.rocketmq.common.message.Message;
+import org.apache.rocketmq.common.message.MessageQueue;
+import org.apache.rocketmq.spring.core.RocketMQTemplate;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyCollection;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * @author qinwei
+ * <p>
+ * broker 不可用时同一个 key 连续多个批次写入磁盘日志，恢复后按发送顺序重放
+ */
+public class OrderedBatchSenderTest {
+
+    private static final String TOPIC = "TOPIC_TEST";
+
+    private static final MessageQueue MQ = new MessageQueue(TOPIC, "broker-a", 0);
+
+    @TempDir
+    Path journalDir;
+
+    private OrderedBatchSender sender;
+
+    private final List<String> received = Collections.synchronizedList(new ArrayList<>());
+
+    private final CountDownLatch firstSend = new CountDownLatch(1);
+
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    private volatile boolean brokerDown = true;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        DefaultMQProducer producer = mock(DefaultMQProducer.class);
+        when(producer.fetchPublishMessageQueues(anyString())).thenReturn(Collections.singletonList(MQ));
+        when(producer.send(anyCollection(), any(MessageQueue.class))).thenAnswer(invocation -> {
+            //第一个批次卡住，直到同一个 key 的后续事件都进入 lane 队列
+            firstSend.countDown();
+            release.await(10, TimeUnit.SECONDS);
+            if (brokerDown) {
+                throw new MQClientException("broker not available", null);
+            }
+            Collection<Message> messages = invocation.getArgument(0);
+            for (Message message : messages) {
+                received.add(new String(message.getBody(), StandardCharsets.UTF_8));
+            }
+            SendResult result = new SendResult();
+            result.setSendStatus(SendStatus.SEND_OK);
+            return result;
+        });
+        RocketMQTemplate template = mock(RocketMQTemplate.class);
+        when(template.getProducer()).thenReturn(producer);
+
+        sender = new OrderedBatchSender();
+        ReflectionTestUtils.setField(sender, "rocketMQTemplate", template);
+        ReflectionTestUtils.setField(sender, "laneCount", 1);
+        ReflectionTestUtils.setField(sender, "laneCapacity", 16);
+        ReflectionTestUtils.setField(sender, "batchSize", 2);
+        ReflectionTestUtils.setField(sender, "journalDir", journalDir.toString());
+        ReflectionTestUtils.setField(sender, "journalMaxBytes", Long.MAX_VALUE);
+        sender.init();
+    }
+
+    @AfterEach
+    public void tearDown() {
+        release.countDown();
+        sender.destroy();
+    }
+
+    @Test
+    public void testReplayOrderAfterConsecutiveFailures() throws Exception {
+        List<String> expected = Arrays.asList("e1", "e2", "e3", "e4", "e5");
+        sender.send(TOPIC, "room-1", expected.get(0));
+        assertTrue(firstSend.await(5, TimeUnit.SECONDS));
+        //第一个批次发送失败时，lane 里还排着两个批次
+        for (String content : expected.subList(1, expected.size())) {
+            assertTrue(sender.send(TOPIC, "room-1", content));
+        }
+        release.countDown();
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while ((!Boolean.TRUE.equals(sender.stat().get("spilling")) || !Integer.valueOf(0).equals(sender.stat().get("pending")))
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        Thread.sleep(200);
+        brokerDown = false;
+
+        deadline = System.currentTimeMillis() + 15000;
+        while (received.size() < expected.size() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(100);
+        }
+        assertEquals(expected, new ArrayList<>(received));
+    }
+}
@@ -3,6 +3,9 @@ package cn.bixin.sona.api.room;
 import cn.bixin.sona.common.annotation.CommonExecutor;
 import cn.bixin.sona.common.dto.Response;
 
+import java.util.List;
+import java.util.Map;
+
 public interface HotSwitchRemoteService {
     /**
      * 切换音频运营商单房间
@@ -14,4 +17,14 @@ public interface HotSwitchRemoteService {
     @CommonExecutor(desc = "切换音频运营商单房间", printParam = true, printResponse = true)
     Response<Boolean> switchAudioSupplierRoom(long roomId, int mixed);
 
+    /**
+     * 批量切换音频运营商，服务端分批写入配置，并发下发切换消息
+     *
+     * @param roomIds 房间id
+     * @param mixed   模式
+     * @return 每个房间是否切换成功
+     */
+    @CommonExecutor(desc = "批量切换音频运营商", printParam = true)
+    Response<Map<Long, Boolean>> switchAudioSupplierRooms(List<Long> roomIds, int mixed);
+
 }
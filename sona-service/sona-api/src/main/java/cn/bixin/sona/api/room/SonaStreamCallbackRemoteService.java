@@ -6,6 +6,9 @@ import cn.bixin.sona.request.callback.CreateReplayCallback;
 import cn.bixin.sona.request.callback.CreateStreamCallback;
 import cn.bixin.sona.request.callback.MixStreamEndCallback;
 import cn.bixin.sona.request.callback.MixStreamStartCallback;
+import cn.bixin.sona.request.callback.StreamCallbackEvent;
+
+import java.util.List;
 
 public interface SonaStreamCallbackRemoteService {
 
@@ -45,4 +48,12 @@ public interface SonaStreamCallbackRemoteService {
      * @return: true success, otherwise false
      */
     Response<Boolean> handleMixStreamEndCallback(MixStreamEndCallback callback);
+
+    /**
+     * 按顺序批量处理推流、关流回调，重复的回调（dedupKey 相同）只处理一次
+     *
+     * @param events: 同一个房间的回调保持厂商回调的顺序
+     * @return: 处理失败的回调在 events 中的下标，调用方需要稍后重新提交这些回调；重复的回调不算失败
+     */
+    Response<List<Integer>> handleStreamCallbacks(List<StreamCallbackEvent> events);
 }
@@ -0,0 +1,64 @@
+package cn.bixin.sona.request.callback;
+
+import java.io.Serializable;
+
+/**
+ * 批量处理的推流、关流回调，create 和 close 只有一个不为空
+ */
+public class StreamCallbackEvent implements Serializable {
+    private static final long serialVersionUID = -2365307462771948851L;
+
+    /**
+     * 去重 key：厂商 + 回调类型 + streamId + 厂商的序列号，厂商重试的回调 key 相同
+     */
+    private String dedupKey;
+    private CreateStreamCallback create;
+    private CloseStreamCallback close;
+
+    public static StreamCallbackEvent ofCreate(String dedupKey, CreateStreamCallback create) {
+        StreamCallbackEvent event = new StreamCallbackEvent();
+        event.setDedupKey(dedupKey);
+        event.setCreate(create);
+        return event;
+    }
+
+    public static StreamCallbackEvent ofClose(String dedupKey, CloseStreamCallback close) {
+        StreamCallbackEvent event = new StreamCallbackEvent();
+        event.setDedupKey(dedupKey);
+        event.setClose(close);
+        return event;
+    }
+
+    public String getStreamId() {
+        return create != null ? create.getStreamId() : close.getStreamId();
+    }
+
+    public String getDedupKey() {
+        return dedupKey;
+    }
+
+    public void setDedupKey(String dedupKey) {
+        this.dedupKey = dedupKey;
+    }
+
+    public CreateStreamCallback getCreate() {
+        return create;
+    }
+
+    public void setCreate(CreateStreamCallback create) {
+        this.create = create;
+    }
+
+    public CloseStreamCallback getClose() {
+        return close;
+    }
+
+    public void setClose(CloseStreamCallback close) {
+        this.close = close;
+    }
+
+    @Override
+    public String toString() {
+        return "StreamCallbackEvent{dedupKey='" + dedupKey + "'}";
+    }
+}
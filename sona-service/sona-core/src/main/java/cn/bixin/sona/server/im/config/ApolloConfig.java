@@ -21,14 +21,19 @@ public class ApolloConfig {
 
     private static final String APOLLO_KEY_MESSAGE_DELAY_CONFIG = "message.delay.config";
 
+    private static final String APOLLO_KEY_MESSAGE_LOG_CONFIG = "message.log.config";
+
     private Map<String, FlowConfig> flowConfig = new HashMap<>();
 
     private Map<String, Long> delayConfig = new HashMap<>();
 
+    private MessageLogConfig messageLogConfig = new MessageLogConfig();
+
     @PostConstruct
     public void init() {
         updateFlowConfig(ConfigService.getAppConfig().getProperty(APOLLO_KEY_MESSAGE_FLOW_CONFIG, "{\"HIGH\":{\"capacity\":0,\"highCapacity\":30,\"request\":1,\"deduct\":1},\"MEDIUM_HIGH\":{\"capacity\":60,\"highCapacity\":30,\"request\":30,\"deduct\":1},\"MEDIUM\":{\"capacity\":60,\"highCapacity\":30,\"request\":30,\"deduct\":1},\"LOW\":{\"capacity\":60,\"highCapacity\":30,\"request\":60,\"deduct\":1}}"));
         updateDelayConfig(ConfigService.getAppConfig().getProperty(APOLLO_KEY_MESSAGE_DELAY_CONFIG, "{\"MEDIUM_HIGH\":30000,\"MEDIUM\":5000,\"LOW\":1000}"));
+        updateMessageLogConfig(ConfigService.getAppConfig().getProperty(APOLLO_KEY_MESSAGE_LOG_CONFIG, "{\"defaultRate\":1.0}"));
 
         ConfigService.getAppConfig().addChangeListener(changeEvent -> {
             if (changeEvent.isChanged(APOLLO_KEY_MESSAGE_FLOW_CONFIG)) {
@@ -37,6 +42,9 @@ public class ApolloConfig {
             if (changeEvent.isChanged(APOLLO_KEY_MESSAGE_DELAY_CONFIG)) {
                 updateDelayConfig(changeEvent.getChange(APOLLO_KEY_MESSAGE_DELAY_CONFIG).getNewValue());
             }
+            if (changeEvent.isChanged(APOLLO_KEY_MESSAGE_LOG_CONFIG)) {
+                updateMessageLogConfig(changeEvent.getChange(APOLLO_KEY_MESSAGE_LOG_CONFIG).getNewValue());
+            }
         });
     }
 
@@ -50,6 +58,10 @@ public class ApolloConfig {
         })).ifPresent(map -> delayConfig = map);
     }
 
+    private void updateMessageLogConfig(String config) {
+        Optional.ofNullable(JSON.parseObject(config, MessageLogConfig.class)).ifPresent(c -> messageLogConfig = c);
+    }
+
     public Map<String, FlowConfig> getFlowConfig() {
         return flowConfig;
     }
@@ -57,4 +69,8 @@ public class ApolloConfig {
     public Map<String, Long> getDelayConfig() {
         return delayConfig;
     }
+
+    public MessageLogConfig getMessageLogConfig() {
+        return messageLogConfig;
+    }
 }
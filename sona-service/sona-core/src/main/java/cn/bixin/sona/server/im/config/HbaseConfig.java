@@ -31,6 +31,26 @@ public class HbaseConfig {
      */
     private long storeTime = 15552000000L;
 
+    /**
+     * BufferedMutator 缓冲区大小（默认2M）
+     */
+    private long writeBufferSize = 2 * 1024 * 1024;
+
+    /**
+     * BufferedMutator 定时提交的间隔
+     */
+    private long writeFlushMillis = 1000;
+
+    /**
+     * 每个表缓存的 Table 句柄数量
+     */
+    private int tablePoolSize = 16;
+
+    /**
+     * 批量 get 单次请求的最大数量
+     */
+    private int multiGetBatchSize = 100;
+
     private Connection hBaseConnection() throws IOException {
         // 新建一个Configuration
         org.apache.hadoop.conf.Configuration conf = HBaseConfiguration.create();
@@ -50,7 +70,12 @@ public class HbaseConfig {
 
     @Bean
     public HBaseRepository hBaseRepository() throws IOException {
-        return HBaseRepository.getInstance(hBaseConnection());
+        HBaseRepository.Options options = new HBaseRepository.Options()
+                .setWriteBufferSize(writeBufferSize)
+                .setWriteFlushMillis(writeFlushMillis)
+                .setTablePoolSize(tablePoolSize)
+                .setMultiGetBatchSize(multiGetBatchSize);
+        return HBaseRepository.getInstance(hBaseConnection(), options);
     }
 
     public long getHbaseLimitTime(){
@@ -96,4 +121,36 @@ public class HbaseConfig {
     public void setStoreTime(long storeTime) {
         this.storeTime = storeTime;
     }
+
+    public long getWriteBufferSize() {
+        return writeBufferSize;
+    }
+
+    public void setWriteBufferSize(long writeBufferSize) {
+        this.writeBufferSize = writeBufferSize;
+    }
+
+    public long getWriteFlushMillis() {
+        return writeFlushMillis;
+    }
+
+    public void setWriteFlushMillis(long writeFlushMillis) {
+        this.writeFlushMillis = writeFlushMillis;
+    }
+
+    public int getTablePoolSize() {
+        return tablePoolSize;
+    }
+
+    public void setTablePoolSize(int tablePoolSize) {
+        this.tablePoolSize = tablePoolSize;
+    }
+
+    public int getMultiGetBatchSize() {
+        return multiGetBatchSize;
+    }
+
+    public void setMultiGetBatchSize(int multiGetBatchSize) {
+        this.multiGetBatchSize = multiGetBatchSize;
+    }
 }
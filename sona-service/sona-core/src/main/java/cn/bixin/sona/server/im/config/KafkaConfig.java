@@ -0,0 +1,42 @@
+package cn.bixin.sona.server.im.config;
+
+import com.dianping.cat.Cat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.kafka.config.ConcurrentKafkaListenerContainerFactory;
+import org.springframework.kafka.core.ConsumerFactory;
+import org.springframework.kafka.listener.ContainerProperties;
+import org.springframework.kafka.listener.RetryingBatchErrorHandler;
+import org.springframework.util.backoff.FixedBackOff;
+
+/**
+ * @author qinwei
+ */
+@Configuration
+public class KafkaConfig {
+
+    private static final Logger log = LoggerFactory.getLogger(KafkaConfig.class);
+
+    /**
+     * 批量消费，一次 poll 到的消息整批交给监听方法，处理完成后提交 offset
+     * <p>
+     * 监听方法抛出异常时整批重试（重试期间暂停拉取），重试耗尽后记录下丢弃的消息再提交 offset，避免一批坏数据卡住消费
+     */
+    @Bean
+    public ConcurrentKafkaListenerContainerFactory<String, String> batchKafkaListenerContainerFactory(ConsumerFactory<String, String> consumerFactory,
+                                                                                                      @Value("${sona.kafka.batch.retry.interval.ms:1000}") long retryInterval,
+                                                                                                      @Value("${sona.kafka.batch.retry.times:10}") long retryTimes) {
+        ConcurrentKafkaListenerContainerFactory<String, String> factory = new ConcurrentKafkaListenerContainerFactory<>();
+        factory.setConsumerFactory(consumerFactory);
+        factory.setBatchListener(true);
+        factory.getContainerProperties().setAckMode(ContainerProperties.AckMode.BATCH);
+        factory.setBatchErrorHandler(new RetryingBatchErrorHandler(new FixedBackOff(retryInterval, retryTimes), (record, e) -> {
+            log.error("kafka batch retries exhausted, topic:{}, partition:{}, offset:{}, record:{}", record.topic(), record.partition(), record.offset(), record.value(), e);
+            Cat.logEvent("Kafka.BatchRetryExhausted", record.topic());
+        }));
+        return factory;
+    }
+}
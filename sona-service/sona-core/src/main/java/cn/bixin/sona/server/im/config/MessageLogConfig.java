@@ -0,0 +1,71 @@
+package cn.bixin.sona.server.im.config;
+
+import cn.bixin.sona.common.annotation.Description;
+
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 消息全链路日志的采样配置
+ *
+ * @author qinwei
+ */
+public class MessageLogConfig implements Serializable {
+
+    private static final long serialVersionUID = -3365069312434427817L;
+
+    @Description("默认采样率 0~1")
+    private double defaultRate = 1.0;
+
+    @Description("各业务的采样率，未配置的业务使用默认采样率")
+    private Map<String, Double> productRates = Collections.emptyMap();
+
+    @Description("总是记录的房间")
+    private Set<Long> roomIds = Collections.emptySet();
+
+    @Description("总是记录的用户")
+    private Set<Long> uids = Collections.emptySet();
+
+    public double getRate(String productCode) {
+        Double rate = productCode == null ? null : productRates.get(productCode);
+        return rate == null ? defaultRate : rate;
+    }
+
+    public boolean isWatched(Long roomId, Long uid) {
+        return (roomId != null && roomIds.contains(roomId)) || (uid != null && uids.contains(uid));
+    }
+
+    public double getDefaultRate() {
+        return defaultRate;
+    }
+
+    public void setDefaultRate(double defaultRate) {
+        this.defaultRate = defaultRate;
+    }
+
+    public Map<String, Double> getProductRates() {
+        return productRates;
+    }
+
+    public void setProductRates(Map<String, Double> productRates) {
+        this.productRates = productRates == null ? Collections.emptyMap() : productRates;
+    }
+
+    public Set<Long> getRoomIds() {
+        return roomIds;
+    }
+
+    public void setRoomIds(Set<Long> roomIds) {
+        this.roomIds = roomIds == null ? Collections.emptySet() : roomIds;
+    }
+
+    public Set<Long> getUids() {
+        return uids;
+    }
+
+    public void setUids(Set<Long> uids) {
+        this.uids = uids == null ? Collections.emptySet() : uids;
+    }
+}
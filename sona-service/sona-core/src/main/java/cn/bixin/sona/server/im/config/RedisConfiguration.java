@@ -1,6 +1,7 @@
 package cn.bixin.sona.server.im.config;
 
 import cn.bixin.sona.server.im.flow.FlowControl;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.core.io.ClassPathResource;
@@ -24,7 +25,47 @@ public class RedisConfiguration {
     }
 
     @Bean
-    public FlowControl flowControl(StringRedisTemplate stringRedisTemplate, RedisScript<Long> rateLimiterScript) {
+    public RedisScript<Long> chatroomMemberScript() {
+        DefaultRedisScript<Long> redisScript = new DefaultRedisScript<>();
+        redisScript.setScriptSource(new ResourceScriptSource(new ClassPathResource("META-INF/scripts/chatroom_member.lua")));
+        redisScript.setResultType(Long.class);
+        return redisScript;
+    }
+
+    @Bean
+    public RedisScript<Long> livingStreamScript() {
+        DefaultRedisScript<Long> redisScript = new DefaultRedisScript<>();
+        redisScript.setScriptSource(new ResourceScriptSource(new ClassPathResource("META-INF/scripts/living_stream.lua")));
+        redisScript.setResultType(Long.class);
+        return redisScript;
+    }
+
+    @Bean
+    public RedisScript<Long> groupMemberCountScript() {
+        DefaultRedisScript<Long> redisScript = new DefaultRedisScript<>();
+        redisScript.setScriptSource(new ResourceScriptSource(new ClassPathResource("META-INF/scripts/group_member_count.lua")));
+        redisScript.setResultType(Long.class);
+        return redisScript;
+    }
+
+    @Bean
+    public RedisScript<Long> groupMemberScript() {
+        DefaultRedisScript<Long> redisScript = new DefaultRedisScript<>();
+        redisScript.setScriptSource(new ResourceScriptSource(new ClassPathResource("META-INF/scripts/group_member.lua")));
+        redisScript.setResultType(Long.class);
+        return redisScript;
+    }
+
+    @Bean
+    public RedisScript<Long> recentMessageScript() {
+        DefaultRedisScript<Long> redisScript = new DefaultRedisScript<>();
+        redisScript.setScriptSource(new ResourceScriptSource(new ClassPathResource("META-INF/scripts/recent_message.lua")));
+        redisScript.setResultType(Long.class);
+        return redisScript;
+    }
+
+    @Bean
+    public FlowControl flowControl(StringRedisTemplate stringRedisTemplate, @Qualifier("rateLimiterScript") RedisScript<Long> rateLimiterScript) {
         return new FlowControl(stringRedisTemplate, rateLimiterScript);
     }
 }
@@ -32,7 +32,7 @@ public class HandlerChain implements ApplicationContextAware {
             if (handler.support(request)) {
                 Response<Boolean> response = handler.handle(request);
                 if (!response.isSuccess()) {
-                    messageLog.saveMessageLog(request, response.getMsg());
+                    messageLog.saveFailureLog(request, response.getMsg());
                     return response;
                 }
             }
@@ -10,6 +10,8 @@ import org.springframework.kafka.annotation.KafkaListener;
 import org.springframework.stereotype.Component;
 
 import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.List;
 
 @Component
 public class MessageRecorderListener {
@@ -19,13 +21,22 @@ public class MessageRecorderListener {
     @Resource
     MessageRecorderService messageRecorderService;
 
-    @KafkaListener(topics = "TOPIC-ROOM-MESSAGE-RECORDER", groupId = "CHATROOM_MESSAGE_ACK_GROUP_ID")
-    public void recordRoomMessage(ConsumerRecord<String, String> record) {
-        try {
-            RoomMessageDTO request = JSON.parseObject(record.value(), RoomMessageDTO.class);
-            messageRecorderService.saveRoomMessage(request);
-        } catch (Exception e){
-            log.error("recordRoomMessage exception, record:{}", record.value(), e);
+    /**
+     * 批量消费，一批消息一次写入 HBase，写入成功后才提交 offset
+     */
+    @KafkaListener(topics = "TOPIC-ROOM-MESSAGE-RECORDER", groupId = "CHATROOM_MESSAGE_ACK_GROUP_ID",
+            containerFactory = "batchKafkaListenerContainerFactory",
+            properties = {"max.poll.records=${sona.message.recorder.batch.size:500}"})
+    public void recordRoomMessages(List<ConsumerRecord<String, String>> records) {
+        List<RoomMessageDTO> messages = new ArrayList<>(records.size());
+        for (ConsumerRecord<String, String> record : records) {
+            try {
+                messages.add(JSON.parseObject(record.value(), RoomMessageDTO.class));
+            } catch (Exception e) {
+                log.error("recordRoomMessage exception, record:{}", record.value(), e);
+            }
         }
+        //写入失败直接抛出，由容器的 error handler 整批重试，不能吞掉异常，否则 offset 会被提交
+        messageRecorderService.saveRoomMessages(messages);
     }
 }
@@ -5,15 +5,20 @@ import cn.bixin.sona.common.dto.Response;
 import cn.bixin.sona.server.im.service.MercurySendService;
 import cn.bixin.sona.server.im.service.SaveMessageService;
 import com.dianping.cat.Cat;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.scheduling.annotation.Async;
 import org.springframework.stereotype.Service;
 
 import javax.annotation.Resource;
+import java.time.Duration;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 
 /**
  * @author qinwei
@@ -25,6 +30,11 @@ public class GroupMessageManager {
 
     private static final String GROUP_MESSAGE_TOTAL = "GROUP_MESSAGE_TOTAL";
 
+    /**
+     * cat tags 缓存，避免每条群消息都创建一个 HashMap，key：groupId
+     */
+    private static final Cache<Long, Map<String, String>> CAT_TAGS = Caffeine.newBuilder().maximumSize(10000).expireAfterAccess(Duration.ofMinutes(10)).build();
+
     @Resource
     private MercurySendService mercurySendService;
 
@@ -33,10 +43,7 @@ public class GroupMessageManager {
 
     public Response<Boolean> sentGroupMessage(GroupMessageRequest request) {
         // cat 埋点
-        Map<String, String> tags = new HashMap<>();
-        tags.put("productCode", request.getProductCode());
-        tags.put("group", String.valueOf(request.getGroupId()));
-        Cat.logMetricForCount(GROUP_MESSAGE_TOTAL, 1, tags);
+        Cat.logMetricForCount(GROUP_MESSAGE_TOTAL, 1, getCatTags(request));
 
         Response<Boolean> response = mercurySendService.sendGroupMessage(request);
         if (response.isSuccess()) {
@@ -45,6 +52,26 @@ public class GroupMessageManager {
         return response;
     }
 
+    private Map<String, String> getCatTags(GroupMessageRequest request) {
+        Long groupId = request.getGroupId();
+        if (groupId == null) {
+            return buildCatTags(request);
+        }
+        Map<String, String> tags = CAT_TAGS.getIfPresent(groupId);
+        if (tags == null || !Objects.equals(tags.get("productCode"), request.getProductCode())) {
+            tags = buildCatTags(request);
+            CAT_TAGS.put(groupId, tags);
+        }
+        return tags;
+    }
+
+    private static Map<String, String> buildCatTags(GroupMessageRequest request) {
+        Map<String, String> tags = new HashMap<>(4);
+        tags.put("productCode", request.getProductCode());
+        tags.put("group", String.valueOf(request.getGroupId()));
+        return Collections.unmodifiableMap(tags);
+    }
+
     @Async("groupMsgExecutor")
     public void sentGroupMessages(List<GroupMessageRequest> list) {
         for (GroupMessageRequest request : list) {
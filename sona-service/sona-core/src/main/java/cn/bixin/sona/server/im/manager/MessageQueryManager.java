@@ -8,6 +8,7 @@ import cn.bixin.sona.common.util.IdGenerator;
 import cn.bixin.sona.server.im.config.HbaseConfig;
 import cn.bixin.sona.server.im.dto.RoomMessageDTO;
 import cn.bixin.sona.server.im.service.MessageRecorderService;
+import cn.bixin.sona.server.im.service.RecentMessageCache;
 import org.apache.commons.lang.math.NumberUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -30,6 +31,8 @@ public class MessageQueryManager {
     HbaseConfig hbaseConfig;
     @Resource
     MessageRecorderService messageRecorderService;
+    @Resource
+    RecentMessageCache recentMessageCache;
 
     /**
      * 查询房间信息
@@ -51,7 +54,16 @@ public class MessageQueryManager {
             maxMsgId = idGenerator.strId();
         }
         try {
-            List<RoomMessageDTO> queryList = messageRecorderService.queryRoomMessage(uid, roomId, minMsgId, maxMsgId, limit, reserved);
+            List<RoomMessageDTO> queryList = null;
+            long minId = NumberUtils.toLong(minMsgId, -1);
+            long maxId = NumberUtils.toLong(maxMsgId, -1);
+            if (reserved && minId >= 0 && maxId >= 0) {
+                //最新的几页优先从最近消息缓存中查询，缓存不能完整覆盖时再扫描 HBase
+                queryList = recentMessageCache.getNewestPage(roomId, uid, minId, maxId, limit);
+            }
+            if (queryList == null) {
+                queryList = messageRecorderService.queryRoomMessage(uid, roomId, minMsgId, maxMsgId, limit, reserved);
+            }
             boolean isEnd = queryList.size() < limit;
             List<MessageInfoDTO> resList = queryList.stream().filter(Objects::nonNull).map(item -> {
                 MessageInfoDTO result = new MessageInfoDTO();
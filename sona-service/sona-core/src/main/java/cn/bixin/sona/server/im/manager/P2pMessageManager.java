@@ -53,7 +53,7 @@ public class P2pMessageManager {
         if (response.isSuccess()) {
             saveMessageService.saveRoomMessage(request);
         } else {
-            messageLog.saveMessageLog(request, response.getMsg());
+            messageLog.saveFailureLog(request, response.getMsg());
         }
         return response;
     }
@@ -23,11 +23,11 @@ public class MessageQueueManager {
         // 检查消息延迟时间
         if (checkDelay(request)) {
             Cat.logEvent(request.getPriority().name() + "_DISCARD", request.getProductCode() + ":" + request.getRoomId());
-            messageLog.saveMessageLog(request, "DISCARD");
+            messageLog.saveFailureLog(request, "DISCARD");
             return;
         }
         //日志存储在elasticSearch中
-        messageLog.saveMessageLog(request, "DELAY");
+        messageLog.saveFailureLog(request, "DELAY");
         // 处理请求
         getMessageQueueService(request.getProductCode()).start(request);
     }
@@ -7,11 +7,15 @@ import cn.bixin.sona.server.im.utils.HbaseUtil;
 import org.apache.hadoop.hbase.CompareOperator;
 import org.apache.hadoop.hbase.client.Put;
 import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.Row;
 import org.apache.hadoop.hbase.client.Scan;
 import org.apache.hadoop.hbase.filter.SingleColumnValueFilter;
 import org.apache.hadoop.hbase.util.Bytes;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.PostConstruct;
 import javax.annotation.Resource;
 import javax.validation.constraints.NotNull;
 import java.io.IOException;
@@ -21,9 +25,26 @@ import java.util.List;
 @Service
 public class MessageRecorderService {
 
+    private static final Logger log = LoggerFactory.getLogger(MessageRecorderService.class);
+
+    private static final int SCAN_CACHING_WITH_FILTER = 500;
+
     @Resource
     HBaseRepository hBaseRepository;
 
+    @Resource
+    RecentMessageCache recentMessageCache;
+
+    @PostConstruct
+    public void init() {
+        hBaseRepository.setMutationFailureListener((tbName, rows, cause) -> {
+            //重试耗尽的消息记录下 rowKey，便于补录
+            for (Row row : rows) {
+                log.error("saveRoomMessages fail, table:{}, rowKey:{}", tbName, Bytes.toStringBinary(row.getRow()));
+            }
+        });
+    }
+
     /**
      * 消息存储
      * @param messageDTO
@@ -33,6 +54,35 @@ public class MessageRecorderService {
         hBaseRepository.put(HbaseUtil.roomMessageTable(), put);
     }
 
+    /**
+     * 批量消息存储，写入共享的 BufferedMutator 后立即提交，返回时这一批消息已经写入完成，之后再提交消费 offset。
+     * 提交期间有写入失败（重试耗尽）时抛出异常，由调用方整批重试，rowKey 相同，重复写入是幂等的
+     * @param messages
+     */
+    public void saveRoomMessages(List<RoomMessageDTO> messages) {
+        List<Put> puts = new ArrayList<>(messages.size());
+        for (RoomMessageDTO message : messages) {
+            try {
+                puts.add(createRoomMessagePut(message));
+            } catch (Exception e) {
+                log.error("saveRoomMessages, invalid message:{}", message, e);
+            }
+        }
+        if (puts.isEmpty()) {
+            return;
+        }
+        String table = HbaseUtil.roomMessageTable();
+        //BufferedMutator 是共享的，失败数只能按前后差值判断，并发时可能把其他批次的失败算进来，多重试一次无害
+        long failedBefore = hBaseRepository.getFailedMutationCount();
+        hBaseRepository.mutate(table, puts);
+        hBaseRepository.flush(table);
+        long failed = hBaseRepository.getFailedMutationCount() - failedBefore;
+        if (failed > 0) {
+            throw new IllegalStateException("saveRoomMessages fail, table:" + table + ", failed:" + failed);
+        }
+        recentMessageCache.append(messages);
+    }
+
     /**
      * 查询
      * @param roomId
@@ -49,7 +99,9 @@ public class MessageRecorderService {
         Scan scan = new Scan()
                 .withStartRow(startRowKey).withStopRow(endRowKey)
                 .setReversed(reversed)
-                .setLimit(limit);
+                .setLimit(limit)
+                //一次 RPC 取回整页，按用户过滤时需要扫描更多的行
+                .setCaching(uid != null && uid > 0 ? Math.max(limit, SCAN_CACHING_WITH_FILTER) : limit);
         if(uid != null && uid > 0){
             scan.setFilter(new SingleColumnValueFilter(HbaseUtil.getRoomMessageFamily(), Bytes.toBytes("uid"), CompareOperator.EQUAL, Bytes.toBytes(uid)));
         }
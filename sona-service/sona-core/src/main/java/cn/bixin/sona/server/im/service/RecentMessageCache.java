@@ -0,0 +1,276 @@
+package cn.bixin.sona.server.im.service;
+
+import cn.bixin.sona.server.im.dto.RoomMessageDTO;
+import com.alibaba.fastjson.JSON;
+import com.dianping.cat.Cat;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import org.apache.commons.lang.math.NumberUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.RedisPipelineException;
+import org.springframework.data.redis.connection.ReturnType;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.data.redis.serializer.RedisSerializer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 房间最近消息的缓存
+ * <p>
+ * 打开热门房间时，每个客户端都会查询同一页最新的消息，全部落到 HBase 同一个 region 的范围扫描上。这里在 redis 中为每个房间保留最近的
+ * {@link #capacity} 条消息，前面再加一层很短的本地缓存：
+ * <p>
+ * 1. 消息记录（MessageRecorderService）写入 HBase 后追加到缓存，超出容量时淘汰最早的消息（见 recent_message.lua）
+ * <p>
+ * 2. 缓存记录了完整覆盖的最小消息 id（floor），最新一页完全落在覆盖范围内时直接返回，否则（更早的翻页、消息很少的房间）仍然查询 HBase
+ *
+ * @author qinwei
+ */
+@Component
+public class RecentMessageCache {
+
+    private static final Logger log = LoggerFactory.getLogger(RecentMessageCache.class);
+
+    private static final String KEY_RECENT_MESSAGE = "sona:msg:recent";
+
+    /**
+     * 消息 id 补 0 后的长度，保证字典序和数值顺序一致
+     */
+    private static final int ID_LENGTH = 19;
+
+    @Resource
+    private StringRedisTemplate redisTemplate;
+
+    @Resource(name = "recentMessageScript")
+    private RedisScript<Long> recentMessageScript;
+
+    @Value("${sona.message.recent.capacity:200}")
+    private int capacity;
+
+    @Value("${sona.message.recent.ttl.seconds:3600}")
+    private long ttlSeconds;
+
+    @Value("${sona.message.recent.local.millis:500}")
+    private long localMillis;
+
+    private byte[] script;
+
+    private byte[] scriptSha1;
+
+    private Cache<Long, Snapshot> localCache;
+
+    @PostConstruct
+    public void init() {
+        script = recentMessageScript.getScriptAsString().getBytes(StandardCharsets.UTF_8);
+        scriptSha1 = recentMessageScript.getSha1().getBytes(StandardCharsets.UTF_8);
+        localCache = Caffeine.newBuilder().maximumSize(10000).expireAfterWrite(Duration.ofMillis(localMillis)).build();
+    }
+
+    /**
+     * 同一个房间的消息共用 hash tag
+     */
+    private static String getRecentMessageKey(long roomId) {
+        return KEY_RECENT_MESSAGE + ":{" + roomId + "}";
+    }
+
+    private static String getFloorKey(long roomId) {
+        return getRecentMessageKey(roomId) + ":floor";
+    }
+
+    private static String padId(long messageId) {
+        String id = String.valueOf(messageId);
+        StringBuilder sb = new StringBuilder(ID_LENGTH);
+        for (int i = id.length(); i < ID_LENGTH; i++) {
+            sb.append('0');
+        }
+        return sb.append(id).toString();
+    }
+
+    /**
+     * 消息写入 HBase 之后调用，所有房间一次 pipeline，脚本通过 EVALSHA 执行；
+     * 脚本缓存丢失（redis 重启、主从切换）时发送完整脚本重试一次，重复追加同一条消息是幂等的
+     */
+    public void append(List<RoomMessageDTO> messages) {
+        Map<Long, List<RoomMessageDTO>> rooms = new LinkedHashMap<>();
+        for (RoomMessageDTO message : messages) {
+            if (message.getRoomId() != null && NumberUtils.isDigits(message.getMessageId()) && message.getMessageId().length() <= ID_LENGTH) {
+                rooms.computeIfAbsent(message.getRoomId(), k -> new ArrayList<>()).add(message);
+            }
+        }
+        if (rooms.isEmpty()) {
+            return;
+        }
+        try {
+            redisTemplate.executePipelined(appendCallback(rooms, false));
+        } catch (Exception e) {
+            if (!isNoScript(e)) {
+                log.error("RecentMessageCache.append fail, rooms:{}", rooms.keySet(), e);
+                invalidate(rooms.keySet());
+                return;
+            }
+            try {
+                redisTemplate.executePipelined(appendCallback(rooms, true));
+            } catch (Exception ex) {
+                log.error("RecentMessageCache.append fail, rooms:{}", rooms.keySet(), ex);
+                invalidate(rooms.keySet());
+            }
+        }
+    }
+
+    /**
+     * 追加失败时缓存中缺了这一批消息，删除 floor 让查询回到 HBase，下次追加时脚本会从新的一批消息重建缓存；
+     * 删除也失败时只能等缓存过期
+     */
+    private void invalidate(Set<Long> roomIds) {
+        Cat.logEvent("RecentMessageCache", "AppendFail");
+        List<String> keys = new ArrayList<>(roomIds.size());
+        for (Long roomId : roomIds) {
+            keys.add(getFloorKey(roomId));
+            localCache.invalidate(roomId);
+        }
+        try {
+            redisTemplate.delete(keys);
+        } catch (Exception e) {
+            log.error("RecentMessageCache.invalidate fail, rooms:{}", roomIds, e);
+        }
+    }
+
+    private RedisCallback<Object> appendCallback(Map<Long, List<RoomMessageDTO>> rooms, boolean fullScript) {
+        RedisSerializer<String> serializer = redisTemplate.getStringSerializer();
+        return connection -> {
+            for (Map.Entry<Long, List<RoomMessageDTO>> entry : rooms.entrySet()) {
+                List<RoomMessageDTO> list = entry.getValue();
+                byte[][] keysAndArgs = new byte[4 + list.size() * 2][];
+                int n = 0;
+                keysAndArgs[n++] = serializer.serialize(getRecentMessageKey(entry.getKey()));
+                keysAndArgs[n++] = serializer.serialize(getFloorKey(entry.getKey()));
+                keysAndArgs[n++] = serializer.serialize(String.valueOf(capacity));
+                keysAndArgs[n++] = serializer.serialize(String.valueOf(ttlSeconds));
+                for (RoomMessageDTO message : list) {
+                    String id = padId(Long.parseLong(message.getMessageId()));
+                    keysAndArgs[n++] = serializer.serialize(id);
+                    keysAndArgs[n++] = serializer.serialize(id + '|' + JSON.toJSONString(message));
+                }
+                if (fullScript) {
+                    connection.eval(script, ReturnType.INTEGER, 2, keysAndArgs);
+                } else {
+                    connection.evalSha(scriptSha1, ReturnType.INTEGER, 2, keysAndArgs);
+                }
+            }
+            return null;
+        };
+    }
+
+    private static boolean isNoScript(Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause.getMessage() != null && cause.getMessage().contains("NOSCRIPT")) {
+                return true;
+            }
+            if (cause instanceof RedisPipelineException) {
+                for (Object result : ((RedisPipelineException) cause).getPipelineResult()) {
+                    if (result instanceof Throwable && isNoScript((Throwable) result)) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 按消息 id 倒序查询最新的一页，与 HBase 倒序扫描的范围一致：(minMessageId, maxMessageId]
+     *
+     * @param uid 只查询该用户的消息，为空时不过滤
+     * @return 缓存不能完整覆盖这一页时返回 null
+     */
+    public List<RoomMessageDTO> getNewestPage(long roomId, Long uid, long minMessageId, long maxMessageId, int limit) {
+        Snapshot snapshot = localCache.getIfPresent(roomId);
+        if (snapshot == null) {
+            snapshot = load(roomId);
+            if (snapshot == null) {
+                return null;
+            }
+            localCache.put(roomId, snapshot);
+        }
+        if (snapshot.ids.length == 0 || maxMessageId < snapshot.floor) {
+            return null;
+        }
+        List<RoomMessageDTO> page = new ArrayList<>(limit);
+        for (int i = snapshot.ids.length - 1; i >= 0 && page.size() < limit; i--) {
+            long id = snapshot.ids[i];
+            if (id <= minMessageId) {
+                //查询范围的下界在缓存覆盖范围之内，后面没有更多消息了
+                return page;
+            }
+            if (id <= maxMessageId && (uid == null || uid <= 0 || uid.equals(snapshot.messages[i].getUid()))) {
+                page.add(snapshot.messages[i]);
+            }
+        }
+        if (page.size() < limit && minMessageId < snapshot.floor) {
+            //更早的消息不在缓存中
+            return null;
+        }
+        Cat.logEvent("RecentMessageCache", "Hit");
+        return page;
+    }
+
+    @SuppressWarnings("unchecked")
+    private Snapshot load(long roomId) {
+        List<Object> results;
+        try {
+            results = redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                RedisSerializer<String> serializer = redisTemplate.getStringSerializer();
+                connection.zRange(serializer.serialize(getRecentMessageKey(roomId)), 0, -1);
+                connection.get(serializer.serialize(getFloorKey(roomId)));
+                return null;
+            });
+        } catch (Exception e) {
+            log.error("RecentMessageCache.load fail, roomId:{}", roomId, e);
+            return null;
+        }
+        Set<String> members = (Set<String>) results.get(0);
+        String floor = (String) results.get(1);
+        if (floor == null || members == null) {
+            return new Snapshot(Long.MAX_VALUE, new long[0], new RoomMessageDTO[0]);
+        }
+        long[] ids = new long[members.size()];
+        RoomMessageDTO[] messages = new RoomMessageDTO[members.size()];
+        int n = 0;
+        for (String member : members) {
+            ids[n] = Long.parseLong(member.substring(0, ID_LENGTH));
+            messages[n++] = JSON.parseObject(member.substring(ID_LENGTH + 1), RoomMessageDTO.class);
+        }
+        return new Snapshot(Long.parseLong(floor), ids, messages);
+    }
+
+    /**
+     * 某一时刻的缓存内容，按消息 id 升序
+     */
+    private static final class Snapshot {
+
+        private final long floor;
+
+        private final long[] ids;
+
+        private final RoomMessageDTO[] messages;
+
+        private Snapshot(long floor, long[] ids, RoomMessageDTO[] messages) {
+            this.floor = floor;
+            this.ids = ids;
+            this.messages = messages;
+        }
+    }
+}
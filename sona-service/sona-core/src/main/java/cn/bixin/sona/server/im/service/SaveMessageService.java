@@ -23,7 +23,7 @@ public class SaveMessageService {
      */
     public void saveRoomMessage(RoomMessageRequest request) {
         if (request.isNeedToSave()) {
-            kafkaSender.send("TOPIC-ROOM-MESSAGE-RECORDER", ConvertUtils.convertChatSaveMessage(request));
+            kafkaSender.sendBatch("TOPIC-ROOM-MESSAGE-RECORDER", ConvertUtils.convertChatSaveMessage(request));
         }
     }
 
@@ -31,7 +31,7 @@ public class SaveMessageService {
      * 保存群组消息
      */
     public void saveGroupMessage(GroupMessageRequest request) {
-        kafkaSender.send("TOPIC-ROOM-MESSAGE-RECORDER", ConvertUtils.convertGroupSaveMessage(request));
+        kafkaSender.sendBatch("TOPIC-ROOM-MESSAGE-RECORDER", ConvertUtils.convertGroupSaveMessage(request));
     }
 
 }
@@ -75,7 +75,7 @@ public class SendService {
             MessageQueueManager.start(request);
         } else {
             Cat.logEvent("FAILURE", request.getProductCode() + ":" + request.getRoomId());
-            messageLog.saveMessageLog(request, throwable.getMessage());
+            messageLog.saveFailureLog(request, throwable.getMessage());
         }
         return null;
     }
@@ -104,7 +104,7 @@ public class SendService {
         if (!request.isNeedToSave()) {
             return;
         }
-        kafkaSender.send("TOPIC-ROOM-MESSAGE-RECORDER", ConvertUtils.convertChatSaveMessage(request));
+        kafkaSender.sendBatch("TOPIC-ROOM-MESSAGE-RECORDER", ConvertUtils.convertChatSaveMessage(request));
     }
 
 }
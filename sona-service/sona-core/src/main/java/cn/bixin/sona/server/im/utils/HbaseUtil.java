@@ -17,6 +17,22 @@ public class HbaseUtil {
         return Bytes.copy(ROOM_MESSAGE_FAMILY);
     }
 
+    /**
+     * 房间消息表的预分区点
+     * rowKey 以 roomId 的 hash 开头，同一个房间的消息连续存放，不同房间均匀分布在整个 int 空间，按 hash 前缀等分即可
+     * 建表语句见 doc/hbase.md
+     * @param regions 分区数量
+     * @return
+     */
+    public static byte[][] roomMessageSplitKeys(int regions) {
+        byte[][] splitKeys = new byte[regions - 1][];
+        for (int i = 1; i < regions; i++) {
+            // rowKey 按无符号字节比较，在无符号 32 位空间中等分
+            splitKeys[i - 1] = Bytes.toBytes((int) ((1L << 32) * i / regions));
+        }
+        return splitKeys;
+    }
+
     /**
      * 生成房间消息 rowKey
      * @param roomId
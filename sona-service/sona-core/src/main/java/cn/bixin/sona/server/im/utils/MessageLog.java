@@ -2,16 +2,27 @@ package cn.bixin.sona.server.im.utils;
 
 import cn.bixin.sona.api.im.request.RoomMessageRequest;
 import cn.bixin.sona.common.trace.TraceHelper;
+import cn.bixin.sona.server.im.config.ApolloConfig;
+import cn.bixin.sona.server.im.config.MessageLogConfig;
 import cn.bixin.sona.server.mq.KafkaSender;
 import com.alibaba.fastjson.JSON;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
 import org.springframework.stereotype.Component;
 
 import javax.annotation.Resource;
+import java.time.Duration;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
 
 /**
+ * 消息全链路日志
+ * <p>
+ * 按业务采样（apollo message.log.config），观察名单中的房间、用户总是记录；失败、被频控、丢弃的消息通过 saveFailureLog 总是记录。
+ * 同一条消息在各个环节的采样结果一致：按 messageId 哈希采样，记录过的 messageId 短时间内保留，之后的环节继续记录
+ *
  * @author qinwei
  */
 @Component
@@ -19,22 +30,96 @@ public class MessageLog {
 
     private static final String TOPIC_ROOM_IM_MESSAGE_LOG = "TOPIC-ROOM-IM-MESSAGE-LOG";
 
+    private static final double HASH_RANGE = 1 << 24;
+
     @Resource
     private KafkaSender kafkaSender;
 
+    @Resource
+    private ApolloConfig apolloConfig;
+
+    /**
+     * 已经记录过的消息
+     */
+    private final Cache<String, Boolean> tracedMessages = Caffeine.newBuilder()
+            .maximumSize(200000)
+            .expireAfterWrite(Duration.ofMinutes(2))
+            .build();
+
     public void saveMessageLog(RoomMessageRequest request, String content) {
         saveMessageLog(request, content, null);
     }
 
+    /**
+     * 只有 messageId 的环节（例如 mq 发送结果），只记录之前已经记录过的消息
+     */
     public void saveMessageLog(String messageId, String content) {
+        if (messageId != null && tracedMessages.getIfPresent(messageId) != null) {
+            send(messageId, content);
+        }
+    }
+
+    public void saveMessageLog(RoomMessageRequest request, String content, List<Long> toUid) {
+        if (isTraced(request)) {
+            send(request, content, toUid);
+        }
+    }
+
+    /**
+     * 失败、被频控、丢弃的消息，不受采样影响
+     */
+    public void saveFailureLog(RoomMessageRequest request, String reason) {
+        markTraced(request.getMessageId());
+        send(request, reason, null);
+    }
+
+    public void saveFailureLog(String messageId, String reason) {
+        markTraced(messageId);
+        send(messageId, reason);
+    }
+
+    private boolean isTraced(RoomMessageRequest request) {
+        String messageId = request.getMessageId();
+        if (messageId != null && tracedMessages.getIfPresent(messageId) != null) {
+            return true;
+        }
+        MessageLogConfig config = apolloConfig.getMessageLogConfig();
+        boolean traced = config.isWatched(request.getRoomId(), request.getUid()) || sampled(messageId, config.getRate(request.getProductCode()));
+        if (traced) {
+            markTraced(messageId);
+        }
+        return traced;
+    }
+
+    private static boolean sampled(String messageId, double rate) {
+        if (rate >= 1) {
+            return true;
+        }
+        if (rate <= 0) {
+            return false;
+        }
+        if (messageId == null) {
+            return ThreadLocalRandom.current().nextDouble() < rate;
+        }
+        int hash = messageId.hashCode() * 0x9E3779B9;
+        return (hash >>> 8) / HASH_RANGE < rate;
+    }
+
+    private void markTraced(String messageId) {
+        if (messageId != null) {
+            tracedMessages.put(messageId, Boolean.TRUE);
+        }
+    }
+
+    private void send(String messageId, String content) {
         Map<String, Object> map = new HashMap<>(8);
         map.put("messageId", messageId);
         map.put("tid", TraceHelper.getTraceId());
         map.put("content", content);
-        kafkaSender.send(TOPIC_ROOM_IM_MESSAGE_LOG, map);
+        kafkaSender.sendLog(TOPIC_ROOM_IM_MESSAGE_LOG, map);
     }
 
-    public void saveMessageLog(RoomMessageRequest request, String content, List<Long> toUid) {
+    private void send(RoomMessageRequest request, String content, List<Long> toUid) {
         Map<String, Object> map = new HashMap<>(16);
         map.put("messageId", request.getMessageId());
         map.put("roomId", request.getRoomId());
@@ -47,7 +132,7 @@ public class MessageLog {
         if (toUid != null) {
             map.put("toUid", JSON.toJSONString(toUid));
         }
-        kafkaSender.send(TOPIC_ROOM_IM_MESSAGE_LOG, map);
+        kafkaSender.sendLog(TOPIC_ROOM_IM_MESSAGE_LOG, map);
     }
 
 }
@@ -1,13 +1,38 @@
 package cn.bixin.sona.server.mq;
 
+import cn.bixin.sona.common.trace.TraceHelper;
 import com.alibaba.fastjson.JSON;
+import com.dianping.cat.Cat;
+import org.apache.kafka.clients.producer.ProducerConfig;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.kafka.KafkaProperties;
+import org.springframework.kafka.core.DefaultKafkaProducerFactory;
 import org.springframework.kafka.core.KafkaTemplate;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
 /**
+ * 三种发送方式：
+ * <p>
+ * 1. send：直接发送，使用默认的 producer
+ * <p>
+ * 2. sendBatch：需要落库的消息（例如消息记录），放入队列由后台线程序列化，使用开启 linger、压缩的 producer 批量发送；
+ * 队列满时当前线程等待队列空出位置，保持和已入队消息的顺序，等待超时才在当前线程直接发送（此时不再保证顺序），不丢消息
+ * <p>
+ * 3. sendLog：只用于日志类的 topic，和 sendBatch 一样异步批量发送，队列满时直接丢弃，不会阻塞业务线程
+ *
  * @author qinwei
  */
 @Component
@@ -18,6 +43,70 @@ public class KafkaSender {
     @Autowired
     private KafkaTemplate<String, String> kafkaTemplate;
 
+    @Autowired
+    private KafkaProperties kafkaProperties;
+
+    @Value("${sona.kafka.batch.linger.ms:10}")
+    private int batchLingerMs;
+
+    @Value("${sona.kafka.batch.size:131072}")
+    private int batchSize;
+
+    @Value("${sona.kafka.batch.compression:lz4}")
+    private String batchCompression;
+
+    @Value("${sona.kafka.batch.queue.size:20000}")
+    private int batchQueueSize;
+
+    @Value("${sona.kafka.batch.offer.timeout.ms:500}")
+    private long batchOfferTimeoutMs;
+
+    @Value("${sona.kafka.log.linger.ms:50}")
+    private int logLingerMs;
+
+    @Value("${sona.kafka.log.batch.size:262144}")
+    private int logBatchSize;
+
+    @Value("${sona.kafka.log.compression:lz4}")
+    private String logCompression;
+
+    @Value("${sona.kafka.log.queue.size:20000}")
+    private int logQueueSize;
+
+    private AsyncProducer batchProducer;
+
+    private AsyncProducer logProducer;
+
+    @PostConstruct
+    public void init() {
+        batchProducer = new AsyncProducer("kafka-batch-sender", createTemplate(batchLingerMs, batchSize, batchCompression, false), batchQueueSize, false);
+        logProducer = new AsyncProducer("kafka-log-sender", createTemplate(logLingerMs, logBatchSize, logCompression, true), logQueueSize, true);
+        batchProducer.start();
+        logProducer.start();
+    }
+
+    @PreDestroy
+    public void destroy() {
+        batchProducer.shutdown();
+        logProducer.shutdown();
+    }
+
+    /**
+     * 不注册为 bean，避免影响 spring boot 默认创建的 KafkaTemplate
+     */
+    private KafkaTemplate<String, String> createTemplate(int lingerMs, int batchSize, String compression, boolean lossy) {
+        Map<String, Object> configs = kafkaProperties.buildProducerProperties();
+        configs.put(ProducerConfig.LINGER_MS_CONFIG, lingerMs);
+        configs.put(ProducerConfig.BATCH_SIZE_CONFIG, batchSize);
+        configs.put(ProducerConfig.COMPRESSION_TYPE_CONFIG, compression);
+        if (lossy) {
+            //日志允许少量丢失，不等待所有副本
+            configs.put(ProducerConfig.ACKS_CONFIG, "1");
+            configs.put(ProducerConfig.RETRIES_CONFIG, 3);
+        }
+        return new KafkaTemplate<>(new DefaultKafkaProducerFactory<>(configs));
+    }
+
     public void send(String topic, String key, Object object) {
         String json = JSON.toJSONString(object);
         kafkaTemplate.send(topic, key, json)
@@ -29,4 +118,166 @@ public class KafkaSender {
         send(topic, null, object);
     }
 
+    /**
+     * 异步批量发送，object 交给后台线程序列化，调用后不能再修改
+     */
+    public void sendBatch(String topic, String key, Object object) {
+        PendingRecord record = new PendingRecord(topic, key, object, TraceHelper.getTraceId());
+        if (batchProducer.offer(record)) {
+            return;
+        }
+        Cat.logEvent("KafkaSender", "BatchQueueFull");
+        if (!batchProducer.offer(record, batchOfferTimeoutMs)) {
+            //后台线程长时间发不出去，退化为当前线程发送，会排在队列中更早的消息之前
+            Cat.logEvent("KafkaSender", "BatchDirectSend");
+            batchProducer.send(record);
+        }
+    }
+
+    public void sendBatch(String topic, Object object) {
+        sendBatch(topic, null, object);
+    }
+
+    /**
+     * 发送日志，object 交给后台线程序列化，调用后不能再修改；积压时直接丢弃
+     */
+    public void sendLog(String topic, Object object) {
+        if (!logProducer.offer(new PendingRecord(topic, null, object, TraceHelper.getTraceId()))) {
+            logProducer.dropped.increment();
+        }
+    }
+
+    private static final class PendingRecord {
+
+        private final String topic;
+
+        private final String key;
+
+        private final Object value;
+
+        /**
+         * 调用线程的 traceId，后台线程发送前恢复，TraceProducerInterceptor 写入消息头
+         */
+        private final String traceId;
+
+        private PendingRecord(String topic, String key, Object value, String traceId) {
+            this.topic = topic;
+            this.key = key;
+            this.value = value;
+            this.traceId = traceId;
+        }
+    }
+
+    private static final class AsyncProducer extends Thread {
+
+        private static final int DRAIN_SIZE = 512;
+
+        private final KafkaTemplate<String, String> template;
+
+        private final BlockingQueue<PendingRecord> queue;
+
+        private final boolean lossy;
+
+        private final LongAdder dropped = new LongAdder();
+
+        private volatile boolean running = true;
+
+        private AsyncProducer(String name, KafkaTemplate<String, String> template, int queueSize, boolean lossy) {
+            super(name);
+            setDaemon(true);
+            this.template = template;
+            this.queue = new ArrayBlockingQueue<>(queueSize);
+            this.lossy = lossy;
+        }
+
+        boolean offer(PendingRecord record) {
+            return running && queue.offer(record);
+        }
+
+        boolean offer(PendingRecord record, long timeoutMs) {
+            try {
+                return running && queue.offer(record, timeoutMs, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+
+        @Override
+        public void run() {
+            List<PendingRecord> records = new ArrayList<>(DRAIN_SIZE);
+            long lastReport = System.currentTimeMillis();
+            while (running || !queue.isEmpty()) {
+                try {
+                    PendingRecord first = queue.poll(100, TimeUnit.MILLISECONDS);
+                    if (first != null) {
+                        records.add(first);
+                        queue.drainTo(records, DRAIN_SIZE - 1);
+                        for (PendingRecord record : records) {
+                            sendQuietly(record);
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    running = false;
+                } finally {
+                    records.clear();
+                }
+                long now = System.currentTimeMillis();
+                if (now - lastReport >= 10000) {
+                    lastReport = now;
+                    long count = dropped.sumThenReset();
+                    if (count > 0) {
+                        Cat.logEvent("KafkaSender", "LogDropped", "0", String.valueOf(count));
+                        log.warn("{} dropped {} records in the last period", getName(), count);
+                    }
+                }
+            }
+            template.flush();
+        }
+
+        /**
+         * 单条消息序列化或发送失败（例如超过 max.block.ms）只影响这一条，不影响同一批的其它消息
+         */
+        private void sendQuietly(PendingRecord record) {
+            try {
+                if (record.traceId != null) {
+                    TraceHelper.setTraceId(record.traceId);
+                }
+                send(record);
+            } catch (Exception e) {
+                if (lossy) {
+                    dropped.increment();
+                } else {
+                    Cat.logEvent("KafkaSender", "SendError");
+                    log.error("{} send error, topic = {}, key = {}", getName(), record.topic, record.key, e);
+                }
+            } finally {
+                TraceHelper.reset();
+            }
+        }
+
+        void send(PendingRecord record) {
+            String json = JSON.toJSONString(record.value);
+            template.send(record.topic, record.key, json)
+                    .addCallback(o -> {
+                    }, throwable -> {
+                        if (lossy) {
+                            dropped.increment();
+                        } else {
+                            log.error("kafka消息发送失败: topic = {}, key = {} , json = {}", record.topic, record.key, json);
+                        }
+                    });
+        }
+
+        void shutdown() {
+            running = false;
+            try {
+                join(5000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            template.destroy();
+        }
+    }
 }
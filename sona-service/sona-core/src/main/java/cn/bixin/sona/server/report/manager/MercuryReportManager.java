@@ -2,7 +2,6 @@ package cn.bixin.sona.server.report.manager;
 
 import cn.bixin.sona.api.report.request.MercuryReportRequest;
 import cn.bixin.sona.server.mq.KafkaSender;
-import com.alibaba.fastjson.JSON;
 import org.springframework.stereotype.Component;
 
 import javax.annotation.Resource;
@@ -19,7 +18,7 @@ public class MercuryReportManager {
         if (Objects.isNull(request)) {
             return false;
         }
-        kafkaSender.send(TOPIC_MERCURY_CLIENT_LOG, JSON.toJSONString(request));
+        kafkaSender.sendLog(TOPIC_MERCURY_CLIENT_LOG, request);
         return true;
     }
 }
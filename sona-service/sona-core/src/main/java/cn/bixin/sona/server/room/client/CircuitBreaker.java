@@ -0,0 +1,153 @@
+package cn.bixin.sona.server.room.client;
+
+/**
+ * 简单的熔断器
+ * <p>
+ * 统计最近 windowSize 次调用的结果，调用次数达到 minCalls 且失败率超过阈值时打开熔断，openMillis 内的调用直接失败；
+ * 之后进入半开状态，只放行一个探测请求，成功则关闭熔断，失败则重新打开。
+ * <p>
+ * 三方厂商的调用量不大，这里直接加锁实现
+ *
+ * @author qinwei
+ */
+public class CircuitBreaker {
+
+    public enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    private final String name;
+
+    private final int minCalls;
+
+    private final double failureRateThreshold;
+
+    private final long openMillis;
+
+    /**
+     * 环形窗口，true 表示失败
+     */
+    private final boolean[] window;
+
+    private int position;
+
+    private int calls;
+
+    private int failures;
+
+    private State state = State.CLOSED;
+
+    private long openedAt;
+
+    private boolean probing;
+
+    public CircuitBreaker(String name, int windowSize, int minCalls, double failureRateThreshold, long openMillis) {
+        this.name = name;
+        this.window = new boolean[windowSize];
+        this.minCalls = Math.min(minCalls, windowSize);
+        this.failureRateThreshold = failureRateThreshold;
+        this.openMillis = openMillis;
+    }
+
+    /**
+     * @return 是否允许本次调用；允许时调用方必须在结束后调用 {@link #onSuccess()}、{@link #onFailure()} 或 {@link #releasePermission()}
+     */
+    public synchronized boolean tryAcquire() {
+        if (state == State.CLOSED) {
+            return true;
+        }
+        if (state == State.OPEN) {
+            if (System.currentTimeMillis() - openedAt < openMillis) {
+                return false;
+            }
+            state = State.HALF_OPEN;
+            probing = false;
+        }
+        if (probing) {
+            return false;
+        }
+        probing = true;
+        return true;
+    }
+
+    public synchronized void onSuccess() {
+        if (state == State.HALF_OPEN) {
+            reset();
+            state = State.CLOSED;
+            return;
+        }
+        record(false);
+    }
+
+    public synchronized void onFailure() {
+        if (state == State.HALF_OPEN) {
+            open();
+            return;
+        }
+        record(true);
+        if (state == State.CLOSED && calls >= minCalls && failures >= calls * failureRateThreshold) {
+            open();
+        }
+    }
+
+    /**
+     * 拿到许可后没有真正发出调用：不计入统计，只归还半开状态的探测名额
+     */
+    public synchronized void releasePermission() {
+        if (state == State.HALF_OPEN) {
+            probing = false;
+        }
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    /**
+     * 窗口内的调用次数
+     */
+    public synchronized int getBufferedCalls() {
+        return calls;
+    }
+
+    /**
+     * 窗口内的失败次数
+     */
+    public synchronized int getFailedCalls() {
+        return failures;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    private void record(boolean failure) {
+        if (calls == window.length) {
+            if (window[position]) {
+                failures--;
+            }
+        } else {
+            calls++;
+        }
+        window[position] = failure;
+        if (failure) {
+            failures++;
+        }
+        position = (position + 1) % window.length;
+    }
+
+    private void open() {
+        state = State.OPEN;
+        openedAt = System.currentTimeMillis();
+        probing = false;
+        reset();
+    }
+
+    private void reset() {
+        position = 0;
+        calls = 0;
+        failures = 0;
+    }
+}
@@ -1,53 +1,61 @@
 package cn.bixin.sona.server.room.client;
 
-import okhttp3.*;
 import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.stereotype.Component;
 
 import javax.annotation.Resource;
-import java.io.IOException;
 import java.net.SocketTimeoutException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
-import static com.google.common.net.HttpHeaders.CONTENT_TYPE;
-
+/**
+ * zego 服务端接口调用，请求通过 zegoVendorClient 异步发出，不占用调用方线程
+ */
 @Component
 public class MixStreamClient {
 
     private static final Logger log = LoggerFactory.getLogger(MixStreamClient.class);
 
-    @Resource(name = "mixHttpClient")
-    private OkHttpClient okHttpClient;
-
-    public String sendPost(String url, String param) {
-        MediaType mediaType = MediaType.parse("application/json; charset=utf-8");
-        RequestBody requestBody = RequestBody.create(mediaType, param);
-        Request request = new Request.Builder().url(url).addHeader(CONTENT_TYPE, "application/json").post(requestBody).build();
-        try {
-            Response response = okHttpClient.newCall(request).execute();
-            if (response.body() != null) {
-                return response.body().string();
+    /**
+     * 超时、熔断、舱壁已满时返回的结果，调用方按超时处理并重试
+     */
+    public static final String RESULT_TIMEOUT = "{code:-889}";
+
+    @Resource(name = "zegoVendorClient")
+    private VendorClient zegoVendorClient;
+
+    public CompletableFuture<String> postAsync(String url, String param) {
+        return zegoVendorClient.post(url, param).handle((result, e) -> {
+            if (e == null) {
+                return result == null ? StringUtils.EMPTY : result;
             }
-        } catch (SocketTimeoutException e) {
-            log.error("zego.sendPost SocketTimeoutException", e);
-            return "{code:-889}";
-        } catch (IOException e) {
-            log.error("zego.sendPost exception", e);
-        }
-        return StringUtils.EMPTY;
+            Throwable cause = unwrap(e);
+            if (cause instanceof SocketTimeoutException || cause instanceof VendorClient.VendorUnavailableException) {
+                log.error("zego.sendPost timeout or unavailable, url:{}, error:{}", url, cause.toString());
+                return RESULT_TIMEOUT;
+            }
+            log.error("zego.sendPost exception", cause);
+            return StringUtils.EMPTY;
+        });
     }
 
-    public String sendGet(String url, String param) {
-        Request request = new Request.Builder().url(url + '?' + param).build();
-        try {
-            Response response = okHttpClient.newCall(request).execute();
-            if (response.body() != null) {
-                return response.body().string();
+    public CompletableFuture<String> getAsync(String url, String param) {
+        return zegoVendorClient.get(url + '?' + param).handle((result, e) -> {
+            if (e != null) {
+                log.error("zego.sendGet exception", unwrap(e));
+                return null;
             }
-        } catch (IOException e) {
-            log.error("zego.sendGet exception", e);
-        }
-        return null;
+            return result;
+        });
+    }
+
+    public String sendGet(String url, String param) {
+        return getAsync(url, param).join();
+    }
+
+    private static Throwable unwrap(Throwable e) {
+        return e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
     }
 }
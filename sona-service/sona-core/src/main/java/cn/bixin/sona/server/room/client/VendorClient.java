@@ -0,0 +1,290 @@
+package cn.bixin.sona.server.room.client;
+
+import com.dianping.cat.Cat;
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.Dispatcher;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import org.apache.dubbo.common.utils.NamedThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 三方 RTC 厂商（zego、tencent）的调用客户端，每个厂商一个实例，互相隔离：
+ * <ul>
+ *     <li>舱壁：每个厂商最多 maxConcurrent 个调用同时进行，超出时直接失败，不排队</li>
+ *     <li>超时：每个厂商单独配置连接和读写超时时间</li>
+ *     <li>熔断：厂商持续失败时打开熔断，直接失败，不再占用连接和线程</li>
+ *     <li>异步：http 调用使用 OkHttp 的异步接口，SDK 调用在厂商自己的线程池中执行，都返回 CompletableFuture，调用方线程不会被阻塞</li>
+ * </ul>
+ * 所有厂商共用一个连接池，厂商支持时可以开启 HTTP/2
+ *
+ * @author qinwei
+ */
+public class VendorClient {
+
+    private static final Logger log = LoggerFactory.getLogger(VendorClient.class);
+
+    private static final MediaType JSON_TYPE = MediaType.parse("application/json; charset=utf-8");
+
+    private final String name;
+
+    private final OkHttpClient httpClient;
+
+    private final Semaphore bulkhead;
+
+    private final CircuitBreaker circuitBreaker;
+
+    private final ExecutorService sdkExecutor;
+
+    public VendorClient(String name, OkHttpClient baseClient, VendorConfig config) {
+        this.name = name;
+        Dispatcher dispatcher = new Dispatcher();
+        dispatcher.setMaxRequests(config.getMaxConcurrent());
+        dispatcher.setMaxRequestsPerHost(config.getMaxConcurrent());
+        OkHttpClient.Builder builder = baseClient.newBuilder()
+                .dispatcher(dispatcher)
+                .connectTimeout(config.getConnectTimeoutMillis(), TimeUnit.MILLISECONDS)
+                .readTimeout(config.getReadTimeoutMillis(), TimeUnit.MILLISECONDS)
+                .writeTimeout(config.getWriteTimeoutMillis(), TimeUnit.MILLISECONDS);
+        builder.protocols(config.isHttp2() ? Arrays.asList(Protocol.HTTP_2, Protocol.HTTP_1_1) : Collections.singletonList(Protocol.HTTP_1_1));
+        this.httpClient = builder.build();
+        this.bulkhead = new Semaphore(config.getMaxConcurrent());
+        this.circuitBreaker = new CircuitBreaker(name, config.getCircuitWindowSize(), config.getCircuitMinCalls(), config.getCircuitFailureRate(), config.getCircuitOpenMillis());
+        this.sdkExecutor = new ThreadPoolExecutor(config.getMaxConcurrent(), config.getMaxConcurrent(), 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), new NamedThreadFactory("vendor-" + name, true));
+        ((ThreadPoolExecutor) sdkExecutor).allowCoreThreadTimeOut(true);
+    }
+
+    public CompletableFuture<String> post(String url, String json) {
+        Request request = new Request.Builder().url(url).post(RequestBody.create(JSON_TYPE, json)).build();
+        return execute(request);
+    }
+
+    public CompletableFuture<String> get(String url) {
+        return execute(new Request.Builder().url(url).build());
+    }
+
+    /**
+     * 在厂商自己的线程池中执行 SDK 调用（例如 tencent 的 TrtcClient），同样受舱壁和熔断保护
+     */
+    public <T> CompletableFuture<T> call(Callable<T> task) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        if (!acquire(future)) {
+            return future;
+        }
+        try {
+            sdkExecutor.execute(() -> {
+                try {
+                    T result = task.call();
+                    release(true);
+                    future.complete(result);
+                } catch (Throwable e) {
+                    release(false);
+                    future.completeExceptionally(e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            release(false);
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    private CompletableFuture<String> execute(Request request) {
+        CompletableFuture<String> future = new CompletableFuture<>();
+        if (!acquire(future)) {
+            return future;
+        }
+        Call call = httpClient.newCall(request);
+        call.enqueue(new Callback() {
+            @Override
+            public void onFailure(Call call, IOException e) {
+                release(false);
+                future.completeExceptionally(e);
+            }
+
+            @Override
+            public void onResponse(Call call, Response response) {
+                try (ResponseBody body = response.body()) {
+                    String result = body == null ? null : body.string();
+                    //5xx 说明厂商服务异常，计入熔断统计，但响应内容照常返回给调用方处理
+                    release(response.code() < 500);
+                    future.complete(result);
+                } catch (IOException e) {
+                    release(false);
+                    future.completeExceptionally(e);
+                }
+            }
+        });
+        return future;
+    }
+
+    private boolean acquire(CompletableFuture<?> future) {
+        if (!circuitBreaker.tryAcquire()) {
+            Cat.logEvent("VendorClient", name + ":CircuitOpen");
+            future.completeExceptionally(new VendorUnavailableException(name + " circuit breaker is open"));
+            return false;
+        }
+        if (!bulkhead.tryAcquire()) {
+            //没有真正发出请求，不计入熔断统计，但半开状态的探测名额需要归还
+            circuitBreaker.releasePermission();
+            Cat.logEvent("VendorClient", name + ":BulkheadFull");
+            future.completeExceptionally(new VendorUnavailableException(name + " bulkhead is full"));
+            return false;
+        }
+        return true;
+    }
+
+    private void release(boolean success) {
+        bulkhead.release();
+        if (success) {
+            circuitBreaker.onSuccess();
+        } else {
+            circuitBreaker.onFailure();
+            log.warn("vendor call failed, vendor:{}, circuitState:{}", name, circuitBreaker.getState());
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public CircuitBreaker.State getCircuitState() {
+        return circuitBreaker.getState();
+    }
+
+    CircuitBreaker getCircuitBreaker() {
+        return circuitBreaker;
+    }
+
+    public int availablePermits() {
+        return bulkhead.availablePermits();
+    }
+
+    public void shutdown() {
+        sdkExecutor.shutdown();
+        httpClient.dispatcher().executorService().shutdown();
+    }
+
+    /**
+     * 熔断打开或舱壁已满时快速失败
+     */
+    public static class VendorUnavailableException extends RuntimeException {
+
+        public VendorUnavailableException(String message) {
+            super(message);
+        }
+    }
+
+    public static class VendorConfig {
+
+        private int maxConcurrent = 32;
+
+        private long connectTimeoutMillis = 500;
+
+        private long readTimeoutMillis = 5000;
+
+        private long writeTimeoutMillis = 500;
+
+        private boolean http2;
+
+        private int circuitWindowSize = 20;
+
+        private int circuitMinCalls = 10;
+
+        private double circuitFailureRate = 0.5;
+
+        private long circuitOpenMillis = 10_000;
+
+        public int getMaxConcurrent() {
+            return maxConcurrent;
+        }
+
+        public void setMaxConcurrent(int maxConcurrent) {
+            this.maxConcurrent = maxConcurrent;
+        }
+
+        public long getConnectTimeoutMillis() {
+            return connectTimeoutMillis;
+        }
+
+        public void setConnectTimeoutMillis(long connectTimeoutMillis) {
+            this.connectTimeoutMillis = connectTimeoutMillis;
+        }
+
+        public long getReadTimeoutMillis() {
+            return readTimeoutMillis;
+        }
+
+        public void setReadTimeoutMillis(long readTimeoutMillis) {
+            this.readTimeoutMillis = readTimeoutMillis;
+        }
+
+        public long getWriteTimeoutMillis() {
+            return writeTimeoutMillis;
+        }
+
+        public void setWriteTimeoutMillis(long writeTimeoutMillis) {
+            this.writeTimeoutMillis = writeTimeoutMillis;
+        }
+
+        public boolean isHttp2() {
+            return http2;
+        }
+
+        public void setHttp2(boolean http2) {
+            this.http2 = http2;
+        }
+
+        public int getCircuitWindowSize() {
+            return circuitWindowSize;
+        }
+
+        public void setCircuitWindowSize(int circuitWindowSize) {
+            this.circuitWindowSize = circuitWindowSize;
+        }
+
+        public int getCircuitMinCalls() {
+            return circuitMinCalls;
+        }
+
+        public void setCircuitMinCalls(int circuitMinCalls) {
+            this.circuitMinCalls = circuitMinCalls;
+        }
+
+        public double getCircuitFailureRate() {
+            return circuitFailureRate;
+        }
+
+        public void setCircuitFailureRate(double circuitFailureRate) {
+            this.circuitFailureRate = circuitFailureRate;
+        }
+
+        public long getCircuitOpenMillis() {
+            return circuitOpenMillis;
+        }
+
+        public void setCircuitOpenMillis(long circuitOpenMillis) {
+            this.circuitOpenMillis = circuitOpenMillis;
+        }
+    }
+}
@@ -1,6 +1,10 @@
 package cn.bixin.sona.server.room.config;
 
+import cn.bixin.sona.server.room.client.VendorClient;
+import okhttp3.ConnectionPool;
 import okhttp3.OkHttpClient;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.scheduling.annotation.EnableAsync;
@@ -18,12 +22,40 @@ public class AppConfig {
         return okHttpClient;
     }
 
+    /**
+     * 三方厂商共用的连接池，保持足够的空闲连接，避免混流高峰时反复建连和 TLS 握手
+     */
     @Bean("mixHttpClient")
-    public OkHttpClient mixHttpClient() {
+    public OkHttpClient mixHttpClient(@Value("${vendor.http.max.idle.connections:32}") int maxIdleConnections,
+                                      @Value("${vendor.http.keep.alive.seconds:300}") long keepAliveSeconds) {
         return new OkHttpClient.Builder()
+                .connectionPool(new ConnectionPool(maxIdleConnections, keepAliveSeconds, TimeUnit.SECONDS))
                 .readTimeout(5, TimeUnit.SECONDS)
                 .writeTimeout(500, TimeUnit.MILLISECONDS)
                 .connectTimeout(500, TimeUnit.MILLISECONDS).build();
     }
 
+    @Bean(name = "zegoVendorClient", destroyMethod = "shutdown")
+    public VendorClient zegoVendorClient(@Qualifier("mixHttpClient") OkHttpClient mixHttpClient,
+                                         @Value("${vendor.zego.max.concurrent:32}") int maxConcurrent,
+                                         @Value("${vendor.zego.timeout.millis:5000}") long timeoutMillis,
+                                         @Value("${vendor.zego.http2:false}") boolean http2) {
+        return new VendorClient("zego", mixHttpClient, vendorConfig(maxConcurrent, timeoutMillis, http2));
+    }
+
+    @Bean(name = "tencentVendorClient", destroyMethod = "shutdown")
+    public VendorClient tencentVendorClient(@Qualifier("mixHttpClient") OkHttpClient mixHttpClient,
+                                            @Value("${vendor.tencent.max.concurrent:32}") int maxConcurrent,
+                                            @Value("${vendor.tencent.timeout.millis:5000}") long timeoutMillis) {
+        return new VendorClient("tencent", mixHttpClient, vendorConfig(maxConcurrent, timeoutMillis, false));
+    }
+
+    private static VendorClient.VendorConfig vendorConfig(int maxConcurrent, long timeoutMillis, boolean http2) {
+        VendorClient.VendorConfig config = new VendorClient.VendorConfig();
+        config.setMaxConcurrent(maxConcurrent);
+        config.setReadTimeoutMillis(timeoutMillis);
+        config.setHttp2(http2);
+        return config;
+    }
+
 }
@@ -31,6 +31,38 @@ public class RoomAsyncConfig {
         return TtlExecutors.getTtlExecutor(executor);
     }
 
+    /**
+     * 执行混流定时器到期的任务，满了直接拒绝，由调用方重新调度，不能在定时器线程上执行
+     */
+    @Bean
+    public Executor mixDispatchExecutor() {
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setCorePoolSize(10);
+        executor.setMaxPoolSize(20);
+        executor.setQueueCapacity(500);
+        executor.setKeepAliveSeconds(10);
+        executor.setThreadNamePrefix("mix-dispatch-executor");
+        executor.setRejectedExecutionHandler(new ThreadPoolExecutor.AbortPolicy());
+        executor.initialize();
+        return TtlExecutors.getTtlExecutor(executor);
+    }
+
+    /**
+     * 大群组成员列表的加载任务，满了直接拒绝，不能在 dubbo 线程上执行整个分页加载
+     */
+    @Bean
+    public Executor groupMemberLoadExecutor() {
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setCorePoolSize(4);
+        executor.setMaxPoolSize(8);
+        executor.setQueueCapacity(100);
+        executor.setKeepAliveSeconds(10);
+        executor.setThreadNamePrefix("group-member-load-executor");
+        executor.setRejectedExecutionHandler(new ThreadPoolExecutor.AbortPolicy());
+        executor.initialize();
+        return TtlExecutors.getTtlExecutor(executor);
+    }
+
     @Bean
     public Executor sonaExecutor() {
         ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
@@ -8,6 +8,9 @@ import com.google.common.collect.Lists;
 import org.apache.dubbo.config.annotation.DubboService;
 
 import javax.annotation.Resource;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 
 @DubboService
 public class HotSwitchController implements HotSwitchRemoteService {
@@ -18,4 +21,12 @@ public class HotSwitchController implements HotSwitchRemoteService {
     public Response<Boolean> switchAudioSupplierRoom(long roomId, int mixed) {
         return Response.success(audioSwitchManager.roomSwitch(Lists.newArrayList(roomId), RoomMixedEnum.getRoomMixedEnum(mixed)));
     }
+
+    @Override
+    public Response<Map<Long, Boolean>> switchAudioSupplierRooms(List<Long> roomIds, int mixed) {
+        if (roomIds == null || roomIds.isEmpty()) {
+            return Response.success(Collections.emptyMap());
+        }
+        return Response.success(audioSwitchManager.batchRoomSwitch(roomIds, RoomMixedEnum.getRoomMixedEnum(mixed)));
+    }
 }
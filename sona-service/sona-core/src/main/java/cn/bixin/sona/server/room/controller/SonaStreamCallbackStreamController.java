@@ -7,13 +7,20 @@ import cn.bixin.sona.request.callback.*;
 import cn.bixin.sona.server.exception.ExceptionCode;
 import cn.bixin.sona.server.room.domain.enums.StreamSupplierEnum;
 import cn.bixin.sona.server.room.factory.StreamFactory;
+import cn.bixin.sona.server.room.service.redis.StreamCallbackRedisRepo;
 import com.alibaba.fastjson.JSON;
+import com.dianping.cat.Cat;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.dubbo.config.annotation.DubboService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 
 @DubboService
 public class SonaStreamCallbackStreamController implements SonaStreamCallbackRemoteService {
@@ -23,6 +30,9 @@ public class SonaStreamCallbackStreamController implements SonaStreamCallbackRem
     @Resource
     private StreamFactory streamFactory;
 
+    @Resource
+    private StreamCallbackRedisRepo streamCallbackRedisRepo;
+
     @Override
     public Response<Boolean> handleCreateStreamCallback(CreateStreamCallback callback) {
         log.info("handleCreateStreamCallback callback:{}", JSON.toJSONString(callback));
@@ -85,4 +95,103 @@ public class SonaStreamCallbackStreamController implements SonaStreamCallbackRem
         streamFactory.newInstance(null).handleMixEnd(callback);
         return Response.success(true);
     }
+
+    /**
+     * 按顺序处理，某个流或房间的回调处理失败后，同一个流或房间后面的回调不再处理，一起返回给 sona-web 按原来的顺序重试，
+     * 否则例如开播失败、关播成功，重试的开播会把已经关闭的流重新打开
+     */
+    @Override
+    public Response<List<Integer>> handleStreamCallbacks(List<StreamCallbackEvent> events) {
+        if (events == null || events.isEmpty()) {
+            return Response.success(Collections.emptyList());
+        }
+        List<Boolean> firstSeen = markFirstSeen(events);
+        List<Integer> failed = new ArrayList<>();
+        Set<String> failedKeys = new HashSet<>();
+        for (int i = 0; i < events.size(); i++) {
+            StreamCallbackEvent event = events.get(i);
+            if (!firstSeen.get(i)) {
+                log.info("handleStreamCallbacks duplicate callback, dedupKey:{}", event.getDedupKey());
+                Cat.logEvent("StreamCallback", "Duplicate");
+                continue;
+            }
+            List<String> orderKeys = orderKeys(event);
+            if (!Collections.disjoint(failedKeys, orderKeys)) {
+                log.warn("handleStreamCallbacks skip after earlier failure, dedupKey:{}", event.getDedupKey());
+                failed.add(i);
+                unmark(event.getDedupKey());
+                continue;
+            }
+            try {
+                if (event.getCreate() != null) {
+                    handleCreateStreamCallback(event.getCreate());
+                } else if (event.getClose() != null) {
+                    handleCloseStreamCallback(event.getClose());
+                }
+            } catch (Exception e) {
+                log.error("handleStreamCallbacks fail, dedupKey:{}", event.getDedupKey(), e);
+                //返回给 sona-web 重新提交，去掉去重标记才能再次处理
+                failed.add(i);
+                unmark(event.getDedupKey());
+                failedKeys.addAll(orderKeys);
+            }
+        }
+        return Response.success(failed);
+    }
+
+    /**
+     * 需要保序的范围：同一个流，以及同一个房间
+     */
+    private static List<String> orderKeys(StreamCallbackEvent event) {
+        if (event.getCreate() == null && event.getClose() == null) {
+            return Collections.emptyList();
+        }
+        List<String> keys = new ArrayList<>(2);
+        keys.add("stream:" + event.getStreamId());
+        String roomId = event.getCreate() != null
+                ? (event.getCreate().getRoomId() > 0 ? String.valueOf(event.getCreate().getRoomId()) : null)
+                : event.getClose().getRoomId();
+        if (StringUtils.isNotBlank(roomId)) {
+            keys.add("room:" + roomId);
+        }
+        return keys;
+    }
+
+    private void unmark(String dedupKey) {
+        if (dedupKey == null) {
+            return;
+        }
+        try {
+            streamCallbackRedisRepo.unmark(dedupKey);
+        } catch (Exception e) {
+            log.error("handleStreamCallbacks unmark fail, dedupKey:{}", dedupKey, e);
+        }
+    }
+
+    /**
+     * 没有 dedupKey 的回调不去重；redis 不可用时全部按第一次出现处理，重复回调由 DB 的状态判断兜底
+     */
+    private List<Boolean> markFirstSeen(List<StreamCallbackEvent> events) {
+        List<String> keys = new ArrayList<>(events.size());
+        for (StreamCallbackEvent event : events) {
+            if (event.getDedupKey() != null) {
+                keys.add(event.getDedupKey());
+            }
+        }
+        List<Boolean> marked = Collections.emptyList();
+        if (!keys.isEmpty()) {
+            try {
+                marked = streamCallbackRedisRepo.tryMark(keys);
+            } catch (Exception e) {
+                log.error("handleStreamCallbacks dedup fail, keys:{}", keys, e);
+                marked = Collections.nCopies(keys.size(), Boolean.TRUE);
+            }
+        }
+        List<Boolean> firstSeen = new ArrayList<>(events.size());
+        int index = 0;
+        for (StreamCallbackEvent event : events) {
+            firstSeen.add(event.getDedupKey() == null || marked.get(index++));
+        }
+        return firstSeen;
+    }
 }
@@ -3,6 +3,7 @@ package cn.bixin.sona.server.room.listener;
 
 import cn.bixin.sona.common.dto.Response;
 import cn.bixin.sona.server.mq.RocketSender;
+import cn.bixin.sona.server.room.manager.OfflineReconcileManager;
 import cn.bixin.sona.server.room.service.redis.ChatroomRedisRepo;
 import cn.bixin.sona.session.api.UserSessionRemoteService;
 import com.alibaba.fastjson.JSON;
@@ -23,10 +24,12 @@ import java.nio.charset.StandardCharsets;
 import java.util.List;
 
 /**
+ * 断线检测的 MQ 兜底：{@link OfflineReconcileManager} 本地检测失败、积压过多或节点下线时，检测通过延迟消息交给这里处理
+ *
  * @author qinwei
  */
 @Component
-@RocketMQMessageListener(topic = "TOPIC_SONA_MERCURY_OFFLINE", consumerGroup = "SONA_MERCURY_OFFLINE-SONA_GROUP")
+@RocketMQMessageListener(topic = OfflineReconcileManager.TOPIC_SONA_MERCURY_OFFLINE, consumerGroup = "SONA_MERCURY_OFFLINE-SONA_GROUP")
 public class SonaMercuryOfflineListener implements RocketMQListener<MessageExt> {
 
     private static final Logger log = LoggerFactory.getLogger(SonaMercuryOfflineListener.class);
@@ -58,7 +61,7 @@ public class SonaMercuryOfflineListener implements RocketMQListener<MessageExt>
             Response<List<String>> response = userSessionRemoteService.getChatRoomOnlineState(uid);
             if (!response.isSuccess()) {
                 log.error("SonaMercuryOfflineListener, getChatRoomOnlineState failed ! uid= {}", uid);
-                rocketSender.sendDelay("TOPIC_SONA_MERCURY_OFFLINE", body, 1);
+                rocketSender.sendDelay(OfflineReconcileManager.TOPIC_SONA_MERCURY_OFFLINE, body, 1);
                 return;
             }
             if (response.getResult().contains(String.valueOf(roomId))) {
@@ -2,7 +2,7 @@ package cn.bixin.sona.server.room.listener;
 
 
 import cn.bixin.sona.dto.RoomDTO;
-import cn.bixin.sona.server.mq.RocketSender;
+import cn.bixin.sona.server.room.manager.OfflineReconcileManager;
 import cn.bixin.sona.server.room.domain.db.ProductConfig;
 import cn.bixin.sona.server.room.domain.enums.IMModuleEnum;
 import cn.bixin.sona.server.room.service.ProductConfigService;
@@ -12,28 +12,44 @@ import com.alibaba.fastjson.JSON;
 import com.alibaba.fastjson.JSONObject;
 import com.dianping.cat.Cat;
 import com.dianping.cat.message.Transaction;
+import org.apache.rocketmq.client.consumer.DefaultMQPushConsumer;
+import org.apache.rocketmq.client.consumer.listener.ConsumeOrderlyStatus;
+import org.apache.rocketmq.client.consumer.listener.MessageListenerOrderly;
 import org.apache.rocketmq.common.message.MessageExt;
 import org.apache.rocketmq.spring.annotation.ConsumeMode;
 import org.apache.rocketmq.spring.annotation.RocketMQMessageListener;
 import org.apache.rocketmq.spring.core.RocketMQListener;
+import org.apache.rocketmq.spring.core.RocketMQPushConsumerLifecycleListener;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 import org.springframework.util.ObjectUtils;
-import org.springframework.util.StringUtils;
 
 import javax.annotation.Resource;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
+ * 房间在线状态按批消费：同一个 MessageQueue 内按顺序拉取的一批消息按房间分组，同一个用户的多次进出只保留最终状态，
+ * 每个房间一批只执行一次 lua 脚本（{@link ChatroomRedisRepo#applyMemberChanges(long, Map)}）
+ *
  * @author qinwei
  */
 @Component
 @RocketMQMessageListener(topic = "TOPIC_CHATROOM_SESSION_SONA", consumerGroup = "CHATROOM_SESSION-SONA_GROUP", consumeMode = ConsumeMode.ORDERLY)
-public class SonaSessionListener implements RocketMQListener<MessageExt> {
+public class SonaSessionListener implements RocketMQListener<MessageExt>, RocketMQPushConsumerLifecycleListener {
 
     private static final Logger log = LoggerFactory.getLogger(SonaSessionListener.class);
 
+    @Value("${sona.session.consume.batch.size:64}")
+    private int consumeBatchSize;
+
     @Resource
     private ProductConfigService productConfigService;
 
@@ -44,23 +60,70 @@ public class SonaSessionListener implements RocketMQListener<MessageExt> {
     private ChatroomRedisRepo chatroomRedisRepo;
 
     @Resource
-    private RocketSender rocketSender;
+    private OfflineReconcileManager offlineReconcileManager;
+
+    @Override
+    public void prepareStart(DefaultMQPushConsumer consumer) {
+        consumer.setConsumeMessageBatchMaxSize(consumeBatchSize);
+        consumer.setPullBatchSize(Math.max(consumer.getPullBatchSize(), consumeBatchSize));
+        consumer.setMessageListener((MessageListenerOrderly) (msgs, context) -> {
+            consume(msgs);
+            return ConsumeOrderlyStatus.SUCCESS;
+        });
+    }
 
     @Override
     public void onMessage(MessageExt messageExt) {
-        Cat.logBatchEvent("RocketMQListener", getClass().getSimpleName(), 1, 0);
-        if (ObjectUtils.isEmpty(messageExt.getBody())) {
-            log.warn("SonaSessionListener.onMessage, msg empty, msg={}", JSON.toJSONString(messageExt));
+        consume(Collections.singletonList(messageExt));
+    }
+
+    private void consume(List<MessageExt> msgs) {
+        Cat.logBatchEvent("RocketMQListener", getClass().getSimpleName(), msgs.size(), 0);
+        Map<Long, RoomChanges> rooms = new LinkedHashMap<>();
+        for (MessageExt messageExt : msgs) {
+            if (ObjectUtils.isEmpty(messageExt.getBody())) {
+                log.warn("SonaSessionListener.onMessage, msg empty, msg={}", JSON.toJSONString(messageExt));
+                continue;
+            }
+            String body = new String(messageExt.getBody(), StandardCharsets.UTF_8);
+            log.info("SonaSessionListener.onMessage， body={}, msgId={}", body, messageExt.getMsgId());
+            try {
+                JSONObject json = JSON.parseObject(body);
+                Long roomId = json.getLong("room");
+                if (roomId == null) {
+                    log.warn("SonaSessionListener.onMessage, room is null, msg={}", body);
+                    continue;
+                }
+                rooms.computeIfAbsent(roomId, k -> new RoomChanges()).add(json, body);
+            } catch (Exception e) {
+                log.error("SonaSessionListener.onMessage fail, msg: {}", body, e);
+            }
+        }
+        if (rooms.isEmpty()) {
             return;
         }
+        Map<Long, RoomDTO> roomDTOs = batchGetRooms(rooms.keySet());
+        rooms.forEach((roomId, changes) -> processRoom(roomId, roomDTOs, changes));
+    }
+
+    /**
+     * 顺序消费的监听器里抛出异常会挂起整个队列反复重试，批量查询失败时返回 null，改为每个房间单独查询，
+     * 单个房间失败只影响这个房间
+     */
+    private Map<Long, RoomDTO> batchGetRooms(Collection<Long> roomIds) {
+        try {
+            return roomService.batchGetRooms(new ArrayList<>(roomIds));
+        } catch (Exception e) {
+            log.error("SonaSessionListener.batchGetRooms fail, fall back to single query, roomIds={}", roomIds, e);
+            Cat.logEvent("SonaSession", "BatchGetRoomsFail");
+            return null;
+        }
+    }
 
-        String body = new String(messageExt.getBody(), StandardCharsets.UTF_8);
-        log.info("SonaSessionListener.onMessage， body={}, msgId={}", body, messageExt.getMsgId());
-        JSONObject json = JSON.parseObject(body);
-        Long roomId = json.getLong("room");
+    private void processRoom(Long roomId, Map<Long, RoomDTO> roomDTOs, RoomChanges changes) {
         Transaction t = Cat.newTransaction("MQListener.SonaSession", String.valueOf(roomId));
         try {
-            RoomDTO roomDTO = roomService.getRoomByRoomId(roomId);
+            RoomDTO roomDTO = roomDTOs != null ? roomDTOs.get(roomId) : roomService.getRoomByRoomId(roomId);
             if (roomDTO == null) {
                 log.error("SonaSessionListener, the room not exist, roomId={}", roomId);
                 return;
@@ -70,39 +133,59 @@ public class SonaSessionListener implements RocketMQListener<MessageExt> {
                 log.warn("SonaSessionListener roomId is belong group. roomId= {}", roomId);
                 return;
             }
-            String uid = json.getString("uid");
-            if (json.getIntValue("cmd") == 10) {
-                handEnter(roomId, uid);
-            } else {
-                // 业务正常离开,直接退出房间，否则延迟检测
-                if (json.getIntValue("reason") == 1) {
-                    chatroomRedisRepo.leaveChatroom(roomId, Long.parseLong(uid));
-                } else {
-                    rocketSender.sendDelay("TOPIC_SONA_MERCURY_OFFLINE", body, 2);
-                }
+            if (changes.collapsed > 0) {
+                Cat.logBatchEvent("SonaSession", "Collapsed", changes.collapsed, 0);
+            }
+            // 重新进房或正常离开的用户，之前登记的断线检测不再需要
+            changes.members.keySet().forEach(uid -> offlineReconcileManager.cancel(roomId, Long.parseLong(uid)));
+            if (!changes.members.isEmpty()) {
+                long entered = chatroomRedisRepo.applyMemberChanges(roomId, changes.members);
+                log.info("SonaSessionListener, apply member changes, roomId={}, members={}, entered={}", roomId, changes.members, entered);
             }
+            // 非业务正常离开，延迟检测
+            changes.delayChecks.forEach((uid, body) -> offlineReconcileManager.schedule(roomId, Long.parseLong(uid), body));
         } catch (Exception e) {
             t.setStatus(e);
-            log.error("SonaSessionListener.onMessage fail, msg: {}", body, e);
+            log.error("SonaSessionListener.processRoom fail, roomId={}, members={}", roomId, changes.members, e);
         } finally {
             t.complete();
         }
     }
 
-    private void handEnter(Long roomId, String uid) {
-        //踢出房间校验
-        if (chatroomRedisRepo.hasKickOut(roomId, uid)) {
-            log.warn("SonaSessionListener, the user has been kicked out from room , uid={}, roomId={}", uid, roomId);
-            return;
-        }
-        //是否已经存在
-        if (chatroomRedisRepo.userExistInOnlineList(roomId, uid)) {
-            log.info("SonaSessionListener, the user has been enter room uid={}, roomId={}", uid, roomId);
-            return;
+    /**
+     * 一个房间在一批消息中的成员变化，同一个用户只保留最终状态（last-write-wins）
+     */
+    private static class RoomChanges {
+
+        /**
+         * uid -> true 进入 / false 业务正常离开，直接退出房间
+         */
+        private final Map<String, Boolean> members = new LinkedHashMap<>();
+
+        /**
+         * uid -> 需要延迟检测的离开消息，只有用户在这一批中最后一条消息是非正常离开时才需要
+         */
+        private final Map<String, String> delayChecks = new LinkedHashMap<>();
+
+        private int collapsed;
+
+        void add(JSONObject json, String body) {
+            String uid = json.getString("uid");
+            if (members.containsKey(uid) || delayChecks.containsKey(uid)) {
+                collapsed++;
+            }
+            if (json.getIntValue("cmd") == 10) {
+                members.put(uid, Boolean.TRUE);
+                delayChecks.remove(uid);
+            } else if (json.getIntValue("reason") == 1) {
+                // 业务正常离开,直接退出房间
+                members.put(uid, Boolean.FALSE);
+                delayChecks.remove(uid);
+            } else {
+                // 否则延迟检测，不影响本批次已经确定的进出状态
+                delayChecks.put(uid, body);
+            }
         }
-        //获取用户在房间的分数，VIP用户分数为100，普通用户分数为1
-        int score = StringUtils.hasText(chatroomRedisRepo.getChatroomVipUser(roomId, uid)) ? 100 : 1;
-        chatroomRedisRepo.enterChatroom(roomId, uid, score);
     }
 
 }
@@ -2,11 +2,9 @@ package cn.bixin.sona.server.room.manager;
 
 import cn.bixin.sona.common.enums.PullMode;
 import cn.bixin.sona.common.enums.RoomStatus;
-import cn.bixin.sona.common.exception.YppRunTimeException;
 import cn.bixin.sona.common.spring.SpringApplicationContext;
 import cn.bixin.sona.dto.RoomDTO;
 import cn.bixin.sona.enums.RoomMixedEnum;
-import cn.bixin.sona.server.exception.ExceptionCode;
 import cn.bixin.sona.server.room.domain.db.ProductConfig;
 import cn.bixin.sona.server.room.domain.db.RoomConfig;
 import cn.bixin.sona.server.room.domain.enums.IMModuleEnum;
@@ -15,16 +13,29 @@ import cn.bixin.sona.server.room.service.*;
 import cn.bixin.sona.server.room.utils.StreamUtil;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.RateLimiter;
+import org.apache.dubbo.common.utils.NamedThreadFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Lazy;
 import org.springframework.stereotype.Component;
 import org.springframework.util.CollectionUtils;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
 @Lazy
@@ -56,180 +67,191 @@ public class AudioSwitchManager {
      */
     private static final int DEFAULT_PLAYER_TYPE = 1;
 
-    public boolean roomSwitch(List<Long> roomIds, RoomMixedEnum roomMixedEnum) {
-        log.info("roomSwitch roomIds:{}, roomMixedEnum:{}", roomIds, roomMixedEnum);
-
-        if (CollectionUtils.isEmpty(roomIds) || roomMixedEnum == null) {
-            return false;
-        }
+    @Value("${sona.switch.batch.size:200}")
+    private int batchSize;
 
-        ProductConfig productConfig = getConfigInfoByRoomId(roomIds.get(0));
-        if (productConfig == null) {
-            return false;
-        }
+    /**
+     * 所有批量切换共用的通知速率（每秒），避免瞬间打满 IM
+     */
+    @Value("${sona.switch.notify.permits.per.second:500}")
+    private double notifyPermitsPerSecond;
 
-        List<Long> roomIdsWithPeople = getRoomIdsWithPeople(roomIds);
-        doRoomSwitchWithPeople(roomIdsWithPeople, roomMixedEnum, productConfig);
+    @Value("${sona.switch.notify.threads:16}")
+    private int notifyThreads;
 
-        roomIds.removeAll(roomIdsWithPeople);
-        doRoomSwitchWithNoPeople(roomIds, roomMixedEnum, productConfig);
-        return true;
-    }
+    private RateLimiter notifyRateLimiter;
 
-    private ProductConfig getConfigInfoByRoomId(Long roomId) {
-        RoomDTO room = roomService.getRoomByRoomId(roomId);
-        ProductConfig config = productConfigService.getConfigInfoByCode(room.getProductCode());
-        String productCode = config.getProductCode();
+    private ThreadPoolExecutor notifyExecutor;
 
-        //优先通过房间拿配置
-        RoomConfig roomConfig = productConfigService.getRoomConfig(roomId);
-        return roomConfig != null ? ProductConfig.convertConfigInfo(roomConfig, productCode) : productConfigService.getConfigInfoByCode(productCode);
+    @PostConstruct
+    public void init() {
+        notifyRateLimiter = RateLimiter.create(notifyPermitsPerSecond);
+        notifyExecutor = new ThreadPoolExecutor(notifyThreads, notifyThreads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), new NamedThreadFactory("audio-switch-notify", true));
+        notifyExecutor.allowCoreThreadTimeOut(true);
     }
 
-    private void doRoomSwitchWithNoPeople(List<Long> roomIds, RoomMixedEnum roomMixedEnum, ProductConfig productConfig) {
-        updateAudioConfigInfo(roomIds, roomMixedEnum, productConfig);
+    @PreDestroy
+    public void destroy() {
+        notifyExecutor.shutdown();
     }
 
-    private List<Long> getRoomIdsWithPeople(List<Long> roomIds) {
-        Map<Long, Long> memberCount = batchGetRoomMemberCount(roomIds);
-        return memberCount.entrySet().stream().filter(e -> e.getValue() > 0L).map(Map.Entry::getKey).collect(Collectors.toList());
-    }
+    public boolean roomSwitch(List<Long> roomIds, RoomMixedEnum roomMixedEnum) {
+        log.info("roomSwitch roomIds:{}, roomMixedEnum:{}", roomIds, roomMixedEnum);
 
-    private void doRoomSwitchWithPeople(List<Long> roomIds, RoomMixedEnum roomMixedEnum, ProductConfig productConfig) {
-        updateAudioConfigInfo(roomIds, roomMixedEnum, productConfig);
-        sendSonaSwitchAudioSupplierMessage(roomIds, roomMixedEnum.getCode());
-        needToStopMixStream(roomIds, productConfig, roomMixedEnum);
+        if (CollectionUtils.isEmpty(roomIds) || roomMixedEnum == null) {
+            return false;
+        }
+        return !batchRoomSwitch(roomIds, roomMixedEnum).containsValue(false);
     }
 
-    public void sendSonaSwitchAudioSupplierMessage(List<Long> roomIds, int mixed) {
-        log.info("sendSonaSwitchAudioSupplierMessage, roomIds: {}, mixed: {}", roomIds, mixed);
-
-        Map<Long, RoomConfig> productConfigMap = productConfigService.getRoomConfigBatch(roomIds);
-
-        roomIds.forEach(roomId -> {
-            Map<String, Object> contentMap = Maps.newHashMap();
-
-            RoomMixedEnum roomMixedEnum = RoomMixedEnum.getRoomMixedEnum(mixed);
-            if (roomMixedEnum == null) {
-                return;
-            }
-
-            RoomConfig roomConfig = productConfigMap.get(roomId);
-
-            contentMap.put("pullMode", RoomMixedEnum.getPullMode(mixed));
-            contentMap.put("pushMode", RoomMixedEnum.getPushMode(mixed));
-            contentMap.put("supplier", RoomMixedEnum.getSupplier(mixed));
-            contentMap.put("roomId", roomId);
-            //设置码率
-            contentMap.put("bitrate", Objects.isNull(roomConfig) ? DEFAULT_BITRATE : roomConfig.getBitrate());
-            //设置播放器类型
-            contentMap.put("playerType", DEFAULT_PLAYER_TYPE);
-
-            String streamRoomId = String.valueOf(roomId);
-
-            if (roomMixedEnum == RoomMixedEnum.MIXED_ZEGO_MIXED || roomMixedEnum == RoomMixedEnum.MIXED_TECENT_MIXED) {
-                contentMap.put("streamId", streamRoomId);
-                if (roomConfig != null) {
-                    contentMap.put("streamUrl", streamService.getPlayUrl(roomId, roomConfig.getStreamSupplier()));
-                }
+    /**
+     * 批量切换音频供应商
+     * <p>
+     * 厂商故障时需要在几秒内切换几千个房间，这里按 batchSize 分批处理，每一批：
+     * <p>
+     * 1. 批量查询房间、房间配置、在线人数
+     * <p>
+     * 2. 一条语句写入 DB，一次 pipeline 更新 redis
+     * <p>
+     * 3. 有人的房间并发下发切换消息、停止 zego 混流，受全局速率限制
+     *
+     * @return 每个房间是否切换成功
+     */
+    public Map<Long, Boolean> batchRoomSwitch(List<Long> roomIds, RoomMixedEnum roomMixedEnum) {
+        Map<Long, Boolean> results = new LinkedHashMap<>(roomIds.size());
+        if (roomMixedEnum == null) {
+            roomIds.forEach(roomId -> results.put(roomId, false));
+            return results;
+        }
+        for (List<Long> batch : Lists.partition(roomIds.stream().distinct().collect(Collectors.toList()), batchSize)) {
+            try {
+                results.putAll(doBatchRoomSwitch(batch, roomMixedEnum));
+            } catch (Exception e) {
+                log.error("batchRoomSwitch error, roomIds:{}, roomMixedEnum:{}", batch, roomMixedEnum, e);
+                batch.forEach(roomId -> results.put(roomId, false));
             }
-
-            messageService.sendSonaHotSwitchMessage(roomId, contentMap, roomConfig.getImModule());
-        });
+        }
+        return results;
     }
 
-    private void updateAudioConfigInfo(List<Long> roomIds, RoomMixedEnum roomMixedEnum, ProductConfig productConfig) {
-        if (CollectionUtils.isEmpty(roomIds) || roomMixedEnum == null || productConfig == null) {
-            return;
+    private Map<Long, Boolean> doBatchRoomSwitch(List<Long> roomIds, RoomMixedEnum roomMixedEnum) {
+        Map<Long, Boolean> results = new HashMap<>(roomIds.size());
+        Map<Long, RoomDTO> rooms = roomService.batchGetRooms(roomIds);
+        Map<Long, ProductConfig> productConfigs = new HashMap<>(roomIds.size());
+        for (Long roomId : roomIds) {
+            RoomDTO room = rooms.get(roomId);
+            ProductConfig productConfig = room == null || room.getStatus() == RoomStatus.INVALID.getCode() ? null : productConfigService.getConfigInfoByCode(room.getProductCode());
+            if (productConfig == null) {
+                results.put(roomId, false);
+            } else {
+                productConfigs.put(roomId, productConfig);
+            }
         }
-
-        //批量查询t_room_config
-        Map<Long, RoomConfig> roomConfigMap = productConfigService.getRoomConfigBatch(roomIds);
-        //注意: 不支持单独切码率
-        if (!StreamUtil.isProductStreamEqual(productConfig, roomMixedEnum)) {
-            List<Long> addRoomIds = getAddRoomIds(roomIds, roomConfigMap);
-            productConfigService.addRoomConfig(wrapNewRoomConfig(addRoomIds, roomMixedEnum, productConfig));
+        if (productConfigs.isEmpty()) {
+            return results;
         }
 
-        if (!CollectionUtils.isEmpty(roomConfigMap)) {
-            productConfigService.updateRoomConfigAudioStreams(
-                    wrapUpdateRoomConfig(Lists.newArrayList(roomConfigMap.values()), roomMixedEnum));
+        List<Long> validRoomIds = Lists.newArrayList(productConfigs.keySet());
+        Map<Long, RoomConfig> roomConfigMap = productConfigService.getRoomConfigBatch(validRoomIds);
+        List<RoomConfig> addConfigs = Lists.newArrayList();
+        List<RoomConfig> updateConfigs = Lists.newArrayList();
+        Map<Long, RoomConfig> switchedConfigs = new HashMap<>(validRoomIds.size());
+        Set<Long> zegoMixRoomIds = new HashSet<>();
+        for (Long roomId : validRoomIds) {
+            ProductConfig productConfig = productConfigs.get(roomId);
+            RoomConfig roomConfig = roomConfigMap.get(roomId);
+            RoomConfig switched;
+            //优先通过房间拿配置
+            if (roomConfig != null) {
+                switched = RoomConfig.convertByRoomConfig(roomConfig, roomMixedEnum);
+                updateConfigs.add(switched);
+            } else {
+                //注意: 不支持单独切码率
+                switched = RoomConfig.convertByProductConfig(productConfig, roomMixedEnum);
+                switched.setRoomId(roomId);
+                if (!StreamUtil.isProductStreamEqual(productConfig, roomMixedEnum)) {
+                    addConfigs.add(switched);
+                }
+            }
+            switchedConfigs.put(roomId, switched);
+            ProductConfig current = roomConfig != null ? ProductConfig.convertConfigInfo(roomConfig, productConfig.getProductCode()) : productConfig;
+            //zego 切换到 单流 或者 切换到 tencent 都需要停止混流
+            if (isZegoMix(current) && !StreamUtil.isProductStreamEqual(current, roomMixedEnum)) {
+                zegoMixRoomIds.add(roomId);
+            }
         }
-    }
-
-    public Map<Long, Long> batchGetRoomMemberCount(List<Long> roomIds) {
-        RoomDTO room = roomService.getRoomByRoomId(roomIds.get(0));
-        checkRoomValid(room);
-        ProductConfig config = productConfigService.getConfigInfoByCode(room.getProductCode());
-        if (IMModuleEnum.CHATROOM.name().equals(config.getImModule())) {
-            return chatroomService.batchGetChatroomUserCount(roomIds);
-        } else {
-            return groupService.batchGetGroupMemberCount(roomIds);
+        productConfigService.addRoomConfig(addConfigs);
+        productConfigService.updateRoomConfigAudioStreams(updateConfigs);
+
+        List<Long> roomIdsWithPeople = getRoomIdsWithPeople(validRoomIds, productConfigs);
+        Map<Long, CompletableFuture<Boolean>> futures = new HashMap<>(roomIdsWithPeople.size());
+        for (Long roomId : roomIdsWithPeople) {
+            RoomConfig switched = switchedConfigs.get(roomId);
+            boolean stopMix = zegoMixRoomIds.contains(roomId);
+            futures.put(roomId, CompletableFuture.supplyAsync(() -> notifyRoomSwitch(roomId, switched, roomMixedEnum, stopMix), notifyExecutor));
         }
-    }
+        CompletableFuture.allOf(futures.values().toArray(new CompletableFuture[0])).join();
 
-    private void checkRoomValid(RoomDTO room) {
-        if (room == null) {
-            throw new YppRunTimeException(ExceptionCode.CHATROOM_NOT_EXISTS);
-        }
-        if (room.getStatus() == RoomStatus.INVALID.getCode()) {
-            throw new YppRunTimeException(ExceptionCode.ROOM_CLOSED_ERROR);
+        for (Long roomId : validRoomIds) {
+            CompletableFuture<Boolean> future = futures.get(roomId);
+            results.put(roomId, future == null || future.join());
         }
+        log.info("batchRoomSwitch done, size:{}, withPeople:{}, stopMix:{}, failed:{}", roomIds.size(), roomIdsWithPeople.size(),
+                zegoMixRoomIds.size(), results.values().stream().filter(success -> !success).count());
+        return results;
     }
 
-    private List<Long> getAddRoomIds(List<Long> roomIds, Map<Long, RoomConfig> roomConfigMap) {
-        List<Long> addRoomIds = Lists.newArrayList();
-        if (CollectionUtils.isEmpty(roomConfigMap)) {
-            addRoomIds = roomIds;
-        } else {
-            for (Long each : roomIds) {
-                if (!roomConfigMap.containsKey(each)) {
-                    addRoomIds.add(each);
-                }
+    @SuppressWarnings("UnstableApiUsage")
+    private boolean notifyRoomSwitch(Long roomId, RoomConfig roomConfig, RoomMixedEnum roomMixedEnum, boolean stopMix) {
+        notifyRateLimiter.acquire();
+        try {
+            sendSonaSwitchAudioSupplierMessage(roomId, roomConfig, roomMixedEnum);
+        } catch (Exception e) {
+            log.error("sendSonaSwitchAudioSupplierMessage error, roomId:{}, roomMixedEnum:{}", roomId, roomMixedEnum, e);
+            return false;
+        }
+        if (stopMix) {
+            try {
+                SpringApplicationContext.getBean(ZegoService.class).stopMixAsync(String.valueOf(roomId)).join();
+            } catch (Exception e) {
+                log.error("stopMix error, roomId:{}", roomId, e);
             }
         }
-
-        return addRoomIds;
-    }
-
-    private List<RoomConfig> wrapNewRoomConfig(List<Long> roomIds, RoomMixedEnum roomMixedEnum,
-                                               ProductConfig productConfig) {
-        List<RoomConfig> list = Lists.newArrayList();
-        roomIds.forEach(each -> {
-            RoomConfig roomConfig = RoomConfig.convertByProductConfig(productConfig, roomMixedEnum);
-            roomConfig.setRoomId(each);
-            list.add(roomConfig);
-        });
-
-        return list;
+        return true;
     }
 
-    private static List<RoomConfig> wrapUpdateRoomConfig(List<RoomConfig> roomConfigs, RoomMixedEnum roomMixedEnum) {
-        List<RoomConfig> list = Lists.newArrayList();
-        roomConfigs.forEach(each -> list.add(RoomConfig.convertByRoomConfig(each, roomMixedEnum)));
+    private void sendSonaSwitchAudioSupplierMessage(Long roomId, RoomConfig roomConfig, RoomMixedEnum roomMixedEnum) {
+        int mixed = roomMixedEnum.getCode();
+        Map<String, Object> contentMap = Maps.newHashMap();
+        contentMap.put("pullMode", RoomMixedEnum.getPullMode(mixed));
+        contentMap.put("pushMode", RoomMixedEnum.getPushMode(mixed));
+        contentMap.put("supplier", RoomMixedEnum.getSupplier(mixed));
+        contentMap.put("roomId", roomId);
+        //设置码率
+        contentMap.put("bitrate", Objects.isNull(roomConfig.getBitrate()) ? DEFAULT_BITRATE : roomConfig.getBitrate());
+        //设置播放器类型
+        contentMap.put("playerType", DEFAULT_PLAYER_TYPE);
+
+        if (roomMixedEnum == RoomMixedEnum.MIXED_ZEGO_MIXED || roomMixedEnum == RoomMixedEnum.MIXED_TECENT_MIXED) {
+            contentMap.put("streamId", String.valueOf(roomId));
+            contentMap.put("streamUrl", streamService.getPlayUrl(roomId, roomConfig.getStreamSupplier()));
+        }
 
-        return list;
+        messageService.sendSonaHotSwitchMessage(roomId, contentMap, roomConfig.getImModule());
     }
 
-    /**
-     * 是否需要停止混流
-     *
-     * @param roomIds
-     * @param productConfig
-     * @param roomMixedEnum
-     */
-    private void needToStopMixStream(List<Long> roomIds, ProductConfig productConfig, RoomMixedEnum roomMixedEnum) {
-        log.info("needToStopMixStream, roomIds:{}, streamSupplier:{}, pullMode:{}, roomMixed:{}", roomIds,
-                productConfig.getStreamSupplier(), productConfig.getPullMode(), roomMixedEnum);
-        //zego 切换到 单流 或者 切换到 tencent 都需要停止混流
-        boolean zegoMix = isZegoMix(productConfig);
-        boolean nonEqualStream = !StreamUtil.isProductStreamEqual(productConfig, roomMixedEnum);
-
-        if (zegoMix && nonEqualStream) {
-            for (Long roomId : roomIds) {
-                SpringApplicationContext.getBean(ZegoService.class).stopMix(String.valueOf(roomId));
-            }
+    private List<Long> getRoomIdsWithPeople(List<Long> roomIds, Map<Long, ProductConfig> productConfigs) {
+        Map<Boolean, List<Long>> chatroomIds = roomIds.stream()
+                .collect(Collectors.partitioningBy(roomId -> IMModuleEnum.CHATROOM.name().equals(productConfigs.get(roomId).getImModule())));
+        Map<Long, Long> memberCount = new HashMap<>(roomIds.size());
+        if (!chatroomIds.get(true).isEmpty()) {
+            memberCount.putAll(chatroomService.batchGetChatroomUserCount(chatroomIds.get(true)));
+        }
+        if (!chatroomIds.get(false).isEmpty()) {
+            memberCount.putAll(groupService.batchGetGroupMemberCount(chatroomIds.get(false)));
         }
+        return memberCount.entrySet().stream().filter(e -> e.getValue() != null && e.getValue() > 0L).map(Map.Entry::getKey).collect(Collectors.toList());
     }
 
     /**
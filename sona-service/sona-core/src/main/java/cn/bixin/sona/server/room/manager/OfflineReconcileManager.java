@@ -0,0 +1,243 @@
+package cn.bixin.sona.server.room.manager;
+
+import cn.bixin.sona.common.dto.Response;
+import cn.bixin.sona.server.mq.RocketSender;
+import cn.bixin.sona.server.room.service.redis.ChatroomRedisRepo;
+import cn.bixin.sona.session.api.UserSessionRemoteService;
+import com.dianping.cat.Cat;
+import com.dianping.cat.message.Transaction;
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.Timeout;
+import org.apache.dubbo.common.utils.NamedThreadFactory;
+import org.apache.dubbo.config.annotation.DubboReference;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 非正常离开房间（断线）的延迟检测
+ * <p>
+ * 网关网络抖动时，大量用户会在短时间内断开又重连，之前每次断线都要经过 MQ 延迟消息 + 一次 dubbo 查询。这里改为在本地时间轮中延迟检测：
+ * <p>
+ * 1. 断线时按 <房间,uid> 登记一个延迟检测，同一个 <房间,uid> 只保留最后一次
+ * <p>
+ * 2. 延迟期间用户重新进房（或正常离开）时直接取消检测，不需要任何查询
+ * <p>
+ * 3. 到期的检测攒成一批，一次 getChatRoomOnlineStates 查询后，把确实不在房间的用户移出在线列表
+ * <p>
+ * 同一个 uid 的会话消息按 uid 顺序投递到同一个队列，断线和重连通常由同一个节点消费。
+ * 查询失败、本地积压过多、节点下线时，退回到原来的 MQ 延迟消息（TOPIC_SONA_MERCURY_OFFLINE），由 SonaMercuryOfflineListener 处理
+ *
+ * @author qinwei
+ */
+@Component
+public class OfflineReconcileManager {
+
+    private static final Logger log = LoggerFactory.getLogger(OfflineReconcileManager.class);
+
+    public static final String TOPIC_SONA_MERCURY_OFFLINE = "TOPIC_SONA_MERCURY_OFFLINE";
+
+    private static final String CAT_TYPE = "OfflineReconcile";
+
+    /**
+     * 与 getChatRoomOnlineStates 的参数上限一致
+     */
+    private static final int RESOLVE_BATCH_SIZE = 200;
+
+    @Value("${sona.offline.check.local:true}")
+    private boolean localCheck;
+
+    @Value("${sona.offline.check.delay.millis:5000}")
+    private long delayMillis;
+
+    @Value("${sona.offline.check.max.pending:100000}")
+    private int maxPending;
+
+    @Resource
+    private ChatroomRedisRepo chatroomRedisRepo;
+
+    @Resource
+    private RocketSender rocketSender;
+
+    @DubboReference
+    private UserSessionRemoteService userSessionRemoteService;
+
+    private final Map<String, PendingCheck> pending = new ConcurrentHashMap<>();
+
+    private final Queue<PendingCheck> expired = new ConcurrentLinkedQueue<>();
+
+    private final AtomicInteger expiredSize = new AtomicInteger();
+
+    private HashedWheelTimer timer;
+
+    private ScheduledExecutorService resolver;
+
+    private volatile boolean stopped;
+
+    @PostConstruct
+    public void init() {
+        timer = new HashedWheelTimer(new NamedThreadFactory("offline-check-timer", true), 100, TimeUnit.MILLISECONDS, 512);
+        resolver = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("offline-check-resolver", true));
+        resolver.scheduleWithFixedDelay(this::resolveExpired, 200, 200, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 登记一个延迟检测，同一个 <房间,uid> 重复登记时以最后一次为准
+     *
+     * @param body 原始的会话消息，退回 MQ 延迟检测时使用
+     */
+    public void schedule(long roomId, long uid, String body) {
+        if (!localCheck || stopped || pending.size() >= maxPending) {
+            rocketSender.sendDelay(TOPIC_SONA_MERCURY_OFFLINE, body, 2);
+            return;
+        }
+        PendingCheck check = new PendingCheck(roomId, uid, body);
+        check.timeout = timer.newTimeout(timeout -> {
+            if (pending.remove(check.key, check)) {
+                expired.offer(check);
+                expiredSize.incrementAndGet();
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+        PendingCheck old = pending.put(check.key, check);
+        if (old != null) {
+            old.timeout.cancel();
+        }
+    }
+
+    /**
+     * 用户重新进房或正常离开，取消还没有到期的检测
+     */
+    public void cancel(long roomId, long uid) {
+        if (pending.isEmpty()) {
+            return;
+        }
+        PendingCheck check = pending.remove(PendingCheck.key(roomId, uid));
+        if (check != null) {
+            check.timeout.cancel();
+            Cat.logBatchEvent(CAT_TYPE, "Cancelled", 1, 0);
+        }
+    }
+
+    public int pendingCount() {
+        return pending.size() + expiredSize.get();
+    }
+
+    private void resolveExpired() {
+        try {
+            while (expiredSize.get() > 0) {
+                List<PendingCheck> batch = new ArrayList<>(Math.min(expiredSize.get(), RESOLVE_BATCH_SIZE));
+                PendingCheck check;
+                while (batch.size() < RESOLVE_BATCH_SIZE && (check = expired.poll()) != null) {
+                    expiredSize.decrementAndGet();
+                    batch.add(check);
+                }
+                resolve(batch);
+            }
+        } catch (Throwable e) {
+            log.error("OfflineReconcileManager.resolveExpired fail", e);
+        }
+    }
+
+    private void resolve(List<PendingCheck> batch) {
+        Set<Long> uids = new LinkedHashSet<>();
+        batch.forEach(check -> uids.add(check.uid));
+        Transaction t = Cat.newTransaction(CAT_TYPE, "Resolve");
+        try {
+            Response<Map<Long, List<String>>> response = userSessionRemoteService.getChatRoomOnlineStates(new ArrayList<>(uids));
+            if (!response.isSuccess()) {
+                log.error("OfflineReconcileManager, getChatRoomOnlineStates failed ! uids= {}", uids);
+                fallback(batch, 1);
+                return;
+            }
+            Map<Long, List<String>> states = response.getResult();
+            for (PendingCheck check : batch) {
+                List<String> rooms = states.get(check.uid);
+                if (rooms != null && rooms.contains(String.valueOf(check.roomId))) {
+                    log.info("OfflineReconcileManager, user reconnect. uid= {}, roomId= {}", check.uid, check.roomId);
+                    continue;
+                }
+                chatroomRedisRepo.leaveChatroom(check.roomId, check.uid);
+            }
+            Cat.logBatchEvent(CAT_TYPE, "Resolved", batch.size(), 0);
+        } catch (Exception e) {
+            t.setStatus(e);
+            log.error("OfflineReconcileManager.resolve fail, uids= {}", uids, e);
+            fallback(batch, 1);
+        } finally {
+            t.complete();
+        }
+    }
+
+    private void fallback(List<PendingCheck> checks, int delayLevel) {
+        Cat.logBatchEvent(CAT_TYPE, "Fallback", checks.size(), 0);
+        for (PendingCheck check : checks) {
+            rocketSender.sendDelay(TOPIC_SONA_MERCURY_OFFLINE, check.body, delayLevel);
+        }
+    }
+
+    /**
+     * 节点下线时，还没有完成的检测全部退回到 MQ 延迟消息
+     */
+    @PreDestroy
+    public void destroy() {
+        stopped = true;
+        timer.stop();
+        resolver.shutdown();
+        try {
+            resolver.awaitTermination(3, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        List<PendingCheck> remaining = new ArrayList<>(pending.values());
+        pending.clear();
+        PendingCheck check;
+        while ((check = expired.poll()) != null) {
+            remaining.add(check);
+        }
+        if (!remaining.isEmpty()) {
+            log.info("OfflineReconcileManager destroy, fallback to mq, size={}", remaining.size());
+            fallback(remaining, 2);
+        }
+    }
+
+    private static class PendingCheck {
+
+        private final long roomId;
+
+        private final long uid;
+
+        private final String body;
+
+        private final String key;
+
+        private Timeout timeout;
+
+        PendingCheck(long roomId, long uid, String body) {
+            this.roomId = roomId;
+            this.uid = uid;
+            this.body = body;
+            this.key = key(roomId, uid);
+        }
+
+        static String key(long roomId, long uid) {
+            return roomId + ":" + uid;
+        }
+    }
+}
@@ -57,11 +57,12 @@ public class StreamManagerImpl implements StreamManager {
     public StreamConfigInfoDTO createStreamConfig(ProductConfig config, RoomDTO room, long uid, boolean isGuest) {
         StreamConfigInfoDTO streamConfig = StreamConfigInfoConverter.convertStreamConfig(config);
         buildStreamId(streamConfig, config, room.getRoomId(), uid);
-        buildAudioToken(streamConfig, config, uid);
+        //签名只生成一次，audioToken 与 appInfo 使用同一个签名
+        buildAppInfo(streamConfig, config, uid, isGuest);
+        buildAudioToken(streamConfig, config);
         buildStreamUrl(streamConfig, config, room.getRoomId());
         buildStreamRoomId(streamConfig, room);
         buildSwitchSpeaker(streamConfig);
-        buildAppInfo(streamConfig, config, uid, isGuest);
 
         return streamConfig;
     }
@@ -205,10 +206,9 @@ public class StreamManagerImpl implements StreamManager {
         streamConfig.setStreamUrl(streamService.getPlayUrl(roomId, config.getStreamSupplier()));
     }
 
-    private void buildAudioToken(StreamConfigInfoDTO streamConfig, ProductConfig config, long uid) {
-        if (isTencent(config)) {
-            UserSginInputParam userSginInputParam = StreamConfigInfoConverter.convertUserSignInputParam(config, uid, false);
-            streamConfig.setAudioToken(streamService.genUserSig(userSginInputParam).getAppSign());
+    private void buildAudioToken(StreamConfigInfoDTO streamConfig, ProductConfig config) {
+        if (isTencent(config) && streamConfig.getAppInfo() != null) {
+            streamConfig.setAudioToken(streamConfig.getAppInfo().getAppSign());
         }
     }
 
@@ -15,5 +15,13 @@ public interface RoomConfigMapper {
 
     int insertSelective(RoomConfig roomConfig);
 
+    /**
+     * 批量新增，房间配置已经存在时只更新流配置
+     */
+    int batchInsert(List<RoomConfig> roomConfigs);
+
+    /**
+     * 一条语句批量更新流配置
+     */
     int updateStreamConfigAudios(List<RoomConfig> config);
 }
@@ -10,10 +10,21 @@ import java.util.List;
 @Mapper
 public interface RoomGroupMemberMapper {
 
-    int insertSelective(GroupMember groupMember);
+    /**
+     * 依赖 (room_id, uid) 唯一索引，成员记录已经存在时不插入，返回 0
+     */
+    int insertIgnore(GroupMember groupMember);
 
     GroupMember selectByRoomIdAndUid(@Param("roomId") long roomId, @Param("uid") long uid);
 
+    /**
+     * 删除离开过的成员记录，重新进入时插入新记录，使用新的 id 作为入群序号
+     */
+    int deleteLeftMember(@Param("roomId") long roomId, @Param("uid") long uid);
+
+    /**
+     * 只更新在群组中的成员，返回的行数用于维护群组人数
+     */
     int updateStatusLeave(@Param("roomId") long roomId, @Param("uid") long uid);
 
     /**
@@ -36,6 +47,9 @@ public interface RoomGroupMemberMapper {
 
     List<GroupUserCount> selectGroupUserCountByRoomIds(@Param("roomIds") List<Long> roomIds);
 
+    /**
+     * 按 id 翻页，anchor 为上一页最后一个成员的 id
+     */
     List<GroupMember> selectGroupMemberListByRoomId(@Param("roomId") long roomId,
                                                           @Param("anchor") long anchor,
                                                           @Param("limit") int limit);
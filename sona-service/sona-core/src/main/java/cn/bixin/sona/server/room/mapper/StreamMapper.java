@@ -27,7 +27,12 @@ public interface StreamMapper {
 
     void openStream(@Param("streamId") String streamId);
 
-    void closeStream(@Param("streamId") String streamId, @Param("closeType") int closeType,
+    /**
+     * 关闭还没有关闭的流
+     *
+     * @return 实际关闭的行数，流不存在或已经关闭时为 0
+     */
+    int closeStream(@Param("streamId") String streamId, @Param("closeType") int closeType,
                      @Param("errMsg") String errMsg);
 
     void closeStreams(@Param("streamIds") List<String> streamIds);
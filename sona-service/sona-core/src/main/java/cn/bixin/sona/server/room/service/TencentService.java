@@ -1,6 +1,7 @@
 package cn.bixin.sona.server.room.service;
 
 import cn.bixin.sona.dto.RoomDTO;
+import cn.bixin.sona.server.room.client.VendorClient;
 import cn.bixin.sona.server.room.domain.request.TencentStartMixRequest;
 import com.alibaba.fastjson.JSON;
 import com.alibaba.fastjson.JSONObject;
@@ -15,10 +16,10 @@ import com.tencentcloudapi.trtc.v20190722.models.StartMCUMixTranscodeResponse;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Value;
-import org.springframework.scheduling.annotation.Async;
 import org.springframework.stereotype.Component;
 
 import javax.annotation.Resource;
+import java.util.concurrent.CompletionException;
 
 /**
  * @author qinwei
@@ -46,52 +47,85 @@ public class TencentService {
     @Value("${tencent.appid}")
     private int tencentAppId;
 
-    @Async("mixStreamExecutor")
+    @Resource(name = "tencentVendorClient")
+    private VendorClient tencentVendorClient;
+
+    private volatile TrtcClient trtcClient;
+
+    /**
+     * 通过 tencentVendorClient 异步调用 TRTC SDK，受 tencent 的并发上限和熔断保护，不占用调用方线程
+     */
     public void mix(long roomId) {
         log.info("tencentStartMix roomId:{}", roomId);
         RoomDTO roomDTO = roomService.getRoomByRoomId(roomId);
         if (roomDTO == null) {
             return;
         }
+        StartMCUMixTranscodeRequest req;
         try {
-            TrtcClient client = generateTrtcClient();
-            TencentStartMixRequest request = new TencentStartMixRequest();
-            request.setRoomId(roomId);
-            request.setSdkAppId(tencentAppId);
-
-            TencentStartMixRequest.OutputParams outputParams = new TencentStartMixRequest.OutputParams();
-            outputParams.setStreamId(String.valueOf(roomId));
-            outputParams.setPureAudioStream(0);
-            TencentStartMixRequest.EncodeParams encodeParams = new TencentStartMixRequest.EncodeParams();
-            encodeParams.setAudioSampleRate(48000);
-            encodeParams.setAudioBitrate(128);
-            encodeParams.setAudioChannels(2);
-            encodeParams.setVideoWidth(16);
-            encodeParams.setVideoHeight(16);
-            encodeParams.setVideoBitrate(2);
-            encodeParams.setVideoFramerate(15);
-            encodeParams.setVideoGop(2);
-
-            TencentStartMixRequest.LayoutParams layoutParams = new TencentStartMixRequest.LayoutParams();
-            layoutParams.setTemplate(0);
-
-            request.setEncodeParams(encodeParams);
-            request.setLayoutParams(layoutParams);
-            request.setOutputParams(outputParams);
-
-            StartMCUMixTranscodeRequest req = StartMCUMixTranscodeRequest.fromJsonString(JSON.toJSONString(request), StartMCUMixTranscodeRequest.class);
-            StartMCUMixTranscodeResponse resp = client.StartMCUMixTranscode(req);
-
-            JSONObject resultObj = JSON.parseObject(StartMCUMixTranscodeRequest.toJsonString(resp));
-            String requestId = resultObj.get("RequestId").toString();
-            log.info("tencentMix success. roomId:{}, requestId:{}", roomId, requestId);
-        } catch (TencentCloudSDKException e) {
-            log.error("TencentCloudSDKException error!", e);
-            Cat.logEvent("Tencent_MIX_ERROR", "Tencent_MIX" + roomId + ", requestId:" + e.getRequestId());
+            req = StartMCUMixTranscodeRequest.fromJsonString(JSON.toJSONString(buildMixRequest(roomId)), StartMCUMixTranscodeRequest.class);
         } catch (Exception e) {
             log.error("tencentMix error!", e);
             Cat.logEvent("Tencent_MIX_ERROR", "Tencent_MIX" + roomId);
+            return;
+        }
+        tencentVendorClient.call(() -> getTrtcClient().StartMCUMixTranscode(req)).whenComplete((resp, e) -> {
+            Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+            if (cause == null) {
+                JSONObject resultObj = JSON.parseObject(StartMCUMixTranscodeRequest.toJsonString(resp));
+                String requestId = resultObj.get("RequestId").toString();
+                log.info("tencentMix success. roomId:{}, requestId:{}", roomId, requestId);
+            } else if (cause instanceof TencentCloudSDKException) {
+                log.error("TencentCloudSDKException error!", cause);
+                Cat.logEvent("Tencent_MIX_ERROR", "Tencent_MIX" + roomId + ", requestId:" + ((TencentCloudSDKException) cause).getRequestId());
+            } else {
+                log.error("tencentMix error!", cause);
+                Cat.logEvent("Tencent_MIX_ERROR", "Tencent_MIX" + roomId);
+            }
+        });
+    }
+
+    private TencentStartMixRequest buildMixRequest(long roomId) {
+        TencentStartMixRequest request = new TencentStartMixRequest();
+        request.setRoomId(roomId);
+        request.setSdkAppId(tencentAppId);
+
+        TencentStartMixRequest.OutputParams outputParams = new TencentStartMixRequest.OutputParams();
+        outputParams.setStreamId(String.valueOf(roomId));
+        outputParams.setPureAudioStream(0);
+        TencentStartMixRequest.EncodeParams encodeParams = new TencentStartMixRequest.EncodeParams();
+        encodeParams.setAudioSampleRate(48000);
+        encodeParams.setAudioBitrate(128);
+        encodeParams.setAudioChannels(2);
+        encodeParams.setVideoWidth(16);
+        encodeParams.setVideoHeight(16);
+        encodeParams.setVideoBitrate(2);
+        encodeParams.setVideoFramerate(15);
+        encodeParams.setVideoGop(2);
+
+        TencentStartMixRequest.LayoutParams layoutParams = new TencentStartMixRequest.LayoutParams();
+        layoutParams.setTemplate(0);
+
+        request.setEncodeParams(encodeParams);
+        request.setLayoutParams(layoutParams);
+        request.setOutputParams(outputParams);
+        return request;
+    }
+
+    /**
+     * TrtcClient 内部复用 http 连接，不需要每次调用都重新创建
+     */
+    private TrtcClient getTrtcClient() {
+        TrtcClient client = trtcClient;
+        if (client == null) {
+            synchronized (this) {
+                client = trtcClient;
+                if (client == null) {
+                    trtcClient = client = generateTrtcClient();
+                }
+            }
         }
+        return client;
     }
 
     private TrtcClient generateTrtcClient() {
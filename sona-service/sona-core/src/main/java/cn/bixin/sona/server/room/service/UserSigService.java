@@ -0,0 +1,108 @@
+package cn.bixin.sona.server.room.service;
+
+import cn.bixin.sona.server.room.utils.TLSSigAPIv2;
+import cn.bixin.sona.server.room.utils.ZegoUtils;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import java.time.Duration;
+
+/**
+ * 三方 RTC 的用户签名（tencent UserSig、zego 登录 token）
+ * <p>
+ * 进房是调用量最大的接口，每次进房都要生成签名（HMAC + zlib / MD5），这里按 uid 缓存签名：
+ * <p>
+ * 1. 缓存时间只占签名有效期的一小部分，客户端拿到的签名总是还有足够长的有效期
+ * <p>
+ * 2. 签名实例只创建一次，Mac、MessageDigest 按线程复用
+ *
+ * @author qinwei
+ */
+@Service
+public class UserSigService {
+
+    /**
+     * tencent UserSig 的有效期（秒）
+     */
+    private static final long TENCENT_SIG_EXPIRE_SECONDS = 604800;
+
+    /**
+     * zego token 的有效期（秒）
+     */
+    private static final long ZEGO_TOKEN_EXPIRE_SECONDS = 30 * 60;
+
+    @Value("${tencent.secretkey}")
+    private String tencentSecretKey;
+
+    @Value("${tencent.appid}")
+    private int tencentAppId;
+
+    @Value("${zego.appsign}")
+    private String zegoAppSign;
+
+    @Value("${zego.app.id}")
+    private int zegoAppId;
+
+    @Value("${sona.user.sig.cache.size:200000}")
+    private long cacheSize;
+
+    /**
+     * 默认缓存 1 天，签名至少还有 6 天有效期
+     */
+    @Value("${sona.tencent.sig.cache.seconds:86400}")
+    private long tencentCacheSeconds;
+
+    /**
+     * 默认缓存 5 分钟，token 至少还有 25 分钟有效期
+     */
+    @Value("${sona.zego.token.cache.seconds:300}")
+    private long zegoCacheSeconds;
+
+    private TLSSigAPIv2 tencentSigner;
+
+    private String zegoAppIdStr;
+
+    private String zegoAppSign32;
+
+    private Cache<Long, String> tencentSigCache;
+
+    private Cache<Long, String> zegoTokenCache;
+
+    @PostConstruct
+    public void init() {
+        tencentSigner = new TLSSigAPIv2(tencentAppId, tencentSecretKey);
+        zegoAppIdStr = String.valueOf(zegoAppId);
+        zegoAppSign32 = ZegoUtils.normalizeAppSign(zegoAppSign);
+        tencentSigCache = Caffeine.newBuilder().maximumSize(cacheSize)
+                .expireAfterWrite(Duration.ofSeconds(Math.min(tencentCacheSeconds, TENCENT_SIG_EXPIRE_SECONDS / 2))).build();
+        zegoTokenCache = Caffeine.newBuilder().maximumSize(cacheSize)
+                .expireAfterWrite(Duration.ofSeconds(Math.min(zegoCacheSeconds, ZEGO_TOKEN_EXPIRE_SECONDS / 2))).build();
+    }
+
+    public String getTencentUserSig(long uid) {
+        String sig = tencentSigCache.getIfPresent(uid);
+        if (sig == null) {
+            sig = tencentSigner.genSig(String.valueOf(uid), TENCENT_SIG_EXPIRE_SECONDS);
+            //生成失败时返回空串，不缓存
+            if (!sig.isEmpty()) {
+                tencentSigCache.put(uid, sig);
+            }
+        }
+        return sig;
+    }
+
+    public String getZegoToken(long uid) {
+        String token = zegoTokenCache.getIfPresent(uid);
+        if (token == null) {
+            long expired = System.currentTimeMillis() / 1000 + ZEGO_TOKEN_EXPIRE_SECONDS;
+            token = ZegoUtils.getZeGouToken(zegoAppIdStr, zegoAppSign32, String.valueOf(uid), expired);
+            if (token != null) {
+                zegoTokenCache.put(uid, token);
+            }
+        }
+        return token;
+    }
+}
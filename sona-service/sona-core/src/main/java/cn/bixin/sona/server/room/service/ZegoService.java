@@ -20,14 +20,11 @@ import com.dianping.cat.Cat;
 import com.dianping.cat.message.Transaction;
 import com.google.common.base.Joiner;
 import com.google.common.collect.Lists;
-import io.netty.util.Timeout;
-import io.netty.util.TimerTask;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.redis.core.StringRedisTemplate;
-import org.springframework.scheduling.annotation.Async;
 import org.springframework.stereotype.Service;
 import org.springframework.util.CollectionUtils;
 import org.springframework.util.StringUtils;
@@ -35,6 +32,11 @@ import org.springframework.util.StringUtils;
 import javax.annotation.Resource;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
@@ -85,59 +87,184 @@ public class ZegoService {
     @Value("${zego.mix.retry.count}")
     private int retry;
 
+    @Value("${zego.mix.debounce.millis:300}")
+    private long mixDebounceMillis;
+
+    @Value("${zego.mix.retry.max.backoff.millis:10000}")
+    private long mixMaxBackoffMillis;
+
+    @Resource(name = "mixStreamExecutor")
+    private Executor mixStreamExecutor;
+
+    @Resource(name = "mixDispatchExecutor")
+    private Executor mixDispatchExecutor;
+
+    /**
+     * 第一次重试的间隔，之后按指数退避
+     */
+    private static final long MIX_RETRY_BASE_MILLIS = 1500;
+
+    private final Map<Long, MixState> mixStates = new ConcurrentHashMap<>();
+
     private static final String KEY_ZEGO_ACCESS_TOKEN = "zego:access:token";
 
     private static String getKeyZegoAccessToken(int zegoAppId) {
         return Joiner.on(":").join(KEY_ZEGO_ACCESS_TOKEN, zegoAppId);
     }
 
-    @Async("mixStreamExecutor")
+    /**
+     * 请求对房间重新混流
+     * <p>
+     * 上麦、下麦时每次流变化都会请求混流，开播时座位频繁变化会产生大量重复的混流请求。这里按房间合并：
+     * <p>
+     * 1. 同一个房间在 {@code zego.mix.debounce.millis} 内的请求只混一次，混流时重新加载房间当前的流列表，以最终状态为准
+     * <p>
+     * 2. 同一个房间同时只有一个混流请求在执行，执行期间到达的请求在本次结束后再混一次
+     * <p>
+     * 3. 需要重试时（流不存在、超时、超频）不在执行线程上循环，而是按指数退避重新调度，最多重试 {@code zego.mix.retry.count} 次；
+     * 重试期间新的请求不会重置重试次数，只有混流成功才重置
+     */
     public void mix(long roomId) {
+        while (true) {
+            MixState state = mixStates.computeIfAbsent(roomId, k -> new MixState());
+            synchronized (state) {
+                if (state.removed) {
+                    continue;
+                }
+                if (state.running) {
+                    state.dirty = true;
+                } else if (!state.scheduled) {
+                    scheduleMix(roomId, state, mixDebounceMillis);
+                    return;
+                }
+                Cat.logEvent("ZegoMixCoalesced", String.valueOf(roomId));
+                return;
+            }
+        }
+    }
+
+    /**
+     * 调用方需要持有 state 的锁
+     */
+    private void scheduleMix(long roomId, MixState state, long delayMillis) {
+        state.scheduled = true;
+        RoomAsyncConfig.MIX_STREAM_TIMER.newTimeout(timeout -> dispatchMix(roomId, state), delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 在定时器线程上执行，线程池满时不能在这里混流，否则会阻塞所有房间的定时任务，稍后重新调度
+     */
+    private void dispatchMix(long roomId, MixState state) {
+        try {
+            mixDispatchExecutor.execute(() -> runMix(roomId, state));
+        } catch (RejectedExecutionException e) {
+            Cat.logEvent("ZegoMixRejected", String.valueOf(roomId));
+            RoomAsyncConfig.MIX_STREAM_TIMER.newTimeout(timeout -> dispatchMix(roomId, state), mixDebounceMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void runMix(long roomId, MixState state) {
+        synchronized (state) {
+            state.scheduled = false;
+            state.running = true;
+            state.dirty = false;
+        }
+        CompletableFuture<MixOutcome> outcome;
+        try {
+            outcome = mixOnce(roomId);
+        } catch (Throwable e) {
+            log.error("zego mix stream failed, roomId:{}", roomId, e);
+            outcome = CompletableFuture.completedFuture(MixOutcome.DONE);
+        }
+        outcome.whenComplete((result, e) -> {
+            if (e != null) {
+                log.error("zego mix stream failed, roomId:{}", roomId, e);
+            }
+            finishMix(roomId, state, result == null ? MixOutcome.DONE : result);
+        });
+    }
+
+    private void finishMix(long roomId, MixState state, MixOutcome outcome) {
+        synchronized (state) {
+            state.running = false;
+            //失败次数跨越合并的请求累计，避免房间反复变化时无限重试
+            state.attempt = outcome == MixOutcome.DONE ? 0 : state.attempt + 1;
+            if (state.attempt > retry) {
+                state.removed = true;
+                mixStates.remove(roomId, state);
+                retryExhausted(roomId, outcome);
+            } else if (state.dirty) {
+                scheduleMix(roomId, state, mixDebounceMillis);
+            } else if (outcome != MixOutcome.DONE) {
+                long backoff = Math.min(MIX_RETRY_BASE_MILLIS << Math.min(state.attempt - 1, 10), mixMaxBackoffMillis);
+                log.info("zego mix retry, roomId:{}, outcome:{}, attempt:{}, backoff:{}", roomId, outcome, state.attempt, backoff);
+                scheduleMix(roomId, state, backoff);
+            } else {
+                state.removed = true;
+                mixStates.remove(roomId, state);
+                retryExhausted(roomId, outcome);
+            }
+        }
+    }
+
+    private void retryExhausted(long roomId, MixOutcome outcome) {
+        if (outcome == MixOutcome.RETRY_NON_EXIST_STREAM) {
+            log.warn("zego mix stream failed, swith to single, roomId:{}", roomId);
+            mixStreamExecutor.execute(() -> audioSwitchManager.roomSwitch(Lists.newArrayList(roomId), RoomMixedEnum.MIXED_ZEGO_SINGLE));
+        } else if (outcome == MixOutcome.RETRY_TIMEOUT) {
+            log.warn("zego mix stream timeout or overclock, retry exhausted, roomId:{}", roomId);
+            Cat.logEvent("ZegoMixRetryExhausted", String.valueOf(roomId));
+        }
+    }
+
+    /**
+     * 按房间当前的流列表混流一次
+     * <p>
+     * 请求 zego 期间不占用 mixStreamExecutor 的线程，结果返回后再回到 mixStreamExecutor 上处理
+     */
+    private CompletableFuture<MixOutcome> mixOnce(long roomId) {
         TraceHelper.init();
         log.info("start zego mix , roomId:{}", roomId);
-        Transaction transaction = Cat.newTransaction("ZegoMixStream", String.valueOf(roomId));
         try {
             List<Stream> streamList = getValidStreamIds(roomId);
             if (CollectionUtils.isEmpty(streamList)) {
                 log.info("mix streamList is null. roomId:{}", roomId);
-                return;
+                return CompletableFuture.completedFuture(MixOutcome.DONE);
             }
-            String result = doMix(streamList, roomId);
-
-            int index = 1;
-            while (!doMixSuccess(result) && doMixNonExistStream(result) && index < retry) {
-                List<String> notExistStreamList = getNotExistSteamList(result);
-                if (!CollectionUtils.isEmpty(notExistStreamList)) {
-                    notExistStreamList.forEach(s -> streamService.closeStream(s));
-                }
-
-                streamList = getValidStreamIds(roomId);
-                if (CollectionUtils.isEmpty(streamList)) {
-                    result = "{\"code\":0,\"data\":{}}";
-                    break;
-                }
+            return doMix(streamList, roomId).thenApplyAsync(result -> handleMixResult(roomId, result), mixStreamExecutor);
+        } finally {
+            TraceHelper.reset();
+        }
+    }
 
-                result = doMix(streamList, roomId);
-                index++;
+    private MixOutcome handleMixResult(long roomId, String result) {
+        Transaction transaction = Cat.newTransaction("ZegoMixStream", String.valueOf(roomId));
+        try {
+            log.info("doMix result:{}, roomId:{}", result, roomId);
+            if (doMixSuccess(result)) {
+                return MixOutcome.DONE;
+            }
+            if (doMixNonExistStream(result)) {
+                //关闭不存在的流，重试时重新加载流列表
+                getNotExistSteamList(result).forEach(s -> streamService.closeStream(s));
+                return MixOutcome.RETRY_NON_EXIST_STREAM;
             }
-
             if (mixTimeoutOrOverclock(result)) {
                 Cat.logEvent("ZegoMixTimeoutOrOverclock", String.valueOf(roomId));
-                mixStream(roomId);
-            } else if (!doMixSuccess(result)) {
-                log.warn("zego mix stream failed, swith to single, roomId:{}, result:{}", roomId, result);
-                audioSwitchManager.roomSwitch(Lists.newArrayList(roomId), RoomMixedEnum.MIXED_ZEGO_SINGLE);
+                return MixOutcome.RETRY_TIMEOUT;
             }
+            log.warn("zego mix stream failed, swith to single, roomId:{}, result:{}", roomId, result);
+            audioSwitchManager.roomSwitch(Lists.newArrayList(roomId), RoomMixedEnum.MIXED_ZEGO_SINGLE);
         } catch (Exception e) {
             log.error("zego mix stream failed, roomId:{}", roomId, e);
             transaction.setStatus(e);
         } finally {
             transaction.complete();
-            TraceHelper.reset();
         }
+        return MixOutcome.DONE;
     }
 
-    private String doMix(List<Stream> mixStreams, long roomId) {
+    private CompletableFuture<String> doMix(List<Stream> mixStreams, long roomId) {
         log.info("doMix roomId:{}, zegoAppId:{}", roomId, zegoAppId);
         //get zego mix request
         ZegoMixRequest mixRequest = getZegoMixRequest(String.valueOf(roomId), zegoAppId);
@@ -159,10 +286,8 @@ public class ZegoService {
         mixOutputList.add(mixOutput);
         mixRequest.setMixOutput(mixOutputList);
 
-        String accessToken = getAccessToken();
-        String result = mixStreamClient.sendPost(startMixStreamUrl + accessToken, JSON.toJSONString(mixRequest));
-        log.info("doMix result:{}, roomId:{}", result, roomId);
-        return result;
+        String body = JSON.toJSONString(mixRequest);
+        return getAccessTokenAsync().thenCompose(accessToken -> mixStreamClient.postAsync(startMixStreamUrl + accessToken, body));
     }
 
     /**
@@ -265,22 +390,26 @@ public class ZegoService {
                 .collect(Collectors.toList());
     }
 
-    private String getAccessToken() {
+    private CompletableFuture<String> getAccessTokenAsync() {
         String accessToken = stringRedisTemplate.opsForValue().get(getKeyZegoAccessToken(zegoAppId));
         log.info("getAccessToken, accessToken:{}, zegoAppId:{}", accessToken, zegoAppId);
         if (StringUtils.hasText(accessToken)) {
-            return accessToken;
-        }
-        accessToken = getToken(zegoAppId, zegoServerSecret, zegoTokenUrl);
-        if (accessToken == null) {
-            return null;
+            return CompletableFuture.completedFuture(accessToken);
         }
-        stringRedisTemplate.opsForValue().set(getKeyZegoAccessToken(zegoAppId), accessToken, 30, TimeUnit.MINUTES);
-        return accessToken;
+        return mixStreamClient.getAsync(zegoTokenUrl, "appid=" + zegoAppId + "&secret=" + zegoServerSecret).thenApply(result -> {
+            String token = parseToken(result);
+            if (token != null) {
+                stringRedisTemplate.opsForValue().set(getKeyZegoAccessToken(zegoAppId), token, 30, TimeUnit.MINUTES);
+            }
+            return token;
+        });
     }
 
     public String getToken(int appid, String serverSecret, String url) {
-        String result = mixStreamClient.sendGet(url, "appid=" + appid + "&secret=" + serverSecret);
+        return parseToken(mixStreamClient.sendGet(url, "appid=" + appid + "&secret=" + serverSecret));
+    }
+
+    private static String parseToken(String result) {
         log.info("getToken, result:{}", result);
         if (result == null) {
             return null;
@@ -290,16 +419,14 @@ public class ZegoService {
         return token;
     }
 
-    private void mixStream(long roomId) {
-        RoomAsyncConfig.MIX_STREAM_TIMER.newTimeout(new TimerTask() {
-            @Override
-            public void run(Timeout timeout) throws Exception {
-                mix(roomId);
-            }
-        }, 1500, TimeUnit.MILLISECONDS);
+    public String stopMix(String roomId) {
+        return stopMixAsync(roomId).join();
     }
 
-    public String stopMix(String roomId) {
+    /**
+     * 批量切换供应商时并发停止混流，请求 zego 期间不占用调用方线程
+     */
+    public CompletableFuture<String> stopMixAsync(String roomId) {
         ZegoStopMixRequest mixRequest = new ZegoStopMixRequest();
         long timestamp = System.currentTimeMillis();
         mixRequest.setAppid(zegoAppId);
@@ -309,14 +436,54 @@ public class ZegoService {
         mixRequest.setLive_channel(roomId);
         mixRequest.setStream_id(roomId);
         mixRequest.setSeq(Integer.parseInt(idGenerator.strId().substring(0, 9)));
-        return stopMix(mixRequest);
+        return stopMixAsync(mixRequest);
     }
 
     public String stopMix(ZegoStopMixRequest request) {
-        String accessToken = getAccessToken();
-        String result = mixStreamClient.sendPost(stopMixStreamUrl + accessToken, JSON.toJSONString(request));
-        log.info("zego stopMix result:{}", result);
-        return result;
+        return stopMixAsync(request).join();
+    }
+
+    public CompletableFuture<String> stopMixAsync(ZegoStopMixRequest request) {
+        String body = JSON.toJSONString(request);
+        return getAccessTokenAsync().thenCompose(accessToken -> mixStreamClient.postAsync(stopMixStreamUrl + accessToken, body))
+                .thenApply(result -> {
+                    log.info("zego stopMix result:{}", result);
+                    return result;
+                });
+    }
+
+    private enum MixOutcome {
+        DONE,
+        RETRY_NON_EXIST_STREAM,
+        RETRY_TIMEOUT
+    }
+
+    /**
+     * 房间的混流状态，所有字段都在 state 的锁内读写
+     */
+    private static class MixState {
+
+        /**
+         * 已经调度，等待执行
+         */
+        private boolean scheduled;
+
+        private boolean running;
+
+        /**
+         * 执行期间又收到了新的混流请求
+         */
+        private boolean dirty;
+
+        /**
+         * 连续失败的次数，混流成功后清零
+         */
+        private int attempt;
+
+        /**
+         * 已经从 mixStates 中移除，不能再使用
+         */
+        private boolean removed;
     }
 
 }
@@ -5,70 +5,99 @@ import cn.bixin.sona.server.room.domain.db.GroupMember;
 import cn.bixin.sona.server.room.domain.db.GroupUserCount;
 import cn.bixin.sona.server.room.mapper.RoomGroupMemberMapper;
 import cn.bixin.sona.server.room.service.GroupService;
-import com.google.common.base.Joiner;
-import com.google.common.collect.Lists;
+import cn.bixin.sona.server.room.service.redis.GroupMemberCountRedisRepo;
+import cn.bixin.sona.server.room.service.redis.GroupMemberRedisRepo;
 import com.google.common.collect.Maps;
 import org.apache.commons.collections.CollectionUtils;
 import org.apache.commons.lang3.StringUtils;
-import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.data.redis.core.RedisCallback;
-import org.springframework.data.redis.core.StringRedisTemplate;
-import org.springframework.data.redis.serializer.RedisSerializer;
-import org.springframework.data.redis.serializer.StringRedisSerializer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
 import javax.annotation.Resource;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.function.Function;
 import java.util.stream.Collectors;
 
 @Service
 public class GroupServiceImpl implements GroupService {
 
+    private static final Logger log = LoggerFactory.getLogger(GroupServiceImpl.class);
+
     @Resource
     private RoomGroupMemberMapper roomGroupMemberMapper;
-    @Autowired
-    private StringRedisTemplate redisTemplate;
-
-    private static final String KEY_GROUP_MEMBER_COUNT = "gmc:s";
-    private String getKeyGroupMemberCount(long roomId) {
-        return Joiner.on(":").join(KEY_GROUP_MEMBER_COUNT, roomId);
-    }
-
+    @Resource
+    private GroupMemberCountRedisRepo groupMemberCountRedisRepo;
+    @Resource
+    private GroupMemberRedisRepo groupMemberRedisRepo;
+    @Resource(name = "groupMemberLoadExecutor")
+    private Executor groupMemberLoadExecutor;
+
+    /**
+     * 人数达到该值的群组从 redis 成员列表翻页
+     */
+    @Value("${sona.group.member.list.threshold:1000}")
+    private long memberListThreshold;
+
+    @Value("${sona.group.member.list.load.batch:1000}")
+    private int memberListLoadBatchSize;
+
+    /**
+     * 重试、重复进入都只会有一条成员记录，只有实际进入时才更新人数和成员列表
+     * <p>
+     * 成员记录的 id 是入群序号（成员列表的排序和翻页 anchor），离开过的成员重新进入时删除旧记录后重新插入，
+     * 使用新的 id 排到最后，已经翻过旧位置的客户端也能看到
+     */
     @Override
     public boolean enterGroup(long roomId, String productCode, long uid) {
-        GroupMember groupMember = roomGroupMemberMapper.selectByRoomIdAndUid(roomId, uid);
-        if (groupMember != null) {
-            return true;
+        GroupMember groupMember = GroupMember.wrapCreateObj(roomId, uid, productCode);
+        int rows = roomGroupMemberMapper.insertIgnore(groupMember);
+        if (rows == 0) {
+            //成员记录已经存在：已经在群组中的不处理，并发重新进入时只有删除成功的一方插入
+            if (roomGroupMemberMapper.deleteLeftMember(roomId, uid) == 0) {
+                return true;
+            }
+            groupMember = GroupMember.wrapCreateObj(roomId, uid, productCode);
+            rows = roomGroupMemberMapper.insertIgnore(groupMember);
+            if (rows == 0) {
+                return true;
+            }
         }
-
-        return roomGroupMemberMapper.insertSelective(GroupMember.wrapCreateObj(roomId, uid, productCode)) > 0;
+        groupMemberCountRedisRepo.incrGroupMemberCount(roomId, rows);
+        if (groupMember.getId() != null) {
+            groupMemberRedisRepo.addGroupMember(roomId, uid, groupMember.getId());
+        }
+        return true;
     }
 
     @Override
     public boolean leaveGroup(long roomId, long uid) {
-        return roomGroupMemberMapper.updateStatusLeave(roomId, uid) > 0;
+        int rows = roomGroupMemberMapper.updateStatusLeave(roomId, uid);
+        if (rows > 0) {
+            groupMemberCountRedisRepo.incrGroupMemberCount(roomId, -rows);
+            groupMemberRedisRepo.removeGroupMember(roomId, uid);
+        }
+        return rows > 0;
     }
 
     @Override
     public boolean removeGroupMembers(long roomId) {
-        roomGroupMemberMapper.disbandMember(roomId);
+        if (roomGroupMemberMapper.disbandMember(roomId) > 0) {
+            groupMemberCountRedisRepo.removeGroupMemberCount(roomId);
+            groupMemberRedisRepo.removeGroup(roomId);
+        }
         return true;
     }
 
     @Override
     public long getGroupMemberCount(long roomId) {
-        //todo 人数缓存设计待优化
-        String cacheResult = redisTemplate.opsForValue().get(getKeyGroupMemberCount(roomId));
-        if (StringUtils.isBlank(cacheResult)) {
-            int count = roomGroupMemberMapper.selectGroupMemberCountByRoomId(roomId);
-            redisTemplate.opsForValue().set(getKeyGroupMemberCount(roomId), String.valueOf(count), 1, TimeUnit.SECONDS);
-            return count;
-        }
-        return Long.parseLong(cacheResult);
+        return groupMemberCountRedisRepo.getGroupMemberCounts(Collections.singletonList(roomId), this::getGroupMemberCountFromDB)
+                .getOrDefault(roomId, 0L);
     }
 
     @Override
@@ -76,73 +105,109 @@ public class GroupServiceImpl implements GroupService {
         if (CollectionUtils.isEmpty(roomIds)) {
             return Collections.emptyMap();
         }
-        List<String> countKeys = roomIds.stream().map(this::getKeyGroupMemberCount).collect(Collectors.toList());
-        List<String> counts = redisTemplate.opsForValue().multiGet(countKeys);
-        Map<Long, Long> result = Maps.newHashMap();
-        List<Long> roomIdsForDB = Lists.newArrayList();
-
-        for (int i = 0; i < roomIds.size(); i++) {
-            if (counts.get(i) != null) {
-                result.put(roomIds.get(i), Long.valueOf(counts.get(i)));
-            } else {
-                roomIdsForDB.add(roomIds.get(i));
-            }
-        }
-
-        result.putAll(getGroupMemberCountFromDB(roomIdsForDB));
-        return result;
+        return groupMemberCountRedisRepo.getGroupMemberCounts(roomIds, this::getGroupMemberCountFromDB);
     }
 
     private Map<Long, Long> getGroupMemberCountFromDB(List<Long> roomIdsForDB) {
-        if (CollectionUtils.isEmpty(roomIdsForDB)) {
-            return Collections.emptyMap();
-        }
         Map<Long, Long> result = Maps.newHashMap();
-//        List<GroupMember> groupMembers = roomGroupMemberMapper.selectGroupMemberByRoomIds(roomIdsForDB);
-//
-//        groupMembers.forEach(m -> {
-//            Long count = result.get(m.getRoomId());
-//            if (count == null) {
-//                result.put(m.getRoomId(), 1L);
-//            } else {
-//                result.put(m.getRoomId(), count + 1);
-//            }
-//        });
+        if (roomIdsForDB.size() == 1) {
+            long roomId = roomIdsForDB.get(0);
+            result.put(roomId, (long) roomGroupMemberMapper.selectGroupMemberCountByRoomId(roomId));
+            return result;
+        }
         List<GroupUserCount> groupUserCounts = roomGroupMemberMapper.selectGroupUserCountByRoomIds(roomIdsForDB);
         if (CollectionUtils.isNotEmpty(groupUserCounts)) {
             groupUserCounts.forEach(guc -> result.put(guc.getRoomId(), guc.getCount()));
         }
 
         roomIdsForDB.forEach(roomId -> result.putIfAbsent(roomId, 0L));
-        redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
-            connection.openPipeline();
-            RedisSerializer<String> keySerializer = new StringRedisSerializer();
-            RedisSerializer<String> valueSerializer = new StringRedisSerializer();
-            result.forEach((roomId, count) -> {
-                String key = getKeyGroupMemberCount(roomId);
-                byte[] redisKey = keySerializer.serialize(key);
-                byte[] redisValue = valueSerializer.serialize(String.valueOf(count));
-                connection.set(redisKey, redisValue);
-                connection.expire(redisKey, 1);
-            });
-            return null;
-        });
-
         return result;
     }
 
+    /**
+     * anchor 为上一页最后一个成员的入群序号（成员记录的 id），第一页传空或 0
+     * <p>
+     * 人数达到 memberListThreshold 的群组从 redis 成员列表翻页，列表还没有加载时先从 DB 查询，同时异步加载
+     */
     @Override
     public PageResult<Long> getRoomMemberList(long roomId, String anchor, int limit) {
-        long anchorNum = Long.parseLong(anchor);
+        long anchorId = parseAnchor(anchor);
 
         long count = getGroupMemberCount(roomId);
-        if (count == 0) {
+        if (count == 0 || limit <= 0) {
             return PageResult.newPageResult(Collections.emptyList(), true);
         }
 
-        List<GroupMember> memberList = roomGroupMemberMapper.selectGroupMemberListByRoomId(roomId, anchorNum, limit);
+        //多查一个成员，用于判断是否还有下一页
+        List<GroupMember> memberList = null;
+        if (count >= memberListThreshold) {
+            memberList = groupMemberRedisRepo.getGroupMembers(roomId, anchorId, limit + 1);
+            if (memberList == null) {
+                loadGroupMembersAsync(roomId);
+            }
+        }
+        if (memberList == null) {
+            memberList = roomGroupMemberMapper.selectGroupMemberListByRoomId(roomId, anchorId, limit + 1);
+        }
+        if (memberList.isEmpty()) {
+            return PageResult.newPageResult(Collections.emptyList(), true, count, String.valueOf(anchorId));
+        }
+        boolean end = memberList.size() <= limit;
+        if (!end) {
+            memberList = memberList.subList(0, limit);
+        }
         return PageResult.newPageResult(memberList.stream().map(GroupMember::getUid).collect(Collectors.toList()),
-                memberList.size() < limit || limit >= count, count, String.valueOf(memberList.get(memberList.size() - 1).getId()));
+                end, count, String.valueOf(memberList.get(memberList.size() - 1).getId()));
+    }
+
+    private static long parseAnchor(String anchor) {
+        if (StringUtils.isBlank(anchor)) {
+            return 0;
+        }
+        try {
+            return Math.max(Long.parseLong(anchor.trim()), 0);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private void loadGroupMembersAsync(long roomId) {
+        if (!groupMemberRedisRepo.startLoad(roomId)) {
+            return;
+        }
+        try {
+            groupMemberLoadExecutor.execute(() -> loadGroupMembers(roomId));
+        } catch (RejectedExecutionException e) {
+            //释放加载锁，下次翻页时再触发加载
+            log.warn("loadGroupMembers rejected, roomId:{}", roomId);
+            groupMemberRedisRepo.finishLoad(roomId, false);
+        }
+    }
+
+    private void loadGroupMembers(long roomId) {
+        boolean success = false;
+        try {
+            long anchor = 0;
+            while (true) {
+                List<GroupMember> members = roomGroupMemberMapper.selectGroupMemberListByRoomId(roomId, anchor, memberListLoadBatchSize);
+                if (members.isEmpty()) {
+                    success = true;
+                    break;
+                }
+                if (!groupMemberRedisRepo.appendLoad(roomId, members)) {
+                    break;
+                }
+                if (members.size() < memberListLoadBatchSize) {
+                    success = true;
+                    break;
+                }
+                anchor = members.get(members.size() - 1).getId();
+            }
+        } catch (Exception e) {
+            log.error("loadGroupMembers error, roomId:{}", roomId, e);
+        } finally {
+            groupMemberRedisRepo.finishLoad(roomId, success);
+        }
     }
 
     @Override
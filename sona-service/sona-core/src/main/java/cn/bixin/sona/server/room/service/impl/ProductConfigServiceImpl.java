@@ -17,7 +17,11 @@ import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.redis.connection.RedisStringCommands;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.types.Expiration;
+import org.springframework.data.redis.serializer.RedisSerializer;
 import org.springframework.stereotype.Service;
 import org.springframework.util.CollectionUtils;
 
@@ -118,16 +122,21 @@ public class ProductConfigServiceImpl implements ProductConfigService {
         if (CollectionUtils.isEmpty(roomConfigs)){
             return true;
         }
-        for (RoomConfig roomConfig : roomConfigs) {
-            log.info("addRoomConfig list, roomConfig:{}", JSONObject.toJSONString(roomConfig));
-
-            roomConfigMapper.insertSelective(roomConfig);
-            try {
-                redisTemplate.opsForValue().set(getKeyRoomConfig(roomConfig.getRoomId()),
-                        JSONObject.toJSONString(roomConfig), 30, TimeUnit.SECONDS);
-            } catch (Exception e) {
-                log.error("add room config to redis error", e);
-            }
+        log.info("addRoomConfig list, size:{}, roomIds:{}", roomConfigs.size(), roomConfigs.stream().map(RoomConfig::getRoomId).collect(Collectors.toList()));
+
+        roomConfigMapper.batchInsert(roomConfigs);
+        try {
+            RedisSerializer<String> serializer = redisTemplate.getStringSerializer();
+            Expiration expiration = Expiration.seconds(30);
+            redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                for (RoomConfig roomConfig : roomConfigs) {
+                    connection.set(serializer.serialize(getKeyRoomConfig(roomConfig.getRoomId())),
+                            serializer.serialize(JSONObject.toJSONString(roomConfig)), expiration, RedisStringCommands.SetOption.UPSERT);
+                }
+                return null;
+            });
+        } catch (Exception e) {
+            log.error("add room config to redis error", e);
         }
         return true;
     }
@@ -18,23 +18,25 @@ import cn.bixin.sona.server.room.mapper.MixStreamReplayMapper;
 import cn.bixin.sona.server.room.mapper.StreamMapper;
 import cn.bixin.sona.server.room.service.RoomService;
 import cn.bixin.sona.server.room.service.StreamService;
-import cn.bixin.sona.server.room.utils.TLSSigAPIv2;
-import cn.bixin.sona.server.room.utils.ZegoUtils;
+import cn.bixin.sona.server.room.service.UserSigService;
+import cn.bixin.sona.server.room.service.redis.LivingStreamRedisRepo;
 import com.alibaba.fastjson.JSON;
 import com.google.common.base.Joiner;
-import com.google.common.collect.Lists;
-import org.apache.commons.collections.CollectionUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DuplicateKeyException;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 
 import javax.annotation.Resource;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
 import java.util.concurrent.TimeUnit;
 import java.util.function.Function;
 import java.util.stream.Collectors;
@@ -51,8 +53,6 @@ public class StreamServiceImpl implements StreamService {
     private String zegoAppSign;
     @Value("${zego.app.id}")
     private int zegoAppId;
-    @Value("${tencent.secretkey}")
-    private String tencentSecretKey;
     @Value("${tencent.appid}")
     private int tencentAppId;
 
@@ -68,6 +68,10 @@ public class StreamServiceImpl implements StreamService {
     private MixStreamMapper mixStreamMapper;
     @Resource
     private MixStreamReplayMapper mixStreamReplayMapper;
+    @Resource
+    private UserSigService userSigService;
+    @Resource
+    private LivingStreamRedisRepo livingStreamRedisRepo;
 
 
     private static final String KEY_STREAM_INFO = "si:s";
@@ -117,11 +121,12 @@ public class StreamServiceImpl implements StreamService {
 
     @Override
     public Stream getUserLivingStream(long roomId, long uid) {
-        List<Stream> streams = streamMapper.selectLivingStreamByRoomIdAndUids(roomId, Lists.newArrayList(uid));
-        if (CollectionUtils.isEmpty(streams)) {
-            return null;
+        for (Stream stream : getRoomLivingStream(roomId)) {
+            if (stream.getUid() == uid) {
+                return stream;
+            }
         }
-        return streams.get(0);
+        return null;
     }
 
     @Override
@@ -130,7 +135,10 @@ public class StreamServiceImpl implements StreamService {
         String streamStr = redisTemplate.opsForValue().get(getStreamInfo(streamId));
         if (StringUtils.isBlank(streamStr)) {
             Stream stream = streamMapper.selectByStreamId(streamId);
-            redisTemplate.opsForValue().set(getStreamInfo(streamId), JSON.toJSONString(stream), 1, TimeUnit.MINUTES);
+            //流不存在时不缓存，推流回调可能马上就会创建这条流
+            if (stream != null) {
+                redisTemplate.opsForValue().set(getStreamInfo(streamId), JSON.toJSONString(stream), 1, TimeUnit.MINUTES);
+            }
             return stream;
         }
 
@@ -144,24 +152,20 @@ public class StreamServiceImpl implements StreamService {
 
     @Override
     public Map<Long, Stream> batchGetUserLivingStream(long roomId, List<Long> uids) {
-        List<Stream> streams = streamMapper.selectLivingStreamByRoomIdAndUids(roomId, uids);
-        return streams.stream().collect(Collectors.toMap(Stream::getUid, Function.identity(), (v1, v2) -> v2));
+        Set<Long> uidSet = new HashSet<>(uids);
+        return getRoomLivingStream(roomId).stream()
+                .filter(stream -> uidSet.contains(stream.getUid()))
+                .collect(Collectors.toMap(Stream::getUid, Function.identity(), (v1, v2) -> v2));
     }
 
     @Override
     public List<Stream> getRoomLivingStream(long roomId) {
-        return streamMapper.getRoomLivingSteamList(roomId);
+        return livingStreamRedisRepo.getRoomLivingStreams(roomId, streamMapper::getRoomLivingSteamList);
     }
 
     @Override
     public boolean addStream(StreamContext streamContext) {
         String streamId = streamContext.getStreamId();
-        Stream stream = streamMapper.selectByStreamId(streamId);
-        if (stream != null) {
-            log.info("addStream streamId is exist, {}", streamId);
-            return false;
-        }
-
         Stream record = new Stream();
         record.setStreamId(streamId);
         record.setRoomId(streamContext.getRoomId());
@@ -169,20 +173,45 @@ public class StreamServiceImpl implements StreamService {
         record.setUid(streamContext.getUid());
         record.setSource(streamContext.getStreamSupplier().getCode());
         record.setProductCode(streamContext.getProductCode());
-        streamMapper.addStream(record);
+        try {
+            //stream_id 有唯一索引，直接插入，不再先查询
+            streamMapper.addStream(record);
+        } catch (DuplicateKeyException e) {
+            log.info("addStream streamId is exist, {}", streamId);
+            return false;
+        }
+        onStreamOpened(record);
         return true;
     }
 
     @Override
     public boolean closeStream(String streamId) {
-        Stream stream = streamMapper.selectByStreamId(streamId);
-        if (stream == null || stream.getStatus() == 0) {
+        if (streamMapper.closeStream(streamId, 0, "正常关闭") == 0) {
             return false;
         }
-        streamMapper.closeStream(streamId, 0, "正常关闭");
+        onStreamClosed(streamId);
         return true;
     }
 
+    /**
+     * 流开启后更新直播流索引，调用前 DB 已经写入成功
+     */
+    private void onStreamOpened(Stream stream) {
+        redisTemplate.delete(getStreamInfo(stream.getStreamId()));
+        livingStreamRedisRepo.putLivingStream(stream);
+    }
+
+    /**
+     * 流关闭后更新直播流索引，调用前 DB 已经写入成功
+     */
+    private void onStreamClosed(String streamId) {
+        Stream stream = getStreamByStreamId(streamId);
+        redisTemplate.delete(getStreamInfo(streamId));
+        if (stream != null) {
+            livingStreamRedisRepo.removeLivingStream(stream.getRoomId(), streamId);
+        }
+    }
+
     @Override
     public String getPlayUrl(long roomId, String supplier) {
         if (StreamSupplierEnum.TENCENT.name().equals(supplier)) {
@@ -214,7 +243,7 @@ public class StreamServiceImpl implements StreamService {
         appInfoDTO.setAppId(zegoAppId);
         appInfoDTO.setAppID(String.valueOf(zegoAppId));
         appInfoDTO.setAppSign(zegoAppSign);
-        appInfoDTO.setToken(ZegoUtils.getZeGouToken(String.valueOf(zegoAppId), zegoAppSign, String.valueOf(uid)));
+        appInfoDTO.setToken(userSigService.getZegoToken(uid));
         return appInfoDTO;
     }
 
@@ -222,9 +251,7 @@ public class StreamServiceImpl implements StreamService {
         AppInfoDTO appInfoDTO = new AppInfoDTO();
         appInfoDTO.setAppId(tencentAppId);
         appInfoDTO.setAppID(String.valueOf(tencentAppId));
-        long expireTime = 604800;
-        TLSSigAPIv2 api = new TLSSigAPIv2(tencentAppId, tencentSecretKey);
-        appInfoDTO.setAppSign(api.genSig(String.valueOf(uid), expireTime));
+        appInfoDTO.setAppSign(userSigService.getTencentUserSig(uid));
         return appInfoDTO;
     }
 
@@ -246,8 +273,16 @@ public class StreamServiceImpl implements StreamService {
                     callback.getHdlUrls());
             picUrl = StringUtils.isNotBlank(stream.getPicUrl()) ? null : picUrl;
             streamMapper.updateCreateStream(streamId, rtmpUrls, hlsUrls, hdlUrls, picUrl);
+            stream.setStatus(1);
+            Optional.ofNullable(rtmpUrls).ifPresent(stream::setRtmpUrl);
+            Optional.ofNullable(hlsUrls).ifPresent(stream::setHlsUrl);
+            Optional.ofNullable(hdlUrls).ifPresent(stream::setHdlUrl);
+            Optional.ofNullable(picUrl).ifPresent(stream::setPicUrl);
+            onStreamOpened(stream);
         } else if (stream != null && stream.getStatus() == 0) {
             streamMapper.openStream(streamId);
+            stream.setStatus(1);
+            onStreamOpened(stream);
         } else {
             RoomDTO roomDTO = roomService.getRoomByRoomId(callback.getRoomId());
             Stream record = new Stream();
@@ -264,17 +299,17 @@ public class StreamServiceImpl implements StreamService {
             record.setProductCode(roomDTO.getProductCode());
             log.info("createStreamCallback insert stream {}", JSON.toJSONString(record));
             streamMapper.insert(record);
+            onStreamOpened(record);
         }
         return true;
     }
 
     @Override
     public boolean closeStreamCallback(CloseStreamCallback callback) {
-        Stream stream = streamMapper.selectByStreamId(callback.getStreamId());
-        if (stream == null || stream.getStatus() == 0) {
+        if (streamMapper.closeStream(callback.getStreamId(), callback.getCloseType(), "正常关闭") == 0) {
             return false;
         }
-        streamMapper.closeStream(callback.getStreamId(), callback.getCloseType(), "正常关闭");
+        onStreamClosed(callback.getStreamId());
         return true;
     }
 
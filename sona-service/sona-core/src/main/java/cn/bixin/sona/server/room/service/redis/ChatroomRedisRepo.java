@@ -6,14 +6,18 @@ import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.RedisScript;
 import org.springframework.data.redis.serializer.RedisSerializer;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.Resource;
 import java.time.LocalDateTime;
 import java.time.ZoneId;
 import java.time.ZoneOffset;
 import java.time.ZonedDateTime;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.TimeUnit;
 
@@ -25,6 +29,9 @@ public class ChatroomRedisRepo {
     @Autowired
     private StringRedisTemplate redisTemplate;
 
+    @Resource(name = "chatroomMemberScript")
+    private RedisScript<Long> chatroomMemberScript;
+
     public static final int SMALL_RANGE_SIZE = 200;
 
     /**
@@ -245,6 +252,33 @@ public class ChatroomRedisRepo {
         }
     }
 
+    /**
+     * 批量应用一个房间的成员变化，踢出校验、VIP 分数、在线列表的增删都在一个 lua 脚本中完成，一个房间只需要一次往返
+     *
+     * @param roomId  聊天室ID
+     * @param members uid -> true 进入 / false 离开
+     * @return 实际进入房间的人数
+     */
+    public long applyMemberChanges(long roomId, Map<String, Boolean> members) {
+        if (members.isEmpty()) {
+            return 0;
+        }
+        List<String> keys = new ArrayList<>(members.size() * 2 + 2);
+        keys.add(getSonaChatroomAllUserKey(roomId));
+        keys.add(getSonaSmallRangeKey(roomId));
+        List<String> args = new ArrayList<>(members.size() * 2 + 2);
+        args.add(String.valueOf(12 * 60 * 60));
+        args.add(String.valueOf(SMALL_RANGE_SIZE));
+        members.forEach((uid, enter) -> {
+            keys.add(getKickOutUserFlag(roomId, uid));
+            keys.add(getSonaChatroomVipUserKey(roomId, Long.parseLong(uid)));
+            args.add(enter ? "1" : "0");
+            args.add(uid);
+        });
+        Long entered = redisTemplate.execute(chatroomMemberScript, keys, args.toArray());
+        return entered == null ? 0 : entered;
+    }
+
     public String getChatroomVipUser(long roomId, String uid) {
         return redisTemplate.opsForValue().get(getSonaChatroomVipUserKey(roomId, Long.parseLong(uid)));
     }
@@ -0,0 +1,195 @@
+package cn.bixin.sona.server.room.service.redis;
+
+import com.dianping.cat.Cat;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.google.common.base.Joiner;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * 群组人数
+ * <p>
+ * 大群组的人数会被持续轮询，这里在 redis 中维护人数，前面再加一层很短的本地缓存：
+ * <p>
+ * 1. 读取时先查本地缓存，再查 redis，人数不存在时从 DB 加载
+ * <p>
+ * 2. 进群、退群、解散先写 DB，按实际变更的行数增减人数；人数未加载时不处理（见 group_member_count.lua）
+ * <p>
+ * 3. 人数到期后不续期，从 DB 重新加载，定期与 DB 对齐。每次增减、删除都递增版本号，加载期间版本号变化时放弃本次加载，
+ * 避免 DB 读取之后提交的进群、退群丢失
+ *
+ * @author qinwei
+ */
+@Component
+public class GroupMemberCountRedisRepo {
+
+    private static final Logger log = LoggerFactory.getLogger(GroupMemberCountRedisRepo.class);
+
+    private static final String KEY_GROUP_MEMBER_COUNT = "sona:group:member:count";
+
+    @Autowired
+    private StringRedisTemplate redisTemplate;
+
+    @Resource(name = "groupMemberCountScript")
+    private RedisScript<Long> groupMemberCountScript;
+
+    /**
+     * 与 DB 对齐的周期
+     */
+    @Value("${sona.group.member.count.ttl.seconds:300}")
+    private long ttlSeconds;
+
+    @Value("${sona.group.member.count.local.millis:1000}")
+    private long localMillis;
+
+    private Cache<Long, Long> localCache;
+
+    @PostConstruct
+    public void init() {
+        localCache = Caffeine.newBuilder().maximumSize(10000).expireAfterWrite(Duration.ofMillis(localMillis)).build();
+    }
+
+    private static String getGroupMemberCountKey(long roomId) {
+        return Joiner.on(":").join(KEY_GROUP_MEMBER_COUNT, roomId);
+    }
+
+    /**
+     * 以人数的 key 作为 hash tag，和人数在同一个 slot，可以在同一个脚本中访问
+     */
+    private static String getVersionKey(long roomId) {
+        return "{" + getGroupMemberCountKey(roomId) + "}:v";
+    }
+
+    private static List<String> getScriptKeys(long roomId) {
+        return Arrays.asList(getGroupMemberCountKey(roomId), getVersionKey(roomId));
+    }
+
+    /**
+     * @param loader 人数不存在或 redis 不可用时，从 DB 批量查询人数
+     */
+    public Map<Long, Long> getGroupMemberCounts(List<Long> roomIds, Function<List<Long>, Map<Long, Long>> loader) {
+        Map<Long, Long> result = new HashMap<>(roomIds.size());
+        List<Long> missRoomIds = new ArrayList<>();
+        for (Long roomId : roomIds) {
+            Long count = localCache.getIfPresent(roomId);
+            if (count != null) {
+                result.put(roomId, count);
+            } else {
+                missRoomIds.add(roomId);
+            }
+        }
+        if (missRoomIds.isEmpty()) {
+            return result;
+        }
+        Map<Long, Long> loaded = loadGroupMemberCounts(missRoomIds, loader);
+        localCache.putAll(loaded);
+        result.putAll(loaded);
+        return result;
+    }
+
+    private Map<Long, Long> loadGroupMemberCounts(List<Long> roomIds, Function<List<Long>, Map<Long, Long>> loader) {
+        List<String> counts;
+        try {
+            counts = redisTemplate.opsForValue().multiGet(roomIds.stream().map(GroupMemberCountRedisRepo::getGroupMemberCountKey).collect(Collectors.toList()));
+        } catch (Exception e) {
+            log.error("GroupMemberCountRedisRepo.getGroupMemberCounts fail, roomIds:{}", roomIds, e);
+            return loader.apply(roomIds);
+        }
+        Map<Long, Long> result = new HashMap<>(roomIds.size());
+        List<Long> roomIdsForDB = new ArrayList<>();
+        for (int i = 0; i < roomIds.size(); i++) {
+            String count = counts == null ? null : counts.get(i);
+            if (count != null) {
+                result.put(roomIds.get(i), Long.valueOf(count));
+            } else {
+                roomIdsForDB.add(roomIds.get(i));
+            }
+        }
+        if (roomIdsForDB.isEmpty()) {
+            return result;
+        }
+        Cat.logEvent("GroupMemberCount", "Load", "0", String.valueOf(roomIdsForDB.size()));
+        //版本号必须在查询 DB 之前读取
+        List<String> versions;
+        try {
+            versions = redisTemplate.opsForValue().multiGet(roomIdsForDB.stream().map(GroupMemberCountRedisRepo::getVersionKey).collect(Collectors.toList()));
+        } catch (Exception e) {
+            log.error("GroupMemberCountRedisRepo.getVersions fail, roomIds:{}", roomIdsForDB, e);
+            versions = null;
+        }
+        Map<Long, Long> loaded = loader.apply(roomIdsForDB);
+        result.putAll(loaded);
+        if (versions == null) {
+            return result;
+        }
+        for (int i = 0; i < roomIdsForDB.size(); i++) {
+            Long roomId = roomIdsForDB.get(i);
+            Long count = loaded.get(roomId);
+            if (count == null) {
+                continue;
+            }
+            String version = versions.get(i);
+            try {
+                //已经有其他节点加载或者加载期间有增减时不写入，下次读取时重新加载
+                Long applied = redisTemplate.execute(groupMemberCountScript, getScriptKeys(roomId), "load", String.valueOf(ttlSeconds),
+                        version == null ? "" : version, String.valueOf(count));
+                if (applied != null && applied == 0) {
+                    Cat.logEvent("GroupMemberCount", "LoadAbandoned");
+                }
+            } catch (Exception e) {
+                log.error("GroupMemberCountRedisRepo.load fail, roomId:{}", roomId, e);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 成员变化后调用，调用前 DB 已经写入成功
+     *
+     * @param delta 实际变更的行数，进群为正，退群为负
+     */
+    public void incrGroupMemberCount(long roomId, long delta) {
+        localCache.invalidate(roomId);
+        try {
+            redisTemplate.execute(groupMemberCountScript, getScriptKeys(roomId), "incr", String.valueOf(ttlSeconds), String.valueOf(delta));
+        } catch (Exception e) {
+            log.error("GroupMemberCountRedisRepo.incr fail, roomId:{}, delta:{}", roomId, delta, e);
+            Cat.logEvent("GroupMemberCount", "IncrFail");
+            removeGroupMemberCount(roomId);
+        }
+    }
+
+    /**
+     * 删除后下次读取时从 DB 重新加载，同时递增版本号，正在进行的加载会被放弃
+     */
+    public void removeGroupMemberCount(long roomId) {
+        localCache.invalidate(roomId);
+        try {
+            redisTemplate.execute(groupMemberCountScript, getScriptKeys(roomId), "del", String.valueOf(ttlSeconds));
+        } catch (Exception e) {
+            log.error("GroupMemberCountRedisRepo.delete fail, roomId:{}", roomId, e);
+            try {
+                redisTemplate.delete(getGroupMemberCountKey(roomId));
+            } catch (Exception ex) {
+                log.error("GroupMemberCountRedisRepo.delete fail, roomId:{}", roomId, ex);
+            }
+        }
+    }
+}
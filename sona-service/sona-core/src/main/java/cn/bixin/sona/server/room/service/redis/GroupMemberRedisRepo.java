@@ -0,0 +1,184 @@
+package cn.bixin.sona.server.room.service.redis;
+
+import cn.bixin.sona.server.room.domain.db.GroupMember;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ZSetOperations;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 大群组的成员列表
+ * <p>
+ * 大群组的成员列表翻页会在 DB 上产生大量的深度扫描，这里把成员放在 redis zset 中，score 为入群序号（成员记录的自增 id），与 DB 的翻页游标一致：
+ * <p>
+ * 1. 列表不存在时由一个节点异步分批从 DB 加载到临时列表，加载完成后替换，加载期间的进群、退群同时写入临时列表（见 group_member.lua）
+ * <p>
+ * 2. 进群、退群先写 DB，成功后再更新列表
+ * <p>
+ * 3. 列表到期后不续期，从 DB 重新加载，与 DB 对齐
+ *
+ * @author qinwei
+ */
+@Component
+public class GroupMemberRedisRepo {
+
+    private static final Logger log = LoggerFactory.getLogger(GroupMemberRedisRepo.class);
+
+    private static final String KEY_GROUP_MEMBER = "sona:group:member";
+
+    /**
+     * 占位成员，score 为 0，不会出现在翻页结果中
+     */
+    private static final String PLACEHOLDER = "_";
+
+    @Autowired
+    private StringRedisTemplate redisTemplate;
+
+    @Resource(name = "groupMemberScript")
+    private RedisScript<Long> groupMemberScript;
+
+    @Value("${sona.group.member.list.ttl.seconds:600}")
+    private long ttlSeconds;
+
+    @Value("${sona.group.member.list.load.seconds:120}")
+    private long loadSeconds;
+
+    /**
+     * 成员列表和临时列表使用相同的 hash tag
+     */
+    private static String getGroupMemberKey(long roomId) {
+        return KEY_GROUP_MEMBER + ":{" + roomId + "}";
+    }
+
+    private static String getLoadingKey(long roomId) {
+        return getGroupMemberKey(roomId) + ":loading";
+    }
+
+    private static String getLoadLockKey(long roomId) {
+        return getGroupMemberKey(roomId) + ":lock";
+    }
+
+    /**
+     * @param anchor 上一页最后一个成员的入群序号
+     * @return 入群序号大于 anchor 的至多 limit 个成员，列表还没有加载或者 redis 异常时返回 null，由调用方查询 DB
+     */
+    public List<GroupMember> getGroupMembers(long roomId, long anchor, int limit) {
+        String key = getGroupMemberKey(roomId);
+        Set<ZSetOperations.TypedTuple<String>> tuples;
+        try {
+            tuples = redisTemplate.opsForZSet().rangeByScoreWithScores(key, anchor + 1, Double.MAX_VALUE, 0, limit);
+            if (tuples == null || tuples.isEmpty()) {
+                return Boolean.TRUE.equals(redisTemplate.hasKey(key)) ? new ArrayList<>() : null;
+            }
+        } catch (Exception e) {
+            log.error("GroupMemberRedisRepo.getGroupMembers fail, roomId:{}", roomId, e);
+            return null;
+        }
+        List<GroupMember> members = new ArrayList<>(tuples.size());
+        for (ZSetOperations.TypedTuple<String> tuple : tuples) {
+            GroupMember member = new GroupMember();
+            member.setId(tuple.getScore().longValue());
+            member.setRoomId(roomId);
+            member.setUid(Long.parseLong(tuple.getValue()));
+            member.setStatus(1);
+            members.add(member);
+        }
+        return members;
+    }
+
+    /**
+     * 进群后调用，调用前 DB 已经写入成功
+     */
+    public void addGroupMember(long roomId, long uid, long seq) {
+        execute(roomId, "add", String.valueOf(uid), String.valueOf(seq));
+    }
+
+    /**
+     * 退群后调用，调用前 DB 已经写入成功
+     */
+    public void removeGroupMember(long roomId, long uid) {
+        execute(roomId, "rem", String.valueOf(uid));
+    }
+
+    public void removeGroup(long roomId) {
+        try {
+            redisTemplate.delete(Arrays.asList(getGroupMemberKey(roomId), getLoadingKey(roomId)));
+        } catch (Exception e) {
+            log.error("GroupMemberRedisRepo.removeGroup fail, roomId:{}", roomId, e);
+        }
+    }
+
+    /**
+     * 开始加载，同一时间只有一个节点加载
+     *
+     * @return 是否由当前节点加载，redis 异常时返回 false
+     */
+    public boolean startLoad(long roomId) {
+        try {
+            if (!Boolean.TRUE.equals(redisTemplate.opsForValue().setIfAbsent(getLoadLockKey(roomId), "1", loadSeconds, TimeUnit.SECONDS))) {
+                return false;
+            }
+            String loadingKey = getLoadingKey(roomId);
+            redisTemplate.delete(loadingKey);
+            redisTemplate.opsForZSet().add(loadingKey, PLACEHOLDER, 0);
+            redisTemplate.expire(loadingKey, loadSeconds, TimeUnit.SECONDS);
+            return true;
+        } catch (Exception e) {
+            log.error("GroupMemberRedisRepo.startLoad fail, roomId:{}", roomId, e);
+            return false;
+        }
+    }
+
+    /**
+     * @return 临时列表已经被删除时返回 false，应当放弃本次加载
+     */
+    public boolean appendLoad(long roomId, List<GroupMember> members) {
+        List<String> args = new ArrayList<>(1 + members.size() * 2);
+        args.add("load");
+        for (GroupMember member : members) {
+            args.add(String.valueOf(member.getId()));
+            args.add(String.valueOf(member.getUid()));
+        }
+        Long result = redisTemplate.execute(groupMemberScript, Arrays.asList(getGroupMemberKey(roomId), getLoadingKey(roomId)), args.toArray());
+        return result != null && result == 1;
+    }
+
+    public void finishLoad(long roomId, boolean success) {
+        try {
+            if (success) {
+                redisTemplate.execute(groupMemberScript, Arrays.asList(getGroupMemberKey(roomId), getLoadingKey(roomId)), "commit", String.valueOf(ttlSeconds));
+            } else {
+                redisTemplate.delete(getLoadingKey(roomId));
+            }
+        } catch (Exception e) {
+            log.error("GroupMemberRedisRepo.finishLoad fail, roomId:{}, success:{}", roomId, success, e);
+        }
+        try {
+            redisTemplate.delete(getLoadLockKey(roomId));
+        } catch (Exception e) {
+            //锁到期后自动释放
+            log.error("GroupMemberRedisRepo.unlock fail, roomId:{}", roomId, e);
+        }
+    }
+
+    private void execute(long roomId, String... args) {
+        try {
+            redisTemplate.execute(groupMemberScript, Arrays.asList(getGroupMemberKey(roomId), getLoadingKey(roomId)), (Object[]) args);
+        } catch (Exception e) {
+            log.error("GroupMemberRedisRepo.update fail, roomId:{}, args:{}", roomId, args, e);
+            //列表可能已经和 DB 不一致，删除后重新加载
+            removeGroup(roomId);
+        }
+    }
+}
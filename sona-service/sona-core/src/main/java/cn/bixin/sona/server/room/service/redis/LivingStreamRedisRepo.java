@@ -0,0 +1,156 @@
+package cn.bixin.sona.server.room.service.redis;
+
+import cn.bixin.sona.server.room.domain.db.Stream;
+import com.alibaba.fastjson.JSON;
+import com.dianping.cat.Cat;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.google.common.base.Joiner;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.function.LongFunction;
+
+/**
+ * 房间直播中的流索引
+ * <p>
+ * 混流、房间静音、进房生成流配置都会反复查询同一批热门房间的直播流，这里把每个房间直播中的流放在 redis hash 中，前面再加一层很短的本地缓存：
+ * <p>
+ * 1. 读取时先查本地缓存，再查 redis，索引不存在时从 DB 加载
+ * <p>
+ * 2. 流的开启、关闭先写 DB，成功后再更新索引；索引更新失败时删除索引，下次读取时从 DB 重新加载
+ * <p>
+ * 3. DB 是唯一的数据源，索引到期后不续期，从 DB 重新加载，与 DB 对齐。加载期间有写入时放弃本次加载（见 living_stream.lua）
+ *
+ * @author qinwei
+ */
+@Component
+public class LivingStreamRedisRepo {
+
+    private static final Logger log = LoggerFactory.getLogger(LivingStreamRedisRepo.class);
+
+    private static final String KEY_LIVING_STREAM = "sona:living:stream";
+
+    private static final String FIELD_LOADED = "_";
+
+    private static final String FIELD_VERSION = "_v";
+
+    @Autowired
+    private StringRedisTemplate redisTemplate;
+
+    @Resource(name = "livingStreamScript")
+    private RedisScript<Long> livingStreamScript;
+
+    @Value("${sona.living.stream.ttl.seconds:600}")
+    private long ttlSeconds;
+
+    @Value("${sona.living.stream.local.millis:500}")
+    private long localMillis;
+
+    private Cache<Long, List<Stream>> localCache;
+
+    @PostConstruct
+    public void init() {
+        localCache = Caffeine.newBuilder().maximumSize(10000).expireAfterWrite(Duration.ofMillis(localMillis)).build();
+    }
+
+    private static String getLivingStreamKey(long roomId) {
+        return Joiner.on(":").join(KEY_LIVING_STREAM, roomId);
+    }
+
+    /**
+     * @param loader 索引不存在或不可用时，从 DB 查询房间直播中的流
+     */
+    public List<Stream> getRoomLivingStreams(long roomId, LongFunction<List<Stream>> loader) {
+        List<Stream> streams = localCache.getIfPresent(roomId);
+        if (streams == null) {
+            streams = Collections.unmodifiableList(loadRoomLivingStreams(roomId, loader));
+            localCache.put(roomId, streams);
+        }
+        return new ArrayList<>(streams);
+    }
+
+    private List<Stream> loadRoomLivingStreams(long roomId, LongFunction<List<Stream>> loader) {
+        String key = getLivingStreamKey(roomId);
+        Map<Object, Object> entries;
+        try {
+            entries = redisTemplate.opsForHash().entries(key);
+        } catch (Exception e) {
+            log.error("LivingStreamRedisRepo.getRoomLivingStreams fail, roomId:{}", roomId, e);
+            return loader.apply(roomId);
+        }
+        if (entries.containsKey(FIELD_LOADED)) {
+            List<Stream> streams = new ArrayList<>(entries.size());
+            entries.forEach((field, value) -> {
+                if (!FIELD_LOADED.equals(field) && !FIELD_VERSION.equals(field)) {
+                    streams.add(JSON.parseObject((String) value, Stream.class));
+                }
+            });
+            return streams;
+        }
+        Cat.logEvent("LivingStreamIndex", "Load");
+        Object version = entries.get(FIELD_VERSION);
+        List<Stream> streams = loader.apply(roomId);
+        List<String> args = new ArrayList<>(3 + streams.size() * 2);
+        args.add("load");
+        args.add(String.valueOf(ttlSeconds));
+        args.add(version == null ? "" : (String) version);
+        for (Stream stream : streams) {
+            args.add(stream.getStreamId());
+            args.add(JSON.toJSONString(stream));
+        }
+        try {
+            redisTemplate.execute(livingStreamScript, Collections.singletonList(key), args.toArray());
+        } catch (Exception e) {
+            log.error("LivingStreamRedisRepo.load fail, roomId:{}", roomId, e);
+        }
+        return streams;
+    }
+
+    /**
+     * 流开启后调用，调用前 DB 已经写入成功
+     */
+    public void putLivingStream(Stream stream) {
+        update(stream.getRoomId(), "put", stream.getStreamId(), JSON.toJSONString(stream));
+    }
+
+    /**
+     * 流关闭后调用，调用前 DB 已经写入成功
+     */
+    public void removeLivingStream(long roomId, String streamId) {
+        update(roomId, "del", streamId);
+    }
+
+    private void update(long roomId, String... args) {
+        localCache.invalidate(roomId);
+        String key = getLivingStreamKey(roomId);
+        Object[] scriptArgs = new Object[args.length + 1];
+        scriptArgs[0] = args[0];
+        scriptArgs[1] = String.valueOf(ttlSeconds);
+        System.arraycopy(args, 1, scriptArgs, 2, args.length - 1);
+        try {
+            redisTemplate.execute(livingStreamScript, Collections.singletonList(key), scriptArgs);
+        } catch (Exception e) {
+            log.error("LivingStreamRedisRepo.update fail, roomId:{}, args:{}", roomId, args, e);
+            Cat.logEvent("LivingStreamIndex", "UpdateFail");
+            //索引可能已经和 DB 不一致，删除后下次读取时从 DB 重新加载
+            try {
+                redisTemplate.delete(key);
+            } catch (Exception ex) {
+                log.error("LivingStreamRedisRepo.delete fail, roomId:{}", roomId, ex);
+            }
+        }
+    }
+}
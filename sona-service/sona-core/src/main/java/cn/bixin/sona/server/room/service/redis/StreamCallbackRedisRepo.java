@@ -0,0 +1,67 @@
+package cn.bixin.sona.server.room.service.redis;
+
+import com.google.common.base.Joiner;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.RedisStringCommands;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.types.Expiration;
+import org.springframework.data.redis.serializer.RedisSerializer;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 推流、关流回调的去重
+ * <p>
+ * 厂商会重试回调，多个 sona-web 节点都可能收到同一个回调，这里用 redis 记录已经处理过的回调，一批回调只需要一次往返
+ *
+ * @author qinwei
+ */
+@Component
+public class StreamCallbackRedisRepo {
+
+    private static final String KEY_STREAM_CALLBACK = "sona:stream:cb";
+
+    @Autowired
+    private StringRedisTemplate redisTemplate;
+
+    @Value("${sona.stream.callback.dedup.seconds:300}")
+    private long dedupSeconds;
+
+    private static String getStreamCallbackKey(String dedupKey) {
+        return Joiner.on(":").join(KEY_STREAM_CALLBACK, dedupKey);
+    }
+
+    /**
+     * 批量标记回调为已处理
+     *
+     * @return 与 dedupKeys 一一对应，true 表示第一次出现
+     */
+    public List<Boolean> tryMark(List<String> dedupKeys) {
+        RedisSerializer<String> serializer = redisTemplate.getStringSerializer();
+        byte[] value = serializer.serialize("1");
+        Expiration expiration = Expiration.seconds(dedupSeconds);
+        RedisCallback<Object> callback = connection -> {
+            for (String dedupKey : dedupKeys) {
+                connection.set(serializer.serialize(getStreamCallbackKey(dedupKey)), value, expiration, RedisStringCommands.SetOption.SET_IF_ABSENT);
+            }
+            return null;
+        };
+        List<Object> results = redisTemplate.executePipelined(callback);
+        List<Boolean> marked = new ArrayList<>(dedupKeys.size());
+        for (Object result : results) {
+            marked.add(Boolean.TRUE.equals(result));
+        }
+        return marked;
+    }
+
+    /**
+     * 处理失败时撤销标记，厂商重试时可以重新处理
+     */
+    public void unmark(String dedupKey) {
+        redisTemplate.delete(getStreamCallbackKey(dedupKey));
+    }
+}
@@ -1,48 +1,57 @@
 package cn.bixin.sona.server.room.utils;
 
-// 使用旧版本 base64 编解码实现增强兼容性
-
 import com.alibaba.fastjson.JSONObject;
-import sun.misc.BASE64Encoder;
 
 import javax.crypto.Mac;
 import javax.crypto.spec.SecretKeySpec;
-import java.io.UnsupportedEncodingException;
-import java.nio.charset.Charset;
-import java.security.InvalidKeyException;
-import java.security.NoSuchAlgorithmException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
 import java.util.Arrays;
+import java.util.Base64;
 import java.util.zip.Deflater;
 
+/**
+ * 腾讯云 UserSig 签名
+ * <p>
+ * 实例可以复用：密钥只解析一次，Mac 和 Deflater 按线程复用，生成的签名与每次新建实例时完全一致
+ */
 public class TLSSigAPIv2 {
-    private long sdkappid;
-    private String key;
+    private final long sdkappid;
+    private final SecretKeySpec keySpec;
+
+    private final ThreadLocal<Mac> hmac = ThreadLocal.withInitial(this::newMac);
+
+    private static final ThreadLocal<Deflater> DEFLATER = ThreadLocal.withInitial(Deflater::new);
 
     public TLSSigAPIv2(long sdkappid, String key) {
         this.sdkappid = sdkappid;
-        this.key = key;
+        this.keySpec = new SecretKeySpec(key.getBytes(StandardCharsets.UTF_8), "HmacSHA256");
+    }
+
+    private Mac newMac() {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(keySpec);
+            return mac;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
     }
 
     private String hmacsha256(String identifier, long currTime, long expire, String base64Userbuf) {
-        String contentToBeSigned = "TLS.identifier:" + identifier + "\n"
-                + "TLS.sdkappid:" + sdkappid + "\n"
-                + "TLS.time:" + currTime + "\n"
-                + "TLS.expire:" + expire + "\n";
+        StringBuilder contentToBeSigned = new StringBuilder(128)
+                .append("TLS.identifier:").append(identifier).append('\n')
+                .append("TLS.sdkappid:").append(sdkappid).append('\n')
+                .append("TLS.time:").append(currTime).append('\n')
+                .append("TLS.expire:").append(expire).append('\n');
         if (null != base64Userbuf) {
-            contentToBeSigned += "TLS.userbuf:" + base64Userbuf + "\n";
+            contentToBeSigned.append("TLS.userbuf:").append(base64Userbuf).append('\n');
         }
         try {
-            byte[] byteKey = key.getBytes("UTF-8");
-            Mac hmac = Mac.getInstance("HmacSHA256");
-            SecretKeySpec keySpec = new SecretKeySpec(byteKey, "HmacSHA256");
-            hmac.init(keySpec);
-            byte[] byteSig = hmac.doFinal(contentToBeSigned.getBytes("UTF-8"));
-            return (new BASE64Encoder().encode(byteSig)).replaceAll("\\s*", "");
-        } catch (UnsupportedEncodingException e) {
-            return "";
-        } catch (NoSuchAlgorithmException e) {
-            return "";
-        } catch (InvalidKeyException  e) {
+            //doFinal 之后 Mac 会重置，可以直接复用
+            byte[] byteSig = hmac.get().doFinal(contentToBeSigned.toString().getBytes(StandardCharsets.UTF_8));
+            return Base64.getEncoder().encodeToString(byteSig);
+        } catch (IllegalStateException e) {
             return "";
         }
     }
@@ -59,7 +68,7 @@ public class TLSSigAPIv2 {
 
             String base64UserBuf = null;
             if (null != userbuf) {
-                base64UserBuf = new BASE64Encoder().encode(userbuf);
+                base64UserBuf = Base64.getEncoder().encodeToString(userbuf);
                 sigDoc.put("TLS.userbuf", base64UserBuf);
             }
             String sig = hmacsha256(identifier, currTime, expire, base64UserBuf);
@@ -67,19 +76,45 @@ public class TLSSigAPIv2 {
                 return "";
             }
             sigDoc.put("TLS.sig", sig);
-            Deflater compressor = new Deflater();
-            compressor.setInput(sigDoc.toString().getBytes(Charset.forName("UTF-8")));
-            compressor.finish();
+            Deflater compressor = DEFLATER.get();
             byte [] compressedBytes = new byte[2048];
-            int compressedBytesLength = compressor.deflate(compressedBytes);
-            compressor.end();
-            return (new String(Base64URL.base64EncodeUrl(Arrays.copyOfRange(compressedBytes,
-                    0, compressedBytesLength)))).replaceAll("\\s*", "");
+            int compressedBytesLength;
+            try {
+                compressor.setInput(sigDoc.toString().getBytes(StandardCharsets.UTF_8));
+                compressor.finish();
+                compressedBytesLength = compressor.deflate(compressedBytes);
+            } finally {
+                compressor.reset();
+            }
+            return base64EncodeUrl(Arrays.copyOfRange(compressedBytes, 0, compressedBytesLength));
         } catch (Exception e) {
             return "";
         }
     }
 
+    /**
+     * 与 {@link Base64URL#base64EncodeUrl(byte[])} 去掉空白后的结果一致
+     */
+    private static String base64EncodeUrl(byte[] input) {
+        char[] chars = Base64.getEncoder().encodeToString(input).toCharArray();
+        for (int i = 0; i < chars.length; ++i) {
+            switch (chars[i]) {
+                case '+':
+                    chars[i] = '*';
+                    break;
+                case '/':
+                    chars[i] = '-';
+                    break;
+                case '=':
+                    chars[i] = '_';
+                    break;
+                default:
+                    break;
+            }
+        }
+        return new String(chars);
+    }
+
     public String genSig(String identifier, long expire) {
         return genSig(identifier, expire, null);
     }
@@ -3,13 +3,24 @@ package cn.bixin.sona.server.room.utils;
 import com.alibaba.fastjson.JSONObject;
 import org.apache.commons.codec.binary.Hex;
 
+import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
 import java.util.Base64;
-import java.util.UUID;
 
 public class ZegoUtils {
 
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private static final ThreadLocal<MessageDigest> MD5 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            return null;
+        }
+    });
+
     /**
      * 拉流端获取登录token
      *
@@ -21,30 +32,50 @@ public class ZegoUtils {
      */
     public static String getZeGouToken(String appId, String appSign, String idName) {
         try {
-            String nonce = UUID.randomUUID().toString().replaceAll("-", "");
-            long time = System.currentTimeMillis() / 1000 + 30 * 60;
-            String appSign32 = appSign.replace("0x", "").replace(",", "").substring(0, 32);
-            if (appSign32.length() < 32) {
-                return null;
-            }
-            String source = md5(appId + appSign32 + idName + nonce + time);
-            JSONObject json = new JSONObject();
-            json.put("ver", 1);
-            json.put("hash", source);
-            json.put("nonce", nonce);
-            json.put("expired", time);
-            Base64.Encoder encoder = Base64.getEncoder();
-            return encoder.encodeToString(json.toString().getBytes());
+            return getZeGouToken(appId, normalizeAppSign(appSign), idName, System.currentTimeMillis() / 1000 + 30 * 60);
         } catch (Exception e) {
         }
         return null;
     }
 
+    /**
+     * @param appSign32 {@link #normalizeAppSign(String)} 处理后的 appSign，调用方可以只处理一次
+     * @param expired   token 过期时间（秒）
+     */
+    public static String getZeGouToken(String appId, String appSign32, String idName, long expired) {
+        if (appSign32 == null) {
+            return null;
+        }
+        String nonce = nonce();
+        String source = md5(appId + appSign32 + idName + nonce + expired);
+        JSONObject json = new JSONObject();
+        json.put("ver", 1);
+        json.put("hash", source);
+        json.put("nonce", nonce);
+        json.put("expired", expired);
+        return Base64.getEncoder().encodeToString(json.toString().getBytes());
+    }
+
+    /**
+     * 取 appSign 的前 32 位，格式不对时返回 null
+     */
+    public static String normalizeAppSign(String appSign) {
+        String appSign32 = appSign.replace("0x", "").replace(",", "");
+        return appSign32.length() < 32 ? null : appSign32.substring(0, 32);
+    }
+
+    /**
+     * 与 UUID 去掉 '-' 后的格式一致：32 位 16 进制随机串，nonce 不能被预测，使用 SecureRandom
+     */
+    private static String nonce() {
+        byte[] bytes = new byte[16];
+        RANDOM.nextBytes(bytes);
+        return Hex.encodeHexString(bytes);
+    }
+
     public static String md5(String str) {
-        MessageDigest md;
-        try {
-            md = MessageDigest.getInstance("MD5");
-        } catch (NoSuchAlgorithmException var3) {
+        MessageDigest md = MD5.get();
+        if (md == null) {
             return null;
         }
         byte[] md5Bytes = md.digest(str.getBytes());
@@ -137,7 +137,7 @@ public class ChatroomSendService {
             @Override
             public void onException(Throwable e) {
                 if (StringUtils.hasText(data)) {
-                    messageLog.saveMessageLog(jsonObject.getString(MQ_KEY_MESSAGE_ID), e.getMessage());
+                    messageLog.saveFailureLog(jsonObject.getString(MQ_KEY_MESSAGE_ID), e.getMessage());
                 }
             }
         });
@@ -0,0 +1,45 @@
+-- 批量应用一个房间的成员变化：踢出校验、VIP 分数、在线列表的增删都在服务端完成
+-- KEYS[1]：房间全量在线用户集合（set），KEYS[2]：小范围在线用户集合（zset）
+-- KEYS[2i+1]、KEYS[2i+2]：第 i 个用户的踢出标识、VIP 信息
+-- ARGV[1]：在线列表的过期时间（秒），ARGV[2]：小范围在线列表的最大长度
+-- ARGV[2i+1]、ARGV[2i+2]：第 i 个用户的操作（1 进入，0 离开）、uid
+-- 返回实际进入房间的人数
+local all_key = KEYS[1]
+local small_key = KEYS[2]
+local ttl = tonumber(ARGV[1])
+local small_size = tonumber(ARGV[2])
+local entered = 0
+
+for i = 1, (#ARGV - 2) / 2 do
+    local op = ARGV[2 * i + 1]
+    local uid = ARGV[2 * i + 2]
+    if op == '1' then
+        -- 被踢出的用户不能进入，已经在线的用户不重复进入
+        if redis.call('exists', KEYS[2 * i + 1]) == 0 and redis.call('sismember', all_key, uid) == 0 then
+            -- VIP用户分数为100，普通用户分数为1
+            local score = 1
+            if redis.call('exists', KEYS[2 * i + 2]) == 1 then
+                score = 100
+            end
+            redis.call('sadd', all_key, uid)
+            redis.call('zadd', small_key, score, uid)
+            entered = entered + 1
+        end
+    else
+        redis.call('srem', all_key, uid)
+        redis.call('zrem', small_key, uid)
+        redis.call('del', KEYS[2 * i + 2])
+    end
+end
+
+if entered > 0 then
+    redis.call('expire', all_key, ttl)
+    redis.call('expire', small_key, ttl)
+    -- 小范围在线列表超过最大长度时，移除分数最低的用户
+    local size = redis.call('zcard', small_key)
+    if size > small_size then
+        redis.call('zremrangebyrank', small_key, 0, size - small_size - 1)
+    end
+end
+
+return entered
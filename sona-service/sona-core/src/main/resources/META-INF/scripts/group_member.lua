@@ -0,0 +1,48 @@
+-- 大群组的成员列表（zset，score 为入群序号），第一个成员 '_' 是占位成员，表示列表已经加载
+-- KEYS[1]：成员列表，KEYS[2]：正在加载的成员列表
+-- ARGV[1]：操作
+--   add：ARGV[2] uid，ARGV[3] 入群序号，只写入已经存在的列表
+--   rem：ARGV[2] uid，只从已经存在的列表中删除
+--   load：ARGV[2i]、ARGV[2i+1] 第 i 个成员的入群序号、uid，只写入正在加载的列表
+--   commit：ARGV[2] 过期时间（秒），加载完成后替换成员列表
+local key = KEYS[1]
+local loading_key = KEYS[2]
+local op = ARGV[1]
+
+if op == 'add' then
+    for _, k in ipairs({ key, loading_key }) do
+        if redis.call('exists', k) == 1 then
+            redis.call('zadd', k, ARGV[3], ARGV[2])
+        end
+    end
+    return 1
+end
+
+if op == 'rem' then
+    for _, k in ipairs({ key, loading_key }) do
+        redis.call('zrem', k, ARGV[2])
+    end
+    return 1
+end
+
+if op == 'load' then
+    -- 加载期间列表被删除（例如解散群组），放弃本次加载
+    if redis.call('exists', loading_key) == 0 then
+        return 0
+    end
+    for i = 2, #ARGV, 2 do
+        redis.call('zadd', loading_key, ARGV[i], ARGV[i + 1])
+    end
+    return 1
+end
+
+if op == 'commit' then
+    if redis.call('exists', loading_key) == 0 then
+        return 0
+    end
+    redis.call('rename', loading_key, key)
+    redis.call('expire', key, ARGV[2])
+    return 1
+end
+
+return 0
@@ -0,0 +1,39 @@
+-- 群组人数的增量维护：只在人数已经加载时增减，未加载时由读取方从 DB 加载
+-- KEYS[1]：群组人数，KEYS[2]：写入版本号
+-- ARGV[1]：操作（incr 增减、del 删除、load 从 DB 加载），ARGV[2]：过期时间（秒）
+-- incr：ARGV[3] 为增量；load：ARGV[3] 为加载前读到的版本号（不存在时为空串），ARGV[4] 为 DB 中的人数
+-- incr 返回增减后的人数，未加载或者人数异常时返回 -1；del、load 返回 1 表示已生效，0 表示加载期间有写入，本次加载被放弃
+local key = KEYS[1]
+local versionKey = KEYS[2]
+local op = ARGV[1]
+local ttl = tonumber(ARGV[2])
+
+if op == 'load' then
+    local version = redis.call('get', versionKey) or ''
+    if version ~= ARGV[3] or redis.call('exists', key) == 1 then
+        return 0
+    end
+    redis.call('set', key, ARGV[4], 'EX', ttl)
+    return 1
+end
+
+-- 每次写入都递增版本号，正在进行的加载会因为版本号变化而放弃
+redis.call('incr', versionKey)
+redis.call('expire', versionKey, ttl)
+
+if op == 'del' then
+    redis.call('del', key)
+    return 1
+end
+
+if redis.call('exists', key) == 0 then
+    return -1
+end
+
+local count = redis.call('incrby', key, ARGV[3])
+if count < 0 then
+    -- 人数已经和 DB 不一致，删除后重新加载
+    redis.call('del', key)
+    return -1
+end
+return count
@@ -0,0 +1,39 @@
+-- 房间直播中的流索引（hash）：field 为 streamId，value 为流信息 json
+-- 特殊字段：'_' 表示索引已经从 DB 完整加载，'_v' 为写入版本号
+-- KEYS[1]：房间的流索引
+-- ARGV[1]：操作（put 写入、del 删除、load 从 DB 加载），ARGV[2]：过期时间（秒）
+-- put：ARGV[3]、ARGV[4] 为 streamId、流信息；del：ARGV[3] 为 streamId
+-- load：ARGV[3] 为加载前读到的版本号（不存在时为空串），之后依次为 streamId、流信息
+-- 返回 1 表示已生效，0 表示加载期间有写入，本次加载被放弃
+local key = KEYS[1]
+local op = ARGV[1]
+local ttl = tonumber(ARGV[2])
+
+if op == 'load' then
+    local version = redis.call('hget', key, '_v') or ''
+    if version ~= ARGV[3] or redis.call('hexists', key, '_') == 1 then
+        return 0
+    end
+    for i = 4, #ARGV, 2 do
+        redis.call('hset', key, ARGV[i], ARGV[i + 1])
+    end
+    redis.call('hset', key, '_', '1')
+    redis.call('expire', key, ttl)
+    return 1
+end
+
+-- 每次写入都递增版本号，正在进行的加载会因为版本号变化而放弃
+redis.call('hincrby', key, '_v', 1)
+-- 索引还没有加载时只记录版本号，下次读取时从 DB 加载
+if redis.call('hexists', key, '_') == 1 then
+    if op == 'put' then
+        redis.call('hset', key, ARGV[3], ARGV[4])
+    else
+        redis.call('hdel', key, ARGV[3])
+    end
+end
+-- 已加载的索引不续期，到期后从 DB 重新加载，与 DB 对齐
+if redis.call('ttl', key) < 0 then
+    redis.call('expire', key, ttl)
+end
+return 1
@@ -0,0 +1,41 @@
+-- 房间最近消息的环形缓存：zset 的 score 都是 0，成员为 19 位补 0 的消息 id + '|' + 消息内容，按字典序即按消息 id 排序
+-- floor 为缓存完整覆盖的最小消息 id：大于等于 floor 的消息都在缓存中（或者还没有被记录），小于 floor 的消息需要查询 HBase
+-- KEYS[1]：消息缓存
+-- KEYS[2]：floor
+-- ARGV[1]：容量
+-- ARGV[2]：过期时间（秒）
+-- ARGV[3...]：消息 id、成员，成对出现
+-- 返回缓存中的消息数量
+local ring = KEYS[1]
+local floorKey = KEYS[2]
+local capacity = tonumber(ARGV[1])
+
+local floor = redis.call('get', floorKey)
+if not floor or redis.call('exists', ring) == 0 then
+    -- 新建的缓存从这一批中最小的消息开始覆盖
+    redis.call('del', ring)
+    floor = nil
+    for i = 3, #ARGV, 2 do
+        if floor == nil or ARGV[i] < floor then
+            floor = ARGV[i]
+        end
+    end
+end
+
+for i = 3, #ARGV, 2 do
+    -- 晚到的、比 floor 更早的消息不加入缓存，由 HBase 查询
+    if ARGV[i] >= floor then
+        redis.call('zadd', ring, 0, ARGV[i + 1])
+    end
+end
+
+local size = redis.call('zcard', ring)
+if size > capacity then
+    redis.call('zremrangebyrank', ring, 0, size - capacity - 1)
+    local first = redis.call('zrange', ring, 0, 0)[1]
+    floor = string.sub(first, 1, 19)
+    size = capacity
+end
+redis.call('set', floorKey, floor, 'ex', ARGV[2])
+redis.call('expire', ring, ARGV[2])
+return size
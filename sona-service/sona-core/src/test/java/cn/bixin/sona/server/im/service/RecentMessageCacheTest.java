@@ -0,0 +1,174 @@
+package cn.bixin.sona.server.im.service;
+
+import cn.bixin.sona.server.im.dto.RoomMessageDTO;
+import com.alibaba.fastjson.JSON;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.data.redis.RedisConnectionFailureException;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.RedisPipelineException;
+import org.springframework.data.redis.connection.ReturnType;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.serializer.StringRedisSerializer;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * @author qinwei
+ */
+public class RecentMessageCacheTest {
+
+    private static final long ROOM_ID = 1000L;
+
+    private StringRedisTemplate redisTemplate;
+
+    private RecentMessageCache cache;
+
+    @BeforeEach
+    public void setUp() {
+        redisTemplate = mock(StringRedisTemplate.class);
+        when(redisTemplate.getStringSerializer()).thenReturn(StringRedisSerializer.UTF_8);
+        DefaultRedisScript<Long> script = new DefaultRedisScript<>("return 0", Long.class);
+        cache = new RecentMessageCache();
+        ReflectionTestUtils.setField(cache, "redisTemplate", redisTemplate);
+        ReflectionTestUtils.setField(cache, "recentMessageScript", script);
+        ReflectionTestUtils.setField(cache, "capacity", 200);
+        ReflectionTestUtils.setField(cache, "ttlSeconds", 3600L);
+        ReflectionTestUtils.setField(cache, "localMillis", 500L);
+        cache.init();
+    }
+
+    /**
+     * 缓存中是 100 ~ 109 的消息，floor 为 100
+     */
+    @Test
+    public void testNewestPageCovered() {
+        cached(100, 100, 110);
+        assertEquals(Arrays.asList(109L, 108L, 107L, 106L, 105L), ids(cache.getNewestPage(ROOM_ID, null, 0, Long.MAX_VALUE, 5)));
+        assertEquals(Arrays.asList(104L, 103L), ids(cache.getNewestPage(ROOM_ID, null, 0, 104, 2)));
+    }
+
+    /**
+     * 查询范围的下界落在覆盖范围内，不足一页也可以直接返回
+     */
+    @Test
+    public void testLowerBoundInsideFloor() {
+        cached(100, 100, 110);
+        assertEquals(Arrays.asList(109L, 108L, 107L, 106L, 105L), ids(cache.getNewestPage(ROOM_ID, null, 104, Long.MAX_VALUE, 20)));
+        assertEquals(Collections.emptyList(), ids(cache.getNewestPage(ROOM_ID, null, 109, Long.MAX_VALUE, 20)));
+    }
+
+    /**
+     * 不足一页且更早的消息不在缓存中，需要查询 HBase
+     */
+    @Test
+    public void testPageBelowFloor() {
+        cached(100, 100, 110);
+        assertNull(cache.getNewestPage(ROOM_ID, null, 0, Long.MAX_VALUE, 20));
+        assertNull(cache.getNewestPage(ROOM_ID, null, 0, 99, 5));
+    }
+
+    /**
+     * 超出容量淘汰后 floor 上移到剩余最早的消息，被淘汰的范围不能从缓存返回
+     */
+    @Test
+    public void testTrimmedFloor() {
+        cached(105, 105, 110);
+        assertEquals(Arrays.asList(109L, 108L, 107L, 106L, 105L), ids(cache.getNewestPage(ROOM_ID, null, 0, Long.MAX_VALUE, 5)));
+        assertNull(cache.getNewestPage(ROOM_ID, null, 0, Long.MAX_VALUE, 6));
+        assertNull(cache.getNewestPage(ROOM_ID, null, 0, 104, 5));
+    }
+
+    @Test
+    public void testUidFilter() {
+        cached(100, 100, 110);
+        List<RoomMessageDTO> page = cache.getNewestPage(ROOM_ID, 1L, 0, Long.MAX_VALUE, 3);
+        assertEquals(Arrays.asList(109L, 107L, 105L), ids(page));
+        assertNull(cache.getNewestPage(ROOM_ID, 1L, 0, Long.MAX_VALUE, 6));
+    }
+
+    @Test
+    public void testNotCached() {
+        when(redisTemplate.executePipelined(any(RedisCallback.class))).thenReturn(Arrays.asList(Collections.emptySet(), null));
+        assertNull(cache.getNewestPage(ROOM_ID, null, 0, Long.MAX_VALUE, 5));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testAppendNoScript() {
+        when(redisTemplate.executePipelined(any(RedisCallback.class)))
+                .thenThrow(new RedisPipelineException(new RuntimeException("NOSCRIPT No matching script."), Collections.emptyList()))
+                .thenReturn(Collections.emptyList());
+        cache.append(Collections.singletonList(message(100)));
+
+        ArgumentCaptor<RedisCallback<Object>> captor = ArgumentCaptor.forClass(RedisCallback.class);
+        verify(redisTemplate, times(2)).executePipelined(captor.capture());
+        RedisConnection connection = mock(RedisConnection.class);
+        captor.getAllValues().get(0).doInRedis(connection);
+        verify(connection).evalSha(any(byte[].class), any(ReturnType.class), anyInt(), any());
+        captor.getAllValues().get(1).doInRedis(connection);
+        verify(connection).eval(any(byte[].class), any(ReturnType.class), anyInt(), any());
+    }
+
+    /**
+     * 追加失败时删除 floor，查询回到 HBase
+     */
+    @Test
+    public void testAppendFail() {
+        cached(100, 100, 110);
+        assertEquals(5, cache.getNewestPage(ROOM_ID, null, 0, Long.MAX_VALUE, 5).size());
+
+        when(redisTemplate.executePipelined(any(RedisCallback.class)))
+                .thenThrow(new RedisConnectionFailureException("connection reset"))
+                .thenReturn(Arrays.asList(Collections.emptySet(), null));
+        cache.append(Collections.singletonList(message(110)));
+        verify(redisTemplate).delete(Collections.singletonList("sona:msg:recent:{" + ROOM_ID + "}:floor"));
+        assertNull(cache.getNewestPage(ROOM_ID, null, 0, Long.MAX_VALUE, 5));
+    }
+
+    /**
+     * @param floor 缓存完整覆盖的最小消息 id
+     * @param from  缓存中的消息 id [from, to)，奇数 id 由 uid 1 发送
+     */
+    private void cached(long floor, long from, long to) {
+        Set<String> members = new LinkedHashSet<>();
+        for (long id = from; id < to; id++) {
+            members.add(String.format("%019d", id) + '|' + JSON.toJSONString(message(id)));
+        }
+        when(redisTemplate.executePipelined(any(RedisCallback.class))).thenReturn(Arrays.asList(members, String.valueOf(floor)));
+    }
+
+    private static RoomMessageDTO message(long id) {
+        RoomMessageDTO message = new RoomMessageDTO();
+        message.setRoomId(ROOM_ID);
+        message.setMessageId(String.valueOf(id));
+        message.setUid(id % 2 == 1 ? 1L : 2L);
+        return message;
+    }
+
+    private static List<Long> ids(List<RoomMessageDTO> page) {
+        if (page == null) {
+            return null;
+        }
+        return page.stream().map(m -> Long.parseLong(m.getMessageId())).collect(Collectors.toCollection(ArrayList::new));
+    }
+}
@@ -0,0 +1,117 @@
+package cn.bixin.sona.server.room.client;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import okhttp3.OkHttpClient;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * @author qinwei
+ */
+public class VendorClientTest {
+
+    private HttpServer server;
+
+    private String baseUrl;
+
+    private final CountDownLatch blocked = new CountDownLatch(1);
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/ok", exchange -> respond(exchange, 200, "{\"code\":0}"));
+        server.createContext("/error", exchange -> respond(exchange, 503, "{\"code\":-1}"));
+        server.createContext("/slow", exchange -> {
+            try {
+                blocked.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            respond(exchange, 200, "{\"code\":0}");
+        });
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+        baseUrl = "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    @AfterEach
+    public void tearDown() {
+        blocked.countDown();
+        server.stop(0);
+    }
+
+    @Test
+    public void testPost() {
+        VendorClient client = newClient(4);
+        assertEquals("{\"code\":0}", client.post(baseUrl + "/ok", "{}").join());
+        assertEquals(4, client.availablePermits());
+        client.shutdown();
+    }
+
+    @Test
+    public void testCircuitOpen() {
+        VendorClient client = newClient(4);
+        for (int i = 0; i < 4; i++) {
+            client.get(baseUrl + "/error").join();
+        }
+        assertEquals(CircuitBreaker.State.OPEN, client.getCircuitState());
+        CompletionException e = assertThrows(CompletionException.class, () -> client.get(baseUrl + "/ok").join());
+        assertTrue(e.getCause() instanceof VendorClient.VendorUnavailableException);
+        client.shutdown();
+    }
+
+    @Test
+    public void testBulkheadFull() {
+        VendorClient client = newClient(1);
+        client.get(baseUrl + "/error").join();
+        CircuitBreaker circuitBreaker = client.getCircuitBreaker();
+        assertEquals(1, circuitBreaker.getBufferedCalls());
+        assertEquals(1, circuitBreaker.getFailedCalls());
+
+        CompletableFuture<String> slow = client.get(baseUrl + "/slow");
+        CompletionException e = assertThrows(CompletionException.class, () -> client.get(baseUrl + "/ok").join());
+        assertTrue(e.getCause() instanceof VendorClient.VendorUnavailableException);
+        //舱壁拒绝的调用不计入熔断窗口
+        assertEquals(1, circuitBreaker.getBufferedCalls());
+        assertEquals(1, circuitBreaker.getFailedCalls());
+
+        blocked.countDown();
+        assertEquals("{\"code\":0}", slow.join());
+        assertEquals(CircuitBreaker.State.CLOSED, client.getCircuitState());
+        assertEquals(2, circuitBreaker.getBufferedCalls());
+        assertEquals(1, circuitBreaker.getFailedCalls());
+        client.shutdown();
+    }
+
+    private static VendorClient newClient(int maxConcurrent) {
+        VendorClient.VendorConfig config = new VendorClient.VendorConfig();
+        config.setMaxConcurrent(maxConcurrent);
+        config.setCircuitWindowSize(4);
+        config.setCircuitMinCalls(4);
+        return new VendorClient("test", new OkHttpClient(), config);
+    }
+
+    private static void respond(HttpExchange exchange, int code, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(code, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+}
@@ -1,18 +1,42 @@
 package cn.bixin.sona.session.channel;
 
-import com.google.common.base.Splitter;
 import org.apache.commons.lang3.StringUtils;
 
-import java.util.List;
-
 /**
  * @author qinwei
+ * <p>
+ * channelId 支持两种格式：
+ * <ul>
+ *     <li>当前格式：serverId|remoteAddr|remotePort|timestamp|seqNum，例如 10.0.0.1|192.168.1.2|52311|1700000000000|1f</li>
+ *     <li>紧凑格式：'#' + 8 位十六进制 server ipv4 + 8 位十六进制 remote ipv4 + 4 位十六进制端口 + 11 位十六进制时间戳 + 十六进制 seqNum</li>
+ * </ul>
+ * 每条会话事件都要解析 channelId，热路径上请使用 {@link #serverId(CharSequence)} 和 {@link #timestamp(CharSequence)}，
+ * 直接按下标读取字段，不切分字符串，serverId 从缓存中取，不产生任何对象；{@link #parseChannelId(String)} 只在需要完整信息时使用
  */
 public class ChannelIdInfo {
 
     public static final String SEPARATOR_STR = "|";
     public static final char SEPARATOR_CHAR = '|';
-    public static final Splitter SPLITTER = Splitter.on(SEPARATOR_CHAR);
+
+    public static final char COMPACT_PREFIX = '#';
+
+    /**
+     * 解析失败时 {@link #timestamp(CharSequence)} 的返回值
+     */
+    public static final long INVALID_TIMESTAMP = -1L;
+
+    /**
+     * serverId 序号的上限
+     */
+    public static final int MAX_SERVER_INDEX = ServerIdCache.MAX_SIZE;
+
+    private static final int FIELD_COUNT = 5;
+
+    private static final int COMPACT_SERVER_OFFSET = 1;
+    private static final int COMPACT_REMOTE_ADDR_OFFSET = COMPACT_SERVER_OFFSET + 8;
+    private static final int COMPACT_REMOTE_PORT_OFFSET = COMPACT_REMOTE_ADDR_OFFSET + 8;
+    private static final int COMPACT_TIMESTAMP_OFFSET = COMPACT_REMOTE_PORT_OFFSET + 4;
+    private static final int COMPACT_SEQ_OFFSET = COMPACT_TIMESTAMP_OFFSET + 11;
 
     private String channelId;
 
@@ -22,25 +46,174 @@ public class ChannelIdInfo {
     private String timestamp;
     private String seqNum;
 
+    /**
+     * @return channelId 所在网关的 serverId，格式不合法时返回 null
+     */
+    public static String serverId(CharSequence channelId) {
+        if (isCompact(channelId)) {
+            long ip = parseHex(channelId, COMPACT_SERVER_OFFSET, COMPACT_REMOTE_ADDR_OFFSET);
+            return ip < 0 ? null : ServerIdCache.ofIpv4((int) ip);
+        }
+        if (fieldStart(channelId, 0) < 0) {
+            return null;
+        }
+        int end = fieldEnd(channelId, 0);
+        return end == 0 ? null : ServerIdCache.intern(channelId, 0, end);
+    }
+
+    /**
+     * @return channelId 所在网关的序号（见 {@link #serverIndexOf(String)}），格式不合法或序号已经分配完时返回 -1
+     */
+    public static int serverIndex(CharSequence channelId) {
+        if (isCompact(channelId)) {
+            long ip = parseHex(channelId, COMPACT_SERVER_OFFSET, COMPACT_REMOTE_ADDR_OFFSET);
+            return ip < 0 ? -1 : ServerIdCache.indexOfIpv4((int) ip);
+        }
+        if (fieldStart(channelId, 0) < 0) {
+            return -1;
+        }
+        int end = fieldEnd(channelId, 0);
+        return end == 0 ? -1 : ServerIdCache.index(channelId, 0, end);
+    }
+
+    /**
+     * 每个 serverId 在进程内有一个固定的紧凑序号（0 到 {@link #MAX_SERVER_INDEX} - 1），可以直接作为数组下标
+     *
+     * @return serverId 的序号，序号已经分配完时返回 -1
+     */
+    public static int serverIndexOf(String serverId) {
+        return ServerIdCache.index(serverId, 0, serverId.length());
+    }
+
+    /**
+     * @return 连接的创建时间，格式不合法时返回 {@link #INVALID_TIMESTAMP}
+     */
+    public static long timestamp(CharSequence channelId) {
+        if (isCompact(channelId)) {
+            return parseHex(channelId, COMPACT_TIMESTAMP_OFFSET, COMPACT_SEQ_OFFSET);
+        }
+        int start = fieldStart(channelId, 3);
+        return start < 0 ? INVALID_TIMESTAMP : parseDecimal(channelId, start, fieldEnd(channelId, start));
+    }
+
     public static ChannelIdInfo parseChannelId(String channelId) {
         if (StringUtils.isBlank(channelId)) {
             return null;
         }
-        List<String> list = SPLITTER.splitToList(channelId);
-        if (list == null || list.size() != 5) {
+        if (isCompact(channelId)) {
+            return parseCompact(channelId);
+        }
+        int[] starts = new int[FIELD_COUNT];
+        for (int i = 1; i < FIELD_COUNT; i++) {
+            int end = fieldEnd(channelId, starts[i - 1]);
+            if (end >= channelId.length()) {
+                return null;
+            }
+            starts[i] = end + 1;
+        }
+        if (fieldEnd(channelId, starts[FIELD_COUNT - 1]) != channelId.length()) {
             return null;
         }
 
         ChannelIdInfo info = new ChannelIdInfo();
         info.setChannelId(channelId);
-        info.setServerId(list.get(0));
-        info.setRemoteAddr(list.get(1));
-        info.setRemotePort(list.get(2));
-        info.setTimestamp(list.get(3));
-        info.setSeqNum(list.get(4));
+        info.setServerId(ServerIdCache.intern(channelId, 0, starts[1] - 1));
+        info.setRemoteAddr(channelId.substring(starts[1], starts[2] - 1));
+        info.setRemotePort(channelId.substring(starts[2], starts[3] - 1));
+        info.setTimestamp(channelId.substring(starts[3], starts[4] - 1));
+        info.setSeqNum(channelId.substring(starts[4]));
         return info;
     }
 
+    private static ChannelIdInfo parseCompact(String channelId) {
+        long serverIp = parseHex(channelId, COMPACT_SERVER_OFFSET, COMPACT_REMOTE_ADDR_OFFSET);
+        long remoteIp = parseHex(channelId, COMPACT_REMOTE_ADDR_OFFSET, COMPACT_REMOTE_PORT_OFFSET);
+        long remotePort = parseHex(channelId, COMPACT_REMOTE_PORT_OFFSET, COMPACT_TIMESTAMP_OFFSET);
+        long timestamp = parseHex(channelId, COMPACT_TIMESTAMP_OFFSET, COMPACT_SEQ_OFFSET);
+        long seqNum = parseHex(channelId, COMPACT_SEQ_OFFSET, channelId.length());
+        if (serverIp < 0 || remoteIp < 0 || remotePort < 0 || timestamp < 0 || seqNum < 0) {
+            return null;
+        }
+        ChannelIdInfo info = new ChannelIdInfo();
+        info.setChannelId(channelId);
+        info.setServerId(ServerIdCache.ofIpv4((int) serverIp));
+        info.setRemoteAddr(ServerIdCache.ipv4ToString((int) remoteIp));
+        info.setRemotePort(String.valueOf(remotePort));
+        info.setTimestamp(String.valueOf(timestamp));
+        info.setSeqNum(Long.toHexString(seqNum));
+        return info;
+    }
+
+    private static boolean isCompact(CharSequence channelId) {
+        return channelId != null && channelId.length() > COMPACT_SEQ_OFFSET && channelId.charAt(0) == COMPACT_PREFIX;
+    }
+
+    /**
+     * 当前格式下第 index 个字段的起始下标，同时校验字段总数，格式不合法时返回 -1
+     */
+    private static int fieldStart(CharSequence channelId, int index) {
+        if (channelId == null) {
+            return -1;
+        }
+        int start = -1;
+        int field = 0;
+        int length = channelId.length();
+        for (int i = 0; i < length; i++) {
+            if (channelId.charAt(i) == SEPARATOR_CHAR) {
+                if (++field == index) {
+                    start = i + 1;
+                }
+            }
+        }
+        return field == FIELD_COUNT - 1 ? (index == 0 ? 0 : start) : -1;
+    }
+
+    /**
+     * 从 start 开始的字段的结束下标（不包含），即下一个分隔符的位置
+     */
+    private static int fieldEnd(CharSequence channelId, int start) {
+        if (channelId == null) {
+            return -1;
+        }
+        int length = channelId.length();
+        for (int i = start; i < length; i++) {
+            if (channelId.charAt(i) == SEPARATOR_CHAR) {
+                return i;
+            }
+        }
+        return length;
+    }
+
+    private static long parseDecimal(CharSequence cs, int start, int end) {
+        if (start >= end || end - start > 18) {
+            return INVALID_TIMESTAMP;
+        }
+        long value = 0;
+        for (int i = start; i < end; i++) {
+            int digit = cs.charAt(i) - '0';
+            if (digit < 0 || digit > 9) {
+                return INVALID_TIMESTAMP;
+            }
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+
+    private static long parseHex(CharSequence cs, int start, int end) {
+        if (start >= end || end - start > 15) {
+            return -1L;
+        }
+        long value = 0;
+        for (int i = start; i < end; i++) {
+            int digit = Character.digit(cs.charAt(i), 16);
+            if (digit < 0) {
+                return -1L;
+            }
+            value = (value << 4) | digit;
+        }
+        return value;
+    }
+
     public String getChannelId() {
         return channelId;
     }
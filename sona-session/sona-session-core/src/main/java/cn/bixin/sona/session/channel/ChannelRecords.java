@@ -0,0 +1,288 @@
+package cn.bixin.sona.session.channel;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * @author qinwei
+ * <p>
+ * 用户在线连接的紧凑编码，一个用户的所有连接记录直接拼接在一起，作为分桶 hash 中的一个字段值存储（见 UserPresenceStore）。
+ * <p>
+ * 每条记录的格式：1 字节记录长度（不含该字节） + 1 字节类型 + 内容
+ * <ul>
+ *     <li>{@link #TAG_LEGACY} / {@link #TAG_COMPACT}：两种格式的 channelId，server ipv4(4) + remote ipv4(4) + 端口(2) + 时间戳(6) + seqNum(变长)，约 20 字节</li>
+ *     <li>{@link #TAG_RAW}：无法无损编码的 channelId（例如 ipv6、带前导 0 的字段），直接存储 UTF-8 字节</li>
+ * </ul>
+ * 读取时按下标直接取 serverId 序号和连接时间，判断连接是否有效时不需要还原 channelId，只有需要返回的连接才生成 String
+ */
+public final class ChannelRecords {
+
+    public static final ChannelRecords EMPTY = new ChannelRecords(new byte[0], new int[0], 0);
+
+    /**
+     * 单条记录的最大长度，超过的 channelId 不能存储
+     */
+    public static final int MAX_RECORD_LENGTH = 255;
+
+    private static final byte TAG_RAW = 0;
+
+    private static final byte TAG_LEGACY = 1;
+
+    private static final byte TAG_COMPACT = 2;
+
+    private static final int SERVER_OFFSET = 2;
+    private static final int REMOTE_ADDR_OFFSET = SERVER_OFFSET + 4;
+    private static final int REMOTE_PORT_OFFSET = REMOTE_ADDR_OFFSET + 4;
+    private static final int TIMESTAMP_OFFSET = REMOTE_PORT_OFFSET + 2;
+    private static final int SEQ_OFFSET = TIMESTAMP_OFFSET + 6;
+
+    private static final long MAX_TIMESTAMP = (1L << 48) - 1;
+
+    private final byte[] value;
+
+    /**
+     * 每条记录长度字节的下标
+     */
+    private final int[] offsets;
+
+    private final int size;
+
+    private ChannelRecords(byte[] value, int[] offsets, int size) {
+        this.value = value;
+        this.offsets = offsets;
+        this.size = size;
+    }
+
+    /**
+     * @param value 分桶 hash 中的字段值，末尾不完整的记录会被忽略
+     */
+    public static ChannelRecords of(byte[] value) {
+        if (value == null || value.length == 0) {
+            return EMPTY;
+        }
+        int[] offsets = new int[4];
+        int size = 0;
+        int pos = 0;
+        while (pos < value.length) {
+            int length = value[pos] & 0xFF;
+            if (length == 0 || pos + length >= value.length) {
+                break;
+            }
+            if (size == offsets.length) {
+                offsets = Arrays.copyOf(offsets, size * 2);
+            }
+            offsets[size++] = pos;
+            pos += length + 1;
+        }
+        return new ChannelRecords(value, offsets, size);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return 第 i 条连接所在网关的序号（见 {@link ChannelIdInfo#serverIndexOf(String)}），无法解析时返回 -1
+     */
+    public int serverIndex(int i) {
+        int pos = offsets[i];
+        if (value[pos + 1] == TAG_RAW) {
+            return ChannelIdInfo.serverIndex(channelId(i));
+        }
+        return ServerIdCache.indexOfIpv4(readInt(pos + SERVER_OFFSET));
+    }
+
+    /**
+     * @return 第 i 条连接的创建时间，无法解析时返回 {@link ChannelIdInfo#INVALID_TIMESTAMP}
+     */
+    public long timestamp(int i) {
+        int pos = offsets[i];
+        if (value[pos + 1] == TAG_RAW) {
+            return ChannelIdInfo.timestamp(channelId(i));
+        }
+        return readLong(pos + TIMESTAMP_OFFSET, 6);
+    }
+
+    /**
+     * 还原第 i 条连接的 channelId
+     */
+    public String channelId(int i) {
+        int pos = offsets[i];
+        int end = pos + (value[pos] & 0xFF) + 1;
+        byte tag = value[pos + 1];
+        if (tag == TAG_RAW) {
+            return new String(value, pos + 2, end - pos - 2, StandardCharsets.UTF_8);
+        }
+        int serverIp = readInt(pos + SERVER_OFFSET);
+        int remoteIp = readInt(pos + REMOTE_ADDR_OFFSET);
+        int remotePort = (int) readLong(pos + REMOTE_PORT_OFFSET, 2);
+        long timestamp = readLong(pos + TIMESTAMP_OFFSET, 6);
+        long seqNum = readVarLong(value, pos + SEQ_OFFSET, end);
+        return tag == TAG_COMPACT
+                ? formatCompact(serverIp, remoteIp, remotePort, timestamp, seqNum)
+                : formatLegacy(serverIp, remoteIp, remotePort, timestamp, seqNum);
+    }
+
+    /**
+     * 编码一条连接记录，包含记录长度字节，可以直接拼接
+     *
+     * @return channelId 过长无法存储时返回 null
+     */
+    public static byte[] encode(String channelId) {
+        ChannelIdInfo info = ChannelIdInfo.parseChannelId(channelId);
+        if (info != null) {
+            byte[] record = encodeFields(channelId, info);
+            if (record != null) {
+                return record;
+            }
+        }
+        byte[] bytes = channelId.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length + 1 > MAX_RECORD_LENGTH) {
+            return null;
+        }
+        byte[] record = new byte[bytes.length + 2];
+        record[0] = (byte) (bytes.length + 1);
+        record[1] = TAG_RAW;
+        System.arraycopy(bytes, 0, record, 2, bytes.length);
+        return record;
+    }
+
+    private static byte[] encodeFields(String channelId, ChannelIdInfo info) {
+        long serverIp = parseIpv4(info.getServerId());
+        long remoteIp = parseIpv4(info.getRemoteAddr());
+        long remotePort = parseLong(info.getRemotePort(), 10);
+        long timestamp = parseLong(info.getTimestamp(), 10);
+        long seqNum = parseLong(info.getSeqNum(), 16);
+        if (serverIp < 0 || remoteIp < 0 || remotePort < 0 || remotePort > 0xFFFF || timestamp < 0 || timestamp > MAX_TIMESTAMP || seqNum < 0) {
+            return null;
+        }
+        boolean compact = channelId.charAt(0) == ChannelIdInfo.COMPACT_PREFIX;
+        String formatted = compact
+                ? formatCompact((int) serverIp, (int) remoteIp, (int) remotePort, timestamp, seqNum)
+                : formatLegacy((int) serverIp, (int) remoteIp, (int) remotePort, timestamp, seqNum);
+        //还原后必须和原始 channelId 完全一致（大小写、前导 0 等），否则按原始字节存储
+        if (!formatted.equals(channelId)) {
+            return null;
+        }
+        byte[] buf = new byte[SEQ_OFFSET + 9];
+        buf[1] = compact ? TAG_COMPACT : TAG_LEGACY;
+        writeLong(buf, SERVER_OFFSET, serverIp, 4);
+        writeLong(buf, REMOTE_ADDR_OFFSET, remoteIp, 4);
+        writeLong(buf, REMOTE_PORT_OFFSET, remotePort, 2);
+        writeLong(buf, TIMESTAMP_OFFSET, timestamp, 6);
+        int end = writeVarLong(buf, SEQ_OFFSET, seqNum);
+        buf[0] = (byte) (end - 1);
+        return Arrays.copyOf(buf, end);
+    }
+
+    private static String formatLegacy(int serverIp, int remoteIp, int remotePort, long timestamp, long seqNum) {
+        return ServerIdCache.ipv4ToString(serverIp) + ChannelIdInfo.SEPARATOR_CHAR + ServerIdCache.ipv4ToString(remoteIp)
+                + ChannelIdInfo.SEPARATOR_CHAR + remotePort + ChannelIdInfo.SEPARATOR_CHAR + timestamp
+                + ChannelIdInfo.SEPARATOR_CHAR + Long.toHexString(seqNum);
+    }
+
+    private static String formatCompact(int serverIp, int remoteIp, int remotePort, long timestamp, long seqNum) {
+        StringBuilder sb = new StringBuilder(48);
+        sb.append(ChannelIdInfo.COMPACT_PREFIX);
+        appendHex(sb, serverIp & 0xFFFFFFFFL, 8);
+        appendHex(sb, remoteIp & 0xFFFFFFFFL, 8);
+        appendHex(sb, remotePort, 4);
+        appendHex(sb, timestamp, 11);
+        sb.append(Long.toHexString(seqNum));
+        return sb.toString();
+    }
+
+    private static void appendHex(StringBuilder sb, long value, int width) {
+        for (int shift = (width - 1) * 4; shift >= 0; shift -= 4) {
+            sb.append(Character.forDigit((int) ((value >>> shift) & 0xF), 16));
+        }
+    }
+
+    /**
+     * @return ipv4 的无符号整数值，不是 a.b.c.d 格式时返回 -1
+     */
+    private static long parseIpv4(String ip) {
+        long result = 0;
+        int part = 0;
+        int digits = 0;
+        int dots = 0;
+        for (int i = 0; i < ip.length(); i++) {
+            char c = ip.charAt(i);
+            if (c == '.') {
+                if (digits == 0 || ++dots > 3) {
+                    return -1;
+                }
+                result = (result << 8) | part;
+                part = 0;
+                digits = 0;
+            } else if (c >= '0' && c <= '9' && digits < 3) {
+                part = part * 10 + (c - '0');
+                digits++;
+                if (part > 255) {
+                    return -1;
+                }
+            } else {
+                return -1;
+            }
+        }
+        if (digits == 0 || dots != 3) {
+            return -1;
+        }
+        return (result << 8) | part;
+    }
+
+    private static long parseLong(String s, int radix) {
+        if (s == null || s.isEmpty() || s.length() > 15) {
+            return -1;
+        }
+        long value = 0;
+        for (int i = 0; i < s.length(); i++) {
+            int digit = Character.digit(s.charAt(i), radix);
+            if (digit < 0) {
+                return -1;
+            }
+            value = value * radix + digit;
+        }
+        return value;
+    }
+
+    private int readInt(int pos) {
+        return (int) readLong(pos, 4);
+    }
+
+    private long readLong(int pos, int bytes) {
+        long result = 0;
+        for (int i = 0; i < bytes; i++) {
+            result = (result << 8) | (value[pos + i] & 0xFF);
+        }
+        return result;
+    }
+
+    private static void writeLong(byte[] buf, int pos, long value, int bytes) {
+        for (int i = bytes - 1; i >= 0; i--) {
+            buf[pos + i] = (byte) value;
+            value >>>= 8;
+        }
+    }
+
+    private static long readVarLong(byte[] buf, int pos, int end) {
+        long result = 0;
+        for (int shift = 0; pos < end; shift += 7) {
+            byte b = buf[pos++];
+            result |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                break;
+            }
+        }
+        return result;
+    }
+
+    private static int writeVarLong(byte[] buf, int pos, long value) {
+        while ((value & ~0x7FL) != 0) {
+            buf[pos++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buf[pos++] = (byte) value;
+        return pos;
+    }
+}
@@ -0,0 +1,240 @@
+package cn.bixin.sona.session.channel;
+
+/**
+ * @author qinwei
+ * <p>
+ * channelId 中 serverId（网关 ip）的缓存：网关数量很少，同一个 serverId 在所有 channelId 中反复出现，
+ * 这里直接按字符区间 / ipv4 整数查找已有的 String，命中时不产生任何对象。
+ * <p>
+ * 每个 serverId 第一次出现时分配一个紧凑的序号（从 0 开始，不会变化），可以直接作为数组下标使用。
+ * <p>
+ * 读多写少，使用 copy-on-write 的开放寻址表，读不加锁
+ */
+final class ServerIdCache {
+
+    /**
+     * 最多缓存的 serverId 数量，防止异常数据把表撑大，超过后不再缓存
+     */
+    static final int MAX_SIZE = 1024;
+
+    private static volatile CharsTable byChars = new CharsTable(64);
+
+    private static volatile Ipv4Table byIpv4 = new Ipv4Table(64);
+
+    /**
+     * 下一个分配的序号，只在 addChars 的锁内修改
+     */
+    private static int nextIndex;
+
+    private ServerIdCache() {
+    }
+
+    static String intern(CharSequence cs, int start, int end) {
+        CharsTable table = byChars;
+        int slot = table.find(cs, start, end);
+        if (slot >= 0) {
+            return table.values[slot];
+        }
+        return addChars(cs.subSequence(start, end).toString()).value;
+    }
+
+    /**
+     * @return serverId 的序号，缓存已满时返回 -1
+     */
+    static int index(CharSequence cs, int start, int end) {
+        CharsTable table = byChars;
+        int slot = table.find(cs, start, end);
+        if (slot >= 0) {
+            return table.indexes[slot];
+        }
+        return addChars(cs.subSequence(start, end).toString()).index;
+    }
+
+    static String ofIpv4(int ip) {
+        Ipv4Table table = byIpv4;
+        int slot = table.find(ip);
+        if (slot >= 0) {
+            return table.values[slot];
+        }
+        return addIpv4(ip).value;
+    }
+
+    /**
+     * @return ipv4 对应 serverId 的序号，缓存已满时返回 -1
+     */
+    static int indexOfIpv4(int ip) {
+        Ipv4Table table = byIpv4;
+        int slot = table.find(ip);
+        if (slot >= 0) {
+            return table.indexes[slot];
+        }
+        return addIpv4(ip).index;
+    }
+
+    static String ipv4ToString(int ip) {
+        return ((ip >>> 24) & 0xFF) + "." + ((ip >>> 16) & 0xFF) + "." + ((ip >>> 8) & 0xFF) + "." + (ip & 0xFF);
+    }
+
+    private static synchronized Entry addChars(String value) {
+        CharsTable table = byChars;
+        int slot = table.find(value, 0, value.length());
+        if (slot >= 0) {
+            return new Entry(table.values[slot], table.indexes[slot]);
+        }
+        if (nextIndex >= MAX_SIZE) {
+            return new Entry(value, -1);
+        }
+        int capacity = table.values.length <= nextIndex * 2 ? table.values.length * 2 : table.values.length;
+        CharsTable newTable = new CharsTable(capacity);
+        for (int i = 0; i < table.values.length; i++) {
+            if (table.values[i] != null) {
+                newTable.put(table.values[i], table.indexes[i]);
+            }
+        }
+        int index = nextIndex++;
+        newTable.put(value, index);
+        byChars = newTable;
+        return new Entry(value, index);
+    }
+
+    private static synchronized Entry addIpv4(int ip) {
+        Ipv4Table table = byIpv4;
+        int slot = table.find(ip);
+        if (slot >= 0) {
+            return new Entry(table.values[slot], table.indexes[slot]);
+        }
+        //两种格式的 channelId 拿到的是同一个 String 对象和同一个序号
+        String value = ipv4ToString(ip);
+        Entry entry = addChars(value);
+        if (entry.index < 0) {
+            return entry;
+        }
+        int size = 0;
+        for (String s : table.values) {
+            if (s != null) {
+                size++;
+            }
+        }
+        Ipv4Table newTable = new Ipv4Table(table.values.length <= size * 2 ? table.values.length * 2 : table.values.length);
+        for (int i = 0; i < table.values.length; i++) {
+            if (table.values[i] != null) {
+                newTable.put(table.keys[i], table.values[i], table.indexes[i]);
+            }
+        }
+        newTable.put(ip, entry.value, entry.index);
+        byIpv4 = newTable;
+        return entry;
+    }
+
+    private static int hash(CharSequence cs, int start, int end) {
+        int h = 0;
+        for (int i = start; i < end; i++) {
+            h = 31 * h + cs.charAt(i);
+        }
+        return mix(h);
+    }
+
+    private static int mix(int h) {
+        h *= 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private static boolean regionEquals(String s, CharSequence cs, int start, int end) {
+        if (s.length() != end - start) {
+            return false;
+        }
+        for (int i = 0; i < s.length(); i++) {
+            if (s.charAt(i) != cs.charAt(start + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static final class Entry {
+
+        final String value;
+
+        final int index;
+
+        Entry(String value, int index) {
+            this.value = value;
+            this.index = index;
+        }
+    }
+
+    private static final class CharsTable {
+
+        final String[] values;
+
+        final int[] indexes;
+
+        CharsTable(int capacity) {
+            this.values = new String[capacity];
+            this.indexes = new int[capacity];
+        }
+
+        int find(CharSequence cs, int start, int end) {
+            int mask = values.length - 1;
+            for (int i = hash(cs, start, end) & mask, n = 0; n < values.length; i = (i + 1) & mask, n++) {
+                String s = values[i];
+                if (s == null) {
+                    return -1;
+                }
+                if (regionEquals(s, cs, start, end)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        void put(String value, int index) {
+            int mask = values.length - 1;
+            int i = hash(value, 0, value.length()) & mask;
+            while (values[i] != null) {
+                i = (i + 1) & mask;
+            }
+            values[i] = value;
+            indexes[i] = index;
+        }
+    }
+
+    private static final class Ipv4Table {
+
+        final int[] keys;
+
+        final String[] values;
+
+        final int[] indexes;
+
+        Ipv4Table(int capacity) {
+            this.keys = new int[capacity];
+            this.values = new String[capacity];
+            this.indexes = new int[capacity];
+        }
+
+        int find(int ip) {
+            int mask = values.length - 1;
+            for (int i = mix(ip) & mask, n = 0; n < values.length; i = (i + 1) & mask, n++) {
+                if (values[i] == null) {
+                    return -1;
+                }
+                if (keys[i] == ip) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        void put(int ip, String value, int index) {
+            int mask = values.length - 1;
+            int i = mix(ip) & mask;
+            while (values[i] != null) {
+                i = (i + 1) & mask;
+            }
+            keys[i] = ip;
+            values[i] = value;
+            indexes[i] = index;
+        }
+    }
+}
@@ -0,0 +1,23 @@
+package cn.bixin.sona.session.config;
+
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.scripting.support.ResourceScriptSource;
+
+/**
+ * @author qinwei
+ */
+@Configuration
+public class RedisConfiguration {
+
+    @Bean
+    public RedisScript<Long> userPresenceScript() {
+        DefaultRedisScript<Long> redisScript = new DefaultRedisScript<>();
+        redisScript.setScriptSource(new ResourceScriptSource(new ClassPathResource("META-INF/scripts/user_presence.lua")));
+        redisScript.setResultType(Long.class);
+        return redisScript;
+    }
+}
@@ -3,6 +3,7 @@ package cn.bixin.sona.session.controller;
 import cn.bixin.sona.common.dto.Response;
 import cn.bixin.sona.session.api.UserSessionRemoteService;
 import cn.bixin.sona.session.service.ServerStatCache;
+import cn.bixin.sona.session.service.UserPresenceStore;
 import cn.bixin.sona.session.utils.CacheKey;
 import com.google.common.collect.Lists;
 import org.apache.dubbo.config.annotation.DubboService;
@@ -27,60 +28,28 @@ public class UserSessionController implements UserSessionRemoteService {
     @Resource
     private ServerStatCache serverStatCache;
 
+    @Resource
+    private UserPresenceStore userPresenceStore;
+
     @Override
     public Response<List<String>> getCurrentChannel(long uid) {
-        Set<String> members = stringRedisTemplate.opsForSet().members(CacheKey.getUidKey(String.valueOf(uid)));
-        return Response.success(new ArrayList<>(members));
+        return Response.success(userPresenceStore.getChannels(Collections.singletonList(uid), false).get(uid));
     }
 
     @Override
     public Response<Map<Long, List<String>>> getCurrentChannels(List<Long> uids) {
-        RedisSerializer<String> serializer = stringRedisTemplate.getStringSerializer();
-        List<byte[]> keys = Lists.newArrayListWithCapacity(uids.size());
-        for (Long uid : uids) {
-            keys.add(serializer.serialize(CacheKey.getUidKey(String.valueOf(uid))));
-        }
-        RedisCallback<List<Object>> callback = connection -> {
-            for (byte[] key : keys) {
-                connection.sMembers(key);
-            }
-            return null;
-        };
-        List<Object> pipelineResult = stringRedisTemplate.executePipelined(callback);
-        Map<Long, List<String>> result = new HashMap<>(uids.size());
-        for (int i = 0; i < uids.size(); i++) {
-            Set<String> channels = (Set<String>) pipelineResult.get(i);
-            result.put(uids.get(i), new ArrayList<>(channels));
-        }
-        return Response.success(result);
+        //所在网关已经重启、长时间没有上报的连接不返回
+        return Response.success(userPresenceStore.getChannels(uids, true));
     }
 
     @Override
     public Response<Boolean> getOnlineState(long uid) {
-        Long size = stringRedisTemplate.opsForSet().size(CacheKey.getUidKey(String.valueOf(uid)));
-        return Response.success(size > 0);
+        return Response.success(userPresenceStore.getOnlineStates(Collections.singletonList(uid)).get(uid));
     }
 
     @Override
     public Response<Map<Long, Boolean>> getOnlineStates(List<Long> uids) {
-        RedisSerializer<String> serializer = stringRedisTemplate.getStringSerializer();
-        List<byte[]> keys = Lists.newArrayListWithCapacity(uids.size());
-        for (Long uid : uids) {
-            keys.add(serializer.serialize(CacheKey.getUidKey(String.valueOf(uid))));
-        }
-        RedisCallback<List<Object>> callback = connection -> {
-            for (byte[] key : keys) {
-                connection.sCard(key);
-            }
-            return null;
-        };
-        List<Object> pipelineResult = stringRedisTemplate.executePipelined(callback);
-        Map<Long, Boolean> result = new HashMap<>(uids.size());
-        for (int i = 0; i < uids.size(); i++) {
-            Long size = (Long) pipelineResult.get(i);
-            result.put(uids.get(i), size > 0);
-        }
-        return Response.success(result);
+        return Response.success(userPresenceStore.getOnlineStates(uids));
     }
 
     @Override
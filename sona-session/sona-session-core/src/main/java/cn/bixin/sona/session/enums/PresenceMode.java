@@ -0,0 +1,48 @@
+package cn.bixin.sona.session.enums;
+
+/**
+ * 用户在线连接的存储方式，用于从 u:{uid} 集合迁移到分桶存储（见 UserPresenceStore）
+ * <p>
+ * 迁移顺序：LEGACY -> DUAL_WRITE -> DUAL_WRITE_READ_SHARDED -> SHARDED，
+ * 每一步都可以直接回退到上一步；双写期间读取分桶存储时同时读取旧的集合并合并，旧集合中的连接自然断开后再切换到 SHARDED
+ *
+ * @author qinwei
+ */
+public enum PresenceMode {
+
+    LEGACY(true, false, false, "只使用 u:{uid} 集合"),
+    DUAL_WRITE(true, true, false, "双写，读取 u:{uid} 集合"),
+    DUAL_WRITE_READ_SHARDED(true, true, true, "双写，读取分桶存储"),
+    SHARDED(false, true, true, "只使用分桶存储");
+
+    private final boolean writeLegacy;
+
+    private final boolean writeSharded;
+
+    private final boolean readSharded;
+
+    private final String desc;
+
+    PresenceMode(boolean writeLegacy, boolean writeSharded, boolean readSharded, String desc) {
+        this.writeLegacy = writeLegacy;
+        this.writeSharded = writeSharded;
+        this.readSharded = readSharded;
+        this.desc = desc;
+    }
+
+    public boolean isWriteLegacy() {
+        return writeLegacy;
+    }
+
+    public boolean isWriteSharded() {
+        return writeSharded;
+    }
+
+    public boolean isReadSharded() {
+        return readSharded;
+    }
+
+    public String getDesc() {
+        return desc;
+    }
+}
@@ -2,88 +2,97 @@ package cn.bixin.sona.session.listener;
 
 
 import cn.bixin.sona.session.service.RoomSessionService;
-import cn.bixin.sona.session.utils.Constants;
 import com.alibaba.fastjson.JSON;
 import com.alibaba.fastjson.JSONObject;
 import com.dianping.cat.Cat;
 import com.dianping.cat.message.Transaction;
+import org.apache.rocketmq.client.consumer.DefaultMQPushConsumer;
+import org.apache.rocketmq.client.consumer.listener.ConsumeOrderlyStatus;
+import org.apache.rocketmq.client.consumer.listener.MessageListenerOrderly;
 import org.apache.rocketmq.common.message.MessageExt;
 import org.apache.rocketmq.spring.annotation.ConsumeMode;
 import org.apache.rocketmq.spring.annotation.RocketMQMessageListener;
 import org.apache.rocketmq.spring.core.RocketMQListener;
+import org.apache.rocketmq.spring.core.RocketMQPushConsumerLifecycleListener;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 import org.springframework.util.ObjectUtils;
 
 import javax.annotation.Resource;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 /**
+ * 会话事件按批消费：同一个 MessageQueue 内按顺序拉取的一批消息一起交给 {@link RoomSessionService#processBatch(List)}，
+ * 合并 redis 操作和上报 sona 的消息
+ *
  * @author qinwei
  */
 @Component
 @RocketMQMessageListener(topic = "TOPIC_SOCKET_ROOM_SESSION", consumerGroup = "SOCKET_ROOM_SESSION-SESSION_GROUP", consumeMode = ConsumeMode.ORDERLY)
-public class RoomSessionListener implements RocketMQListener<MessageExt> {
+public class RoomSessionListener implements RocketMQListener<MessageExt>, RocketMQPushConsumerLifecycleListener {
 
     private static final Logger log = LoggerFactory.getLogger(RoomSessionListener.class);
 
+    /**
+     * 批量处理失败时最多重试的次数，超过后进入死信队列，避免阻塞整个队列
+     */
+    private static final int MAX_RECONSUME_TIMES = 3;
+
+    @Value("${room.session.consume.batch.size:64}")
+    private int consumeBatchSize;
+
     @Resource
     private RoomSessionService roomSessionService;
 
     @Override
-    public void onMessage(MessageExt messageExt) {
-        Cat.logBatchEvent("RocketMQListener", getClass().getSimpleName(), 1, 0);
-        if (ObjectUtils.isEmpty(messageExt.getBody())) {
-            log.warn("RoomSessionListener.onMessage, msg empty, msg={}", JSON.toJSONString(messageExt));
-            return;
-        }
-        String body = new String(messageExt.getBody(), StandardCharsets.UTF_8);
-        log.info("RoomSessionListener.onMessage， body={}, msgId={}", body, messageExt.getMsgId());
-        try {
-            JSONObject json = JSON.parseObject(body);
-            String type = json.getString(Constants.MQ_REPORT_KEY_TYPE);
-            if (Constants.MQ_REPORT_VAL_TYPE_CONNECT.equals(type)) {
-                processConnect(json);
-            } else if (Constants.MQ_REPORT_VAL_TYPE_ROOM.equals(type)) {
-                processRoomSession(json);
-            } else {
-                log.warn("RoomSessionListener.onMessage, UnknownType, body={}", body);
-                Cat.logEvent(Constants.CHATROOM_SESSION_PROBLEM, "UnknownType");
+    public void prepareStart(DefaultMQPushConsumer consumer) {
+        consumer.setConsumeMessageBatchMaxSize(consumeBatchSize);
+        consumer.setPullBatchSize(Math.max(consumer.getPullBatchSize(), consumeBatchSize));
+        consumer.setMaxReconsumeTimes(MAX_RECONSUME_TIMES);
+        consumer.setMessageListener((MessageListenerOrderly) (msgs, context) -> {
+            try {
+                consume(msgs);
+                return ConsumeOrderlyStatus.SUCCESS;
+            } catch (Exception e) {
+                log.error("RoomSessionListener.consume fail, size={}, firstMsgId={}", msgs.size(), msgs.get(0).getMsgId(), e);
+                context.setSuspendCurrentQueueTimeMillis(1000);
+                return ConsumeOrderlyStatus.SUSPEND_CURRENT_QUEUE_A_MOMENT;
             }
-        } catch (Exception e) {
-            log.error("RoomSessionListener.onMessage fail, msg: {}", body, e);
-        }
+        });
     }
 
-    private void processConnect(JSONObject json) {
-        Integer session = json.getInteger(Constants.MQ_REPORT_KEY_SESSION);
-        Transaction t = Cat.newTransaction("MQListener.Connect", String.valueOf(session));
-        try {
-            if (Constants.SESSION_ONLINE == session) {
-                roomSessionService.processChannelActive(json);
-            } else if (Constants.SESSION_OFFLINE == session) {
-                roomSessionService.processChannelInactive(json);
-            }
-        } catch (Exception e) {
-            t.setStatus(e);
-            throw e;
-        } finally {
-            t.complete();
-        }
+    @Override
+    public void onMessage(MessageExt messageExt) {
+        consume(Collections.singletonList(messageExt));
     }
 
-    private void processRoomSession(JSONObject json) {
-        Integer cmd = json.getInteger(Constants.MQ_REPORT_KEY_CMD);
-        Transaction t = Cat.newTransaction("MQListener.ChatRoomSession", String.valueOf(cmd));
-        try {
-            // 加入房间
-            if (cmd == 10) {
-                roomSessionService.processEnterRoom(json);
-            } else if (cmd == 11 || cmd == 13) {
-                // 离开房间、踢人、关闭房间
-                roomSessionService.processLeaveRoom(json);
+    private void consume(List<MessageExt> msgs) {
+        Cat.logBatchEvent("RocketMQListener", getClass().getSimpleName(), msgs.size(), 0);
+        List<JSONObject> events = new ArrayList<>(msgs.size());
+        for (MessageExt messageExt : msgs) {
+            if (ObjectUtils.isEmpty(messageExt.getBody())) {
+                log.warn("RoomSessionListener.onMessage, msg empty, msg={}", JSON.toJSONString(messageExt));
+                continue;
+            }
+            String body = new String(messageExt.getBody(), StandardCharsets.UTF_8);
+            log.info("RoomSessionListener.onMessage， body={}, msgId={}", body, messageExt.getMsgId());
+            try {
+                events.add(JSON.parseObject(body));
+            } catch (Exception e) {
+                log.error("RoomSessionListener.onMessage fail, msg: {}", body, e);
             }
+        }
+        if (events.isEmpty()) {
+            return;
+        }
+        Transaction t = Cat.newTransaction("MQListener.RoomSessionBatch", String.valueOf(events.size()));
+        try {
+            roomSessionService.processBatch(events);
         } catch (Exception e) {
             t.setStatus(e);
             throw e;
@@ -0,0 +1,56 @@
+package cn.bixin.sona.session.listener;
+
+
+import cn.bixin.sona.session.service.ServerStatCache;
+import cn.bixin.sona.session.utils.Constants;
+import com.alibaba.fastjson.JSON;
+import com.alibaba.fastjson.JSONObject;
+import com.dianping.cat.Cat;
+import org.apache.rocketmq.common.message.MessageExt;
+import org.apache.rocketmq.spring.annotation.MessageModel;
+import org.apache.rocketmq.spring.annotation.RocketMQMessageListener;
+import org.apache.rocketmq.spring.core.RocketMQListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+import org.springframework.util.ObjectUtils;
+
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 网关状态广播到每个 session 节点，直接更新本地的 {@link ServerStatCache}，不需要定时从 redis 全量拉取
+ *
+ * @author qinwei
+ */
+@Component
+@RocketMQMessageListener(topic = "TOPIC_SERVER_STATS", consumerGroup = "SERVER_STATS-SESSION_BROADCAST_GROUP", messageModel = MessageModel.BROADCASTING)
+public class ServerStatsBroadcastListener implements RocketMQListener<MessageExt> {
+
+    private static final Logger log = LoggerFactory.getLogger(ServerStatsBroadcastListener.class);
+
+    @Resource
+    private ServerStatCache serverStatCache;
+
+    @Override
+    public void onMessage(MessageExt messageExt) {
+        Cat.logBatchEvent("RocketMQListener", getClass().getSimpleName(), 1, 0);
+        if (ObjectUtils.isEmpty(messageExt.getBody())) {
+            log.warn("ServerStatsBroadcastListener.onMessage, msg empty, msgId={}", messageExt.getMsgId());
+            return;
+        }
+        String body = new String(messageExt.getBody(), StandardCharsets.UTF_8);
+        try {
+            JSONObject json = JSON.parseObject(body);
+            String serverId = json.getString(Constants.MQ_REPORT_KEY_SERVER_ID);
+            if (serverId == null) {
+                log.warn("ServerStatsBroadcastListener.onMessage, serverId empty, body={}", body);
+                return;
+            }
+            serverStatCache.onServerStat(serverId, json.toJavaObject(ServerStatCache.ServerStat.class));
+        } catch (Exception e) {
+            log.error("ServerStatsBroadcastListener.onMessage fail, msg: {}", body, e);
+        }
+    }
+
+}
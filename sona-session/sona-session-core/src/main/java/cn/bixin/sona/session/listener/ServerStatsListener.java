@@ -1,6 +1,7 @@
 package cn.bixin.sona.session.listener;
 
 
+import cn.bixin.sona.session.service.ServerStatCache;
 import cn.bixin.sona.session.utils.Constants;
 import com.alibaba.fastjson.JSON;
 import com.alibaba.fastjson.JSONObject;
@@ -11,15 +12,19 @@ import org.apache.rocketmq.spring.annotation.RocketMQMessageListener;
 import org.apache.rocketmq.spring.core.RocketMQListener;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.serializer.RedisSerializer;
 import org.springframework.stereotype.Component;
 import org.springframework.util.ObjectUtils;
 
 import javax.annotation.Resource;
 import java.nio.charset.StandardCharsets;
-import java.time.Duration;
+import java.util.concurrent.TimeUnit;
 
 /**
+ * 网关状态写入 redis（集群消费，只写一次），供 session 节点启动时加载，以及低频补齐广播消息
+ *
  * @author qinwei
  */
 @Component
@@ -28,6 +33,8 @@ public class ServerStatsListener implements RocketMQListener<MessageExt> {
 
     private static final Logger log = LoggerFactory.getLogger(ServerStatsListener.class);
 
+    private static final long EXPIRE_SECONDS = TimeUnit.DAYS.toSeconds(1);
+
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
@@ -39,12 +46,17 @@ public class ServerStatsListener implements RocketMQListener<MessageExt> {
             return;
         }
         String body = new String(messageExt.getBody(), StandardCharsets.UTF_8);
-        log.info("ServerStatsListener.onMessage， body={}, msgId={}", body, messageExt.getMsgId());
+        log.debug("ServerStatsListener.onMessage， body={}, msgId={}", body, messageExt.getMsgId());
         try {
             JSONObject json = JSON.parseObject(body);
             String serverId = json.getString(Constants.MQ_REPORT_KEY_SERVER_ID);
-            stringRedisTemplate.opsForHash().put("server_stat", serverId, body);
-            stringRedisTemplate.expire("server_stat", Duration.ofDays(1));
+            RedisSerializer<String> serializer = stringRedisTemplate.getStringSerializer();
+            byte[] key = serializer.serialize(ServerStatCache.SERVER_STAT_KEY);
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                connection.hSet(key, serializer.serialize(serverId), serializer.serialize(body));
+                connection.expire(key, EXPIRE_SECONDS);
+                return null;
+            });
         } catch (Exception e) {
             log.error("ServerStatsListener.onMessage fail, msg: {}", body, e);
         }
@@ -2,8 +2,12 @@ package cn.bixin.sona.session.mq;
 
 import com.dianping.cat.Cat;
 import com.dianping.cat.message.Transaction;
+import org.apache.rocketmq.client.producer.DefaultMQProducer;
 import org.apache.rocketmq.client.producer.SendCallback;
 import org.apache.rocketmq.client.producer.SendResult;
+import org.apache.rocketmq.client.producer.SendStatus;
+import org.apache.rocketmq.common.message.Message;
+import org.apache.rocketmq.common.message.MessageQueue;
 import org.apache.rocketmq.spring.core.RocketMQTemplate;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -11,6 +15,15 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.messaging.support.MessageBuilder;
 import org.springframework.stereotype.Service;
 
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
 /**
  * @author qinwei
  */
@@ -19,6 +32,16 @@ public class RocketSender {
 
     private static final Logger log = LoggerFactory.getLogger(RocketSender.class);
 
+    /**
+     * 单个 batch 的大小上限，不能超过 broker 的消息大小限制
+     */
+    private static final int MAX_BATCH_BYTES = 1024 * 1024;
+
+    /**
+     * 子 batch 发送失败后的重试次数
+     */
+    private static final int MAX_RETRY = 2;
+
     @Autowired
     private RocketMQTemplate rocketMQTemplate;
 
@@ -80,4 +103,77 @@ public class RocketSender {
         }
     }
 
+    /**
+     * 批量顺序发送：按 hashKey 选择 MessageQueue（与 SelectMessageQueueByHash 的选择方式一致），同一个 MessageQueue 的消息合并成 batch 发送
+     * <p>
+     * 某个子 batch 发送失败时，从该子 batch 开始重试，不会重发之前已成功的部分，也不会跳过它去发后面的消息
+     *
+     * @param contents hashKey -> 该 key 下按顺序排列的消息
+     * @return 重试后仍有消息未发送成功的 hashKey，全部成功时为空
+     */
+    public Set<String> syncSendOrderlyBatch(String topic, Map<String, List<String>> contents) {
+        if (contents.isEmpty()) {
+            return Collections.emptySet();
+        }
+        Transaction t = Cat.newTransaction("RocketMQ", topic);
+        Set<String> failed = new LinkedHashSet<>();
+        try {
+            DefaultMQProducer producer = rocketMQTemplate.getProducer();
+            List<MessageQueue> queues = producer.fetchPublishMessageQueues(topic);
+            Map<MessageQueue, List<Message>> groups = new LinkedHashMap<>();
+            for (Map.Entry<String, List<String>> entry : contents.entrySet()) {
+                MessageQueue mq = queues.get(Math.abs(entry.getKey().hashCode() % queues.size()));
+                List<Message> messages = groups.computeIfAbsent(mq, k -> new ArrayList<>());
+                for (String content : entry.getValue()) {
+                    messages.add(new Message(topic, null, entry.getKey(), content.getBytes(StandardCharsets.UTF_8)));
+                }
+            }
+            for (Map.Entry<MessageQueue, List<Message>> entry : groups.entrySet()) {
+                List<Message> messages = entry.getValue();
+                int from = 0;
+                for (int attempt = 0; from < messages.size() && attempt <= MAX_RETRY; attempt++) {
+                    from = sendBatch(producer, entry.getKey(), messages, from);
+                }
+                for (int i = from; i < messages.size(); i++) {
+                    failed.add(messages.get(i).getKeys());
+                }
+            }
+            if (!failed.isEmpty()) {
+                t.setStatus("PartialFailed");
+            }
+        } catch (Exception e) {
+            log.error("send rocketmq batch failure, topic : {}, contents:{}", topic, contents, e);
+            t.setStatus(e);
+            failed.addAll(contents.keySet());
+        } finally {
+            t.complete();
+        }
+        return failed;
+    }
+
+    /**
+     * @return 发送到的位置，等于 messages.size() 表示全部发送成功
+     */
+    private int sendBatch(DefaultMQProducer producer, MessageQueue mq, List<Message> messages, int from) {
+        while (from < messages.size()) {
+            int to = from;
+            int bytes = 0;
+            while (to < messages.size() && (to == from || bytes + messages.get(to).getBody().length <= MAX_BATCH_BYTES)) {
+                bytes += messages.get(to).getBody().length;
+                to++;
+            }
+            try {
+                SendResult result = producer.send(messages.subList(from, to), mq);
+                if (result.getSendStatus() != SendStatus.SEND_OK) {
+                    log.warn("send rocketmq batch status : {}, mq : {}", result.getSendStatus(), mq);
+                }
+            } catch (Exception e) {
+                log.error("send rocketmq batch failure, mq : {}, from : {}, to : {}", mq, from, to, e);
+                return from;
+            }
+            from = to;
+        }
+        return from;
+    }
+
 }
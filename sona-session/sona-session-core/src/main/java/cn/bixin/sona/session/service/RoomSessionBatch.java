@@ -0,0 +1,164 @@
+package cn.bixin.sona.session.service;
+
+import cn.bixin.sona.session.enums.LeaveReason;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 一批会话事件的处理上下文
+ * <p>
+ * 事件按顺序在内存中回放，这里只记录每个 redis key / 字段的最终状态（last-write-wins），
+ * 同一批内先进后出、先断后连之类相互抵消的操作不会产生多余的 redis 命令；上报 sona 的消息同理，同一个 <uid,房间> 只保留最后一条。
+ *
+ * @author qinwei
+ */
+class RoomSessionBatch {
+
+    /**
+     * uid -> 用户当前所有的<连接,房间>，回放过程中实时更新
+     */
+    private final Map<String, Map<String, String>> channelRooms;
+
+    /**
+     * sona:ch:{channelId} 的最终写入
+     */
+    private final Map<String, ChannelWrite> channelWrites = new LinkedHashMap<>();
+
+    /**
+     * sona:u:{uid} 中被修改的字段，value 为 null 表示删除
+     */
+    private final Map<String, Map<String, String>> channelRoomWrites = new LinkedHashMap<>();
+
+    /**
+     * 用户连接的修改（见 UserPresenceStore），true 表示添加，false 表示删除
+     */
+    private final Map<String, Map<String, Boolean>> uidChannelWrites = new LinkedHashMap<>();
+
+    /**
+     * <uid,房间> -> 上报 sona 的消息
+     */
+    private final Map<String, Report> reports = new LinkedHashMap<>();
+
+    private int collapsed;
+
+    RoomSessionBatch(Map<String, Map<String, String>> channelRooms) {
+        this.channelRooms = channelRooms;
+    }
+
+    Map<String, String> channelRooms(String uid) {
+        return channelRooms.computeIfAbsent(uid, k -> new HashMap<>());
+    }
+
+    void putChannelField(String channelId, String field, String value) {
+        channelWrites.computeIfAbsent(channelId, k -> new ChannelWrite()).fields.put(field, value);
+    }
+
+    void deleteChannel(String channelId) {
+        ChannelWrite write = channelWrites.computeIfAbsent(channelId, k -> new ChannelWrite());
+        write.delete = true;
+        write.fields.clear();
+    }
+
+    void putChannelRoom(String uid, String channelId, String room) {
+        channelRooms(uid).put(channelId, room);
+        channelRoomWrites.computeIfAbsent(uid, k -> new LinkedHashMap<>()).put(channelId, room);
+    }
+
+    void removeChannelRoom(String uid, String channelId) {
+        channelRooms(uid).remove(channelId);
+        channelRoomWrites.computeIfAbsent(uid, k -> new LinkedHashMap<>()).put(channelId, null);
+    }
+
+    void addUidChannel(String uid, String channelId) {
+        uidChannelWrites.computeIfAbsent(uid, k -> new LinkedHashMap<>()).put(channelId, Boolean.TRUE);
+    }
+
+    void removeUidChannel(String uid, String channelId) {
+        uidChannelWrites.computeIfAbsent(uid, k -> new LinkedHashMap<>()).put(channelId, Boolean.FALSE);
+    }
+
+    /**
+     * 同一个 <uid,房间> 只保留最后一条上报，并移动到末尾，保证同一个用户的上报顺序和事件顺序一致
+     */
+    void report(Report report) {
+        if (reports.remove(reportKey(report.uid, report.room)) != null) {
+            collapsed++;
+        }
+        reports.put(reportKey(report.uid, report.room), report);
+    }
+
+    /**
+     * 被 sona 踢出房间时，sona 已经知道用户不在房间里了，这一批里还没发出去的上报都不需要了
+     */
+    void cancelReport(String uid, String room) {
+        if (reports.remove(reportKey(uid, room)) != null) {
+            collapsed++;
+        }
+    }
+
+    Map<String, ChannelWrite> getChannelWrites() {
+        return channelWrites;
+    }
+
+    Map<String, Map<String, String>> getChannelRoomWrites() {
+        return channelRoomWrites;
+    }
+
+    Map<String, Map<String, Boolean>> getUidChannelWrites() {
+        return uidChannelWrites;
+    }
+
+    /**
+     * 按 uid 分组的上报消息，同一个 uid 内保持顺序
+     */
+    Map<String, List<Report>> reportsByUid() {
+        Map<String, List<Report>> map = new LinkedHashMap<>();
+        for (Report report : reports.values()) {
+            map.computeIfAbsent(report.uid, k -> new ArrayList<>()).add(report);
+        }
+        return map;
+    }
+
+    int getCollapsed() {
+        return collapsed;
+    }
+
+    private static String reportKey(String uid, String room) {
+        return uid + '\u0001' + room;
+    }
+
+    static class ChannelWrite {
+
+        /**
+         * 是否需要先删除整个 key
+         */
+        boolean delete;
+
+        final Map<String, String> fields = new LinkedHashMap<>();
+    }
+
+    static class Report {
+
+        final long timestamp;
+
+        final int cmd;
+
+        final String room;
+
+        final String uid;
+
+        final LeaveReason leaveReason;
+
+        Report(long timestamp, int cmd, String room, String uid, LeaveReason leaveReason) {
+            this.timestamp = timestamp;
+            this.cmd = cmd;
+            this.room = room;
+            this.uid = uid;
+            this.leaveReason = leaveReason;
+        }
+    }
+}
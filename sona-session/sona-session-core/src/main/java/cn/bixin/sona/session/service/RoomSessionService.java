@@ -8,7 +8,6 @@ import com.alibaba.fastjson.JSONObject;
 import com.dianping.cat.Cat;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.data.redis.core.HashOperations;
 import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.data.redis.serializer.RedisSerializer;
@@ -18,6 +17,7 @@ import org.springframework.util.StringUtils;
 
 import javax.annotation.Resource;
 import java.util.*;
+import java.util.stream.Collectors;
 
 /**
  * @author qinwei
@@ -31,6 +31,8 @@ public class RoomSessionService {
 
     private static final String TOPIC_CHATROOM_SESSION_SONA = "TOPIC_CHATROOM_SESSION_SONA";
 
+    private static final String CAT_TYPE_BATCH = "RoomSessionBatch";
+
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
@@ -40,67 +42,153 @@ public class RoomSessionService {
     @Resource
     private ServerStatCache serverStatCache;
 
+    @Resource
+    private UserPresenceStore userPresenceStore;
+
+    /**
+     * 批量处理一批会话事件（同一个 MessageQueue 内按顺序拉取的一批消息）
+     * <p>
+     * 网关故障切换时，受影响的用户会在短时间内同时产生断开、重连、重新进房的事件，逐条处理时每条事件都要多次访问 redis、同步发送一次 MQ，
+     * 会话状态会落后几分钟。这里改为：
+     * <p>
+     * 1. 需要比较房间的用户（断开连接、离开房间），一次 pipeline 读出这些用户当前所有的<连接,房间>
+     * <p>
+     * 2. 按顺序在内存中回放每条事件，只记录每个 redis key / 字段的最终状态（last-write-wins）
+     * <p>
+     * 3. 所有 redis 写操作合并成一次 pipeline
+     * <p>
+     * 4. 上报 sona 的消息同一个 <uid,房间> 只保留最后一条，按 uid 选择队列批量发送
+     *
+     * @param events 会话事件，需要保持消息的原始顺序
+     */
+    public void processBatch(List<JSONObject> events) {
+        if (CollectionUtils.isEmpty(events)) {
+            return;
+        }
+        RoomSessionBatch batch = new RoomSessionBatch(loadChannelRooms(events));
+        for (JSONObject json : events) {
+            try {
+                process(batch, json);
+            } catch (Exception e) {
+                log.error("RoomSessionService.process fail, msg: {}", json, e);
+            }
+        }
+        flush(batch);
+        reportSona(batch);
+        if (batch.getCollapsed() > 0) {
+            Cat.logBatchEvent(CAT_TYPE_BATCH, "Collapsed", batch.getCollapsed(), 0);
+        }
+    }
+
+    private void process(RoomSessionBatch batch, JSONObject json) {
+        String type = json.getString(Constants.MQ_REPORT_KEY_TYPE);
+        if (Constants.MQ_REPORT_VAL_TYPE_CONNECT.equals(type)) {
+            Integer session = json.getInteger(Constants.MQ_REPORT_KEY_SESSION);
+            Cat.logBatchEvent("MQListener.Connect", String.valueOf(session), 1, 0);
+            if (Constants.SESSION_ONLINE == session) {
+                processChannelActive(batch, json);
+            } else if (Constants.SESSION_OFFLINE == session) {
+                processChannelInactive(batch, json);
+            }
+        } else if (Constants.MQ_REPORT_VAL_TYPE_ROOM.equals(type)) {
+            Integer cmd = json.getInteger(Constants.MQ_REPORT_KEY_CMD);
+            Cat.logBatchEvent("MQListener.ChatRoomSession", String.valueOf(cmd), 1, 0);
+            // 加入房间
+            if (cmd == 10) {
+                processEnterRoom(batch, json);
+            } else if (cmd == 11 || cmd == 13) {
+                // 离开房间、踢人、关闭房间
+                processLeaveRoom(batch, json);
+            }
+        } else {
+            log.warn("RoomSessionService.process, UnknownType, body={}", json);
+            Cat.logEvent(Constants.CHATROOM_SESSION_PROBLEM, "UnknownType");
+        }
+    }
+
+    /**
+     * 断开连接、离开房间时需要比较用户所有的<连接,房间>，一次 pipeline 读出所有相关用户的数据
+     */
+    private Map<String, Map<String, String>> loadChannelRooms(List<JSONObject> events) {
+        Set<String> uids = new LinkedHashSet<>();
+        for (JSONObject json : events) {
+            String type = json.getString(Constants.MQ_REPORT_KEY_TYPE);
+            boolean needCompare = Constants.MQ_REPORT_VAL_TYPE_CONNECT.equals(type)
+                    ? Integer.valueOf(Constants.SESSION_OFFLINE).equals(json.getInteger(Constants.MQ_REPORT_KEY_SESSION))
+                    : Constants.MQ_REPORT_VAL_TYPE_ROOM.equals(type) && !Integer.valueOf(10).equals(json.getInteger(Constants.MQ_REPORT_KEY_CMD));
+            String uid = json.getString(Constants.MQ_REPORT_KEY_UID);
+            if (needCompare && StringUtils.hasText(uid)) {
+                uids.add(uid);
+            }
+        }
+        Map<String, Map<String, String>> channelRooms = new HashMap<>();
+        if (uids.isEmpty()) {
+            return channelRooms;
+        }
+        RedisSerializer<String> serializer = stringRedisTemplate.getStringSerializer();
+        RedisCallback<List<Object>> callback = connection -> {
+            for (String uid : uids) {
+                connection.hGetAll(serializer.serialize(CacheKey.getSonaUidKey(uid)));
+            }
+            return null;
+        };
+        List<Object> results = stringRedisTemplate.executePipelined(callback);
+        int i = 0;
+        for (String uid : uids) {
+            Object result = results.get(i++);
+            Map<String, String> map = new HashMap<>();
+            if (result instanceof Map) {
+                ((Map<?, ?>) result).forEach((k, v) -> map.put(String.valueOf(k), String.valueOf(v)));
+            }
+            channelRooms.put(uid, map);
+        }
+        return channelRooms;
+    }
+
     /**
      * 存储用户的会话信息到redis
      *
      * @param json 会话信息
      */
-    public void processChannelActive(JSONObject json) {
+    private void processChannelActive(RoomSessionBatch batch, JSONObject json) {
         String channelId = json.getString(Constants.MQ_REPORT_KEY_CHANNEL_ID);
         long timestamp = json.getLong(Constants.MQ_REPORT_KEY_TIMESTAMP_SHORT);
         log.info("channelActive, channelId={}, timestamp={}", channelId, timestamp);
 
-        //serializer是Redis的序列化器，主要作用是将Java对象转换为可以存储在Redis中的字节流，或者将从Redis中读取的字节流转换回Java对象
-        RedisSerializer<String> serializer = stringRedisTemplate.getStringSerializer();
-        //将channelId转换为Redis的键
-        byte[] chKey = serializer.serialize(CacheKey.getSonaChannelKey(channelId));
-        //创建一个RedisCallback，在这个回调中，将deviceId，timestamp和uid（如果存在）存储到Redis中，并设置键的过期时间
-        RedisCallback<String> callback = connection -> {
-            connection.hSet(chKey, serializer.serialize(Constants.BODY_PARAM_DEVICEID), serializer.serialize(json.getString(Constants.BODY_PARAM_DEVICEID)));
-            connection.hSet(chKey, serializer.serialize(Constants.MQ_REPORT_KEY_TIMESTAMP_SHORT), serializer.serialize(String.valueOf(timestamp)));
-            String uid = json.getString(Constants.MQ_REPORT_KEY_UID);
-            if (StringUtils.hasText(uid)) {
-                connection.hSet(chKey, serializer.serialize(Constants.BODY_PARAM_UID), serializer.serialize(uid));
-                connection.sAdd(serializer.serialize(CacheKey.getUidKey(uid)), serializer.serialize(channelId));
-            }
-            //过期时间1周
-            connection.expire(chKey, REDIS_TTL_SESSION);
-            return null;
-        };
-        stringRedisTemplate.executePipelined(callback);
+        //将deviceId，timestamp和uid（如果存在）存储到Redis中，写入时统一设置键的过期时间
+        batch.putChannelField(channelId, Constants.BODY_PARAM_DEVICEID, json.getString(Constants.BODY_PARAM_DEVICEID));
+        batch.putChannelField(channelId, Constants.MQ_REPORT_KEY_TIMESTAMP_SHORT, String.valueOf(timestamp));
+        String uid = json.getString(Constants.MQ_REPORT_KEY_UID);
+        if (StringUtils.hasText(uid)) {
+            batch.putChannelField(channelId, Constants.BODY_PARAM_UID, uid);
+            batch.addUidChannel(uid, channelId);
+        }
     }
 
-    public void processChannelInactive(JSONObject json) {
+    private void processChannelInactive(RoomSessionBatch batch, JSONObject json) {
         String channelId = json.getString(Constants.MQ_REPORT_KEY_CHANNEL_ID);
         String uid = json.getString(Constants.MQ_REPORT_KEY_UID);
         long timestamp = json.getLong(Constants.MQ_REPORT_KEY_TIMESTAMP_SHORT);
         log.info("channelIctive, channelId={}, uid={}, timestamp={}", channelId, uid, timestamp);
 
-        Map<String, String> channelRoomsToLeave = new HashMap<>();
-        String uKey = CacheKey.getSonaUidKey(uid);
         if (StringUtils.hasText(uid)) {
-            HashOperations<String, String, String> opsForHash = stringRedisTemplate.opsForHash();
-            Map<String, String> allChannelRooms = opsForHash.entries(uKey);
-            allChannelRooms.entrySet().stream().filter(entry -> entry.getKey().equals(channelId)).forEach(entry -> channelRoomsToLeave.put(entry.getKey(), entry.getValue()));
-            Map<String, LeaveReason> roomsAffected = compareWhenLeaveRoom(uid, allChannelRooms, channelRoomsToLeave, LeaveReason.CHANNEL_CLOSE);
+            Map<String, String> allChannelRooms = batch.channelRooms(uid);
+            Map<String, String> channelRoomsToLeave = new HashMap<>();
+            String room = allChannelRooms.get(channelId);
+            if (room != null) {
+                channelRoomsToLeave.put(channelId, room);
+            }
+            Map<String, LeaveReason> roomsAffected = compareWhenLeaveRoom(batch, uid, allChannelRooms, channelRoomsToLeave, LeaveReason.CHANNEL_CLOSE);
             if (!CollectionUtils.isEmpty(roomsAffected)) {
                 log.info("leave room completely, reportSona, channelId={}, uid={}, roomsAffected={}", channelId, uid, roomsAffected);
-                reportSona(timestamp, 11, roomsAffected, uid);
+                reportSona(batch, timestamp, 11, roomsAffected, uid);
             }
-        }
-
-        RedisSerializer<String> serializer = stringRedisTemplate.getStringSerializer();
-        RedisCallback<List<Object>> callback = connection -> {
-            if (!CollectionUtils.isEmpty(channelRoomsToLeave)) {
-                for (String ch : channelRoomsToLeave.keySet()) {
-                    connection.hDel(serializer.serialize(uKey), serializer.serialize(ch));
-                }
+            for (String ch : channelRoomsToLeave.keySet()) {
+                batch.removeChannelRoom(uid, ch);
             }
-            connection.sRem(serializer.serialize(CacheKey.getUidKey(uid)), serializer.serialize(channelId));
-            connection.del(serializer.serialize(CacheKey.getSonaChannelKey(channelId)));
-            return null;
-        };
-        stringRedisTemplate.executePipelined(callback);
+            batch.removeUidChannel(uid, channelId);
+        }
+        batch.deleteChannel(channelId);
     }
 
     /**
@@ -117,7 +205,7 @@ public class RoomSessionService {
      *
      * @param json 进入房间事件
      */
-    public void processEnterRoom(JSONObject json) {
+    private void processEnterRoom(RoomSessionBatch batch, JSONObject json) {
         String channelId = json.getString(Constants.MQ_REPORT_KEY_CHANNEL_ID);
         Long timestamp = json.getLong(Constants.MQ_REPORT_KEY_TIMESTAMP_SHORT);
         String room = json.getString(Constants.MQ_REPORT_KEY_ROOM);
@@ -125,19 +213,9 @@ public class RoomSessionService {
         Integer cmd = json.getInteger(Constants.MQ_REPORT_KEY_CMD);
         log.info("channel enter room, channelId={}, uid={}, room={}, timestamp={}", channelId, uid, room, timestamp);
 
-        reportSona(timestamp, cmd, room, uid, null);
-
-        RedisSerializer<String> serializer = stringRedisTemplate.getStringSerializer();
-        byte[] chKey = serializer.serialize(CacheKey.getSonaChannelKey(channelId));
-        byte[] uKey = serializer.serialize(CacheKey.getSonaUidKey(uid));
-        RedisCallback<List<Object>> callback = connection -> {
-            connection.hSet(chKey, serializer.serialize(Constants.BODY_PARAM_UID), serializer.serialize(uid));
-            connection.hSet(uKey, serializer.serialize(channelId), serializer.serialize(room));
-            connection.expire(chKey, REDIS_TTL_SESSION);
-            connection.expire(uKey, REDIS_TTL_SESSION);
-            return null;
-        };
-        stringRedisTemplate.executePipelined(callback);
+        batch.report(new RoomSessionBatch.Report(timestamp, cmd, room, uid, null));
+        batch.putChannelField(channelId, Constants.BODY_PARAM_UID, uid);
+        batch.putChannelRoom(uid, channelId, room);
     }
 
     /**
@@ -145,7 +223,7 @@ public class RoomSessionService {
      * <p>
      * 1. 首先，从传入的JSON对象中提取出时间戳、房间名、用户ID、命令和通道ID。
      * <p>
-     * 2. 然后，根据用户ID生成一个Redis键，用于获取用户当前所有的<连接,房间>映射。
+     * 2. 然后，从本批次的上下文中获取用户当前所有的<连接,房间>映射（批次开始时从redis读出，并随本批次的事件实时更新）。
      * <p>
      * 3. 如果用户当前所有的<连接,房间>映射中不包含要离开的房间，那么记录一条警告日志。
      * <p>
@@ -153,39 +231,39 @@ public class RoomSessionService {
      * 出过期无效的连接，同时进行清除。这个方法会返回实际彻底离开的房间和离开原因的映射。
      * <p>
      * 5. 如果命令是13（被后端sona强制踢出），并且实际彻底离开的房间中包含当前房间，那么从实际彻底离开的房间中移除当前房间，并记录一条信息日志。
+     * 本批次内还没有发出的该房间的上报也一并取消。
      * <p>
      * 6. 如果实际彻底离开的房间不为空，那么记录一条信息日志，并调用`reportSona`方法，上报给sona。
      * <p>
      * 7. 最后，从用户当前所有的<连接,房间>映射中删除当前的<连接,房间>，并记录一条信息日志。
      */
-    public void processLeaveRoom(JSONObject json) {
+    private void processLeaveRoom(RoomSessionBatch batch, JSONObject json) {
         Long timestamp = json.getLong(Constants.MQ_REPORT_KEY_TIMESTAMP_SHORT);
         String room = json.getString(Constants.MQ_REPORT_KEY_ROOM);
         String uid = json.getString(Constants.MQ_REPORT_KEY_UID);
         Integer cmd = json.getInteger(Constants.MQ_REPORT_KEY_CMD);
         String channelId = json.getString(Constants.MQ_REPORT_KEY_CHANNEL_ID);
 
-        String uKey = CacheKey.getSonaUidKey(uid);
-        HashOperations<String, String, String> opsForHash = stringRedisTemplate.opsForHash();
-        Map<String, String> allChannelRooms = opsForHash.entries(uKey);
+        Map<String, String> allChannelRooms = batch.channelRooms(uid);
         if (!allChannelRooms.containsValue(room)) {
             log.warn("NotInRoomWhenLeave, channelId={}, uid={}, allChannelRooms={}, room={}", channelId, uid, allChannelRooms, room);
             Cat.logEvent(Constants.CHATROOM_SESSION_PROBLEM, "NotInRoomWhenLeave");
         }
 
-        Map<String, LeaveReason> roomsAffected = compareWhenLeaveRoom(uid, allChannelRooms, Collections.singletonMap(channelId, room), LeaveReason.BUSINESS);
+        Map<String, LeaveReason> roomsAffected = compareWhenLeaveRoom(batch, uid, allChannelRooms, Collections.singletonMap(channelId, room), LeaveReason.BUSINESS);
         // 如果是被后端sona强制踢出，则不需要重新上报sona
         if (cmd == 13) {
+            batch.cancelReport(uid, room);
             if (roomsAffected.remove(room) != null) {
                 log.info("kicked out of room, channelId={}, uid={}, room={}", channelId, uid, room);
             }
         }
         if (!CollectionUtils.isEmpty(roomsAffected)) {
             log.info("leave room completely, reportSona, channelId={}, uid={}, roomsAffected={}", channelId, uid, roomsAffected);
-            reportSona(timestamp, 11, roomsAffected, uid);
+            reportSona(batch, timestamp, 11, roomsAffected, uid);
         }
 
-        opsForHash.delete(uKey, channelId);
+        batch.removeChannelRoom(uid, channelId);
         log.info("leaveRoom, channelId={}, uid={}, room={}, timestamp={}", channelId, uid, room, timestamp);
     }
 
@@ -198,16 +276,16 @@ public class RoomSessionService {
      * @param channelRoomsToLeave 当前想要离开房间的<连接,房间>
      * @return 实际彻底离开的房间
      */
-    private Map<String, LeaveReason> compareWhenLeaveRoom(String uid, Map<String, String> allChannelRooms, Map<String, String> channelRoomsToLeave, LeaveReason leaveReason) {
+    private Map<String, LeaveReason> compareWhenLeaveRoom(RoomSessionBatch batch, String uid, Map<String, String> allChannelRooms, Map<String, String> channelRoomsToLeave, LeaveReason leaveReason) {
         Set<String> roomsRemaining = new HashSet<>();
         Map<String, LeaveReason> roomsAffected = new HashMap<>();
-        for (Map.Entry<String, String> entry : allChannelRooms.entrySet()) {
+        for (Map.Entry<String, String> entry : new ArrayList<>(allChannelRooms.entrySet())) {
             String channelId = entry.getKey();
             String room = entry.getValue();
             boolean channelValid = serverStatCache.judgeChannelValid(channelId);
             if (!channelValid) {
                 // 删除无效的连接
-                deleteInvalidChannel(uid, channelId, room);
+                deleteInvalidChannel(batch, uid, channelId, room);
                 // 将房间和离开原因添加到受影响的房间映射中
                 roomsAffected.putIfAbsent(room, LeaveReason.CHANNEL_INVALID);
             }
@@ -222,34 +300,113 @@ public class RoomSessionService {
         return roomsAffected;
     }
 
-    private void deleteInvalidChannel(String uid, String channelId, String room) {
+    private void deleteInvalidChannel(RoomSessionBatch batch, String uid, String channelId, String room) {
+        batch.removeChannelRoom(uid, channelId);
+        batch.deleteChannel(channelId);
+        log.info("deleteInvalidChannel, uid={}, channelId={}, room={}", uid, channelId, room);
+    }
+
+    /**
+     * 本批次所有的 redis 写操作合并成一次 pipeline，每个 key 只写入最终状态
+     */
+    private void flush(RoomSessionBatch batch) {
+        if (batch.getChannelWrites().isEmpty() && batch.getChannelRoomWrites().isEmpty() && batch.getUidChannelWrites().isEmpty()) {
+            return;
+        }
+        try {
+            stringRedisTemplate.executePipelined(flushCallback(batch, false));
+        } catch (RuntimeException e) {
+            if (!UserPresenceStore.isNoScript(e)) {
+                throw e;
+            }
+            //脚本缓存丢失，发送完整脚本重试一次，pipeline 中的写操作都是幂等的
+            log.warn("RoomSessionService.flush NOSCRIPT, retry with full script");
+            Cat.logEvent(Constants.CHATROOM_SESSION_PROBLEM, "PresenceNoScript");
+            stringRedisTemplate.executePipelined(flushCallback(batch, true));
+        }
+    }
+
+    private RedisCallback<List<Object>> flushCallback(RoomSessionBatch batch, boolean fullScript) {
         RedisSerializer<String> serializer = stringRedisTemplate.getStringSerializer();
-        RedisCallback<List<Object>> callback = connection -> {
-            connection.hDel(serializer.serialize(CacheKey.getSonaUidKey(uid)), serializer.serialize(channelId));
-            connection.del(serializer.serialize(CacheKey.getSonaChannelKey(channelId)));
+        return connection -> {
+            for (Map.Entry<String, RoomSessionBatch.ChannelWrite> entry : batch.getChannelWrites().entrySet()) {
+                byte[] chKey = serializer.serialize(CacheKey.getSonaChannelKey(entry.getKey()));
+                RoomSessionBatch.ChannelWrite write = entry.getValue();
+                if (write.delete) {
+                    connection.del(chKey);
+                }
+                if (!write.fields.isEmpty()) {
+                    connection.hMSet(chKey, serialize(serializer, write.fields));
+                    //过期时间1周
+                    connection.expire(chKey, REDIS_TTL_SESSION);
+                }
+            }
+            for (Map.Entry<String, Map<String, String>> entry : batch.getChannelRoomWrites().entrySet()) {
+                byte[] uKey = serializer.serialize(CacheKey.getSonaUidKey(entry.getKey()));
+                Map<String, String> puts = new HashMap<>();
+                List<byte[]> deletes = new ArrayList<>();
+                entry.getValue().forEach((channelId, room) -> {
+                    if (room == null) {
+                        deletes.add(serializer.serialize(channelId));
+                    } else {
+                        puts.put(channelId, room);
+                    }
+                });
+                if (!deletes.isEmpty()) {
+                    connection.hDel(uKey, deletes.toArray(new byte[0][]));
+                }
+                if (!puts.isEmpty()) {
+                    connection.hMSet(uKey, serialize(serializer, puts));
+                    connection.expire(uKey, REDIS_TTL_SESSION);
+                }
+            }
+            userPresenceStore.write(connection, batch.getUidChannelWrites(), fullScript);
             return null;
         };
-        stringRedisTemplate.executePipelined(callback);
-        log.info("deleteInvalidChannel, uid={}, channelId={}, room={}", uid, channelId, room);
     }
 
-    private void reportSona(long timestamp, int cmd, Map<String, LeaveReason> rooms, String uid) {
+    private static Map<byte[], byte[]> serialize(RedisSerializer<String> serializer, Map<String, String> map) {
+        Map<byte[], byte[]> result = new LinkedHashMap<>(map.size() * 2);
+        map.forEach((k, v) -> result.put(serializer.serialize(k), serializer.serialize(v)));
+        return result;
+    }
+
+    private void reportSona(RoomSessionBatch batch, long timestamp, int cmd, Map<String, LeaveReason> rooms, String uid) {
         for (Map.Entry<String, LeaveReason> entry : rooms.entrySet()) {
             Cat.logEvent(Constants.LEAVE_REASON, entry.getValue().toString());
-            reportSona(timestamp, cmd, entry.getKey(), uid, entry.getValue());
+            batch.report(new RoomSessionBatch.Report(timestamp, cmd, entry.getKey(), uid, entry.getValue()));
+        }
+    }
+
+    /**
+     * 上报 sona，同一个 uid 的消息按 uid 选择同一个队列，按顺序批量发送
+     * <p>
+     * redis 状态此时已经写入，重试后仍发送失败的上报无法回滚，记录下丢失的 uid 及内容，便于补偿
+     */
+    private void reportSona(RoomSessionBatch batch) {
+        Map<String, List<RoomSessionBatch.Report>> reports = batch.reportsByUid();
+        if (reports.isEmpty()) {
+            return;
+        }
+        Map<String, List<String>> contents = new LinkedHashMap<>(reports.size() * 2);
+        reports.forEach((uid, list) -> contents.put(uid, list.stream().map(RoomSessionService::toReportContent).collect(Collectors.toList())));
+        Set<String> failed = rocketSender.syncSendOrderlyBatch(TOPIC_CHATROOM_SESSION_SONA, contents);
+        for (String uid : failed) {
+            log.error("reportSona lost, uid={}, contents={}", uid, contents.get(uid));
+            Cat.logEvent(Constants.CHATROOM_SESSION_PROBLEM, "ReportSonaLost");
         }
     }
 
-    private void reportSona(long timestamp, int cmd, String room, String uid, LeaveReason leaveReason) {
+    private static String toReportContent(RoomSessionBatch.Report report) {
         JSONObject jsonParam = new JSONObject();
-        jsonParam.put(Constants.MQ_REPORT_KEY_TIMESTAMP, timestamp);
-        jsonParam.put(Constants.MQ_REPORT_KEY_ROOM, room);
-        jsonParam.put(Constants.MQ_REPORT_KEY_UID, uid);
-        jsonParam.put(Constants.MQ_REPORT_KEY_CMD, cmd);
-        if (leaveReason != null) {
-            jsonParam.put(Constants.LEAVE_REASON, leaveReason.getCode());
-        }
-        rocketSender.syncSend(TOPIC_CHATROOM_SESSION_SONA, null, uid, jsonParam.toJSONString());
+        jsonParam.put(Constants.MQ_REPORT_KEY_TIMESTAMP, report.timestamp);
+        jsonParam.put(Constants.MQ_REPORT_KEY_ROOM, report.room);
+        jsonParam.put(Constants.MQ_REPORT_KEY_UID, report.uid);
+        jsonParam.put(Constants.MQ_REPORT_KEY_CMD, report.cmd);
+        if (report.leaveReason != null) {
+            jsonParam.put(Constants.LEAVE_REASON, report.leaveReason.getCode());
+        }
+        return jsonParam.toJSONString();
     }
 
 }
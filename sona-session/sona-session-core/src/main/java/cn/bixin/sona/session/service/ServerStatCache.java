@@ -1,6 +1,7 @@
 package cn.bixin.sona.session.service;
 
 import cn.bixin.sona.session.channel.ChannelIdInfo;
+import cn.bixin.sona.session.channel.ChannelRecords;
 import com.alibaba.fastjson.JSON;
 import com.alibaba.fastjson.annotation.JSONField;
 import org.slf4j.Logger;
@@ -12,6 +13,7 @@ import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 
 import javax.annotation.Resource;
+import java.util.Arrays;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
@@ -23,6 +25,8 @@ public class ServerStatCache {
 
     private static final Logger log = LoggerFactory.getLogger(ServerStatCache.class);
 
+    public static final String SERVER_STAT_KEY = "server_stat";
+
     /**
      * 长时间没有更新stat信息的server，视为无效。server信息过期时间
      */
@@ -38,7 +42,36 @@ public class ServerStatCache {
     @Resource
     private RedisTemplate<String, String> redisTemplate;
 
-    private volatile Map<String, ServerStat> serverStats = new ConcurrentHashMap<>();
+    private final Map<String, ServerStat> serverStats = new ConcurrentHashMap<>();
+
+    /**
+     * 按 serverId 序号预先计算好的有效性表，判断连接是否有效时直接按下标读取
+     */
+    private volatile ValidityTable validityTable = new ValidityTable(0, new long[0], new byte[0]);
+
+    private static final byte STATE_UNKNOWN = 0;
+
+    private static final byte STATE_VALID = 1;
+
+    private static final byte STATE_OUTDATED = 2;
+
+    /**
+     * 每次有效性变化时生成新的版本，读取方拿到的总是一个完整的版本
+     */
+    private static final class ValidityTable {
+
+        private final long version;
+
+        private final long[] startTimes;
+
+        private final byte[] states;
+
+        private ValidityTable(long version, long[] startTimes, byte[] states) {
+            this.version = version;
+            this.startTimes = startTimes;
+            this.states = states;
+        }
+    }
 
     public static class ServerStat {
 
@@ -88,72 +121,169 @@ public class ServerStatCache {
         return serverStats.get(serverId);
     }
 
+    public long getValidityVersion() {
+        return validityTable.version;
+    }
+
     public boolean judgeChannelValid(String channelId) {
-        ChannelIdInfo channelIdInfo = ChannelIdInfo.parseChannelId(channelId);
-        return judgeChannelValid(channelIdInfo, channelId);
+        int serverIndex = ChannelIdInfo.serverIndex(channelId);
+        long connTime = ChannelIdInfo.timestamp(channelId);
+        if (serverIndex < 0 || connTime == ChannelIdInfo.INVALID_TIMESTAMP) {
+            String serverId = ChannelIdInfo.serverId(channelId);
+            if (serverId == null || connTime == ChannelIdInfo.INVALID_TIMESTAMP) {
+                log.warn("judgeChannelValid, InvalidChannelId, channelId={}", channelId);
+                return false;
+            }
+            //serverId 序号已经分配完（异常数据），按 serverId 判断
+            return judgeChannelValid(serverId, connTime);
+        }
+        return judgeChannelValid(serverIndex, connTime);
+    }
+
+    /**
+     * 分桶存储中的连接记录，直接按下标读取网关序号和连接时间，不需要还原 channelId
+     */
+    public boolean judgeChannelValid(ChannelRecords records, int i) {
+        int serverIndex = records.serverIndex(i);
+        long connTime = records.timestamp(i);
+        if (serverIndex < 0 || connTime == ChannelIdInfo.INVALID_TIMESTAMP) {
+            return judgeChannelValid(records.channelId(i));
+        }
+        return judgeChannelValid(serverIndex, connTime);
+    }
+
+    public boolean judgeChannelValid(ChannelIdInfo channelIdInfo, String channelId) {
+        if (channelIdInfo == null) {
+            log.warn("judgeChannelValid, InvalidChannelId, channelId={}", channelId);
+            return false;
+        }
+        return judgeChannelValid(channelIdInfo.getServerId(), Long.parseLong(channelIdInfo.getTimestamp()));
+    }
+
+    private boolean judgeChannelValid(String serverId, long connTime) {
+        int serverIndex = ChannelIdInfo.serverIndexOf(serverId);
+        if (serverIndex >= 0) {
+            return judgeChannelValid(serverIndex, connTime);
+        }
+        ServerStat stat = findByServerId(serverId);
+        if (stat == null) {
+            return decide(STATE_UNKNOWN, 0, connTime);
+        }
+        return decide(isOutdated(stat, System.currentTimeMillis()) ? STATE_OUTDATED : STATE_VALID, stat.getStartTime(), connTime);
+    }
+
+    private boolean judgeChannelValid(int serverIndex, long connTime) {
+        ValidityTable table = validityTable;
+        if (serverIndex >= table.states.length) {
+            return decide(STATE_UNKNOWN, 0, connTime);
+        }
+        return decide(table.states[serverIndex], table.startTimes[serverIndex], connTime);
     }
 
     /**
      * 判断连接是否有效
      * 工作原理如下：
      * <p>
-     * 1. 首先，它检查`connTime`是否为`null`。`connTime`是连接的创建时间。
+     * 1. 首先，根据 serverId 的序号在有效性表中找到服务器的状态和启动时间 startTime。
+     * <p>
+     * 2. 然后，它检查`connTime`是否小于`startTime`。`connTime`是连接的创建时间。
      * <p>
-     * 2. 然后，它检查`connTime`是否小于`ServerStat`的`startTime`。`ServerStat`是服务器的状态信息，`startTime`是服务器启动的时间。
+     * 3. 如果`connTime`小于`startTime`，那么它会返回`false`，表示连接无效。这是因为如果一个连接的创建时间早于服务器的启动时间，那么这个连接肯定是在服务器上次启动之前创建的，所以这个连接已经无效了。
      * <p>
-     * 3. 如果`connTime`为`null`或者小于`ServerStat`的`startTime`，那么它会返回`false`，表示连接无效。这是因为如果一个连接的创建时间早于服务器的启动时间，那么这个连接肯定是在服务器上次启动之前创建的，所以这个连接已经无效了。
+     * 4. 服务器长时间没有上报（或者从未上报，且连接已经建立了较长时间）时，由 serverStatOutdateKeep 决定是否保留连接。
      * <p>
      * 这段代码的主要目的是确保连接是有效的，即连接的服务器是在线的，且服务器没有重启。
      */
-    public boolean judgeChannelValid(ChannelIdInfo channelIdInfo, String channelId) {
-        if (channelIdInfo == null) {
-            log.warn("judgeChannelValid, InvalidChannelId, channelId={}", channelId);
+    private boolean decide(byte state, long startTime, long connTime) {
+        if (state == STATE_UNKNOWN) {
+            return System.currentTimeMillis() - connTime <= serverStatOutdateSeconds * 1000L || serverStatOutdateKeep;
+        }
+        if (connTime < startTime) {
             return false;
         }
+        return state == STATE_VALID || serverStatOutdateKeep;
+    }
 
-        String serverId = channelIdInfo.getServerId();
-        Long connTime = Long.valueOf(channelIdInfo.getTimestamp());
-        ServerStat stat = findByServerId(serverId);
-        if (stat == null) {
-            if (connTime == null || System.currentTimeMillis() - connTime > serverStatOutdateSeconds * 1000L) {
-                log.info("judgeChannelValid, ServerStatNotFound, connTime={}, serverId={}, serverStat=null", connTime, serverId);
-                return serverStatOutdateKeep;
+    private boolean isOutdated(ServerStat stat, long now) {
+        return now - stat.getReportTime() > serverStatOutdateSeconds * 1000L;
+    }
+
+    /**
+     * 网关上报的状态，由广播消息推送到每个节点
+     */
+    public void onServerStat(String serverId, ServerStat stat) {
+        ServerStat oldStat = serverStats.get(serverId);
+        if (oldStat != null && oldStat.getReportTime() > stat.getReportTime()) {
+            return;
+        }
+        serverStats.put(serverId, stat);
+        if (oldStat != null && oldStat.getStartTime() == stat.getStartTime() && !isOutdated(oldStat, System.currentTimeMillis())) {
+            //只是正常的定时上报，有效性没有变化
+            return;
+        }
+        log.info("onServerStat, server changed: server={}, oldStartTime={}, newStartTime={}", serverId,
+                oldStat == null ? null : oldStat.getStartTime(), stat.getStartTime());
+        rebuildValidityTable();
+    }
+
+    /**
+     * 服务器是否过期随时间变化，定时重新计算，只在有效性变化时生成新的版本
+     */
+    @Scheduled(fixedRate = 1000)
+    public void refreshValidityTable() {
+        rebuildValidityTable();
+    }
+
+    private synchronized void rebuildValidityTable() {
+        long now = System.currentTimeMillis();
+        ValidityTable old = validityTable;
+        int size = old.states.length;
+        int[] indexes = new int[serverStats.size()];
+        ServerStat[] stats = new ServerStat[serverStats.size()];
+        int n = 0;
+        for (Map.Entry<String, ServerStat> entry : serverStats.entrySet()) {
+            if (n == indexes.length) {
+                break;
+            }
+            int index = ChannelIdInfo.serverIndexOf(entry.getKey());
+            if (index < 0) {
+                continue;
             }
-            return true;
+            indexes[n] = index;
+            stats[n++] = entry.getValue();
+            size = Math.max(size, index + 1);
         }
-        if (connTime == null || connTime < stat.getStartTime()) {
-            log.info("judgeChannelValid(), ServerRestart, connTime={}, serverStartTime={}", connTime, stat.getStartTime());
-            return false;
+        long[] startTimes = new long[size];
+        byte[] states = new byte[size];
+        for (int i = 0; i < n; i++) {
+            startTimes[indexes[i]] = stats[i].getStartTime();
+            states[indexes[i]] = isOutdated(stats[i], now) ? STATE_OUTDATED : STATE_VALID;
         }
-        if (System.currentTimeMillis() - stat.getReportTime() > serverStatOutdateSeconds * 1000L) {
-            log.info("judgeChannelValid(), ServerStatOutdated, serverReportTime={}", stat.getReportTime());
-            return serverStatOutdateKeep;
+        if (Arrays.equals(states, old.states) && Arrays.equals(startTimes, old.startTimes)) {
+            return;
         }
-        return true;
+        validityTable = new ValidityTable(old.version + 1, startTimes, states);
+        log.info("rebuildValidityTable, version={}, servers={}", old.version + 1, n);
     }
 
-    @Scheduled(fixedRate = 5000)
+    /**
+     * 状态由广播消息推送，这里只在启动时以及低频地从 redis 补齐（例如广播消息丢失、节点刚启动）
+     */
+    @Scheduled(initialDelay = 0, fixedRateString = "${server.stat.reconcile.millis:60000}")
     public void refreshServerStats() {
-        Map<String, ServerStat> newStats = new ConcurrentHashMap<>();
         HashOperations<String, String, String> opsForHash = redisTemplate.opsForHash();
-        Map<String, String> serverStat = opsForHash.entries("server_stat");
+        Map<String, String> serverStat = opsForHash.entries(SERVER_STAT_KEY);
         if (serverStat.isEmpty()) {
             log.error("refreshServerStats fail! serverStat is empty");
             return;
         }
 
         for (Map.Entry<String, String> entry : serverStat.entrySet()) {
-            ServerStat stat = JSON.parseObject(entry.getValue(), ServerStat.class);
-            newStats.put(entry.getKey(), stat);
-
-            ServerStat oldStat = serverStats.get(entry.getKey());
-            if (oldStat != null && oldStat.startTime != stat.startTime) {
-                log.info("refreshServerStats(), startTime changed: server={}, old={}, new={}", entry.getKey(), oldStat.startTime, stat.startTime);
+            try {
+                onServerStat(entry.getKey(), JSON.parseObject(entry.getValue(), ServerStat.class));
+            } catch (Exception e) {
+                log.error("refreshServerStats, invalid stat: server={}, stat={}", entry.getKey(), entry.getValue(), e);
             }
         }
-        if (!newStats.isEmpty()) {
-            log.info("refreshServerStats, newStats={}", JSON.toJSONString(newStats));
-            serverStats = newStats;
-        }
     }
 }
@@ -0,0 +1,317 @@
+package cn.bixin.sona.session.service;
+
+import cn.bixin.sona.session.channel.ChannelRecords;
+import cn.bixin.sona.session.enums.PresenceMode;
+import cn.bixin.sona.session.utils.CacheKey;
+import cn.bixin.sona.session.utils.Constants;
+import com.dianping.cat.Cat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.RedisPipelineException;
+import org.springframework.data.redis.connection.ReturnType;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.data.redis.serializer.RedisSerializer;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 用户的在线连接
+ * <p>
+ * 原来每个 uid 一个集合 u:{uid}，成员是完整的 channelId 字符串，几千万个小 key 是会话 redis 内存和 keyspace 扫描的主要开销。这里改为分桶存储：
+ * <p>
+ * 1. 按 uid 分桶，每 {@link #BUCKET_SIZE} 个 uid 一个 hash（sona:p:{uid / BUCKET_SIZE}），字段为 uid % BUCKET_SIZE，
+ * 小 hash 使用 listpack 编码，没有每个 key 的额外开销（单个字段值不要超过 hash-max-listpack-value，建议调整为 256）
+ * <p>
+ * 2. 字段值为该用户所有连接的紧凑编码（见 {@link ChannelRecords}），增删由 user_presence.lua 原子完成
+ * <p>
+ * 3. 批量读取时同一个桶的 uid 合并为一次 HMGET，有效性直接按记录中的网关序号、连接时间判断，只有需要返回的连接才还原 channelId
+ * <p>
+ * 4. 通过 sona.presence.mode 从旧的集合迁移（见 {@link PresenceMode}），双写期间读取分桶存储时同时读取旧集合并合并结果
+ *
+ * @author qinwei
+ */
+@Service
+public class UserPresenceStore {
+
+    private static final Logger log = LoggerFactory.getLogger(UserPresenceStore.class);
+
+    /**
+     * 每个桶的 uid 数量，已经有数据之后不能修改
+     */
+    private static final int BUCKET_SIZE = 100;
+
+    private static final long REDIS_TTL_PRESENCE = 7 * 24 * 60 * 60;
+
+    private static final byte OP_ADD = '+';
+
+    private static final byte OP_REMOVE = '-';
+
+    @Value("${sona.presence.mode:DUAL_WRITE}")
+    private PresenceMode mode;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private ServerStatCache serverStatCache;
+
+    @Resource(name = "userPresenceScript")
+    private RedisScript<Long> userPresenceScript;
+
+    private byte[] script;
+
+    private byte[] scriptSha1;
+
+    @PostConstruct
+    public void init() {
+        script = userPresenceScript.getScriptAsString().getBytes(StandardCharsets.UTF_8);
+        scriptSha1 = userPresenceScript.getSha1().getBytes(StandardCharsets.UTF_8);
+        log.info("UserPresenceStore, mode={}", mode);
+    }
+
+    private static long bucket(long uid) {
+        return Math.floorDiv(uid, BUCKET_SIZE);
+    }
+
+    private static String field(long uid) {
+        return String.valueOf(Math.floorMod(uid, BUCKET_SIZE));
+    }
+
+    /**
+     * 在会话事件的写 pipeline 中调用，脚本通过 EVALSHA 执行，不用每次发送完整的脚本内容
+     *
+     * @param uidChannelWrites uid -> 连接的修改，true 表示添加，false 表示删除
+     * @param fullScript       是否发送完整的脚本，pipeline 因为 NOSCRIPT 失败（redis 重启、主从切换后脚本缓存丢失）后重试时使用，
+     *                         EVAL 会重新缓存脚本
+     * @see #isNoScript(Throwable)
+     */
+    public void write(RedisConnection connection, Map<String, Map<String, Boolean>> uidChannelWrites, boolean fullScript) {
+        PresenceMode mode = this.mode;
+        RedisSerializer<String> serializer = stringRedisTemplate.getStringSerializer();
+        for (Map.Entry<String, Map<String, Boolean>> entry : uidChannelWrites.entrySet()) {
+            if (mode.isWriteLegacy()) {
+                writeLegacy(connection, serializer, entry.getKey(), entry.getValue());
+            }
+            if (mode.isWriteSharded()) {
+                writeSharded(connection, serializer, entry.getKey(), entry.getValue(), fullScript);
+            }
+        }
+    }
+
+    private void writeLegacy(RedisConnection connection, RedisSerializer<String> serializer, String uid, Map<String, Boolean> channels) {
+        byte[] key = serializer.serialize(CacheKey.getUidKey(uid));
+        List<byte[]> adds = new ArrayList<>();
+        List<byte[]> removes = new ArrayList<>();
+        channels.forEach((channelId, add) -> (add ? adds : removes).add(serializer.serialize(channelId)));
+        if (!removes.isEmpty()) {
+            connection.sRem(key, removes.toArray(new byte[0][]));
+        }
+        if (!adds.isEmpty()) {
+            connection.sAdd(key, adds.toArray(new byte[0][]));
+        }
+    }
+
+    private void writeSharded(RedisConnection connection, RedisSerializer<String> serializer, String uid, Map<String, Boolean> channels, boolean fullScript) {
+        long id;
+        try {
+            id = Long.parseLong(uid);
+        } catch (NumberFormatException e) {
+            log.warn("UserPresenceStore.write, InvalidUid, uid={}", uid);
+            Cat.logEvent(Constants.CHATROOM_SESSION_PROBLEM, "PresenceInvalidUid");
+            return;
+        }
+        byte[][] keysAndArgs = new byte[3 + channels.size()][];
+        int n = 0;
+        keysAndArgs[n++] = serializer.serialize(CacheKey.getPresenceBucketKey(bucket(id)));
+        keysAndArgs[n++] = serializer.serialize(field(id));
+        keysAndArgs[n++] = serializer.serialize(String.valueOf(REDIS_TTL_PRESENCE));
+        for (Map.Entry<String, Boolean> entry : channels.entrySet()) {
+            byte[] record = ChannelRecords.encode(entry.getKey());
+            if (record == null) {
+                log.warn("UserPresenceStore.write, ChannelIdTooLong, uid={}, channelId={}", uid, entry.getKey());
+                Cat.logEvent(Constants.CHATROOM_SESSION_PROBLEM, "PresenceChannelIdTooLong");
+                continue;
+            }
+            byte[] arg = new byte[record.length + 1];
+            arg[0] = entry.getValue() ? OP_ADD : OP_REMOVE;
+            System.arraycopy(record, 0, arg, 1, record.length);
+            keysAndArgs[n++] = arg;
+        }
+        if (n > 3) {
+            byte[][] args = n == keysAndArgs.length ? keysAndArgs : Arrays.copyOf(keysAndArgs, n);
+            if (fullScript) {
+                connection.eval(script, ReturnType.INTEGER, 1, args);
+            } else {
+                connection.evalSha(scriptSha1, ReturnType.INTEGER, 1, args);
+            }
+        }
+    }
+
+    /**
+     * @return 是否是 EVALSHA 找不到脚本导致的失败
+     */
+    public static boolean isNoScript(Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause.getMessage() != null && cause.getMessage().contains("NOSCRIPT")) {
+                return true;
+            }
+            if (cause instanceof RedisPipelineException) {
+                for (Object result : ((RedisPipelineException) cause).getPipelineResult()) {
+                    if (result instanceof Throwable && isNoScript((Throwable) result)) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param validOnly 是否过滤掉所在网关已经重启、长时间没有上报的连接
+     * @return uid -> 用户当前的连接
+     */
+    public Map<Long, List<String>> getChannels(List<Long> uids, boolean validOnly) {
+        PresenceMode mode = this.mode;
+        if (!mode.isReadSharded()) {
+            return readLegacy(uids, validOnly);
+        }
+        ChannelRecords[] records = readSharded(uids);
+        //双写之前建立、仍然在线的连接只在旧集合中，用户之后新建的连接只会让分桶存储中有记录，不能只在没有记录时才读旧集合
+        Map<Long, List<String>> legacy = mode.isWriteLegacy() ? readLegacy(uids, validOnly) : Collections.emptyMap();
+        Map<Long, List<String>> result = new HashMap<>(uids.size() * 2);
+        for (int i = 0; i < uids.size(); i++) {
+            List<String> channelIds = records[i] == null ? new ArrayList<>() : toChannelIds(records[i], validOnly);
+            List<String> legacyChannelIds = legacy.get(uids.get(i));
+            if (legacyChannelIds != null) {
+                for (String channelId : legacyChannelIds) {
+                    if (!channelIds.contains(channelId)) {
+                        channelIds.add(channelId);
+                    }
+                }
+            }
+            result.put(uids.get(i), channelIds);
+        }
+        return result;
+    }
+
+    /**
+     * @return uid -> 是否有连接，不判断连接是否有效
+     */
+    public Map<Long, Boolean> getOnlineStates(List<Long> uids) {
+        PresenceMode mode = this.mode;
+        if (!mode.isReadSharded()) {
+            return readLegacyOnlineStates(uids);
+        }
+        ChannelRecords[] records = readSharded(uids);
+        Map<Long, Boolean> legacy = mode.isWriteLegacy() ? readLegacyOnlineStates(uids) : Collections.emptyMap();
+        Map<Long, Boolean> result = new HashMap<>(uids.size() * 2);
+        for (int i = 0; i < uids.size(); i++) {
+            boolean online = (records[i] != null && records[i].size() > 0) || Boolean.TRUE.equals(legacy.get(uids.get(i)));
+            result.put(uids.get(i), online);
+        }
+        return result;
+    }
+
+    private List<String> toChannelIds(ChannelRecords records, boolean validOnly) {
+        List<String> channelIds = new ArrayList<>(records.size());
+        for (int i = 0; i < records.size(); i++) {
+            if (!validOnly || serverStatCache.judgeChannelValid(records, i)) {
+                channelIds.add(records.channelId(i));
+            }
+        }
+        return channelIds;
+    }
+
+    /**
+     * 同一个桶的 uid 合并为一次 HMGET，所有的桶一次 pipeline
+     *
+     * @return 与 uids 一一对应，分桶存储中没有的用户为 null
+     */
+    @SuppressWarnings("unchecked")
+    private ChannelRecords[] readSharded(List<Long> uids) {
+        RedisSerializer<String> serializer = stringRedisTemplate.getStringSerializer();
+        Map<Long, List<Integer>> buckets = new LinkedHashMap<>();
+        for (int i = 0; i < uids.size(); i++) {
+            buckets.computeIfAbsent(bucket(uids.get(i)), k -> new ArrayList<>()).add(i);
+        }
+        //字段值是二进制的，不能经过 StringRedisTemplate 的反序列化，直接使用原始的 pipeline 结果
+        List<Object> results = stringRedisTemplate.execute((RedisCallback<List<Object>>) connection -> {
+            connection.openPipeline();
+            for (Map.Entry<Long, List<Integer>> entry : buckets.entrySet()) {
+                List<Integer> indexes = entry.getValue();
+                byte[][] fields = new byte[indexes.size()][];
+                for (int j = 0; j < indexes.size(); j++) {
+                    fields[j] = serializer.serialize(field(uids.get(indexes.get(j))));
+                }
+                connection.hMGet(serializer.serialize(CacheKey.getPresenceBucketKey(entry.getKey())), fields);
+            }
+            return connection.closePipeline();
+        });
+        ChannelRecords[] records = new ChannelRecords[uids.size()];
+        int n = 0;
+        for (List<Integer> indexes : buckets.values()) {
+            List<byte[]> values = (List<byte[]>) results.get(n++);
+            for (int j = 0; j < indexes.size(); j++) {
+                byte[] value = values == null ? null : values.get(j);
+                records[indexes.get(j)] = value == null ? null : ChannelRecords.of(value);
+            }
+        }
+        return records;
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<Long, List<String>> readLegacy(List<Long> uids, boolean validOnly) {
+        RedisSerializer<String> serializer = stringRedisTemplate.getStringSerializer();
+        RedisCallback<List<Object>> callback = connection -> {
+            for (Long uid : uids) {
+                connection.sMembers(serializer.serialize(CacheKey.getUidKey(String.valueOf(uid))));
+            }
+            return null;
+        };
+        List<Object> pipelineResult = stringRedisTemplate.executePipelined(callback);
+        Map<Long, List<String>> result = new HashMap<>(uids.size() * 2);
+        for (int i = 0; i < uids.size(); i++) {
+            Set<String> channels = (Set<String>) pipelineResult.get(i);
+            List<String> list = new ArrayList<>(channels.size());
+            for (String channel : channels) {
+                if (!validOnly || serverStatCache.judgeChannelValid(channel)) {
+                    list.add(channel);
+                }
+            }
+            result.put(uids.get(i), list);
+        }
+        return result;
+    }
+
+    private Map<Long, Boolean> readLegacyOnlineStates(List<Long> uids) {
+        RedisSerializer<String> serializer = stringRedisTemplate.getStringSerializer();
+        RedisCallback<List<Object>> callback = connection -> {
+            for (Long uid : uids) {
+                connection.sCard(serializer.serialize(CacheKey.getUidKey(String.valueOf(uid))));
+            }
+            return null;
+        };
+        List<Object> pipelineResult = stringRedisTemplate.executePipelined(callback);
+        Map<Long, Boolean> result = new HashMap<>(uids.size() * 2);
+        for (int i = 0; i < uids.size(); i++) {
+            Long size = (Long) pipelineResult.get(i);
+            result.put(uids.get(i), size > 0);
+        }
+        return result;
+    }
+}
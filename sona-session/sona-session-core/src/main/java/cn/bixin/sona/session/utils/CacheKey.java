@@ -19,4 +19,8 @@ public class CacheKey {
         return Joiner.on(":").join("u", uid);
     }
 
+    public static String getPresenceBucketKey(long bucket) {
+        return Joiner.on(":").join("sona:p", bucket);
+    }
+
 }
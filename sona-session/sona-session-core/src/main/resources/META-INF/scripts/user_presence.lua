@@ -0,0 +1,44 @@
+-- 用户在线连接的分桶存储：一个 hash 存放一批 uid，每个 uid 的所有连接记录拼接成一个字段值（见 ChannelRecords）
+-- 每条记录的第一个字节是记录的长度（不含该字节）
+-- KEYS[1]：分桶
+-- ARGV[1]：uid 在桶内的字段
+-- ARGV[2]：过期时间（秒）
+-- ARGV[3...]：'+' 或 '-' 开头的连接记录，按顺序添加、删除
+-- 返回 uid 剩余的连接数
+local key = KEYS[1]
+local field = ARGV[1]
+
+local records = {}
+local value = redis.call('hget', key, field)
+if value then
+    local i = 1
+    while i <= #value do
+        local len = string.byte(value, i)
+        if len == 0 or i + len > #value then
+            break
+        end
+        records[#records + 1] = string.sub(value, i, i + len)
+        i = i + len + 1
+    end
+end
+
+for n = 3, #ARGV do
+    local op = string.sub(ARGV[n], 1, 1)
+    local record = string.sub(ARGV[n], 2)
+    for j = #records, 1, -1 do
+        if records[j] == record then
+            table.remove(records, j)
+        end
+    end
+    if op == '+' then
+        records[#records + 1] = record
+    end
+end
+
+if #records == 0 then
+    redis.call('hdel', key, field)
+else
+    redis.call('hset', key, field, table.concat(records))
+    redis.call('expire', key, ARGV[2])
+end
+return #records
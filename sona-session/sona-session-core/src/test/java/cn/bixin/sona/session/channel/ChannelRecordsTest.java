@@ -0,0 +1,111 @@
+package cn.bixin.sona.session.channel;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+/**
+ * @author qinwei
+ * <p>
+ * ChannelRecords 编码的往返测试，同时校验 user_presence.lua 按长度字节切分记录的方式，两边不一致时在线数据会被静默写坏
+ */
+class ChannelRecordsTest {
+
+    private static final String[] CHANNEL_IDS = {
+            "10.0.0.1|192.168.1.2|52311|1700000000000|1f",
+            "#0a000002c0a801039c5618bcfe5687b2a0",
+            "10.0.0.3|172.16.8.200|61000|1700000001000|ffff",
+            //无法无损编码，按原始字节存储
+            "10.0.0.4|fe80::1|8080|1700000002000|1",
+            "10.0.0.5|192.168.1.9|0080|1700000003000|a"
+    };
+
+    @Test
+    void testRoundTrip() {
+        for (String channelId : CHANNEL_IDS) {
+            byte[] record = ChannelRecords.encode(channelId);
+            assertNotNull(record, channelId);
+            assertEquals(record.length - 1, record[0] & 0xFF, channelId);
+            ChannelRecords records = ChannelRecords.of(record);
+            assertEquals(1, records.size());
+            assertEquals(channelId, records.channelId(0));
+            assertEquals(ChannelIdInfo.timestamp(channelId), records.timestamp(0), channelId);
+            assertEquals(ChannelIdInfo.serverIndex(channelId), records.serverIndex(0), channelId);
+        }
+    }
+
+    @Test
+    void testConcatenated() {
+        ChannelRecords records = ChannelRecords.of(concat(CHANNEL_IDS));
+        assertEquals(CHANNEL_IDS.length, records.size());
+        for (int i = 0; i < CHANNEL_IDS.length; i++) {
+            assertEquals(CHANNEL_IDS[i], records.channelId(i));
+        }
+    }
+
+    @Test
+    void testTruncated() {
+        byte[] value = concat(CHANNEL_IDS);
+        byte[] truncated = Arrays.copyOf(value, value.length - 1);
+        ChannelRecords records = ChannelRecords.of(truncated);
+        assertEquals(CHANNEL_IDS.length - 1, records.size());
+        assertEquals(CHANNEL_IDS.length - 1, luaSplit(truncated).size());
+        assertEquals(0, ChannelRecords.of(new byte[]{0, 1, 2}).size());
+        assertEquals(0, ChannelRecords.of(null).size());
+    }
+
+    @Test
+    void testTooLong() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < ChannelRecords.MAX_RECORD_LENGTH; i++) {
+            sb.append('x');
+        }
+        assertNull(ChannelRecords.encode(sb.toString()));
+    }
+
+    /**
+     * lua 脚本切分出的每条记录，和 encode 的结果逐字节一致，这样脚本里按记录比较删除才能生效
+     */
+    @Test
+    void testLuaSplit() {
+        List<byte[]> split = luaSplit(concat(CHANNEL_IDS));
+        assertEquals(CHANNEL_IDS.length, split.size());
+        for (int i = 0; i < CHANNEL_IDS.length; i++) {
+            assertArrayEquals(ChannelRecords.encode(CHANNEL_IDS[i]), split.get(i));
+        }
+    }
+
+    private static byte[] concat(String... channelIds) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (String channelId : channelIds) {
+            byte[] record = ChannelRecords.encode(channelId);
+            out.write(record, 0, record.length);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * 与 user_presence.lua 中解析字段值的循环一致（lua 下标从 1 开始，这里换成从 0 开始）
+     */
+    private static List<byte[]> luaSplit(byte[] value) {
+        List<byte[]> records = new ArrayList<>();
+        int i = 0;
+        while (i < value.length) {
+            int len = value[i] & 0xFF;
+            if (len == 0 || i + 1 + len > value.length) {
+                break;
+            }
+            records.add(Arrays.copyOfRange(value, i, i + len + 1));
+            i = i + len + 1;
+        }
+        return records;
+    }
+}
@@ -0,0 +1,91 @@
+package cn.bixin.sona.session.service;
+
+import cn.bixin.sona.session.channel.ChannelRecords;
+import cn.bixin.sona.session.enums.PresenceMode;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.serializer.StringRedisSerializer;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * @author qinwei
+ * <p>
+ * 双写期间，双写之前建立的连接只在旧集合中，读取分桶存储时要合并旧集合
+ */
+class UserPresenceStoreTest {
+
+    private static final String OLD_CHANNEL = "10.0.0.1|192.168.1.2|52311|1700000000000|1f";
+
+    private static final String NEW_CHANNEL = "10.0.0.3|172.16.8.200|61000|1700000001000|ffff";
+
+    private static final String OTHER_CHANNEL = "10.0.0.5|192.168.1.9|0080|1700000003000|a";
+
+    /**
+     * 同一个桶：101 在分桶存储中只有新连接，102 在分桶存储中没有记录
+     */
+    private static final List<Long> UIDS = Arrays.asList(101L, 102L);
+
+    private StringRedisTemplate redisTemplate;
+
+    private UserPresenceStore store;
+
+    @BeforeEach
+    void setUp() {
+        redisTemplate = mock(StringRedisTemplate.class);
+        when(redisTemplate.getStringSerializer()).thenReturn(StringRedisSerializer.UTF_8);
+        when(redisTemplate.execute(any(RedisCallback.class)))
+                .thenReturn(Collections.singletonList(Arrays.asList(ChannelRecords.encode(NEW_CHANNEL), null)));
+        store = new UserPresenceStore();
+        ReflectionTestUtils.setField(store, "stringRedisTemplate", redisTemplate);
+    }
+
+    @Test
+    void testMergeLegacyChannels() {
+        ReflectionTestUtils.setField(store, "mode", PresenceMode.DUAL_WRITE_READ_SHARDED);
+        when(redisTemplate.executePipelined(any(RedisCallback.class))).thenReturn(Arrays.asList(
+                new LinkedHashSet<>(Arrays.asList(OLD_CHANNEL, NEW_CHANNEL)),
+                Collections.singleton(OTHER_CHANNEL)));
+
+        Map<Long, List<String>> channels = store.getChannels(UIDS, false);
+        assertEquals(Arrays.asList(NEW_CHANNEL, OLD_CHANNEL), channels.get(101L));
+        assertEquals(Collections.singletonList(OTHER_CHANNEL), channels.get(102L));
+    }
+
+    @Test
+    void testMergeLegacyOnlineStates() {
+        ReflectionTestUtils.setField(store, "mode", PresenceMode.DUAL_WRITE_READ_SHARDED);
+        when(redisTemplate.executePipelined(any(RedisCallback.class))).thenReturn(Arrays.asList(0L, 1L));
+
+        Map<Long, Boolean> states = store.getOnlineStates(UIDS);
+        assertEquals(Boolean.TRUE, states.get(101L));
+        assertEquals(Boolean.TRUE, states.get(102L));
+    }
+
+    @Test
+    void testShardedOnly() {
+        ReflectionTestUtils.setField(store, "mode", PresenceMode.SHARDED);
+
+        Map<Long, List<String>> channels = store.getChannels(UIDS, false);
+        assertEquals(Collections.singletonList(NEW_CHANNEL), channels.get(101L));
+        assertEquals(Collections.emptyList(), channels.get(102L));
+        Map<Long, Boolean> states = store.getOnlineStates(UIDS);
+        assertEquals(Boolean.TRUE, states.get(101L));
+        assertEquals(Boolean.FALSE, states.get(102L));
+        verify(redisTemplate, never()).executePipelined(any(RedisCallback.class));
+    }
+}
@@ -0,0 +1,303 @@
+package cn.bixin.sona.web.callback;
+
+import cn.bixin.sona.api.room.SonaStreamCallbackRemoteService;
+import cn.bixin.sona.common.dto.Response;
+import cn.bixin.sona.request.callback.StreamCallbackEvent;
+import com.dianping.cat.Cat;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import org.apache.dubbo.config.annotation.DubboReference;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 推流、关流回调的接入
+ * <p>
+ * 厂商故障时会集中重试大量回调，之前每个回调都在 web 线程上同步调用 sona-core，回调风暴会占满 web 线程和 DB 连接池。现在：
+ * <p>
+ * 1. 回调放入队列后立即应答，队列满时应答失败，由厂商稍后重试
+ * <p>
+ * 2. 最近处理过的回调在本地去重，不同节点之间由 sona-core 通过 redis 去重
+ * <p>
+ * 3. 同一个房间（没有房间时按 streamId）的回调进入同一个队列，按回调顺序攒批调用 sona-core
+ * <p>
+ * 4. 厂商已经收到应答，不会再重试：sona-core 处理失败的回调留在 worker 上按退避时间重试，超过次数才丢弃。
+ * 重试期间同一个 routeKey 后到的回调排在失败的回调后面，不会越过它先处理，其他 routeKey 不受影响
+ *
+ * @author qinwei
+ */
+@Component
+public class StreamCallbackDispatcher {
+
+    private static final Logger log = LoggerFactory.getLogger(StreamCallbackDispatcher.class);
+
+    private static final String CAT_TYPE = "StreamCallback";
+
+    /**
+     * 失败回调的最大重试次数，间隔 200ms、400ms、800ms...，总共约 50s
+     */
+    private static final int MAX_RETRY = 8;
+
+    private static final long RETRY_INTERVAL_MILLIS = 200L;
+
+    @DubboReference
+    private SonaStreamCallbackRemoteService sonaStreamCallbackRemoteService;
+
+    @Value("${stream.callback.workers:8}")
+    private int workerCount;
+
+    @Value("${stream.callback.queue.capacity:10000}")
+    private int queueCapacity;
+
+    @Value("${stream.callback.batch.size:50}")
+    private int batchSize;
+
+    @Value("${stream.callback.dedup.seconds:60}")
+    private long dedupSeconds;
+
+    @Value("${stream.callback.dedup.max:100000}")
+    private long dedupMaxSize;
+
+    /**
+     * 最近接收的回调，按写入时间过期，条数有上限，回调风暴时不会无限增长
+     */
+    private Cache<String, Boolean> recent;
+
+    private Worker[] workers;
+
+    private volatile boolean stopped;
+
+    @PostConstruct
+    public void init() {
+        recent = Caffeine.newBuilder()
+                .expireAfterWrite(dedupSeconds, TimeUnit.SECONDS)
+                .maximumSize(dedupMaxSize)
+                .build();
+        workers = new Worker[workerCount];
+        for (int i = 0; i < workerCount; i++) {
+            workers[i] = new Worker(queueCapacity);
+            Thread thread = new Thread(workers[i], "stream-callback-" + i);
+            thread.setDaemon(true);
+            workers[i].thread = thread;
+            thread.start();
+        }
+    }
+
+    /**
+     * @param routeKey 同一个 routeKey 的回调按提交顺序处理
+     * @return false 表示队列已满，需要厂商稍后重试
+     */
+    public boolean submit(String routeKey, StreamCallbackEvent event) {
+        if (stopped) {
+            return false;
+        }
+        String dedupKey = event.getDedupKey();
+        if (dedupKey != null && recent.asMap().putIfAbsent(dedupKey, Boolean.TRUE) != null) {
+            Cat.logEvent(CAT_TYPE, "LocalDuplicate");
+            return true;
+        }
+        if (!worker(routeKey).queue.offer(new Task(routeKey, event))) {
+            if (dedupKey != null) {
+                recent.invalidate(dedupKey);
+            }
+            Cat.logEvent(CAT_TYPE, "QueueFull");
+            log.warn("stream callback queue is full, event:{}", event);
+            return false;
+        }
+        return true;
+    }
+
+    private Worker worker(String routeKey) {
+        return workers[(routeKey.hashCode() & Integer.MAX_VALUE) % workers.length];
+    }
+
+    /**
+     * @return 处理失败的回调，保持提交顺序。sona-core 保证同一个流或房间第一个失败的回调之后的回调都不处理，一起返回
+     */
+    private List<Task> send(List<Task> batch) {
+        try {
+            Response<List<Integer>> resp = sonaStreamCallbackRemoteService.handleStreamCallbacks(events(batch));
+            if (resp.isSuccess()) {
+                List<Integer> failed = resp.getResult();
+                Cat.logBatchEvent(CAT_TYPE, "Handled", batch.size(), failed == null ? 0 : failed.size());
+                if (failed == null || failed.isEmpty()) {
+                    return Collections.emptyList();
+                }
+                //只重试 sona-core 处理失败的回调
+                List<Task> retry = new ArrayList<>(failed.size());
+                for (Integer index : failed) {
+                    retry.add(batch.get(index));
+                }
+                log.warn("handleStreamCallbacks partially failed, events:{}", events(retry));
+                return retry;
+            }
+            log.error("handleStreamCallbacks failed: {}", resp);
+        } catch (Exception e) {
+            log.error("handleStreamCallbacks error, size:{}", batch.size(), e);
+        }
+        return new ArrayList<>(batch);
+    }
+
+    /**
+     * 厂商已经收到应答，不会再回调，超过重试次数才丢弃；丢弃时清除本地去重记录，厂商如果再次回调可以重新处理
+     */
+    private void drop(Task task) {
+        Cat.logEvent(CAT_TYPE, "Dropped");
+        log.error("stream callback dropped after retry, event:{}", task.event);
+        if (task.event.getDedupKey() != null) {
+            recent.invalidate(task.event.getDedupKey());
+        }
+    }
+
+    private static List<StreamCallbackEvent> events(List<Task> tasks) {
+        List<StreamCallbackEvent> events = new ArrayList<>(tasks.size());
+        tasks.forEach(task -> events.add(task.event));
+        return events;
+    }
+
+    /**
+     * 停止接收新的回调，已经在队列中的回调处理完再退出
+     */
+    @PreDestroy
+    public void destroy() throws InterruptedException {
+        stopped = true;
+        long deadline = System.currentTimeMillis() + 5000;
+        for (Worker worker : workers) {
+            worker.thread.join(Math.max(1, deadline - System.currentTimeMillis()));
+        }
+    }
+
+    private class Worker implements Runnable {
+
+        private final BlockingQueue<Task> queue;
+
+        /**
+         * 正在等待重试的 routeKey，按失败的先后顺序；只在 worker 线程上访问
+         */
+        private final Map<String, Blocked> blocked = new LinkedHashMap<>();
+
+        private Thread thread;
+
+        Worker(int capacity) {
+            this.queue = new ArrayBlockingQueue<>(capacity);
+        }
+
+        @Override
+        public void run() {
+            List<Task> batch = new ArrayList<>(batchSize);
+            while (!stopped || !queue.isEmpty()) {
+                try {
+                    Task first = queue.poll(blocked.isEmpty() ? 200 : 50, TimeUnit.MILLISECONDS);
+                    if (first != null) {
+                        batch.add(first);
+                        queue.drainTo(batch, batchSize - 1);
+                    }
+                    List<Task> ready = ready(batch);
+                    if (!ready.isEmpty()) {
+                        block(send(ready));
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                } catch (Throwable e) {
+                    log.error("stream callback worker error", e);
+                } finally {
+                    batch.clear();
+                }
+            }
+            blocked.values().forEach(b -> b.tasks.forEach(StreamCallbackDispatcher.this::drop));
+        }
+
+        /**
+         * 到了重试时间的 routeKey 的回调按顺序排在前面；新回调的 routeKey 还在等待重试时排到它的后面，不单独发送
+         */
+        private List<Task> ready(List<Task> batch) {
+            List<Task> ready = new ArrayList<>(batch.size());
+            long now = System.currentTimeMillis();
+            Iterator<Blocked> iterator = blocked.values().iterator();
+            while (iterator.hasNext()) {
+                Blocked b = iterator.next();
+                if (b.retryTime <= now) {
+                    ready.addAll(b.tasks);
+                    iterator.remove();
+                }
+            }
+            for (Task task : batch) {
+                Blocked b = blocked.get(task.routeKey);
+                if (b == null) {
+                    ready.add(task);
+                } else if (b.tasks.size() < queueCapacity) {
+                    b.tasks.add(task);
+                } else {
+                    drop(task);
+                }
+            }
+            return ready;
+        }
+
+        /**
+         * 同一个 routeKey 第一个失败的回调决定重试时间，超过重试次数时丢弃它，后面的回调继续处理
+         */
+        private void block(List<Task> failed) {
+            long now = System.currentTimeMillis();
+            for (Task task : failed) {
+                Blocked b = blocked.get(task.routeKey);
+                if (b == null) {
+                    if (stopped || task.retries >= MAX_RETRY) {
+                        drop(task);
+                        continue;
+                    }
+                    b = new Blocked(now + (RETRY_INTERVAL_MILLIS << task.retries));
+                    task.retries++;
+                    blocked.put(task.routeKey, b);
+                    Cat.logEvent(CAT_TYPE, "Retry");
+                }
+                b.tasks.add(task);
+            }
+        }
+    }
+
+    private static class Blocked {
+
+        private final long retryTime;
+
+        private final Deque<Task> tasks = new ArrayDeque<>();
+
+        Blocked(long retryTime) {
+            this.retryTime = retryTime;
+        }
+    }
+
+    private static class Task {
+
+        private final String routeKey;
+
+        private final StreamCallbackEvent event;
+
+        /**
+         * 已经重试的次数
+         */
+        private int retries;
+
+        Task(String routeKey, StreamCallbackEvent event) {
+            this.routeKey = routeKey;
+            this.event = event;
+        }
+    }
+}
@@ -4,6 +4,8 @@ import cn.bixin.sona.api.room.SonaStreamCallbackRemoteService;
 import cn.bixin.sona.request.callback.CloseStreamCallback;
 import cn.bixin.sona.request.callback.CreateReplayCallback;
 import cn.bixin.sona.request.callback.CreateStreamCallback;
+import cn.bixin.sona.request.callback.StreamCallbackEvent;
+import cn.bixin.sona.web.callback.StreamCallbackDispatcher;
 import cn.bixin.sona.web.request.callback.tencent.TxReplyRequest;
 import cn.bixin.sona.web.request.callback.tencent.TxStreamRequest;
 import com.alibaba.fastjson.JSON;
@@ -15,6 +17,7 @@ import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RestController;
 
+import javax.annotation.Resource;
 import java.util.Date;
 
 /**
@@ -29,14 +32,17 @@ public class TencentController {
     @DubboReference
     private SonaStreamCallbackRemoteService sonaStreamCallbackRemoteService;
 
+    @Resource
+    private StreamCallbackDispatcher streamCallbackDispatcher;
+
     @PostMapping("/create")
     public String createStream(@RequestBody TxStreamRequest request) {
         log.info("tencent createStream callback: {}", JSON.toJSONString(request));
         CreateStreamCallback createStreamCallback = new CreateStreamCallback();
         createStreamCallback.setStreamId(request.getStreamId());
         createStreamCallback.setSource(2);
-        sonaStreamCallbackRemoteService.handleCreateStreamCallback(createStreamCallback);
-        return "{\"code\":0}";
+        String dedupKey = dedupKey("create", request);
+        return submit(request.getStreamId(), StreamCallbackEvent.ofCreate(dedupKey, createStreamCallback));
     }
 
     @PostMapping("/close")
@@ -45,8 +51,8 @@ public class TencentController {
         CloseStreamCallback closeStreamCallback = new CloseStreamCallback();
         closeStreamCallback.setStreamId(request.getStreamId());
         closeStreamCallback.setSource(2);
-        sonaStreamCallbackRemoteService.handleCloseStreamCallback(closeStreamCallback);
-        return "{\"code\":0}";
+        String dedupKey = dedupKey("close", request);
+        return submit(request.getStreamId(), StreamCallbackEvent.ofClose(dedupKey, closeStreamCallback));
     }
 
     @PostMapping("/replay")
@@ -65,4 +71,22 @@ public class TencentController {
         return "{\"code\":0}";
     }
 
+    /**
+     * 回调放入队列失败时返回非 0，腾讯云会稍后重试
+     */
+    private String submit(String streamId, StreamCallbackEvent event) {
+        if (streamId != null && !streamCallbackDispatcher.submit(streamId, event)) {
+            return "{\"code\":-1}";
+        }
+        return "{\"code\":0}";
+    }
+
+    /**
+     * sequence 是腾讯云回调消息的序列号，重试时不变
+     */
+    private static String dedupKey(String type, TxStreamRequest request) {
+        String sequence = request.getSequence() != null && !request.getSequence().isEmpty() ? request.getSequence() : String.valueOf(request.getEventTime());
+        return "tencent:" + type + ":" + request.getStreamId() + ":" + sequence;
+    }
+
 }
@@ -5,6 +5,8 @@ import cn.bixin.sona.common.dto.Response;
 import cn.bixin.sona.request.callback.CloseStreamCallback;
 import cn.bixin.sona.request.callback.CreateReplayCallback;
 import cn.bixin.sona.request.callback.CreateStreamCallback;
+import cn.bixin.sona.request.callback.StreamCallbackEvent;
+import cn.bixin.sona.web.callback.StreamCallbackDispatcher;
 import cn.bixin.sona.web.request.callback.zego.ZegoCloseStreamRequest;
 import cn.bixin.sona.web.request.callback.zego.ZegoCreateStreamRequest;
 import cn.bixin.sona.web.request.callback.zego.ZegoSaveReplayRequest;
@@ -18,6 +20,7 @@ import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RestController;
 
+import javax.annotation.Resource;
 import java.util.Date;
 import java.util.Map;
 
@@ -30,6 +33,9 @@ public class ZegoController {
     @DubboReference
     private SonaStreamCallbackRemoteService sonaStreamCallbackRemoteService;
 
+    @Resource
+    private StreamCallbackDispatcher streamCallbackDispatcher;
+
     @PostMapping("/create")
     public String createStream(@RequestBody ZegoCreateStreamRequest request) {
         log.info("zego createStream callback: {}", JSON.toJSONString(request));
@@ -50,9 +56,8 @@ public class ZegoController {
             callback.setPicUrls(request.getPic_url());
             callback.setRtmpUrls(request.getRtmp_url());
             callback.setSdkAppId(request.getAppid());
-            Response<Boolean> resp = sonaStreamCallbackRemoteService.handleCreateStreamCallback(callback);
-            if (!resp.isSuccess()) {
-                log.error("zego handleCreateStreamCallback failed: {}", resp);
+            String dedupKey = dedupKey("create", streamId, request.getStream_sid(), request.getTimestamp());
+            if (!streamCallbackDispatcher.submit(routeKey(request.getChannel_id(), streamId), StreamCallbackEvent.ofCreate(dedupKey, callback))) {
                 return "0";
             }
         } catch (Exception e) {
@@ -76,9 +81,8 @@ public class ZegoController {
             callback.setRoomId(request.getChannel_id());
             callback.setSource(1);
             callback.setSdkAppId(request.getAppid());
-            Response<Boolean> resp = sonaStreamCallbackRemoteService.handleCloseStreamCallback(callback);
-            if (!resp.isSuccess()) {
-                log.error("zego handleCloseStreamCallback failed: {}", resp);
+            String dedupKey = dedupKey("close", streamId, request.getStream_sid(), request.getTimestamp());
+            if (!streamCallbackDispatcher.submit(routeKey(request.getChannel_id(), streamId), StreamCallbackEvent.ofClose(dedupKey, callback))) {
                 return "0";
             }
         } catch (Exception e) {
@@ -117,4 +121,18 @@ public class ZegoController {
         return "1";
     }
 
+    /**
+     * 同一个房间的回调按顺序处理，channel_id 即 sona 的房间 id
+     */
+    private static String routeKey(String channelId, String streamId) {
+        return StringUtils.hasText(channelId) ? channelId : streamId;
+    }
+
+    /**
+     * 同一次推流的 stream_sid 不变，zego 重试时回调内容相同
+     */
+    private static String dedupKey(String type, String streamId, String streamSid, int timestamp) {
+        return "zego:" + type + ":" + streamId + ":" + (StringUtils.hasText(streamSid) ? streamSid : String.valueOf(timestamp));
+    }
+
 }